@@ -21,16 +21,15 @@ package weka.classifiers.functions;
 import java.awt.*;
 import java.io.*;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.List;
 import java.util.stream.Collectors;
 
 import lombok.extern.log4j.Log4j2;
-import org.apache.commons.io.output.CountingOutputStream;
-import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang3.time.StopWatch;
-import org.deeplearning4j.datasets.iterator.AsyncDataSetIterator;
 import org.deeplearning4j.exception.DL4JException;
 import org.deeplearning4j.exception.DL4JInvalidConfigException;
 import org.deeplearning4j.exception.DL4JInvalidInputException;
@@ -40,25 +39,28 @@ import org.deeplearning4j.nn.conf.graph.MergeVertex;
 import org.deeplearning4j.nn.conf.inputs.InputType;
 import org.deeplearning4j.nn.conf.layers.BaseOutputLayer;
 import org.deeplearning4j.nn.graph.ComputationGraph;
-import org.deeplearning4j.nn.transferlearning.TransferLearningHelper;
+import org.deeplearning4j.nn.graph.vertex.GraphVertex;
 import org.deeplearning4j.parallelism.ParallelWrapper;
 import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
 import org.nd4j.linalg.dataset.api.iterator.CachingDataSetIterator;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import org.nd4j.linalg.dataset.api.iterator.cache.InFileDataSetCache;
 import org.nd4j.linalg.dataset.api.iterator.cache.InMemoryDataSetCache;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.factory.Nd4jBackend;
+import org.nd4j.nativeblas.NativeOpsHolder;
 import weka.classifiers.IterativeClassifier;
 import weka.classifiers.RandomizableClassifier;
+import weka.classifiers.functions.dl4j.StreamingModelSerializer;
 import weka.classifiers.functions.dl4j.Utils;
 import weka.classifiers.rules.ZeroR;
 import weka.core.BatchPredictor;
 import weka.core.Capabilities;
 import weka.core.Capabilities.Capability;
 import weka.core.CapabilitiesHandler;
+import weka.core.DenseInstance;
 import weka.core.EmptyIteratorException;
 import weka.core.Instance;
 import weka.core.Instances;
@@ -73,8 +75,16 @@ import weka.core.Tag;
 import weka.core.WekaException;
 import weka.core.WekaPackageClassLoaderManager;
 import weka.core.WrongIteratorException;
+import weka.core.converters.Saver;
 import weka.dl4j.*;
 import weka.dl4j.earlystopping.EarlyStopping;
+import weka.dl4j.iterators.dataset.DefaultDataSetIterator;
+import weka.dl4j.iterators.dataset.InstancesDataSetIterator;
+import weka.dl4j.iterators.dataset.MappedDataSetCache;
+import weka.dl4j.iterators.dataset.PrefetchDataSetIterator;
+import weka.dl4j.iterators.dataset.ReorderableDataSetIterator;
+import weka.dl4j.iterators.dataset.ShardedInstancesDataSetIterator;
+import weka.dl4j.iterators.dataset.ShardedInstancesDataSetIterator.ShardReader;
 import weka.dl4j.iterators.instance.*;
 import weka.dl4j.iterators.instance.api.ConvolutionalIterator;
 import weka.dl4j.iterators.instance.sequence.text.cnn.CnnTextEmbeddingInstanceIterator;
@@ -169,9 +179,14 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    */
   protected boolean filterMode = false;
   /**
-   * The size of the serialized network model in bytes.
+   * The size of the serialized network model in bytes, {@link #STREAMED_MODEL_SIZE} if the network
+   * is streamed.
    */
   protected long modelSize;
+  /**
+   * Marks a network that is serialized with the {@link StreamingModelSerializer}.
+   */
+  protected static final long STREAMED_MODEL_SIZE = -1;
   /**
    * The layers of the network.
    */
@@ -214,7 +229,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
   protected AbstractInstanceIterator instanceIterator =
       new DefaultInstanceIterator();
   /**
-   * Queue size for AsyncDataSetIterator (if < 1, AsyncDataSetIterator is not used)
+   * Initial queue size for PrefetchDataSetIterator (if < 1, PrefetchDataSetIterator is not used)
    */
   protected int queueSize = 0;
   /**
@@ -258,6 +273,14 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    * or resuming learning
    */
   protected boolean doNotClearFilesystemCache;
+  /**
+   * Storage precision of the features in the filesystem cache
+   */
+  protected CachePrecision cachePrecision = CachePrecision.FULL;
+  /**
+   * Whether to compress the batches in the filesystem cache
+   */
+  protected boolean compressCache = false;
   /**
    * Only useful in the GUI - if set to true, the GUI will load the layer specification of the currently
    * selected zoo model. This is off by default as it slows the GUI down considerably.
@@ -283,6 +306,50 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    * True if the Cuda/GPU backend is available
    */
   protected boolean gpuBackendAvailable;
+  /**
+   * Reusable single-row network input per thread, used when scoring single instances.
+   */
+  protected transient ThreadLocal<INDArray> singleInstanceInput;
+  /**
+   * Lookup table from weka label index to network output column.
+   */
+  protected transient int[] labelRemap;
+  /**
+   * Number of instances held in memory when training from shards: the sample used to fit the
+   * preprocessing filters and initialize the network, and the shuffle window.
+   */
+  protected int streamingBufferSize = 10000;
+  /**
+   * Number of model replicas trained in parallel on the CPU. If greater than 1, data-parallel
+   * training is used without a GPU backend. Ignored if the GPU backend is available.
+   */
+  protected int numCpuWorkers = 1;
+  /**
+   * Share (compressed) gradients between the CPU workers after each iteration instead of
+   * averaging their parameters.
+   */
+  protected boolean sharedGradients = false;
+  /**
+   * BLAS and OpenMP thread limits before they were split between the CPU workers, restored after
+   * training. Null if they were not changed.
+   */
+  protected transient int[] previousThreadLimits;
+  /**
+   * Shards to stream the training data from, null if training on in-memory instances.
+   */
+  protected transient File[] trainShards;
+  /**
+   * Common header of the training shards.
+   */
+  protected transient Instances shardHeader;
+  /**
+   * Sampled validation instances of the training shards, null if early stopping is not used.
+   */
+  protected transient Instances shardValidationData;
+  /**
+   * Positions of the validation instances within the training shards, skipped during training.
+   */
+  protected transient long[] shardValidationPositions = new long[0];
 
   public Dl4jMlpClassifier() {
     if (!s_cudaMultiGPUSet) {
@@ -430,12 +497,8 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    * @param oos the object output stream
    */
   private void writeObject(ObjectOutputStream oos) throws IOException {
-    // figure out size of the written network
-    CountingOutputStream cos = new CountingOutputStream(new NullOutputStream());
-    if (isInitializationFinished) {
-      ModelSerializer.writeModel(model, cos, false);
-    }
-    modelSize = cos.getByteCount();
+    // The network is streamed in a length-prefixed format, its size is not needed in advance
+    modelSize = STREAMED_MODEL_SIZE;
 
     // default serialization
     oos.defaultWriteObject();
@@ -451,7 +514,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
 
     // actually write the network
     if (isInitializationFinished) {
-      ModelSerializer.writeModel(model, oos, false);
+      StreamingModelSerializer.write(model, oos);
     }
   }
 
@@ -484,27 +547,11 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
 
       // restore the network model
       if (isInitializationFinished) {
-        File tmpFile = File.createTempFile("restore", "multiLayer");
-        tmpFile.deleteOnExit();
-        BufferedOutputStream bos =
-            new BufferedOutputStream(new FileOutputStream(tmpFile));
-        long remaining = modelSize;
-        while (remaining > 0) {
-          int bsize = 10024;
-          if (remaining < 10024) {
-            bsize = (int) remaining;
-          }
-          byte[] buffer = new byte[bsize];
-          int len = ois.read(buffer);
-          if (len == -1) {
-            throw new IOException(
-                "Reached end of network model prematurely during deserialization.");
-          }
-          bos.write(buffer, 0, len);
-          remaining -= len;
+        if (modelSize == STREAMED_MODEL_SIZE) {
+          model = StreamingModelSerializer.read(ois);
+        } else {
+          model = readLegacyModel(ois);
         }
-        bos.flush();
-        model = ModelSerializer.restoreComputationGraph(tmpFile, false);
       }
     } catch (Exception e) {
       log.error("Failed to restore serialized model. Error: " + e.getMessage());
@@ -514,6 +561,36 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     }
   }
 
+  /**
+   * Restore a network that was serialized as a model zip of {@link #modelSize} bytes.
+   *
+   * @param ois the object input stream
+   * @return Restored network
+   * @throws IOException Could not read the network
+   */
+  private ComputationGraph readLegacyModel(ObjectInputStream ois) throws IOException {
+    File tmpFile = File.createTempFile("restore", "multiLayer");
+    tmpFile.deleteOnExit();
+    try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+      long remaining = modelSize;
+      byte[] buffer = new byte[10024];
+      while (remaining > 0) {
+        int len = ois.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (len == -1) {
+          throw new IOException(
+              "Reached end of network model prematurely during deserialization.");
+        }
+        bos.write(buffer, 0, len);
+        remaining -= len;
+      }
+    }
+    try {
+      return ModelSerializer.restoreComputationGraph(tmpFile, false);
+    } finally {
+      tmpFile.delete();
+    }
+  }
+
   /**
    * Generate the, for this model type, typical output layer.
    *
@@ -648,6 +725,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
 
   public void setInstanceIterator(AbstractInstanceIterator iterator) {
     instanceIterator = iterator;
+    labelRemap = null;
   }
 
   @OptionMetadata(description = "The neural network configuration to use.",
@@ -701,7 +779,8 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
   }
 
   @OptionMetadata(
-      description = "The queue size for asynchronous data transfer (default: 0, synchronous transfer).",
+      description = "The initial queue size for asynchronous data transfer, adapted to the "
+          + "observed stalls (default: 0, synchronous transfer).",
       displayName = "data queue size",
       commandLineParamName = "queueSize",
       commandLineParamSynopsis = "-queueSize <int>", displayOrder = 30)
@@ -756,10 +835,9 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
   }
 
   @OptionMetadata(displayName = "Preserve filesystem cache",
-      description = "If true, the filesystem cache will not be cleared when "
-          + "starting or resuming training of a model. This can save time on data "
-          + "preparation for a given problem, but will cause errors if a dataset "
-          + "different to that in the cache is used",
+      description = "If true, the cache files of other datasets will not be deleted when "
+          + "starting or resuming training of a model. The cache file of the current dataset "
+          + "and iterator configuration is always reused.",
       commandLineParamName = "preserve-file-cache",
       commandLineParamSynopsis = "-preserve-file-cache",
       commandLineParamIsFlag = true, displayOrder = 32)
@@ -813,6 +891,81 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     averagingFrequency = frequency;
   }
 
+  public int getStreamingBufferSize() {
+    return streamingBufferSize;
+  }
+
+  @OptionMetadata(displayName = "streaming buffer size",
+      description = "Number of instances held in memory when training from shards: the sample "
+          + "used to fit the preprocessing filters and initialize the network, and the shuffle "
+          + "window (default = 10000).",
+      commandLineParamName = "streamingBufferSize",
+      commandLineParamSynopsis = "-streamingBufferSize <int>",
+      displayOrder = 36)
+  public void setStreamingBufferSize(int streamingBufferSize) {
+    if (streamingBufferSize <= 0) {
+      throw new IllegalArgumentException(
+          "The streaming buffer size must be positive, got " + streamingBufferSize + ".");
+    }
+    this.streamingBufferSize = streamingBufferSize;
+  }
+
+  public int getNumCpuWorkers() {
+    return numCpuWorkers;
+  }
+
+  @OptionMetadata(displayName = "Number of CPU workers",
+      description = "Number of model replicas trained in parallel on the CPU, each with a share of "
+          + "the BLAS threads (ignored if a GPU backend is available, default = 1).",
+      commandLineParamName = "numCpuWorkers",
+      commandLineParamSynopsis = "-numCpuWorkers <integer>",
+      displayOrder = 37)
+  public void setNumCpuWorkers(int numCpuWorkers) {
+    this.numCpuWorkers = numCpuWorkers;
+  }
+
+  public boolean getSharedGradients() {
+    return sharedGradients;
+  }
+
+  @OptionMetadata(displayName = "Share gradients between CPU workers",
+      description = "Share gradients between the CPU workers after each iteration instead of "
+          + "averaging their parameters (ignored if there is only one worker).",
+      commandLineParamName = "sharedGradients",
+      commandLineParamSynopsis = "-sharedGradients",
+      commandLineParamIsFlag = true, displayOrder = 38)
+  public void setSharedGradients(boolean sharedGradients) {
+    this.sharedGradients = sharedGradients;
+  }
+
+  public CachePrecision getCachePrecision() {
+    return cachePrecision;
+  }
+
+  @OptionMetadata(displayName = "Filesystem cache precision",
+      description = "Storage precision of the features in the filesystem cache: FULL, FLOAT16 or "
+          + "UINT8 (exact for integers between 0 and 255, e.g. 8-bit images, which are cached "
+          + "before scaling, otherwise lossily quantized per batch) (default = FULL).",
+      commandLineParamName = "cachePrecision",
+      commandLineParamSynopsis = "-cachePrecision <string>",
+      displayOrder = 39)
+  public void setCachePrecision(CachePrecision cachePrecision) {
+    this.cachePrecision = cachePrecision;
+  }
+
+  public boolean getCompressCache() {
+    return compressCache;
+  }
+
+  @OptionMetadata(displayName = "Compress filesystem cache",
+      description = "Compress the batches in the filesystem cache.",
+      commandLineParamName = "compressCache",
+      commandLineParamSynopsis = "-compressCache",
+      commandLineParamIsFlag = true, displayOrder = 40)
+  public void setCompressCache(boolean compressCache) {
+    this.compressCache = compressCache;
+  }
+
   /**
    * The method used to train the classifier.
    *
@@ -822,10 +975,121 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
   @Override
   public void buildClassifier(Instances data) throws Exception {
     log.info("Building on {} training instances", data.numInstances());
+    trainShards = null;
+    shardValidationData = null;
 
-    // Initialize classifier
-    initializeClassifier(data);
+    try {
+      // Initialize classifier
+      initializeClassifier(data);
+      train();
+    } finally {
+      // done() is skipped if the training fails
+      restoreThreadLimits();
+    }
+  }
 
+  /**
+   * Train the classifier out-of-core on ARFF/CSV shards, which are streamed with the incremental
+   * WEKA loaders in each epoch. All shards must have the same attributes.
+   * <p>
+   * The preprocessing filters are fitted on (and the network is initialized with) a uniform sample
+   * of {@link #getStreamingBufferSize()} instances, so the heap usage does not depend on the size
+   * of the shards. If early stopping is used, its validation set is split off this sample and
+   * skipped while training. Only the {@link DefaultInstanceIterator} is supported.
+   *
+   * @param shards ARFF/CSV files holding the training data
+   * @param classIndex Index of the class attribute, the last attribute if negative
+   * @throws Exception if something goes wrong in the training process
+   */
+  public void buildClassifierFromShards(File[] shards, int classIndex) throws Exception {
+    if (shards.length == 0) {
+      throw new WekaException("No training shards given.");
+    }
+    if (instanceIterator.getClass() != DefaultInstanceIterator.class) {
+      throw new WrongIteratorException(
+          "Training from shards is only supported with the DefaultInstanceIterator.");
+    }
+    // CSV shards only declare the nominal values that occur in them
+    Instances header = ShardReader.readHeader(shards);
+    header.setClassIndex(classIndex < 0 ? header.numAttributes() - 1 : classIndex);
+
+    // Reservoir sample of the instances with known class
+    Random rand = new Random(getSeed());
+    Instances sample = new Instances(header, streamingBufferSize);
+    long[] positions = new long[streamingBufferSize];
+    ShardReader reader = new ShardReader(shards, header);
+    long numInstances = 0;
+    Instance inst;
+    while ((inst = reader.next()) != null) {
+      if (inst.classIsMissing()) {
+        continue;
+      }
+      numInstances++;
+      if (sample.numInstances() < streamingBufferSize) {
+        positions[sample.numInstances()] = reader.position();
+        sample.add(inst);
+      } else {
+        final long j = (long) (rand.nextDouble() * numInstances);
+        if (j < streamingBufferSize) {
+          positions[(int) j] = reader.position();
+          sample.set((int) j, inst);
+        }
+      }
+    }
+    log.info("Building on {} training instances from {} shards", numInstances, shards.length);
+
+    // Split the validation set off the sample
+    shardValidationData = null;
+    shardValidationPositions = new long[0];
+    if (useEarlyStopping()) {
+      int[] perm = new int[sample.numInstances()];
+      for (int i = 0; i < perm.length; i++) {
+        perm[i] = i;
+      }
+      for (int i = perm.length - 1; i > 0; i--) {
+        final int j = rand.nextInt(i + 1);
+        final int tmp = perm[i];
+        perm[i] = perm[j];
+        perm[j] = tmp;
+      }
+      final int numVal = (int) Math.round(
+          sample.numInstances() * earlyStopping.getValidationSetPercentage() / 100);
+      Instances trainSample = new Instances(header, sample.numInstances() - numVal);
+      shardValidationData = new Instances(header, numVal);
+      shardValidationPositions = new long[numVal];
+      for (int i = 0; i < perm.length; i++) {
+        if (i < numVal) {
+          shardValidationPositions[i] = positions[perm[i]];
+          shardValidationData.add(sample.get(perm[i]));
+        } else {
+          trainSample.add(sample.get(perm[i]));
+        }
+      }
+      sample = trainSample;
+    }
+
+    if (cacheMode != CacheMode.NONE) {
+      log.warn("Training data streamed from shards is not cached.");
+    }
+    trainShards = shards;
+    shardHeader = header;
+
+    try {
+      // Initialize classifier
+      initializeClassifier(sample);
+      train();
+    } finally {
+      // done() is skipped if the training fails
+      restoreThreadLimits();
+    }
+  }
+
+  /**
+   * Run the training epochs and clean up afterwards.
+   *
+   * @throws Exception if something goes wrong in the training process
+   */
+  protected void train() throws Exception {
     if (getDebug()) {
       log.info("Classifier: \n{}", toString());
     }
@@ -866,7 +1130,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
 
     if (trainData != null && trainData.numInstances() > 0) {
       // Resume run: only initialize iterator
-      trainIterator = getDataSetIterator(trainData);
+      trainIterator = getTrainDataSetIterator(trainData);
       return;
     }
 
@@ -965,6 +1229,62 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
           .workers(getNumGPUs())
           .averagingFrequency(getParameterAveragingFrequency())
           .build();
+    } else if (!gpuBackendAvailable && getNumCpuWorkers() > 1) {
+      initCpuParallelWrapper();
+    }
+  }
+
+  /**
+   * Wrap the model in a ParallelWrapper for data parallel training on the CPU. Each worker trains
+   * its own replica in its own workspaces, so the BLAS and OpenMP threads are split between the
+   * workers instead of each worker using all cores.
+   */
+  protected void initCpuParallelWrapper() {
+    final int numCores = Runtime.getRuntime().availableProcessors();
+    final int workers = Math.min(getNumCpuWorkers(), numCores);
+    if (workers < getNumCpuWorkers()) {
+      log.warn("Number of requested CPU workers {}, is greater than number of cores {}",
+          getNumCpuWorkers(), numCores);
+    }
+    final int threadsPerWorker = Math.max(1, numCores / workers);
+    setThreadLimits(threadsPerWorker);
+
+    log.info("Initializing for parallel training on {} CPU workers with {} threads each",
+        workers, threadsPerWorker);
+    parallelWrapper = new ParallelWrapper.Builder(model)
+        .prefetchBuffer(Math.max(getPrefetchBufferSize(), workers))
+        .workers(workers)
+        .averagingFrequency(getParameterAveragingFrequency())
+        .trainingMode(getSharedGradients()
+            ? ParallelWrapper.TrainingMode.SHARED_GRADIENTS
+            : ParallelWrapper.TrainingMode.AVERAGING)
+        .workspaceMode(Preferences.WORKSPACE_MODE)
+        .build();
+  }
+
+  /**
+   * Limit the number of BLAS and OpenMP threads used by each operation, remembering the previous
+   * limits.
+   *
+   * @param numThreads Thread limit
+   */
+  protected void setThreadLimits(int numThreads) {
+    if (previousThreadLimits == null) {
+      previousThreadLimits = new int[] {Nd4j.factory().blas().getMaxThreads(),
+          NativeOpsHolder.getInstance().getDeviceNativeOps().ompGetMaxThreads()};
+    }
+    Nd4j.factory().blas().setMaxThreads(numThreads);
+    NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(numThreads);
+  }
+
+  /**
+   * Restore the BLAS and OpenMP thread limits from before the training.
+   */
+  protected void restoreThreadLimits() {
+    if (previousThreadLimits != null) {
+      Nd4j.factory().blas().setMaxThreads(previousThreadLimits[0]);
+      NativeOpsHolder.getInstance().getDeviceNativeOps().setOmpNumThreads(previousThreadLimits[1]);
+      previousThreadLimits = null;
     }
   }
 
@@ -990,7 +1310,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
 
     // Setup the datasetiterators (needs to be done after the model
     // initialization)
-    trainIterator = getDataSetIterator(this.trainData);
+    trainIterator = getTrainDataSetIterator(this.trainData);
 
     // Update epoch counter
     numEpochsPerformedThisSession = 0;
@@ -1029,6 +1349,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
         labelSortIndex[i] = sortedIndex;
       }
     }
+    labelRemap = null;
   }
 
   /**
@@ -1042,7 +1363,13 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     double valSplit = earlyStopping.getValidationSetPercentage();
     Instances trainData;
     Instances valData;
-    if (useEarlyStopping()) {
+    if (useEarlyStopping() && shardValidationData != null) {
+      // The validation set has already been split off the shard sample
+      trainData = data;
+      valData = applyFilters(shardValidationData);
+      validateSplit(trainData, valData);
+      earlyStopping.init(getDataSetIterator(valData, cacheMode, "val"));
+    } else if (useEarlyStopping()) {
       // Split in train and validation
       Instances[] insts = splitTrainVal(data, valSplit);
       trainData = insts[0];
@@ -1094,6 +1421,20 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    */
   protected DataSetIterator getDataSetIterator(Instances data, CacheMode cm,
       String cacheDirSuffix) throws Exception {
+    return getDataSetIterator(data, cm, cacheDirSuffix, false);
+  }
+
+  /**
+   * Generates a DataSetIterator based on the given instances.
+   *
+   * @param data Input instances
+   * @param cm Cache mode for the datasets
+   * @param cacheDirSuffix suffix for the cache directory
+   * @param training Whether the iterator is used for training, i.e. its examples may be reordered
+   * @return DataSetIterator Iterator over dataset objects
+   */
+  protected DataSetIterator getDataSetIterator(Instances data, CacheMode cm,
+      String cacheDirSuffix, boolean training) throws Exception {
     // Also set the instance iterator to use this zoo model's channel order
     if (this.instanceIterator instanceof ImageInstanceIterator) {
       ((ImageInstanceIterator) this.instanceIterator).setChannelsLast(this.zooModel.getChannelsLast());
@@ -1101,6 +1442,33 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
 
     DataSetIterator it = instanceIterator.getDataSetIterator(data, getSeed());
 
+    // Only training iterators may change the order of the examples, predictions are matched to
+    // the instances by position
+    if (training && it instanceof ReorderableDataSetIterator) {
+      final ReorderableDataSetIterator rit = (ReorderableDataSetIterator) it;
+      rit.setReorderingAllowed(true);
+      // A cache would replay the order of the first epoch in all later epochs
+      if (rit.isReordering() && cm != CacheMode.NONE) {
+        log.info("Not caching the training data, since its order changes in each epoch.");
+        cm = CacheMode.NONE;
+      }
+    }
+
+    // Evaluation and inference must see every example, including the last, smaller batch
+    if (!training) {
+      if (it instanceof InstancesDataSetIterator) {
+        ((InstancesDataSetIterator) it).setKeepPartialBatch(true);
+      } else if (it instanceof DefaultDataSetIterator) {
+        ((DefaultDataSetIterator) it).setKeepPartialBatch(true);
+      }
+    }
+
+    // Prefetching holds several batches at once, so batch buffers must not be reused
+    if (it instanceof InstancesDataSetIterator
+        && (queueSize > 0 || getNumGPUs() > 1 || getNumCpuWorkers() > 1)) {
+      ((InstancesDataSetIterator) it).setReuseBuffers(false);
+    }
+
     // Use caching if set
     switch (cm) {
       case MEMORY: // Use memory as cache
@@ -1113,35 +1481,68 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
             cacheDirSuffix.isEmpty() ? "" : "-" + cacheDirSuffix;
         final File cacheDir =
             Paths.get(tmpDir, "dataset-cache" + suffix).toFile();
-        if (cacheDir.exists() && cacheDir.isDirectory() && !getDoNotClearFilesystemCache()) {
-          // delete contents then directory
-          File[] fs = cacheDir.listFiles();
-          for (File f : fs) {
-            f.delete();
-          }
-          if (!cacheDir.delete()) {
-            // remove old existing cache
-            System.err.println("Unable to delete cache dir "
-                + cacheDir.toString());
-          }
+        final String fingerprint = getCacheFingerprint(data, training);
+        if (cacheDir.isDirectory() && !getDoNotClearFilesystemCache()) {
+          // Remove the caches of other datasets
+          MappedDataSetCache.deleteOtherCaches(cacheDir, fingerprint);
         }
 
-        final InFileDataSetCache fsCache = new InFileDataSetCache(cacheDir);
+        final MappedDataSetCache fsCache =
+            new MappedDataSetCache(cacheDir, fingerprint, cachePrecision, compressCache);
+        // Cache the batches before preprocessing, e.g. the unscaled pixels of 8-bit images which
+        // the UINT8 precision stores exactly, and preprocess them after reading them
+        final DataSetPreProcessor preProcessor = it.getPreProcessor();
+        if (preProcessor != null) {
+          it.setPreProcessor(null);
+        }
         it = new CachingDataSetIterator(it, fsCache);
+        if (preProcessor != null) {
+          it.setPreProcessor(preProcessor);
+        }
         break;
     }
 
-    // Use async dataset iteration if queue size was set
+    // Prefetch batches in the background if queue size was set (on top of the cache, so cached
+    // batches are prefetched as well). The producer only starts once the iterator is consumed.
     if (queueSize > 0) {
-      it = new AsyncDataSetIterator(it, queueSize);
-      if (!it.hasNext()) {
-        throw new RuntimeException(
-            "AsyncDataSetIterator could not load any datasets.");
-      }
+      it = new PrefetchDataSetIterator(it, queueSize);
     }
     return it;
   }
 
+  /**
+   * Compute the fingerprint of the filesystem cache of a dataset: a hash of the instances, the
+   * instance iterator configuration and the cache format. Image files are identified by their
+   * names only, so the cache must be cleared if images are modified in place.
+   *
+   * @param data Input instances
+   * @param training Whether the iterator is used for training
+   * @return Fingerprint
+   * @throws Exception Could not compute the hash
+   */
+  protected String getCacheFingerprint(Instances data, boolean training) throws Exception {
+    final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+    final String config = instanceIterator.getClass().getName() + "|"
+        + weka.core.Utils.joinOptions(instanceIterator.getOptions()) + "|" + getSeed() + "|"
+        + training + "|" + cachePrecision + "|" + compressCache + "|" + new Instances(data, 0);
+    digest.update(config.getBytes("UTF-8"));
+    final ByteBuffer buf = ByteBuffer.allocate(8 * (data.numAttributes() + 1));
+    for (Instance inst : data) {
+      buf.clear();
+      for (double v : inst.toDoubleArray()) {
+        buf.putDouble(v);
+      }
+      buf.putDouble(inst.weight());
+      digest.update(buf.array(), 0, buf.position());
+    }
+
+    StringBuilder sb = new StringBuilder("dataset-");
+    for (byte b : digest.digest()) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
   /**
    * Generates a DataSetIterator based on the given instances.
    *
@@ -1164,6 +1565,44 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     return getDataSetIterator(data, cacheMode);
   }
 
+  /**
+   * Generates the DataSetIterator used for training on the given instances.
+   *
+   * @param data Training instances
+   * @return DataSetIterator
+   */
+  protected DataSetIterator getTrainDataSetIterator(Instances data) throws Exception {
+    if (trainShards != null) {
+      return getShardDataSetIterator(data);
+    }
+    return getDataSetIterator(data, cacheMode, "", true);
+  }
+
+  /**
+   * Generates the DataSetIterator that streams the training shards through the fitted filters.
+   *
+   * @param data Preprocessed training sample, defines the format of the filtered instances
+   * @return DataSetIterator
+   */
+  protected DataSetIterator getShardDataSetIterator(Instances data) throws Exception {
+    final DefaultInstanceIterator dii = (DefaultInstanceIterator) instanceIterator;
+    ShardedInstancesDataSetIterator sit = new ShardedInstancesDataSetIterator(trainShards,
+        shardHeader, new Instances(data, 0), this::applyFilters, dii.getTrainBatchSize());
+    sit.setReorderingAllowed(true);
+    sit.setSkippedPositions(shardValidationPositions);
+    sit.setKeepPartialBatch(dii.getKeepPartialBatch());
+    if (dii.getShuffle()) {
+      sit.enableShuffling(streamingBufferSize, getSeed());
+    }
+
+    // Reading the shards can overlap with training
+    DataSetIterator it = sit;
+    if (queueSize > 0) {
+      it = new PrefetchDataSetIterator(it, queueSize);
+    }
+    return it;
+  }
+
   /**
    * Apply weka filter preprocessing to the input data.
    *
@@ -1346,6 +1785,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
 
     boolean initSuccessful = false;
     int maxWidth = 10000;
+    final int numClasses = trainData.numClasses();
     while (!initSuccessful) {
       if (newWidth > maxWidth) {
         // Keeps looping until it succeeds - if it never succeeds in creating the model then this loop never breaks otherwise
@@ -1359,8 +1799,16 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
         setInstanceIterator(cii);
       }
 
-      initSuccessful =
-          initZooModel(trainData.numClasses(), getSeed(), newShape);
+      try {
+        // Check the shape on the model configuration, so the weights are only loaded once
+        initSuccessful = zooModel.isValidInputShape(numClasses, newShape);
+        if (initSuccessful) {
+          model = zooModel.init(numClasses, getSeed(), newShape, isFilterMode());
+        }
+      } catch (UnsupportedOperationException e) {
+        // The configuration is only available by initializing the model
+        initSuccessful = initZooModel(numClasses, getSeed(), newShape);
+      }
 
       newWidth *= 1.2;
       newHeight *= 1.2;
@@ -1384,18 +1832,16 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
       throws Exception {
     try {
       ComputationGraph tmpModel = zooModel.init(numClasses, seed, newShape, isFilterMode());
-      // Make a dummy feed forward pass to check if the model dimensions fit at
-      // each layer
-      Instances dummyData = new Instances(trainData);
-      for (int i = 0; i < instanceIterator.getTrainBatchSize(); i++) {
-        dummyData.add(trainData.get(i));
-      }
+      // Make a dummy feed forward pass with a single batch to check if the model dimensions fit
+      // at each layer
+      final int numDummy = Math.min(instanceIterator.getTrainBatchSize(), trainData.numInstances());
+      Instances dummyData = new Instances(trainData, 0, numDummy);
       tmpModel.init();
       DataSetIterator iter = getDataSetIterator(dummyData);
       tmpModel.feedForward(Utils.getNext(iter).getFeatures(), false);
 
       // No Exception thrown -> set model to this zoo model and return true
-      model = zooModel.init(numClasses, seed, newShape, isFilterMode());
+      model = tmpModel;
       return true;
     } catch (UnsupportedOperationException e) {
       throw new UnsupportedOperationException(
@@ -1671,6 +2117,20 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     if (zeroR == null) {
       trainData = new Instances(trainData, 0);
     }
+    // Training may also end by reaching the number of epochs after a worse epoch
+    if (useEarlyStopping()) {
+      earlyStopping.restoreBestModel(model);
+    }
+    // Stop prefetching batches that will not be used anymore
+    if (trainIterator instanceof PrefetchDataSetIterator) {
+      ((PrefetchDataSetIterator) trainIterator).shutdown();
+    }
+    // Stop the parallel workers, their parameters are already in the model
+    if (parallelWrapper != null) {
+      parallelWrapper.shutdown();
+      parallelWrapper = null;
+    }
+    restoreThreadLimits();
   }
 
 
@@ -1824,9 +2284,129 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
   @Override
   public double[] distributionForInstance(Instance inst) throws Exception {
 
-    Instances data = new Instances(inst.dataset());
-    data.add(inst);
-    return distributionsForInstances(data)[0];
+    // Do we only have a ZeroR model?
+    if (zeroR != null) {
+      return zeroR.distributionForInstance(inst);
+    }
+
+    if (!supportsSingleInstanceScoring()) {
+      Instances data = new Instances(inst.dataset(), 1);
+      data.add(inst);
+      return distributionsForInstances(data)[0];
+    }
+
+    // Filter the single instance with the already fitted filters
+    Instance filtered = applyFilters(inst);
+    Instances header = filtered.dataset();
+
+    // Fill the reusable input array of this thread
+    INDArray input = getSingleInstanceInput(header);
+    if (filtered.numValues() != filtered.numAttributes()) {
+      input.assign(0);
+    }
+    InstancesDataSetIterator.putFeatures(filtered, header.classIndex(), input.data(), 0);
+
+    INDArray pred = model.outputSingle(input);
+    if (arithmeticUnderflow(pred)) {
+      throw new DL4JException("NaNs in model output, likely caused by arithmetic underflow");
+    }
+    return toDistribution(pred, 0, header);
+  }
+
+  /**
+   * Convert a row of the network output into a weka distribution.
+   *
+   * @param pred Network output
+   * @param row Row of the network output to convert
+   * @param header Format of the filtered instances
+   * @return the class probability estimates (if the class is nominal) or the numeric prediction
+   */
+  protected double[] toDistribution(INDArray pred, int row, Instances header) {
+    final int[] remap = getLabelRemap(header);
+    double[] dist = new double[header.numClasses()];
+    for (int j = 0; j < dist.length; j++) {
+      dist[j] = pred.getDouble(row, remap[j]);
+    }
+
+    // Fix classes
+    if (dist.length > 1) {
+      weka.core.Utils.normalize(dist);
+    } else {
+      // Rescale numeric classes with the computed coefficients in the
+      // initialization phase
+      dist[0] = dist[0] * x1 + x0;
+    }
+    return dist;
+  }
+
+  /**
+   * Whether single instances can be scored without building a dataset iterator. This is the case
+   * if the instance iterator converts the attribute values directly into the network input.
+   *
+   * @return true if {@link #distributionForInstance(Instance)} can score instances directly
+   */
+  protected boolean supportsSingleInstanceScoring() {
+    return instanceIterator instanceof DefaultInstanceIterator
+        && replaceMissingFilter != null
+        && nominalToBinaryFilter != null;
+  }
+
+  /**
+   * Get the reusable input array of the current thread for a single instance of the given
+   * (filtered) format.
+   *
+   * @param header Format of the filtered instances
+   * @return Input array of shape [1, numFeatures] or [1, channels, width, height]
+   */
+  protected INDArray getSingleInstanceInput(Instances header) {
+    if (singleInstanceInput == null) {
+      synchronized (this) {
+        if (singleInstanceInput == null) {
+          singleInstanceInput = new ThreadLocal<>();
+        }
+      }
+    }
+
+    final int numFeatures = header.numAttributes() - 1;
+    INDArray input = singleInstanceInput.get();
+    if (input == null || input.length() != numFeatures) {
+      input = Nd4j.create(Nd4j.defaultFloatingPointType(), getInputShape(1, numFeatures));
+      singleInstanceInput.set(input);
+    }
+    return input;
+  }
+
+  /**
+   * Get the network input shape for a batch of filtered instances.
+   *
+   * @param batchSize Number of instances
+   * @param numFeatures Number of features per instance
+   * @return Shape [batchSize, numFeatures] or [batchSize, channels, width, height]
+   */
+  protected long[] getInputShape(int batchSize, int numFeatures) {
+    if (instanceIterator instanceof ConvolutionInstanceIterator) {
+      ConvolutionInstanceIterator cii = (ConvolutionInstanceIterator) instanceIterator;
+      return new long[]{batchSize, cii.getNumChannels(), cii.getWidth(), cii.getHeight()};
+    }
+    return new long[]{batchSize, numFeatures};
+  }
+
+  /**
+   * Get the lookup table from weka label index to network output column.
+   *
+   * @param header Format of the filtered instances
+   * @return Label index remapping
+   */
+  protected int[] getLabelRemap(Instances header) {
+    int[] remap = labelRemap;
+    if (remap == null || remap.length != header.numClasses()) {
+      remap = new int[header.numClasses()];
+      for (int j = 0; j < remap.length; j++) {
+        remap[j] = fixLabelIndexIfNominal(j, header);
+      }
+      labelRemap = remap;
+    }
+    return remap;
   }
 
   public boolean arithmeticUnderflow(INDArray array) {
@@ -1855,6 +2435,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     // Get predictions
     final DataSetIterator it = getDataSetIterator(insts, CacheMode.NONE);
     double[][] preds = new double[insts.numInstances()][insts.numClasses()];
+    final int[] remap = getLabelRemap(insts);
 
     int offset = 0;
     boolean next = it.hasNext();
@@ -1871,8 +2452,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
       // Build weka distribution output
       for (int i = 0; i < currentBatchSize; i++) {
         for (int j = 0; j < insts.numClasses(); j++) {
-          int jResorted = fixLabelIndexIfNominal(j, insts);
-          preds[i + offset][j] = predBatch.getDouble(i, jResorted);
+          preds[i + offset][j] = predBatch.getDouble(i, remap[j]);
         }
       }
       offset += currentBatchSize; // add batchsize as offset
@@ -1928,6 +2508,46 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
     return insts;
   }
 
+  /**
+   * Apply the filters to a single instance. The filters have already been fitted on the training
+   * data, hence the instance is converted immediately without creating a new Instances object.
+   *
+   * @param inst Instance that is going to be filtered
+   * @return Filtered instance
+   * @throws Exception Filter could not be applied
+   */
+  protected Instance applyFilters(Instance inst) throws Exception {
+    // The filters buffer their output, so the instance has to pass through them atomically
+    synchronized (replaceMissingFilter) {
+      inst = filterInstance(replaceMissingFilter, inst);
+      inst = filterInstance(nominalToBinaryFilter, inst);
+      if (filter != null) {
+        inst = filterInstance(filter, inst);
+      }
+    }
+    return inst;
+  }
+
+  /**
+   * Pass a single instance through an already fitted filter.
+   *
+   * @param f Fitted filter
+   * @param inst Input instance
+   * @return Filtered instance
+   * @throws Exception Filter could not be applied
+   */
+  protected static Instance filterInstance(Filter f, Instance inst) throws Exception {
+    if (!f.input(inst)) {
+      f.batchFinished();
+    }
+    Instance out = f.output();
+    if (out == null) {
+      throw new WekaException("Filter " + f.getClass().getSimpleName()
+          + " did not produce an output instance.");
+    }
+    return out;
+  }
+
   /**
    * Get the {@link ComputationGraph} model
    *
@@ -1982,7 +2602,7 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
   }
 
   /**
-   * Uses the DL4J TransferLearningHelper to featurize the instances using activations from the given layer
+   * Featurize the data of the given iterator using the activations from the given layer
    * @param layerName layer activations to use for instances
    * @param iter iterator for the instances
    * @param poolingType pooling type to be used (only necessary if using intermediary layers with 3D activations)
@@ -1990,62 +2610,113 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    * @throws Exception
    */
   public INDArray featurizeForLayer(String layerName, DataSetIterator iter, PoolingType poolingType) throws Exception {
-    // TransferLearningHelper alters cmp graph in place so we need to clone it
-    TransferLearningHelper transferLearningHelper;
-    try {
-      ComputationGraph clonedGraph = model.clone();
-      transferLearningHelper = new TransferLearningHelper(clonedGraph, layerName);
-    } catch (Exception e) {
-      throw new WekaException(String.format("Could not find features for layer %s, " +
-              "please ensure the name is correctly entered or append the -default-feature-layer flag to use " +
-              "the default extraction layer", layerName));
-    }
-    boolean checkedReshaping = false;
-    String initShape = "", reshapedShape = "";
-    iter.reset();
-
-    INDArray activationAtLayer, result = null;
+    final String[] layerNames = new String[]{layerName};
+    final int lastLayerIdx = getFeedForwardLayerIndex(layerNames);
 
+    List<INDArray> batches = new ArrayList<>();
+    boolean[] loggedReshaping = new boolean[1];
+    iter.reset();
     while (iter.hasNext()) {
-      // Use the DL4J way of featurizing data
-      DataSet currentFeaturized = transferLearningHelper.featurize(Utils.getNext(iter));
-      activationAtLayer = currentFeaturized.getFeatures();
+      batches.add(featurizeBatch(Utils.getNext(iter).getFeatures(), layerNames, lastLayerIdx,
+          poolingType, loggedReshaping).get(0));
+    }
+    return batches.isEmpty() ? null : Nd4j.vstack(batches);
+  }
 
-      if (Utils.needsReshaping(activationAtLayer)) {
-        // permute from [1, 64, 64, 512] to [1, 512, 64, 64] (only necessary if model is in channels-last mode
-        if (Utils.isChannelsLast(activationAtLayer)) { // TODO refactor to check channels last only on first loop
-          activationAtLayer = activationAtLayer.permute(0, 3, 1, 2);
+  /**
+   * Get the index (in {@link ComputationGraph#getLayers()}) of the layer at which a forward pass
+   * can stop, since all requested activations are available. The forward pass computes the
+   * vertices in topological order up to this layer, so this is the first layer vertex at or after
+   * the deepest requested vertex, which may also be a non-layer vertex (e.g. an ElementWiseVertex).
+   *
+   * @param layerNames Names of the requested layers
+   * @return Index of the layer to stop at, -1 if the forward pass must run through all layers
+   * @throws WekaException A layer could not be found in the model
+   */
+  protected int getFeedForwardLayerIndex(String[] layerNames) throws WekaException {
+    for (String layerName : layerNames) {
+      if (model.getVertex(layerName) == null) {
+        throw new WekaException(String.format("Could not find features for layer %s, " +
+            "please ensure the name is correctly entered or append the -default-feature-layer flag to use " +
+            "the default extraction layer", layerName));
+      }
+    }
 
-          // Output info message once
-          if (!checkedReshaping) {
-            log.info("Received channels-last activations - permuting to standard channels first (NHWC -> NCHW)");
-          }
+    final Set<String> names = new HashSet<>(Arrays.asList(layerNames));
+    final int[] order = model.topologicalSortOrder();
+    final GraphVertex[] vertices = model.getVertices();
+    int lastPos = 0;
+    for (int i = 0; i < order.length; i++) {
+      if (names.contains(vertices[order[i]].getVertexName())) {
+        lastPos = i;
+      }
+    }
+
+    final org.deeplearning4j.nn.api.Layer[] layers = model.getLayers();
+    for (int i = lastPos; i < order.length; i++) {
+      final GraphVertex vertex = vertices[order[i]];
+      if (!vertex.hasLayer()) {
+        continue;
+      }
+      for (int j = 0; j < layers.length; j++) {
+        if (layers[j] == vertex.getLayer()) {
+          return j;
         }
+      }
+    }
+    return -1;
+  }
 
-        // Output an info message only once if we're reshaping
-        if (!checkedReshaping)
-          initShape = Arrays.toString(activationAtLayer.shape());
+  /**
+   * Run a single forward pass for a batch and collect the (2D) activations of all given layers.
+   *
+   * @param features Batch features
+   * @param layerNames Names of the requested layers
+   * @param lastLayerIdx Index of the layer to stop at, -1 for a full forward pass, see {@link
+   * #getFeedForwardLayerIndex(String[])}
+   * @param poolingType pooling type to be used (only necessary if using intermediary layers with 3D activations)
+   * @param loggedReshaping Per layer flag whether the reshaping has already been logged
+   * @return 2D activations, one array per requested layer
+   */
+  protected List<INDArray> featurizeBatch(INDArray features, String[] layerNames,
+      int lastLayerIdx, PoolingType poolingType, boolean[] loggedReshaping) {
+    final INDArray[] input = new INDArray[]{features};
+    Map<String, INDArray> activations = lastLayerIdx < 0
+        ? model.feedForward(input, false)
+        : model.feedForward(input, lastLayerIdx, false);
 
-        activationAtLayer = Utils.reshapeActivations(activationAtLayer, poolingType);
+    List<INDArray> result = new ArrayList<>(layerNames.length);
+    for (int i = 0; i < layerNames.length; i++) {
+      INDArray activationAtLayer = activations.get(layerNames[i]);
 
-        if (!checkedReshaping) {
-          reshapedShape = Arrays.toString(activationAtLayer.shape());
-          log.info(String.format("Reshaped batch from %s to %s using %s", initShape, reshapedShape, poolingType));
-          checkedReshaping = true;
+      if (Utils.needsReshaping(activationAtLayer)) {
+        // Pooling reduces over the spatial dimensions of [1, 64, 64, 512] directly, only the
+        // flattening of unpooled activations permutes to channels first (NHWC -> NCHW)
+        final boolean channelsLast =
+            activationAtLayer.rank() == 4 && Utils.isChannelsLast(activationAtLayer);
+        if (channelsLast && !loggedReshaping[i]) {
+          log.info("Received channels-last activations");
         }
-      }
 
-      if (result == null) {
-        result = activationAtLayer;
-      } else {
-        result = Nd4j.concat(0, result, activationAtLayer);
+        String initShape = Arrays.toString(activationAtLayer.shape());
+        activationAtLayer =
+            Utils.reshapeActivations(activationAtLayer, poolingType, channelsLast);
+
+        // Output an info message only once if we're reshaping
+        if (!loggedReshaping[i]) {
+          String reshapedShape = Arrays.toString(activationAtLayer.shape());
+          log.info(String.format("Reshaped batch from %s to %s using %s", initShape, reshapedShape, poolingType));
+        }
       }
+      loggedReshaping[i] = true;
+      result.add(activationAtLayer);
     }
     return result;
   }
 
   /**
-   * Uses the given set of layers to extract features for the given dataset
+   * Uses the given set of layers to extract features for the given dataset. All layers are
+   * featurized with a single forward pass per batch.
    * @param layerNames Layer
    * @param input data to featurize
    * @param poolingType pooling type to use
@@ -2053,31 +2724,97 @@ public class Dl4jMlpClassifier extends RandomizableClassifier implements
    */
   public Instances getActivationsAtLayers(String[] layerNames, Instances input, PoolingType poolingType)
       throws Exception {
-    DataSetIterator iter = getDataSetIterator(input);
-    INDArray result = null;
+    return getActivationsAtLayers(layerNames, input, poolingType, null);
+  }
+
+  /**
+   * Uses the given set of layers to extract features for the given dataset. All layers are
+   * featurized with a single forward pass per batch and each batch is converted to instances
+   * right away. If a saver is given, the transformed instances are written to it incrementally
+   * instead of being collected, so memory usage is bounded by the batch size.
+   * @param layerNames Layer
+   * @param input data to featurize
+   * @param poolingType pooling type to use
+   * @param saver incremental saver to write the transformed instances to (can be null)
+   * @return Instances transformed to the image features (only the format if a saver is given)
+   */
+  public Instances getActivationsAtLayers(String[] layerNames, Instances input,
+      PoolingType poolingType, Saver saver) throws Exception {
+    // Each batch is only needed once, so there is no point in caching it
+    DataSetIterator iter = getDataSetIterator(input, CacheMode.NONE);
     Map<String, Long> attributesPerLayer = new LinkedHashMap<>();
 
     log.info("Getting features from layers: " + Arrays.toString(layerNames));
 
-    for (String layerName : layerNames) {
-      if (attributesPerLayer.containsKey(layerName)) {
-        log.warn("Concatenating two identical layers not supported");
-        continue;
-      }
+    Set<String> uniqueNames = new LinkedHashSet<>(Arrays.asList(layerNames));
+    if (uniqueNames.size() < layerNames.length) {
+      log.warn("Concatenating two identical layers not supported");
+    }
+    final String[] names = uniqueNames.toArray(new String[0]);
+    final int lastLayerIdx = getFeedForwardLayerIndex(names);
+    final int numInstances = input.numInstances();
 
-      INDArray activationsAtLayer = featurizeForLayer(layerName, iter, poolingType);
+    Instances result = null;
+    boolean[] loggedReshaping = new boolean[names.length];
+    int offset = 0;
+    iter.reset();
+    boolean next = iter.hasNext() && numInstances > 0;
+    while (next) {
+      List<INDArray> activations = featurizeBatch(Utils.getNext(iter).getFeatures(), names,
+          lastLayerIdx, poolingType, loggedReshaping);
+      int batchSize = (int) activations.get(0).size(0);
 
-      attributesPerLayer.put(layerName, activationsAtLayer.shape()[1]);
+      // Create the output format once the activation sizes are known (plus one attribute for the class)
       if (result == null) {
-        result = activationsAtLayer;
-      } else {
-        // Concatenate the activations of this layer with the other feature extraction layers
-        result = Nd4j.concat(1, result, activationsAtLayer);
+        int numAttributes = 1;
+        for (int i = 0; i < names.length; i++) {
+          attributesPerLayer.put(names[i], activations.get(i).size(1));
+          numAttributes += activations.get(i).size(1);
+        }
+        result = Utils.makeTransformedFormat(numAttributes, input, attributesPerLayer,
+            saver == null ? numInstances : 0);
+        if (saver != null) {
+          saver.setRetrieval(Saver.INCREMENTAL);
+          saver.setInstances(result);
+        }
       }
-    }
 
-    result = Utils.appendClasses(result, input);
+      // Transfer each layer's activations of this batch in bulk
+      double[][][] batchValues = new double[activations.size()][][];
+      for (int i = 0; i < activations.size(); i++) {
+        batchValues[i] = activations.get(i).toDoubleMatrix();
+      }
 
-    return Utils.convertToInstances(result, input, attributesPerLayer);
+      // Concatenate the activations of all feature extraction layers and append the class
+      for (int row = 0; row < batchSize; row++) {
+        double[] vals = new double[result.numAttributes()];
+        int col = 0;
+        for (double[][] layerValues : batchValues) {
+          System.arraycopy(layerValues[row], 0, vals, col, layerValues[row].length);
+          col += layerValues[row].length;
+        }
+        vals[col] = input.instance(offset + row).classValue();
+
+        Instance inst = new DenseInstance(1.0, vals);
+        inst.setDataset(result);
+        if (saver != null) {
+          saver.writeIncremental(inst);
+        } else {
+          result.add(inst);
+        }
+      }
+      offset += batchSize;
+      // The last partial batch is requested even if the iterator does not announce it
+      next = offset < numInstances;
+    }
+
+    if (result == null) {
+      return new Instances(input, 0);
+    }
+    if (saver != null) {
+      // Finish writing
+      saver.writeIncremental(null);
+    }
+    return result;
   }
 }
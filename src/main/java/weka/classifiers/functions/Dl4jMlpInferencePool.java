@@ -0,0 +1,293 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Dl4jMlpInferencePool.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.classifiers.functions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.log4j.Log4j2;
+import org.deeplearning4j.exception.DL4JException;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.WekaException;
+import weka.dl4j.iterators.dataset.InstancesDataSetIterator;
+
+/**
+ * Thread-safe inference facade for a trained {@link Dl4jMlpClassifier}.
+ * <p>
+ * A single {@link ComputationGraph} must not be used concurrently, so this pool holds one replica
+ * of the trained model per worker thread. Concurrent calls to {@link #distributionForInstance}
+ * are put into a bounded request queue. Each worker takes the oldest request and coalesces further
+ * queued requests into the same forward pass until either the batch limit is reached or the
+ * latency budget of the oldest request has elapsed.
+ * <p>
+ * Only classifiers using the {@link weka.dl4j.iterators.instance.DefaultInstanceIterator} or
+ * {@link weka.dl4j.iterators.instance.ConvolutionInstanceIterator} are supported.
+ *
+ * @author agent
+ */
+@Log4j2
+public class Dl4jMlpInferencePool implements AutoCloseable {
+
+  /**
+   * The trained classifier, used for filtering the instances
+   */
+  protected final Dl4jMlpClassifier classifier;
+
+  /**
+   * Pending requests
+   */
+  protected final BlockingQueue<Request> queue;
+
+  /**
+   * Maximum number of instances per forward pass
+   */
+  protected final int batchLimit;
+
+  /**
+   * Maximum time (in nanoseconds) a request waits for further requests to join its batch
+   */
+  protected final long latencyBudgetNanos;
+
+  /**
+   * Worker threads, each owning a model replica
+   */
+  protected final List<Thread> workers = new ArrayList<>();
+
+  /**
+   * Whether the pool accepts requests
+   */
+  protected volatile boolean running = true;
+
+  /**
+   * Create a new inference pool.
+   *
+   * @param classifier Trained classifier
+   * @param numWorkers Number of worker threads (and model replicas)
+   * @param batchLimit Maximum number of instances per forward pass
+   * @param queueLimit Maximum number of pending requests before callers block
+   * @param latencyBudgetMillis Maximum time a request waits for others to join its batch
+   * @throws WekaException The classifier is not trained or uses an unsupported instance iterator
+   */
+  public Dl4jMlpInferencePool(Dl4jMlpClassifier classifier, int numWorkers, int batchLimit,
+      int queueLimit, double latencyBudgetMillis) throws WekaException {
+    if (classifier.getModel() == null) {
+      throw new WekaException("The classifier has not been trained yet.");
+    }
+    if (!classifier.supportsSingleInstanceScoring()) {
+      throw new WekaException("The inference pool only supports the DefaultInstanceIterator "
+          + "and ConvolutionInstanceIterator.");
+    }
+    if (numWorkers < 1 || batchLimit < 1 || queueLimit < 1) {
+      throw new WekaException("Number of workers, batch limit and queue limit must be positive.");
+    }
+
+    this.classifier = classifier;
+    this.batchLimit = batchLimit;
+    this.latencyBudgetNanos = (long) (latencyBudgetMillis * 1e6);
+    this.queue = new ArrayBlockingQueue<>(queueLimit);
+
+    log.info("Starting inference pool with {} workers", numWorkers);
+    for (int i = 0; i < numWorkers; i++) {
+      final ComputationGraph replica = classifier.getModel().clone();
+      Thread worker = new Thread(() -> runWorker(replica), "Dl4jMlpInferencePool-" + i);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * Submit an instance for scoring.
+   *
+   * @param inst Instance to score
+   * @return Future of the class probability estimates (nominal class) or numeric prediction
+   * @throws Exception Instance could not be filtered or the pool was closed
+   */
+  public Future<double[]> submit(Instance inst) throws Exception {
+    if (!running) {
+      throw new WekaException("The inference pool has been closed.");
+    }
+
+    // Filtering is cheap and happens on the calling thread
+    Request request = new Request(classifier.applyFilters(inst));
+    queue.put(request);
+    if (!running) {
+      // The pool was closed while this request was being queued
+      failPending(new ArrayList<>());
+    }
+    return request.result;
+  }
+
+  /**
+   * Score a single instance. Blocks until the prediction is available.
+   *
+   * @param inst Instance to score
+   * @return the class probability estimates (if the class is nominal) or the numeric prediction
+   * @throws Exception Instance could not be scored
+   */
+  public double[] distributionForInstance(Instance inst) throws Exception {
+    try {
+      return submit(inst).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Worker loop: collect a micro-batch and run one forward pass for it.
+   *
+   * @param replica Model replica owned by this worker
+   */
+  protected void runWorker(ComputationGraph replica) {
+    List<Request> batch = new ArrayList<>(batchLimit);
+    while (running) {
+      try {
+        Request first = queue.take();
+        batch.add(first);
+
+        // Coalesce further requests until the batch is full or the latency budget is spent
+        final long deadline = first.enqueueTime + latencyBudgetNanos;
+        while (batch.size() < batchLimit) {
+          long remaining = deadline - System.nanoTime();
+          Request next = remaining > 0
+              ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+
+        score(replica, batch);
+        batch.clear();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    failPending(batch);
+  }
+
+  /**
+   * Run a single forward pass for all requests of a batch and complete their results.
+   *
+   * @param replica Model replica
+   * @param batch Requests to score
+   */
+  protected void score(ComputationGraph replica, List<Request> batch) {
+    try {
+      final Instances header = batch.get(0).instance.dataset();
+      final int numFeatures = header.numAttributes() - 1;
+      final int classIndex = header.classIndex();
+
+      INDArray input = Nd4j.create(Nd4j.defaultFloatingPointType(),
+          classifier.getInputShape(batch.size(), numFeatures));
+      DataBuffer buffer = input.data();
+      for (int i = 0; i < batch.size(); i++) {
+        InstancesDataSetIterator.putFeatures(batch.get(i).instance, classIndex, buffer,
+            (long) i * numFeatures);
+      }
+
+      INDArray pred = replica.outputSingle(input);
+      if (classifier.arithmeticUnderflow(pred)) {
+        throw new DL4JException("NaNs in model output, likely caused by arithmetic underflow");
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        batch.get(i).result.complete(classifier.toDistribution(pred, i, header));
+      }
+    } catch (Exception e) {
+      for (Request r : batch) {
+        r.result.completeExceptionally(e);
+      }
+    }
+  }
+
+  /**
+   * Fail all requests that could not be scored anymore.
+   *
+   * @param batch Requests taken by a worker but not scored
+   */
+  protected void failPending(List<Request> batch) {
+    WekaException closed = new WekaException("The inference pool has been closed.");
+    for (Request r : batch) {
+      r.result.completeExceptionally(closed);
+    }
+    Request r;
+    while ((r = queue.poll()) != null) {
+      r.result.completeExceptionally(closed);
+    }
+  }
+
+  /**
+   * Stop all workers. Pending requests are completed exceptionally.
+   */
+  @Override
+  public void close() {
+    running = false;
+    for (Thread worker : workers) {
+      worker.interrupt();
+    }
+    for (Thread worker : workers) {
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    failPending(new ArrayList<>());
+  }
+
+  /**
+   * A pending scoring request.
+   */
+  protected static class Request {
+
+    /**
+     * The filtered instance
+     */
+    final Instance instance;
+
+    /**
+     * Time at which the request was created
+     */
+    final long enqueueTime = System.nanoTime();
+
+    /**
+     * Prediction result
+     */
+    final CompletableFuture<double[]> result = new CompletableFuture<>();
+
+    Request(Instance instance) {
+      this.instance = instance;
+    }
+  }
+}
@@ -95,7 +95,7 @@ public class RnnSequenceClassifier extends Dl4jMlpClassifier
 
     if (trainData != null && trainData.numInstances() > 0) {
       // Resume run: only initialize iterator
-      trainIterator = getDataSetIterator(trainData);
+      trainIterator = getTrainDataSetIterator(trainData);
       return;
     }
 
@@ -137,7 +137,7 @@ public class RnnSequenceClassifier extends Dl4jMlpClassifier
       }
 
       // Setup the datasetiterators (needs to be done after the model initialization)
-      trainIterator = getDataSetIterator(this.trainData);
+      trainIterator = getTrainDataSetIterator(this.trainData);
 
       // Set the iteration listener
       model.setListeners(getListener());
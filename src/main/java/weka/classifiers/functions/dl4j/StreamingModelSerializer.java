@@ -0,0 +1,179 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * StreamingModelSerializer.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.classifiers.functions.dl4j;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.concurrency.AffinityManager.Location;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Writes a {@link ComputationGraph} to an object stream and reads it back, without temporary files
+ * and without knowing the size of the serialized model in advance.
+ * <p>
+ * The format is length-prefixed: the graph configuration as JSON, followed by the flat parameter
+ * vector. The parameters are copied between the (off-heap) parameter buffer and the stream in small
+ * chunks, so writing and reading never hold a second full copy of the parameters. The updater
+ * state is not stored.
+ *
+ * @author agent
+ */
+public class StreamingModelSerializer {
+
+  /**
+   * Format version
+   */
+  private static final int FORMAT_VERSION = 1;
+
+  /**
+   * Parameters are stored as raw bytes
+   */
+  private static final byte PARAMS_RAW = 0;
+
+  /**
+   * Parameters are stored with {@link Nd4j#write(INDArray, DataOutputStream)}, for vectors that do
+   * not fit into a single byte buffer
+   */
+  private static final byte PARAMS_ND4J = 1;
+
+  /**
+   * Size of the chunks copied between the parameter buffer and the stream
+   */
+  private static final int CHUNK_SIZE = 1 << 16;
+
+  /**
+   * Write a model.
+   *
+   * @param model Model to write
+   * @param oos Stream to write to
+   * @throws IOException Could not write the model
+   */
+  public static void write(ComputationGraph model, ObjectOutputStream oos) throws IOException {
+    oos.writeInt(FORMAT_VERSION);
+    byte[] conf = model.getConfiguration().toJson().getBytes(StandardCharsets.UTF_8);
+    oos.writeInt(conf.length);
+    oos.write(conf);
+
+    INDArray params = model.params();
+    final long numBytes = params.length() * params.data().getElementSize();
+    if (numBytes > Integer.MAX_VALUE) {
+      oos.writeByte(PARAMS_ND4J);
+      DataOutputStream dos = new DataOutputStream(oos);
+      Nd4j.write(params, dos);
+      dos.flush();
+      return;
+    }
+
+    if (params.isView() || params.data().length() != params.length()) {
+      params = params.dup();
+    }
+    Nd4j.getAffinityManager().ensureLocation(params, Location.HOST);
+    ByteBuffer buf = params.data().asNio();
+    oos.writeByte(PARAMS_RAW);
+    oos.writeUTF(params.dataType().name());
+    oos.writeLong(params.length());
+    oos.writeBoolean(buf.order() == ByteOrder.LITTLE_ENDIAN);
+
+    byte[] chunk = new byte[CHUNK_SIZE];
+    buf.position(0);
+    while (buf.hasRemaining()) {
+      final int len = Math.min(chunk.length, buf.remaining());
+      buf.get(chunk, 0, len);
+      oos.write(chunk, 0, len);
+    }
+  }
+
+  /**
+   * Read a model written by {@link #write(ComputationGraph, ObjectOutputStream)}. Reads exactly
+   * the bytes of the model, so the stream can be read on afterwards.
+   *
+   * @param ois Stream to read from
+   * @return Model
+   * @throws IOException Could not read the model
+   */
+  public static ComputationGraph read(ObjectInputStream ois) throws IOException {
+    final int version = ois.readInt();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unsupported model format version " + version);
+    }
+    byte[] conf = new byte[ois.readInt()];
+    ois.readFully(conf);
+    ComputationGraphConfiguration graphConf =
+        ComputationGraphConfiguration.fromJson(new String(conf, StandardCharsets.UTF_8));
+
+    INDArray params;
+    if (ois.readByte() == PARAMS_ND4J) {
+      params = Nd4j.read(new DataInputStream(ois));
+    } else {
+      final DataType dataType = DataType.valueOf(ois.readUTF());
+      final long length = ois.readLong();
+      final ByteOrder order = ois.readBoolean() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+      params = Nd4j.createUninitialized(dataType, 1, length);
+      readParams(ois, params, order);
+    }
+
+    ComputationGraph model = new ComputationGraph(graphConf);
+    model.init(params, false);
+    return model;
+  }
+
+  /**
+   * Read the raw parameter bytes into the buffer of an array.
+   *
+   * @param ois Stream to read from
+   * @param params Array to read into
+   * @param order Byte order of the stored parameters
+   * @throws IOException Could not read the parameters
+   */
+  private static void readParams(ObjectInputStream ois, INDArray params, ByteOrder order)
+      throws IOException {
+    ByteBuffer buf = params.data().asNio();
+    buf.position(0);
+    final boolean swap = buf.order() != order;
+    final int elementSize = params.data().getElementSize();
+
+    // Chunks hold whole elements, so bytes can be swapped per chunk
+    byte[] chunk = new byte[CHUNK_SIZE - CHUNK_SIZE % elementSize];
+    while (buf.hasRemaining()) {
+      final int len = Math.min(chunk.length, buf.remaining());
+      ois.readFully(chunk, 0, len);
+      if (swap) {
+        for (int i = 0; i < len; i += elementSize) {
+          for (int lo = i, hi = i + elementSize - 1; lo < hi; lo++, hi--) {
+            final byte tmp = chunk[lo];
+            chunk[lo] = chunk[hi];
+            chunk[hi] = tmp;
+          }
+        }
+      }
+      buf.put(chunk, 0, len);
+    }
+    Nd4j.getAffinityManager().tagLocation(params, Location.HOST);
+  }
+}
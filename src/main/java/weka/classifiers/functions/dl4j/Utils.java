@@ -23,14 +23,13 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
-import org.deeplearning4j.datasets.iterator.AsyncDataSetIterator;
 import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.cpu.nativecpu.NDArray;
 import org.nd4j.linalg.dataset.DataSet;
-import org.nd4j.linalg.dataset.api.iterator.CachingDataSetIterator;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.indexing.NDArrayIndex;
@@ -55,6 +54,11 @@ public class Utils {
    */
   private static final Logger logger = LoggerFactory.getLogger(Utils.class);
 
+  /**
+   * Number of training batches merged into one inference batch
+   */
+  public static final int INFERENCE_BATCH_FACTOR = 8;
+
   /**
    * Converts a set of training instances to a DataSet. Assumes that the instances have been
    * suitably preprocessed - i.e. missing values replaced and nominals converted to binary/numeric.
@@ -138,15 +142,7 @@ public class Utils {
     // Iterate batches
     iter.reset();
     while (iter.hasNext()) {
-      DataSet next;
-      if (iter instanceof AsyncDataSetIterator
-          || iter instanceof CachingDataSetIterator) {
-        next = getNext(iter);
-      } else {
-        // TODO: figure out which batch size is feasible for inference
-        final int batch = iter.batch() * 8;
-        next = Utils.getNext(iter, batch);
-      }
+      DataSet next = getNextInferenceBatch(iter);
       scoreSum += model.score(next);
       numBatches++;
     }
@@ -203,27 +199,19 @@ public class Utils {
   }
 
   /**
-   * Convert an arbitrary NDArray to Weka instances
+   * Create the (empty) format of the transformed instances
    *
-   * @param ndArray Input array
-   * @param inputFormat Format to use for the instances
+   * @param numAttributes Number of attributes, including the class if an input format is given
+   * @param inputFormat Format of the input instances, the class attribute of which is copied (can be null)
    * @param attributesPerLayer Hashmap of layer names and how many attributes there are per layer
-   * @return Instances object
-   * @throws WekaException Invalid input
+   * @param capacity Initial capacity of the instances
+   * @return Empty instances with the transformed format
    */
-  public static Instances ndArrayToInstances(INDArray ndArray, Instances inputFormat, Map<String, Long> attributesPerLayer) throws WekaException {
-    int numInstances = (int) ndArray.size(0);
-    long[] shape = ndArray.shape();
-    int dims = shape.length;
-    if (dims != 2) {
-      throw new WekaException("Invalid input, NDArray shape needs to be two dimensional "
-          + "but was " + Arrays.toString(shape));
-    }
-
-    long numAttributes = shape[1];
+  public static Instances makeTransformedFormat(int numAttributes, Instances inputFormat,
+      Map<String, Long> attributesPerLayer, int capacity) {
     int classI = -1;
     if (inputFormat != null) {
-      classI = (int) (numAttributes - 1);
+      classI = numAttributes - 1;
     }
 
     // Create the new attribute names
@@ -239,9 +227,32 @@ public class Utils {
       }
     }
 
-    // Actually create the instances from the values in the given NDArray
-    Instances instances = new Instances("Transformed", atts, numInstances);
+    Instances instances = new Instances("Transformed", atts, capacity);
     instances.setClassIndex(classI);
+    return instances;
+  }
+
+  /**
+   * Convert an arbitrary NDArray to Weka instances
+   *
+   * @param ndArray Input array
+   * @param inputFormat Format to use for the instances
+   * @param attributesPerLayer Hashmap of layer names and how many attributes there are per layer
+   * @return Instances object
+   * @throws WekaException Invalid input
+   */
+  public static Instances ndArrayToInstances(INDArray ndArray, Instances inputFormat, Map<String, Long> attributesPerLayer) throws WekaException {
+    int numInstances = (int) ndArray.size(0);
+    long[] shape = ndArray.shape();
+    int dims = shape.length;
+    if (dims != 2) {
+      throw new WekaException("Invalid input, NDArray shape needs to be two dimensional "
+          + "but was " + Arrays.toString(shape));
+    }
+
+    // Actually create the instances from the values in the given NDArray
+    Instances instances = makeTransformedFormat((int) shape[1], inputFormat, attributesPerLayer,
+        numInstances);
     for (int i = 0; i < numInstances; i++) {
       INDArray row = ndArray.get(NDArrayIndex.point(i));
       double[] instanceVals = row.toDoubleVector();
@@ -390,30 +401,57 @@ public class Utils {
    * @return 2D activations
    */
   public static INDArray reshapeActivations(INDArray activationAtLayer, PoolingType poolingType) {
-    long[] resultShape = activationAtLayer.shape();
+    return reshapeActivations(activationAtLayer, poolingType, false);
+  }
 
-    int batchSize = (int) resultShape[0];
-    int numFeatureMaps = (int) resultShape[1];
-    int featureMapWidth = (int) resultShape[2];
-    int featureMapHeight = (int) resultShape[3];
+  /**
+   * Reshape the activations, either by pooling or simply multiplying the extra dimensions together.
+   * Pooling is done for the whole batch at once by a single reduction over the spatial dimensions,
+   * so channels-last activations do not have to be permuted first.
+   * @param activationAtLayer 4d activations e.g., [batch_size, 512, 64, 64] (channels first) or
+   * [batch_size, 64, 64, 512] (channels last)
+   * @param poolingType Pooling type to use to lower the dimensionality
+   * @param channelsLast Whether the activations are in channels-last format
+   * @return 2D activations
+   */
+  public static INDArray reshapeActivations(INDArray activationAtLayer, PoolingType poolingType,
+      boolean channelsLast) {
+    final int rank = activationAtLayer.rank();
+    final long batchSize = activationAtLayer.size(0);
 
     // Simply multiply all the extra dimensions together if we're using no pooling
     if (poolingType == PoolingType.NONE) {
-      int extraDimensions = numFeatureMaps * featureMapWidth * featureMapHeight;
-      return activationAtLayer.reshape(new int[] {batchSize, extraDimensions});
-    } else {
-      // Otherwise, create a pooled batch
-      float[][] pooledBatch = new float[batchSize][numFeatureMaps];
-
-      for (int batchItem = 0; batchItem < batchSize; batchItem++) {
-        INDArray batchItemActivations = activationAtLayer.get(NDArrayIndex.point(batchItem)); // 3D array e.g. shape = [512, 64, 64]
-        for (int featureMapIndex = 0; featureMapIndex < numFeatureMaps; featureMapIndex++) {
-          INDArray featureMap = batchItemActivations.get(NDArrayIndex.point(featureMapIndex));  // 2D array e.g. shape = [64, 64]
-          pooledBatch[batchItem][featureMapIndex] = poolNDArray(featureMap, poolingType);
-        }
+      if (channelsLast && rank == 4) {
+        // Keep the channels-first feature order
+        activationAtLayer = activationAtLayer.permute(0, 3, 1, 2);
       }
+      return activationAtLayer.reshape('c', batchSize, activationAtLayer.length() / batchSize);
+    }
 
-      return new NDArray(pooledBatch);
+    // Spatial dimensions: [2, rank) for channels first, [1, rank - 1) for channels last
+    int[] spatialDims = new int[rank - 2];
+    for (int i = 0; i < spatialDims.length; i++) {
+      spatialDims[i] = channelsLast ? i + 1 : i + 2;
+    }
+
+    switch (poolingType) {
+      case MAX:
+        return activationAtLayer.max(spatialDims);
+      case AVG:
+        return activationAtLayer.mean(spatialDims);
+      case SUM:
+        return activationAtLayer.sum(spatialDims);
+      case MIN:
+        return activationAtLayer.min(spatialDims);
+      case PNORM:
+        // Same as the DL4J global pooling default (p = 2)
+        return activationAtLayer.norm2(spatialDims);
+      case MAX_AVG:
+        return Nd4j.concat(1, activationAtLayer.max(spatialDims),
+            activationAtLayer.mean(spatialDims));
+      default:
+        throw new IllegalArgumentException(String.format("Pooling type %s not supported, only "
+            + "MAX, AVG, SUM, MIN, PNORM, MAX_AVG and NONE supported", poolingType));
     }
   }
 
@@ -449,20 +487,73 @@ public class Utils {
   }
 
   /**
+   * Get the next batch of an iterator such that the caller owns all of its arrays.
+   * <p>
    * Fix for issue with JVM crashing
    * https://github.com/eclipse/deeplearning4j/issues/8976#issuecomment-639946904
+   * <p>
+   * Asynchronous iterators prefetch batches into workspaces that are reused once the next batch
+   * is requested, so batches that are still referenced afterwards point to invalidated memory.
+   * Arrays that are attached to a workspace are therefore detached (copied out of the workspace),
+   * all other arrays are handed over without a copy.
+   * <p>
+   * Iterators may also reuse heap buffers for the next batch, e.g. {@link
+   * weka.dl4j.iterators.dataset.InstancesDataSetIterator} unless buffer reuse is disabled, so a
+   * batch is only valid until the next batch is requested. Callers that keep more than one batch
+   * must copy them, see {@link #getNextMerged(DataSetIterator, int)}.
    *
    * It is recommended to use this helper function in WekaDeeplearning4j rather than using iter.next() directly.
    * @param iter DatasetIterator to get images from
    * @return Next DataSet
    */
   public static DataSet getNext(DataSetIterator iter) {
-    return iter.next().copy();
+    return detach(iter.next());
   }
 
   /**
-   * Fix for issue with JVM crashing
-   * https://github.com/eclipse/deeplearning4j/issues/8976#issuecomment-639946904
+   * Get the next batch for inference, see {@link #getNext(DataSetIterator)}. Without
+   * backpropagation, batches larger than the training batches are feasible, so up to {@link
+   * #INFERENCE_BATCH_FACTOR} training batches are merged.
+   *
+   * @param iter DatasetIterator to get the batch from
+   * @return Next DataSet
+   */
+  public static DataSet getNextInferenceBatch(DataSetIterator iter) {
+    return getNextMerged(iter, Math.max(1, iter.batch()) * INFERENCE_BATCH_FACTOR);
+  }
+
+  /**
+   * Get the next batches of an iterator, merged until they hold at least the given number of
+   * examples. Unlike {@link DataSetIterator#next(int)}, this works for every iterator, since it
+   * only takes whole batches, see {@link #getNext(DataSetIterator)}. Since iterators may reuse
+   * their buffers for the next batch, every batch but the last is copied before the next one is
+   * requested.
+   *
+   * @param iter DatasetIterator to get the batches from
+   * @param num Number of examples
+   * @return Merged batches
+   */
+  public static DataSet getNextMerged(DataSetIterator iter, int num) {
+    List<DataSet> batches = new ArrayList<>();
+    int numExamples = 0;
+    while (numExamples < num && iter.hasNext()) {
+      if (!batches.isEmpty()) {
+        final int last = batches.size() - 1;
+        batches.set(last, batches.get(last).copy());
+      }
+      DataSet next = getNext(iter);
+      batches.add(next);
+      numExamples += next.numExamples();
+    }
+    if (batches.isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    return batches.size() == 1 ? batches.get(0) : DataSet.merge(batches);
+  }
+
+  /**
+   * Get the next batch of an iterator such that the caller owns all of its arrays, see {@link
+   * #getNext(DataSetIterator)}.
    *
    * It is recommended to use this helper function in WekaDeeplearning4j rather than using iter.next() directly.
    * @param iter DatasetIterator to get images from
@@ -470,6 +561,33 @@ public class Utils {
    * @return Next DataSet
    */
   public static DataSet getNext(DataSetIterator iter, int num) {
-    return iter.next(num).copy();
+    return detach(iter.next(num));
+  }
+
+  /**
+   * Detach all arrays of a DataSet that are attached to a workspace. Arrays that are not attached
+   * are kept as they are, i.e. no copy is made for iterators that do not reuse memory.
+   *
+   * @param ds DataSet
+   * @return The given DataSet, owning all of its arrays
+   */
+  public static DataSet detach(DataSet ds) {
+    if (isAttached(ds.getFeatures())
+        || isAttached(ds.getLabels())
+        || isAttached(ds.getFeaturesMaskArray())
+        || isAttached(ds.getLabelsMaskArray())) {
+      ds.detach();
+    }
+    return ds;
+  }
+
+  /**
+   * Check whether an array is attached to a workspace.
+   *
+   * @param arr Array, may be null
+   * @return True if the array is attached to a workspace
+   */
+  private static boolean isAttached(INDArray arr) {
+    return arr != null && arr.isAttached();
   }
 }
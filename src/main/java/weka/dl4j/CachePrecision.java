@@ -0,0 +1,37 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * CachePrecision.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j;
+
+/**
+ * Storage precision of the features in the filesystem cache.
+ * <ul>
+ * <li>FULL: Store the features as they are</li>
+ * <li>FLOAT16: Store the features as half precision floats</li>
+ * <li>UINT8: Store the features as unsigned bytes. Batches of integers between 0 and 255 (e.g.
+ * 8-bit images, which are cached before preprocessing) are stored exactly, all other batches are
+ * quantized lossily to 256 levels between their minimum and maximum</li>
+ * </ul>
+ *
+ * @author agent
+ */
+public enum CachePrecision {
+  FULL,
+  FLOAT16,
+  UINT8
+}
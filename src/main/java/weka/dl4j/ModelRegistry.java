@@ -0,0 +1,272 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ModelRegistry.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import lombok.extern.log4j.Log4j2;
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+
+/**
+ * A JVM-wide registry of loaded models, which lets several consumers (e.g. the filters of a
+ * KnowledgeFlow that all use the same ResNet50) share a single copy of a model and its weights.
+ * <p>
+ * Models are registered under a key which identifies their source, e.g. a serialized model file
+ * (see {@link #fileKey(File)}) or a zoo model configuration. Each consumer that acquires a model is
+ * tracked by a weak reference, so a model stays loaded as long as one of its consumers is alive.
+ * Models without live consumers are kept for later reuse, and evicted in least recently used order
+ * once the parameters of all loaded models exceed the memory budget. Models are loaded outside of
+ * the registry lock, so a slow load only blocks the consumers of the same key.
+ * <p>
+ * The shared models must be treated as read-only. Since a network keeps per-call state in its
+ * layers, consumers synchronize on the model while using it.
+ *
+ * @author agent
+ */
+@Log4j2
+public class ModelRegistry {
+
+  /**
+   * Loads a model that is not registered yet.
+   */
+  public interface ModelLoader {
+
+    /**
+     * Load the model.
+     *
+     * @return Loaded model
+     * @throws Exception Could not load the model
+     */
+    Dl4jMlpClassifier load() throws Exception;
+  }
+
+  /**
+   * A registered model and its consumers.
+   */
+  private static class Entry {
+
+    /**
+     * The model, completed once it is loaded
+     */
+    final CompletableFuture<Dl4jMlpClassifier> model = new CompletableFuture<>();
+
+    /**
+     * Size of the model parameters in bytes, 0 while the model is loading
+     */
+    long size;
+
+    /**
+     * Consumers of the model
+     */
+    final List<WeakReference<Object>> consumers = new ArrayList<>();
+
+    /**
+     * Set the loaded model.
+     *
+     * @param loaded Loaded model
+     */
+    void loaded(Dl4jMlpClassifier loaded) {
+      ComputationGraph graph = loaded.getModel();
+      size = graph == null || graph.params() == null ? 0
+          : graph.params().length() * graph.params().data().getElementSize();
+      model.complete(loaded);
+    }
+
+    /**
+     * Whether the model can be evicted, i.e. it is loaded and no consumer is alive.
+     *
+     * @return true if the model can be evicted
+     */
+    boolean evictable() {
+      return model.isDone() && !inUse();
+    }
+
+    /**
+     * Whether a consumer of this model is still alive. Drops the collected consumers.
+     *
+     * @return true if the model is in use
+     */
+    boolean inUse() {
+      consumers.removeIf(ref -> ref.get() == null);
+      return !consumers.isEmpty();
+    }
+  }
+
+  /**
+   * Registered models in least recently used order
+   */
+  private static final LinkedHashMap<String, Entry> ENTRIES = new LinkedHashMap<>(16, 0.75f, true);
+
+  /**
+   * Memory budget for the parameters of all registered models in bytes. Can be set with the
+   * system property {@code weka.dl4j.modelRegistryBudget}, defaults to half of the off-heap memory
+   * limit.
+   */
+  private static long memoryBudget =
+      Long.getLong("weka.dl4j.modelRegistryBudget", Pointer.maxBytes() / 2);
+
+  /**
+   * Get a model from the registry, loading and registering it if necessary.
+   *
+   * @param key Key of the model
+   * @param consumer Consumer of the model, the model is kept as long as the consumer is alive or
+   * until it is released
+   * @param loader Loads the model if it is not registered yet
+   * @return Shared model
+   * @throws Exception Could not load the model
+   */
+  public static Dl4jMlpClassifier acquire(String key, Object consumer, ModelLoader loader)
+      throws Exception {
+    final Entry entry;
+    final boolean load;
+    synchronized (ModelRegistry.class) {
+      Entry registered = ENTRIES.get(key);
+      load = registered == null;
+      if (load) {
+        // Register a placeholder, so concurrent consumers of the same key wait for this load
+        registered = new Entry();
+        ENTRIES.put(key, registered);
+      }
+      entry = registered;
+      if (entry.consumers.stream().noneMatch(ref -> ref.get() == consumer)) {
+        entry.consumers.add(new WeakReference<>(consumer));
+      }
+    }
+
+    if (load) {
+      log.debug("Loading model {}", key);
+      try {
+        Dl4jMlpClassifier loaded = loader.load();
+        synchronized (ModelRegistry.class) {
+          entry.loaded(loaded);
+          evict();
+        }
+        return loaded;
+      } catch (Throwable t) {
+        synchronized (ModelRegistry.class) {
+          ENTRIES.remove(key, entry);
+        }
+        entry.model.completeExceptionally(t);
+        throw t;
+      }
+    }
+
+    log.debug("Reusing model {}", key);
+    try {
+      return entry.model.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Release a model. It stays registered until it is evicted.
+   *
+   * @param key Key of the model
+   * @param consumer Consumer that no longer uses the model
+   */
+  public static synchronized void release(String key, Object consumer) {
+    Entry entry = ENTRIES.get(key);
+    if (entry != null) {
+      entry.consumers.removeIf(ref -> ref.get() == null || ref.get() == consumer);
+      evict();
+    }
+  }
+
+  /**
+   * Evict unused models in least recently used order until the registered models fit into the
+   * memory budget.
+   */
+  private static void evict() {
+    long total = 0;
+    for (Entry entry : ENTRIES.values()) {
+      total += entry.size;
+    }
+    Iterator<Map.Entry<String, Entry>> it = ENTRIES.entrySet().iterator();
+    while (total > memoryBudget && it.hasNext()) {
+      Map.Entry<String, Entry> next = it.next();
+      if (next.getValue().evictable()) {
+        log.debug("Evicting model {}", next.getKey());
+        total -= next.getValue().size;
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Remove all unused models.
+   */
+  public static synchronized void clear() {
+    ENTRIES.values().removeIf(Entry::evictable);
+  }
+
+  /**
+   * Get the number of registered models.
+   *
+   * @return Number of registered models
+   */
+  public static synchronized int size() {
+    return ENTRIES.size();
+  }
+
+  /**
+   * Set the memory budget for the parameters of all registered models.
+   *
+   * @param bytes Memory budget in bytes
+   */
+  public static synchronized void setMemoryBudget(long bytes) {
+    memoryBudget = bytes;
+    evict();
+  }
+
+  /**
+   * Get the memory budget for the parameters of all registered models.
+   *
+   * @return Memory budget in bytes
+   */
+  public static synchronized long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Compute the key of a serialized model file from its canonical path, size and modification
+   * time, so a file that is overwritten with a different model gets a new key without reading the
+   * whole file.
+   *
+   * @param file Serialized model file
+   * @return Key
+   * @throws IOException Could not resolve the path of the file
+   */
+  public static String fileKey(File file) throws IOException {
+    return "file:" + file.getCanonicalPath() + ":" + file.length() + ":" + file.lastModified();
+  }
+}
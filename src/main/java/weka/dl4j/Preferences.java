@@ -32,4 +32,23 @@ public class Preferences {
    * Global workspace mode
    */
   public static WorkspaceMode WORKSPACE_MODE = WorkspaceMode.ENABLED;
+
+  /**
+   * Directory of the local pretrained model store, instead of the DL4J resources directory. Can be
+   * set with the system property {@code weka.dl4j.pretrainedDir}.
+   */
+  public static String PRETRAINED_DIR = System.getProperty("weka.dl4j.pretrainedDir");
+
+  /**
+   * Never download pretrained models, only use the local store. Can be set with the system
+   * property {@code weka.dl4j.offline}.
+   */
+  public static boolean OFFLINE = Boolean.getBoolean("weka.dl4j.offline");
+
+  /**
+   * Maximum size of the data file of a decoded image cache in bytes. Can be set with the system
+   * property {@code weka.dl4j.decodedImageCacheMaxBytes}, defaults to 8 GiB.
+   */
+  public static long DECODED_IMAGE_CACHE_MAX_BYTES =
+      Long.getLong("weka.dl4j.decodedImageCacheMaxBytes", 8L << 30);
 }
\ No newline at end of file
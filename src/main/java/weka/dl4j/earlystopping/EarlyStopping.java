@@ -18,19 +18,36 @@
 
 package weka.dl4j.earlystopping;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Enumeration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import lombok.extern.log4j.Log4j2;
 import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import weka.classifiers.functions.dl4j.Utils;
+import org.nd4j.linalg.factory.Nd4j;
 import weka.core.Option;
 import weka.core.OptionHandler;
 import weka.core.OptionMetadata;
+import weka.gui.FilePropertyMetadata;
+import weka.gui.knowledgeflow.KFGUIConsts;
+import weka.dl4j.listener.EpochEvaluation;
 
 /**
  * Early stopping implementation to stop training after N epochs without loss improvement on a
  * separate validation set.
+ * <p>
+ * The parameters of the best epoch are kept as a flat copy and restored into the model when
+ * training stops. Optionally, they are also written to a checkpoint file by a background thread,
+ * so training does not wait for the disk.
  *
  * @author Steven Lang
  */
@@ -62,11 +79,42 @@ public class EarlyStopping implements OptionHandler, Serializable {
    */
   private double validationSetPercentage = 0;
 
+  /**
+   * Whether to restore the parameters of the best epoch when training stops
+   */
+  private boolean restoreBestModel = true;
+
+  /**
+   * Whether to write the parameters of the best epoch to disk
+   */
+  private boolean checkpointBestModel = false;
+
+  /**
+   * The directory of the best model checkpoint
+   */
+  private File checkpointDirectory =
+      new File(System.getProperty("java.io.tmpdir"), "early-stopping-checkpoint");
+
   /**
    * Validation dataset
    */
   private transient DataSetIterator valDataSetIterator;
 
+  /**
+   * Parameters of the best epoch, null if no epoch has been evaluated yet
+   */
+  private transient INDArray bestParams;
+
+  /**
+   * Writes the checkpoints in the background
+   */
+  private transient ExecutorService checkpointExecutor;
+
+  /**
+   * The checkpoint that is currently being written, null if none
+   */
+  private transient Future<?> pendingCheckpoint;
+
   public EarlyStopping() {
   }
 
@@ -88,6 +136,10 @@ public class EarlyStopping implements OptionHandler, Serializable {
    */
   public void init(DataSetIterator dsIt) {
     this.valDataSetIterator = dsIt;
+    resetEpochCounter();
+    lastBestScore = Double.MAX_VALUE;
+    awaitCheckpoint();
+    bestParams = null;
   }
 
   /**
@@ -116,14 +168,20 @@ public class EarlyStopping implements OptionHandler, Serializable {
         return true;
       }
 
-      double score = Utils.computeScore(model, valDataSetIterator);
+      // Shares the validation pass with the EpochListener of the same epoch
+      double score = EpochEvaluation.evaluate(model, valDataSetIterator).getScore();
       if (score < lastBestScore) {
         resetEpochCounter();
         lastBestScore = score;
+        snapshot(model);
         return true;
       } else {
         countEpochsNoImprovement++;
-        return countEpochsNoImprovement < maxEpochsNoImprovement;
+        if (countEpochsNoImprovement < maxEpochsNoImprovement) {
+          return true;
+        }
+        restoreBestModel(model);
+        return false;
       }
 
     } catch (Exception e) {
@@ -134,6 +192,106 @@ public class EarlyStopping implements OptionHandler, Serializable {
     }
   }
 
+  /**
+   * Keep a copy of the current parameters as the best parameters. The copy lives outside of any
+   * workspace and is reused for later snapshots, so a snapshot only copies the flat parameter
+   * vector once.
+   *
+   * @param model Model of the best epoch
+   */
+  private void snapshot(ComputationGraph model) {
+    if (!restoreBestModel && !checkpointBestModel) {
+      return;
+    }
+    // The previous snapshot may still be written to disk
+    awaitCheckpoint();
+    final INDArray params = model.params();
+    if (bestParams == null || bestParams.length() != params.length()) {
+      try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+        bestParams = params.dup();
+      }
+    } else {
+      bestParams.assign(params);
+    }
+
+    if (checkpointBestModel) {
+      if (checkpointExecutor == null) {
+        checkpointExecutor = Executors.newSingleThreadExecutor(r -> {
+          Thread t = new Thread(r, "early-stopping-checkpoint");
+          t.setDaemon(true);
+          return t;
+        });
+      }
+      final INDArray toWrite = bestParams;
+      final double score = lastBestScore;
+      pendingCheckpoint = checkpointExecutor.submit(() -> {
+        writeCheckpoint(toWrite, score);
+        return null;
+      });
+    }
+  }
+
+  /**
+   * Write the best parameters to the checkpoint file. The file is replaced atomically, so it
+   * always holds a complete parameter vector.
+   *
+   * @param params Parameters to write
+   * @param score Validation score of the parameters
+   * @throws IOException Could not write the checkpoint
+   */
+  private void writeCheckpoint(INDArray params, double score) throws IOException {
+    if (!checkpointDirectory.isDirectory() && !checkpointDirectory.mkdirs()) {
+      throw new IOException("Could not create checkpoint directory " + checkpointDirectory);
+    }
+    File tmp = File.createTempFile("best-params-", ".tmp", checkpointDirectory);
+    Nd4j.saveBinary(params, tmp);
+    Files.move(tmp.toPath(), getCheckpointFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    log.debug("Wrote best model checkpoint with validation score {}", score);
+  }
+
+  /**
+   * Wait until the pending checkpoint has been written.
+   */
+  private void awaitCheckpoint() {
+    if (pendingCheckpoint == null) {
+      return;
+    }
+    try {
+      pendingCheckpoint.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      log.error("Could not write the best model checkpoint.", e.getCause());
+    } finally {
+      pendingCheckpoint = null;
+    }
+  }
+
+  /**
+   * Restore the parameters of the best epoch into the model, if enabled. Waits for the pending
+   * checkpoint, so the checkpoint file is complete afterwards.
+   *
+   * @param model Model to restore the parameters into
+   */
+  public void restoreBestModel(ComputationGraph model) {
+    awaitCheckpoint();
+    if (restoreBestModel && bestParams != null && model != null
+        && bestParams.length() == model.numParams()) {
+      log.info("Restoring the model of the best epoch (validation score {}).", lastBestScore);
+      model.setParams(bestParams);
+    }
+  }
+
+  /**
+   * Get the file the best parameters are written to, which can be read with
+   * {@link Nd4j#readBinary(File)}.
+   *
+   * @return Checkpoint file
+   */
+  public File getCheckpointFile() {
+    return new File(checkpointDirectory, "best-params.bin");
+  }
 
   public int getMaxEpochsNoImprovement() {
     return maxEpochsNoImprovement;
@@ -174,6 +332,56 @@ public class EarlyStopping implements OptionHandler, Serializable {
     this.validationSetPercentage = p;
   }
 
+  @OptionMetadata(
+      displayName = "restore best model",
+      description = "Whether to restore the parameters of the epoch with the best validation "
+          + "score when training stops (default = true).",
+      commandLineParamName = "restoreBest",
+      commandLineParamSynopsis = "-restoreBest <boolean>",
+      displayOrder = 2
+  )
+  public boolean getRestoreBestModel() {
+    return restoreBestModel;
+  }
+
+  public void setRestoreBestModel(boolean restoreBestModel) {
+    this.restoreBestModel = restoreBestModel;
+  }
+
+  @OptionMetadata(
+      displayName = "checkpoint best model",
+      description = "Whether to write the parameters of the epoch with the best validation score "
+          + "to the checkpoint directory, in the background (default = false).",
+      commandLineParamName = "checkpointBest",
+      commandLineParamSynopsis = "-checkpointBest",
+      commandLineParamIsFlag = true,
+      displayOrder = 3
+  )
+  public boolean getCheckpointBestModel() {
+    return checkpointBestModel;
+  }
+
+  public void setCheckpointBestModel(boolean checkpointBestModel) {
+    this.checkpointBestModel = checkpointBestModel;
+  }
+
+  @FilePropertyMetadata(fileChooserDialogType = KFGUIConsts.SAVE_DIALOG, directoriesOnly = true)
+  @OptionMetadata(
+      displayName = "checkpoint directory",
+      description = "The directory of the best model checkpoint (default = "
+          + "<java.io.tmpdir>/early-stopping-checkpoint).",
+      commandLineParamName = "checkpointDirectory",
+      commandLineParamSynopsis = "-checkpointDirectory <string>",
+      displayOrder = 4
+  )
+  public File getCheckpointDirectory() {
+    return checkpointDirectory;
+  }
+
+  public void setCheckpointDirectory(File checkpointDirectory) {
+    this.checkpointDirectory = checkpointDirectory;
+  }
+
   /**
    * Get the validation dataset iterator
    *
@@ -0,0 +1,169 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * BatchScheduler.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Computes the example order of each epoch as a permutation of example indices, which iterators
+ * use to gather their mini-batches.
+ * <p>
+ * By default, the examples keep their original order. If shuffling is enabled, each epoch uses a
+ * new permutation which only depends on the seed and the epoch number. Stratified shuffling
+ * spreads the examples of each class evenly over the epoch, so every mini-batch approximately
+ * contains the class distribution of the whole dataset.
+ *
+ * @author agent
+ */
+public class BatchScheduler implements Serializable {
+
+  private static final long serialVersionUID = 3216432474907317286L;
+
+  /**
+   * Number of examples
+   */
+  protected final int numExamples;
+
+  /**
+   * Seed for shuffling
+   */
+  protected final long seed;
+
+  /**
+   * Whether to shuffle the examples in each epoch
+   */
+  protected boolean shuffle = false;
+
+  /**
+   * Class index of each example for stratified shuffling, null for plain shuffling
+   */
+  protected int[] strata;
+
+  /**
+   * Number of started epochs
+   */
+  protected int epoch = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param numExamples Number of examples
+   * @param seed Seed for shuffling
+   */
+  public BatchScheduler(int numExamples, long seed) {
+    this.numExamples = numExamples;
+    this.seed = seed;
+  }
+
+  /**
+   * Compute the example order of the next epoch.
+   *
+   * @return Example indices in the order they should be put into mini-batches
+   */
+  public int[] nextEpoch() {
+    int[] order = new int[numExamples];
+    for (int i = 0; i < numExamples; i++) {
+      order[i] = i;
+    }
+    if (!shuffle) {
+      return order;
+    }
+
+    Random random = new Random(seed + epoch++);
+    shuffle(order, random);
+    if (strata == null) {
+      return order;
+    }
+
+    // Assign each example an evenly spaced position within its class, with a random offset per
+    // class, then sort the (shuffled) examples by position
+    int numClasses = 0;
+    for (int c : strata) {
+      numClasses = Math.max(numClasses, c + 1);
+    }
+    int[] classCounts = new int[numClasses];
+    for (int c : strata) {
+      classCounts[c]++;
+    }
+    double[] classOffsets = new double[numClasses];
+    for (int c = 0; c < numClasses; c++) {
+      classOffsets[c] = random.nextDouble();
+    }
+    int[] seen = new int[numClasses];
+    double[] positions = new double[numExamples];
+    for (int idx : order) {
+      final int c = strata[idx];
+      positions[idx] = (seen[c]++ + classOffsets[c]) / classCounts[c];
+    }
+    Integer[] boxed = new Integer[numExamples];
+    for (int i = 0; i < numExamples; i++) {
+      boxed[i] = order[i];
+    }
+    Arrays.sort(boxed, Comparator.comparingDouble(idx -> positions[idx]));
+    for (int i = 0; i < numExamples; i++) {
+      order[i] = boxed[i];
+    }
+    return order;
+  }
+
+  /**
+   * Fisher-Yates shuffle.
+   *
+   * @param arr Array to shuffle
+   * @param random Random number generator
+   */
+  protected static void shuffle(int[] arr, Random random) {
+    for (int i = arr.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int tmp = arr[i];
+      arr[i] = arr[j];
+      arr[j] = tmp;
+    }
+  }
+
+  /**
+   * Set whether to shuffle the examples in each epoch.
+   *
+   * @param shuffle true if the examples should be shuffled
+   */
+  public void setShuffle(boolean shuffle) {
+    this.shuffle = shuffle;
+  }
+
+  /**
+   * Get whether the examples are shuffled in each epoch.
+   *
+   * @return true if the examples are shuffled
+   */
+  public boolean isShuffle() {
+    return shuffle;
+  }
+
+  /**
+   * Set the class of each example for stratified shuffling.
+   *
+   * @param strata Class index of each example, null for plain shuffling
+   */
+  public void setStrata(int[] strata) {
+    this.strata = strata;
+  }
+}
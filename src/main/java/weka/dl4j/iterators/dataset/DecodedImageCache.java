@@ -0,0 +1,405 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * DecodedImageCache.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.log4j.Log4j2;
+import weka.dl4j.Preferences;
+
+/**
+ * A persistent cache of decoded images, shared by all iterators, classifiers and filters that
+ * decode images with the same target shape.
+ * <p>
+ * Each image is addressed by a hash of its absolute path, size and modification time, so
+ * modified files are decoded again. Decoded pixels are stored as unsigned bytes in fixed-size
+ * records of a data file which is memory-mapped for reading, an index file maps the image keys to
+ * the records. Both files only grow by appending under a file lock, so several processes can use
+ * the same cache at the same time. Once the data file reaches
+ * {@link Preferences#DECODED_IMAGE_CACHE_MAX_BYTES}, no more images are added.
+ * <p>
+ * Iterators {@link #acquire()} the cache for each epoch and {@link #release()} it afterwards. The
+ * files are closed once the cache has no users left, and reopened when it is used again.
+ *
+ * @author agent
+ */
+@Log4j2
+public class DecodedImageCache {
+
+  /**
+   * Magic number of the index file
+   */
+  private static final int INDEX_MAGIC = 0x44494331;
+
+  /**
+   * Size of the index file header: magic, record size
+   */
+  private static final int INDEX_HEADER_SIZE = 8;
+
+  /**
+   * Size of an index entry: key, record number
+   */
+  private static final int INDEX_ENTRY_SIZE = 12;
+
+  /**
+   * Maximum size of a single memory-mapped region
+   */
+  private static final long MAX_REGION_SIZE = 1L << 30;
+
+  /**
+   * Open caches, by data file
+   */
+  private static final Map<File, DecodedImageCache> CACHES = new ConcurrentHashMap<>();
+
+  /**
+   * Number of values of a single image
+   */
+  protected final int imageSize;
+
+  /**
+   * Number of records per memory-mapped region
+   */
+  protected final int recordsPerRegion;
+
+  /**
+   * Maximum size of the data file in bytes
+   */
+  protected final long maxSize;
+
+  /**
+   * Location of the index file
+   */
+  protected final File indexPath;
+
+  /**
+   * Location of the data file
+   */
+  protected final File dataPath;
+
+  /**
+   * Index file, maps keys to record numbers. Null while the cache is closed.
+   */
+  protected RandomAccessFile indexFile;
+
+  /**
+   * Data file, holds the records. Null while the cache is closed.
+   */
+  protected RandomAccessFile dataFile;
+
+  /**
+   * Number of iterators that currently use the cache
+   */
+  protected int users = 0;
+
+  /**
+   * Whether the data file has reached its maximum size
+   */
+  protected boolean full = false;
+
+  /**
+   * Record number of each known key
+   */
+  protected final Map<Long, Integer> records = new HashMap<>();
+
+  /**
+   * Number of index bytes that have been read into {@link #records}
+   */
+  protected long indexRead = INDEX_HEADER_SIZE;
+
+  /**
+   * Memory-mapped regions of the data file
+   */
+  protected final List<MappedByteBuffer> regions = new ArrayList<>();
+
+  /**
+   * Open the cache for images of the given shape, creating it if necessary.
+   *
+   * @param directory Cache directory
+   * @param height Image height
+   * @param width Image width
+   * @param channels Number of image channels
+   * @param channelsLast Whether the images are stored channels last
+   * @param transformId Identifier of the image transform applied after decoding, empty if none
+   * @return Cache
+   * @throws IOException Could not open the cache
+   */
+  public static DecodedImageCache open(File directory, int height, int width, int channels,
+      boolean channelsLast, String transformId) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create image cache directory " + directory);
+    }
+    final String name = String.format("images-%dx%dx%d-%s%s", height, width, channels,
+        channelsLast ? "nhwc" : "nchw", transformId.isEmpty() ? "" : "-" + transformId);
+    final File dataFile = new File(directory, name + ".bin").getAbsoluteFile();
+    synchronized (CACHES) {
+      DecodedImageCache cache = CACHES.get(dataFile);
+      if (cache == null) {
+        cache = new DecodedImageCache(new File(directory, name + ".idx"), dataFile,
+            channels * height * width);
+        CACHES.put(dataFile, cache);
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param indexFile Index file
+   * @param dataFile Data file
+   * @param imageSize Number of values of a single image
+   * @throws IOException Could not open the files
+   */
+  protected DecodedImageCache(File indexFile, File dataFile, int imageSize) throws IOException {
+    this.imageSize = imageSize;
+    this.recordsPerRegion = (int) Math.max(1, MAX_REGION_SIZE / imageSize);
+    this.indexPath = indexFile;
+    this.dataPath = dataFile;
+    this.maxSize = Preferences.DECODED_IMAGE_CACHE_MAX_BYTES;
+    // Validate the files right away, they are closed again once the cache is released
+    ensureOpen();
+  }
+
+  /**
+   * Open the files if the cache is closed.
+   *
+   * @throws IOException Could not open the files or the index is invalid
+   */
+  protected synchronized void ensureOpen() throws IOException {
+    if (indexFile != null) {
+      return;
+    }
+    indexFile = new RandomAccessFile(indexPath, "rw");
+    dataFile = new RandomAccessFile(dataPath, "rw");
+    try (FileLock lock = indexFile.getChannel().lock()) {
+      if (indexFile.length() < INDEX_HEADER_SIZE) {
+        // New cache
+        indexFile.setLength(0);
+        dataFile.setLength(0);
+        indexFile.writeInt(INDEX_MAGIC);
+        indexFile.writeInt(imageSize);
+      } else {
+        indexFile.seek(0);
+        if (indexFile.readInt() != INDEX_MAGIC || indexFile.readInt() != imageSize) {
+          throw new IOException("Invalid image cache index " + indexPath);
+        }
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Register a user of the cache, e.g. an iterator for the duration of an epoch, and open the
+   * files if necessary.
+   *
+   * @throws IOException Could not open the files
+   */
+  public synchronized void acquire() throws IOException {
+    ensureOpen();
+    users++;
+  }
+
+  /**
+   * Unregister a user of the cache. Closes the files once the cache has no users left.
+   *
+   * @throws IOException Could not close the files
+   */
+  public synchronized void release() throws IOException {
+    users = Math.max(0, users - 1);
+    if (users == 0) {
+      close();
+    }
+  }
+
+  /**
+   * Close the files and drop the in-memory index and mapped regions. The cache stays usable, its
+   * files are opened again on the next access.
+   *
+   * @throws IOException Could not close the files
+   */
+  public synchronized void close() throws IOException {
+    try (RandomAccessFile index = indexFile; RandomAccessFile data = dataFile) {
+      // Closed by try-with-resources
+    } finally {
+      indexFile = null;
+      dataFile = null;
+      records.clear();
+      regions.clear();
+      indexRead = INDEX_HEADER_SIZE;
+    }
+  }
+
+  /**
+   * Get the decoded image of a file.
+   *
+   * @param file Image file
+   * @return Image values, null if the image is not in the cache
+   * @throws IOException Could not read the cache
+   */
+  public float[] get(File file) throws IOException {
+    final long key = key(file);
+    Integer record;
+    synchronized (this) {
+      ensureOpen();
+      record = records.get(key);
+      if (record == null) {
+        // The image might have been added by another process
+        readIndex();
+        record = records.get(key);
+      }
+      if (record == null) {
+        return null;
+      }
+    }
+
+    ByteBuffer buf = region(record).duplicate();
+    buf.position((record % recordsPerRegion) * imageSize);
+    float[] image = new float[imageSize];
+    for (int i = 0; i < imageSize; i++) {
+      image[i] = buf.get() & 0xFF;
+    }
+    return image;
+  }
+
+  /**
+   * Add the decoded image of a file. Images whose values are not all integers in [0, 255] are not
+   * cached.
+   *
+   * @param file Image file
+   * @param image Image values
+   * @throws IOException Could not write the cache
+   */
+  public void put(File file, float[] image) throws IOException {
+    byte[] bytes = new byte[imageSize];
+    for (int i = 0; i < imageSize; i++) {
+      final float v = image[i];
+      if (v < 0 || v > 255 || v != (int) v) {
+        log.debug("Image {} has non-byte values, not caching it.", file);
+        return;
+      }
+      bytes[i] = (byte) v;
+    }
+
+    final long key = key(file);
+    synchronized (this) {
+      ensureOpen();
+      try (FileLock lock = indexFile.getChannel().lock()) {
+        readIndex();
+        if (records.containsKey(key)) {
+          return;
+        }
+        if (dataFile.length() + imageSize > maxSize) {
+          if (!full) {
+            log.info("Decoded image cache {} is full, not caching more images.", dataPath);
+            full = true;
+          }
+          return;
+        }
+        final int record = (int) (dataFile.length() / imageSize);
+        dataFile.getChannel().write(ByteBuffer.wrap(bytes), (long) record * imageSize);
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putLong(key).putInt(record).flip();
+        indexFile.getChannel().write(entry, indexFile.length());
+        records.put(key, record);
+        indexRead += INDEX_ENTRY_SIZE;
+      }
+    }
+  }
+
+  /**
+   * Read index entries that have been appended since the last read.
+   *
+   * @throws IOException Could not read the index
+   */
+  protected void readIndex() throws IOException {
+    final long length = indexFile.length();
+    final long numNew = (length - indexRead) / INDEX_ENTRY_SIZE;
+    if (numNew <= 0) {
+      return;
+    }
+    ByteBuffer buf = ByteBuffer.allocate((int) (numNew * INDEX_ENTRY_SIZE));
+    while (buf.hasRemaining()
+        && indexFile.getChannel().read(buf, indexRead + buf.position()) >= 0) {
+      // Read all new entries
+    }
+    buf.flip();
+    for (long i = 0; i < numNew; i++) {
+      records.put(buf.getLong(), buf.getInt());
+    }
+    indexRead += numNew * INDEX_ENTRY_SIZE;
+  }
+
+  /**
+   * Get the memory-mapped region that contains the given record, map it if necessary. Regions at
+   * the end of the data file are mapped again once the file has grown.
+   *
+   * @param record Record number
+   * @return Mapped region
+   * @throws IOException Could not map the data file
+   */
+  protected synchronized MappedByteBuffer region(int record) throws IOException {
+    ensureOpen();
+    final int regionIdx = record / recordsPerRegion;
+    final long requiredSize = (long) (record % recordsPerRegion + 1) * imageSize;
+    while (regions.size() <= regionIdx) {
+      regions.add(null);
+    }
+    MappedByteBuffer region = regions.get(regionIdx);
+    if (region == null || region.capacity() < requiredSize) {
+      final long start = (long) regionIdx * recordsPerRegion * imageSize;
+      final long size = Math.min((long) recordsPerRegion * imageSize, dataFile.length() - start);
+      region = dataFile.getChannel().map(MapMode.READ_ONLY, start, size);
+      regions.set(regionIdx, region);
+    }
+    return region;
+  }
+
+  /**
+   * Compute the key of an image file from its absolute path, size and modification time.
+   *
+   * @param file Image file
+   * @return Key
+   */
+  protected static long key(File file) {
+    final String id = file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified();
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(
+          id.getBytes(StandardCharsets.UTF_8));
+      return ByteBuffer.wrap(digest).getLong();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
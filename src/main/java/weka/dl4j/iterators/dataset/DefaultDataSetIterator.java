@@ -20,18 +20,23 @@ package weka.dl4j.iterators.dataset;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
-import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
 
 /**
  * An nd4j mini-batch iterator that iterates a given dataset.
+ * <p>
+ * If shuffling is enabled and reordering is allowed, each epoch gathers its mini-batches in the
+ * order of a seed-stable permutation computed by a {@link BatchScheduler}. The dataset itself is
+ * never shuffled.
  *
  * @author Steven Lang
  */
-public class DefaultDataSetIterator implements DataSetIterator, Serializable {
+public class DefaultDataSetIterator implements ReorderableDataSetIterator, Serializable {
 
   /**
    * The ID used to serialize this class
@@ -58,6 +63,26 @@ public class DefaultDataSetIterator implements DataSetIterator, Serializable {
    */
   protected DataSetPreProcessor preProcessor;
 
+  /**
+   * Whether to return the last, smaller batch of an epoch
+   */
+  protected boolean keepPartialBatch = false;
+
+  /**
+   * Whether the order of the examples may change in each epoch
+   */
+  protected boolean reorderingAllowed = false;
+
+  /**
+   * Batch scheduler for shuffling, null if shuffling is disabled
+   */
+  protected BatchScheduler scheduler;
+
+  /**
+   * Example order of the current epoch, null for the original order
+   */
+  protected transient int[] order;
+
   /**
    * Constructs a new dataset iterator.
    *
@@ -77,7 +102,8 @@ public class DefaultDataSetIterator implements DataSetIterator, Serializable {
    */
   @Override
   public boolean hasNext() {
-    return (cursor + batchSize <= data.numExamples());
+    final int minBatchSize = keepPartialBatch ? 1 : batchSize;
+    return (cursor + minBatchSize <= data.numExamples());
   }
 
   /**
@@ -87,24 +113,11 @@ public class DefaultDataSetIterator implements DataSetIterator, Serializable {
    */
   @Override
   public DataSet next() {
-    // Apply preprocessor
-    if (preProcessor != null) {
-      preProcessor.preProcess(data);
-    }
-
-    // Special case: getRange() does not work as expected if there is just a single example
-    if ((cursor == 0) && (batchSize == 1) && (data.numExamples() == 1)) {
-      cursor += batchSize;
-      return data;
-    }
-    int size = Math.min(batchSize, data.numExamples() - cursor);
-    DataSet thisBatch = (DataSet) data.getRange(cursor, cursor + size);
-    cursor += batchSize;
-    return thisBatch;
+    return next(batchSize);
   }
 
   /**
-   * Returns a batch of the given size
+   * Returns a batch of the given size (or smaller, if fewer examples remain)
    *
    * @param num the size of the batch to return
    * @return a mini-batch of the given size
@@ -117,16 +130,77 @@ public class DefaultDataSetIterator implements DataSetIterator, Serializable {
       preProcessor.preProcess(data);
     }
 
-    // Special case: getRange() does not work as expected if there is just a single example
-    if ((cursor == 0) && (num == 1) && (data.numExamples() == 1)) {
-      return data;
+    if (cursor == 0) {
+      order = scheduler != null && reorderingAllowed ? scheduler.nextEpoch() : null;
     }
-
-    DataSet thisBatch = (DataSet) data.getRange(cursor, cursor + num);
-    cursor += num;
+    int size = Math.min(num, data.numExamples() - cursor);
+    DataSet thisBatch;
+    if (order != null) {
+      // Gather the rows of this batch
+      int[] rows = Arrays.copyOfRange(order, cursor, cursor + size);
+      thisBatch = new DataSet(gather(data.getFeatures(), rows), gather(data.getLabels(), rows),
+          gather(data.getFeaturesMaskArray(), rows), gather(data.getLabelsMaskArray(), rows));
+    } else if ((cursor == 0) && (size == 1) && (data.numExamples() == 1)) {
+      // Special case: getRange() does not work as expected if there is just a single example
+      thisBatch = data;
+    } else {
+      thisBatch = (DataSet) data.getRange(cursor, cursor + size);
+    }
+    cursor += size;
     return thisBatch;
   }
 
+  /**
+   * Gather rows (along the first dimension) of an array.
+   *
+   * @param arr Array, may be null
+   * @param rows Row indices
+   * @return Gathered rows, null if the array is null
+   */
+  protected static INDArray gather(INDArray arr, int[] rows) {
+    if (arr == null) {
+      return null;
+    }
+    long[] shape = arr.shape().clone();
+    INDArray matrix = arr.reshape('c', shape[0], arr.length() / shape[0]);
+    shape[0] = rows.length;
+    return Nd4j.pullRows(matrix, 1, rows).reshape('c', shape);
+  }
+
+  /**
+   * Enable shuffling of the examples in each epoch. Only takes effect if reordering is allowed.
+   *
+   * @param stratified Whether to spread the examples of each class (label argmax) evenly over the
+   * epoch
+   * @param seed Seed for shuffling
+   */
+  public void enableShuffling(boolean stratified, long seed) {
+    scheduler = new BatchScheduler(data.numExamples(), seed);
+    scheduler.setShuffle(true);
+    if (stratified) {
+      scheduler.setStrata(data.getLabels().argMax(1).toIntVector());
+    }
+  }
+
+  /**
+   * Set whether the last, smaller batch of an epoch is returned.
+   *
+   * @param keepPartialBatch true if the last batch may be smaller than the batch size
+   */
+  public void setKeepPartialBatch(boolean keepPartialBatch) {
+    this.keepPartialBatch = keepPartialBatch;
+  }
+
+  @Override
+  public void setReorderingAllowed(boolean reorderingAllowed) {
+    this.reorderingAllowed = reorderingAllowed;
+  }
+
+  @Override
+  public boolean isReordering() {
+    return scheduler != null && scheduler.isShuffle() && reorderingAllowed;
+  }
+
   /**
    * Returns the number of input columns.
    *
@@ -0,0 +1,534 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ImageDataSetIterator.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import lombok.extern.log4j.Log4j2;
+import org.datavec.image.loader.NativeImageLoader;
+import org.datavec.image.transform.ImageTransform;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * A mini-batch iterator that decodes images with a pool of worker threads.
+ * <p>
+ * Images are decoded and resized ahead of time, at most {@link #prefetchBatches} batches beyond
+ * the current cursor, so memory usage is bounded independent of the dataset size. Batches are
+ * always assembled in example order, independent of the order in which the workers finish. The
+ * example order is the instance order, unless shuffling is enabled and reordering is allowed, in
+ * which case a {@link BatchScheduler} shuffles it deterministically per epoch based on the seed.
+ * <p>
+ * Decoded images can optionally be kept in a persistent {@link DecodedImageCache}, so later
+ * epochs and runs skip decoding.
+ *
+ * @author agent
+ */
+@Log4j2
+public class ImageDataSetIterator implements ReorderableDataSetIterator {
+
+  private static final long serialVersionUID = -1524390472531702557L;
+
+  /**
+   * Image files
+   */
+  protected final File[] files;
+
+  /**
+   * Label of each image: class index for classification, target value for regression, NaN if
+   * missing
+   */
+  protected final double[] targets;
+
+  /**
+   * Label names, a single label for regression
+   */
+  protected final List<String> labels;
+
+  /**
+   * Whether the targets are regression values instead of class indices
+   */
+  protected final boolean regression;
+
+  /**
+   * Image height
+   */
+  protected final int height;
+
+  /**
+   * Image width
+   */
+  protected final int width;
+
+  /**
+   * Number of image channels
+   */
+  protected final int channels;
+
+  /**
+   * Whether to supply image channels last
+   */
+  protected final boolean channelsLast;
+
+  /**
+   * Creates the optional image transform, one instance per worker thread
+   */
+  protected final transient Supplier<ImageTransform> transformSupplier;
+
+  /**
+   * Batch size
+   */
+  protected final int batchSize;
+
+  /**
+   * Number of decoding threads
+   */
+  protected final int numWorkers;
+
+  /**
+   * Maximum number of batches that are decoded ahead of the cursor
+   */
+  protected final int prefetchBatches;
+
+  /**
+   * Seed for reordering
+   */
+  protected final long seed;
+
+  /**
+   * Whether the order of the examples may change in each epoch
+   */
+  protected boolean reorderingAllowed = false;
+
+  /**
+   * Batch scheduler for shuffling, null if shuffling is disabled
+   */
+  protected BatchScheduler scheduler;
+
+  /**
+   * Example order of the current epoch
+   */
+  protected int[] order;
+
+  /**
+   * Position of the next example in the current epoch
+   */
+  protected int cursor = 0;
+
+  /**
+   * Number of examples of the current epoch which have been submitted for decoding
+   */
+  protected int submitted = 0;
+
+  /**
+   * Decoded images of the submitted examples, in example order
+   */
+  protected final transient ArrayDeque<Future<float[]>> pending = new ArrayDeque<>();
+
+  /**
+   * Decoding thread pool
+   */
+  protected transient ThreadPoolExecutor executor;
+
+  /**
+   * One image loader per decoding thread
+   */
+  protected transient ThreadLocal<NativeImageLoader> loaders;
+
+  /**
+   * Start time of the current epoch in nanoseconds
+   */
+  protected long epochStart;
+
+  /**
+   * Throughput of the last completed epoch in images per second
+   */
+  protected double throughput = Double.NaN;
+
+  /**
+   * An optional dataset preprocessor
+   */
+  protected DataSetPreProcessor preProcessor;
+
+  /**
+   * Optional cache of decoded images
+   */
+  protected transient DecodedImageCache cache;
+
+  /**
+   * Whether the cache of decoded images has been acquired for the current epoch
+   */
+  protected transient boolean cacheAcquired = false;
+
+  /**
+   * Constructor.
+   *
+   * @param files Image files
+   * @param targets Label of each image: class index for classification, target value for
+   * regression, NaN if missing
+   * @param labels Label names, a single label for regression
+   * @param regression Whether the targets are regression values instead of class indices
+   * @param height Image height
+   * @param width Image width
+   * @param channels Number of image channels
+   * @param channelsLast Whether to supply image channels last
+   * @param transformSupplier Creates the optional image transform (may return null)
+   * @param batchSize Batch size
+   * @param numWorkers Number of decoding threads
+   * @param prefetchBatches Maximum number of batches that are decoded ahead
+   * @param seed Seed for reordering
+   */
+  public ImageDataSetIterator(File[] files, double[] targets, List<String> labels,
+      boolean regression, int height, int width, int channels, boolean channelsLast,
+      Supplier<ImageTransform> transformSupplier, int batchSize, int numWorkers,
+      int prefetchBatches, long seed) {
+    this.files = files;
+    this.targets = targets;
+    this.labels = labels;
+    this.regression = regression;
+    this.height = height;
+    this.width = width;
+    this.channels = channels;
+    this.channelsLast = channelsLast;
+    this.transformSupplier = transformSupplier;
+    this.batchSize = batchSize;
+    this.numWorkers = Math.max(1, numWorkers);
+    this.prefetchBatches = Math.max(1, prefetchBatches);
+    this.seed = seed;
+  }
+
+  @Override
+  public DataSet next(int num) {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    if (cursor == 0 && submitted == 0) {
+      startEpoch();
+    }
+    num = Math.min(num, files.length - cursor);
+    submit(cursor + num);
+
+    // Assemble the batch in example order
+    final int imageSize = channels * height * width;
+    final int numLabels = labels.size();
+    float[] features = new float[num * imageSize];
+    float[] outcomes = new float[num * numLabels];
+    for (int i = 0; i < num; i++) {
+      System.arraycopy(take(), 0, features, i * imageSize, imageSize);
+      final double target = targets[order[cursor + i]];
+      if (regression) {
+        outcomes[i] = (float) target;
+      } else if (!Double.isNaN(target)) {
+        outcomes[i * numLabels + (int) target] = 1;
+      }
+    }
+    cursor += num;
+
+    // Keep the workers busy
+    submit(cursor + prefetchBatches * batchSize);
+
+    if (cursor == files.length) {
+      // All images of the epoch have been taken, release the decoding threads and the cache
+      shutdownExecutor();
+      releaseCache();
+      final double seconds = (System.nanoTime() - epochStart) / 1e9;
+      throughput = files.length / seconds;
+      log.info("Decoded {} images in {}s ({} images/sec, {} workers)", files.length,
+          String.format("%.2f", seconds), String.format("%.1f", throughput), numWorkers);
+    }
+
+    final long[] shape = channelsLast
+        ? new long[]{num, height, width, channels}
+        : new long[]{num, channels, height, width};
+    INDArray featuresArr = Nd4j.create(features, shape, 'c')
+        .castTo(Nd4j.defaultFloatingPointType());
+    INDArray labelsArr = Nd4j.create(outcomes, new long[]{num, numLabels}, 'c')
+        .castTo(Nd4j.defaultFloatingPointType());
+    DataSet ds = new DataSet(featuresArr, labelsArr);
+    if (preProcessor != null) {
+      preProcessor.preProcess(ds);
+    }
+    return ds;
+  }
+
+  /**
+   * Compute the example order of a new epoch and start decoding.
+   */
+  protected void startEpoch() {
+    if (scheduler != null && reorderingAllowed) {
+      order = scheduler.nextEpoch();
+    } else {
+      order = new int[files.length];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+    }
+    if (cache != null && !cacheAcquired) {
+      try {
+        cache.acquire();
+        cacheAcquired = true;
+      } catch (IOException e) {
+        log.warn("Could not open the decoded image cache", e);
+      }
+    }
+    epochStart = System.nanoTime();
+    submit(prefetchBatches * batchSize);
+  }
+
+  /**
+   * Submit examples for decoding until the given position of the current epoch.
+   *
+   * @param until Position (exclusive)
+   */
+  protected void submit(int until) {
+    until = Math.min(until, files.length);
+    for (; submitted < until; submitted++) {
+      final File file = files[order[submitted]];
+      pending.addLast(getExecutor().submit(() -> decode(file)));
+    }
+  }
+
+  /**
+   * Wait for the next decoded image.
+   *
+   * @return Decoded image
+   */
+  protected float[] take() {
+    try {
+      return pending.removeFirst().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while decoding images.", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Could not decode image.", e.getCause());
+    }
+  }
+
+  /**
+   * Decode and resize a single image.
+   *
+   * @param file Image file
+   * @return Image pixels in 'c' order, [channels, height, width] or [height, width, channels]
+   * @throws IOException Could not read the image
+   */
+  protected float[] decode(File file) throws IOException {
+    if (cache != null) {
+      try {
+        float[] cached = cache.get(file);
+        if (cached != null) {
+          return cached;
+        }
+      } catch (IOException e) {
+        log.warn("Could not read image " + file + " from the cache", e);
+      }
+    }
+
+    INDArray image = loaders.get().asMatrix(file);
+    if (channelsLast) {
+      image = image.permute(0, 2, 3, 1);
+    }
+    float[] values = Nd4j.toFlattened('c', image).toFloatVector();
+
+    if (cache != null) {
+      try {
+        cache.put(file, values);
+      } catch (IOException e) {
+        log.warn("Could not write image " + file + " to the cache", e);
+      }
+    }
+    return values;
+  }
+
+  /**
+   * Get the thread pool, create it if necessary. Idle threads terminate after a while, so
+   * iterators that are no longer used do not keep threads alive.
+   *
+   * @return Thread pool
+   */
+  protected synchronized ThreadPoolExecutor getExecutor() {
+    if (executor == null) {
+      final AtomicInteger threadCount = new AtomicInteger();
+      ThreadFactory threadFactory = r -> {
+        Thread t = new Thread(r, "image-decode-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      };
+      executor = new ThreadPoolExecutor(numWorkers, numWorkers, 30, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(), threadFactory);
+      executor.allowCoreThreadTimeOut(true);
+      loaders = ThreadLocal.withInitial(() -> new NativeImageLoader(height, width, channels,
+          transformSupplier == null ? null : transformSupplier.get()));
+    }
+    return executor;
+  }
+
+  /**
+   * Shut down the thread pool. It is created again when the next epoch starts.
+   */
+  protected synchronized void shutdownExecutor() {
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        // Decodes that are still running may use the image cache
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      executor = null;
+    }
+  }
+
+  /**
+   * Release the cache of decoded images if it has been acquired for the current epoch, so its
+   * files are closed once no other iterator uses it.
+   */
+  protected void releaseCache() {
+    if (cacheAcquired) {
+      cacheAcquired = false;
+      try {
+        cache.release();
+      } catch (IOException e) {
+        log.warn("Could not close the decoded image cache", e);
+      }
+    }
+  }
+
+  /**
+   * Set the cache of decoded images. Images found in the cache are not decoded again.
+   *
+   * @param cache Cache of decoded images, null to disable caching
+   */
+  public void setDecodedImageCache(DecodedImageCache cache) {
+    releaseCache();
+    this.cache = cache;
+  }
+
+  /**
+   * Get the decoding throughput of the last completed epoch.
+   *
+   * @return Images per second, NaN if no epoch has been completed yet
+   */
+  public double getThroughput() {
+    return throughput;
+  }
+
+  /**
+   * Enable shuffling of the examples in each epoch. Only takes effect if reordering is allowed.
+   *
+   * @param stratified Whether to spread the images of each class evenly over the epoch
+   */
+  public void enableShuffling(boolean stratified) {
+    scheduler = new BatchScheduler(files.length, seed);
+    scheduler.setShuffle(true);
+    if (stratified && !regression) {
+      int[] strata = new int[files.length];
+      for (int i = 0; i < strata.length; i++) {
+        // Missing labels form their own stratum
+        strata[i] = Double.isNaN(targets[i]) ? labels.size() : (int) targets[i];
+      }
+      scheduler.setStrata(strata);
+    }
+  }
+
+  @Override
+  public void setReorderingAllowed(boolean reorderingAllowed) {
+    this.reorderingAllowed = reorderingAllowed;
+  }
+
+  @Override
+  public boolean isReordering() {
+    return scheduler != null && scheduler.isShuffle() && reorderingAllowed;
+  }
+
+  @Override
+  public int inputColumns() {
+    return channels * height * width;
+  }
+
+  @Override
+  public int totalOutcomes() {
+    return labels.size();
+  }
+
+  @Override
+  public boolean resetSupported() {
+    return true;
+  }
+
+  @Override
+  public boolean asyncSupported() {
+    return true;
+  }
+
+  @Override
+  public void reset() {
+    // Discard images that have been decoded ahead
+    for (Future<float[]> f : pending) {
+      f.cancel(false);
+    }
+    pending.clear();
+    shutdownExecutor();
+    releaseCache();
+    cursor = 0;
+    submitted = 0;
+  }
+
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return labels;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return cursor < files.length;
+  }
+
+  @Override
+  public DataSet next() {
+    return next(batchSize);
+  }
+}
@@ -0,0 +1,440 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * InstancesDataSetIterator.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * An nd4j mini-batch iterator that builds each mini-batch directly from the given {@link Instances}.
+ * <p>
+ * In contrast to {@link DefaultDataSetIterator}, the full dataset is never converted into a single
+ * {@link DataSet}. Instead, the feature and label arrays of a mini-batch are filled straight from
+ * the (dense or sparse) instance values into pre-allocated buffers which are reused for every batch
+ * of the same size. Peak memory is therefore bounded by the batch size, not the dataset size.
+ * <p>
+ * Since the returned {@link DataSet} objects share their buffers, a batch is only valid until the
+ * next call to {@link #next()}. Consumers that hold on to more than one batch at a time (e.g.
+ * asynchronous prefetching) must disable buffer reuse via {@link #setReuseBuffers(boolean)}.
+ * <p>
+ * If shuffling is enabled and reordering is allowed, each epoch gathers its mini-batches in the
+ * order of a seed-stable permutation computed by a {@link BatchScheduler}.
+ *
+ * @author agent
+ */
+public class InstancesDataSetIterator implements ReorderableDataSetIterator, Serializable {
+
+  /**
+   * The ID used to serialize this class
+   */
+  private static final long serialVersionUID = -2473170911424386213L;
+
+  /**
+   * The instances to operate on
+   */
+  protected Instances data;
+
+  /**
+   * The batch size
+   */
+  protected int batchSize = 1;
+
+  /**
+   * The cursor
+   */
+  protected int cursor = 0;
+
+  /**
+   * Shape of a single example's features (excluding the batch dimension), null for flat features
+   */
+  protected long[] featureShape;
+
+  /**
+   * Whether to reuse the feature/label buffers between batches of the same size
+   */
+  protected boolean reuseBuffers = true;
+
+  /**
+   * An optional dataset preprocessor
+   */
+  protected DataSetPreProcessor preProcessor;
+
+  /**
+   * Whether to return the last, smaller batch of an epoch
+   */
+  protected boolean keepPartialBatch = false;
+
+  /**
+   * Whether to shuffle the examples in each epoch (only if reordering is allowed)
+   */
+  protected boolean shuffle = false;
+
+  /**
+   * Whether shuffling is stratified by class
+   */
+  protected boolean stratified = false;
+
+  /**
+   * Seed for shuffling
+   */
+  protected long seed = 0;
+
+  /**
+   * Whether the order of the examples may change in each epoch
+   */
+  protected boolean reorderingAllowed = false;
+
+  /**
+   * Batch scheduler, computes the example order of each epoch
+   */
+  protected transient BatchScheduler scheduler;
+
+  /**
+   * Example order of the current epoch, null for the original order
+   */
+  protected transient int[] order;
+
+  /**
+   * Reusable feature buffer of shape [batch, numFeatures]
+   */
+  protected transient INDArray featureBuffer;
+
+  /**
+   * Reusable label buffer of shape [batch, numClasses]
+   */
+  protected transient INDArray labelBuffer;
+
+  /**
+   * Constructs a new iterator over flat feature vectors.
+   *
+   * @param data The instances to operate on (class index must be set)
+   * @param batchSize The batch size
+   */
+  public InstancesDataSetIterator(Instances data, int batchSize) {
+    this(data, batchSize, null);
+  }
+
+  /**
+   * Constructs a new iterator which reshapes the features of each example to the given shape.
+   *
+   * @param data The instances to operate on (class index must be set)
+   * @param batchSize The batch size
+   * @param featureShape Shape of a single example's features, e.g. {channels, width, height}
+   */
+  public InstancesDataSetIterator(Instances data, int batchSize, long[] featureShape) {
+    this.data = data;
+    this.batchSize = Math.min(batchSize, data.numInstances());
+    this.featureShape = featureShape;
+  }
+
+  /**
+   * Whether another batch of data is still available.
+   *
+   * @return true if another batch is still available
+   */
+  @Override
+  public boolean hasNext() {
+    final int minBatchSize = keepPartialBatch ? 1 : batchSize;
+    return data.numInstances() > 0 && (cursor + minBatchSize <= data.numInstances());
+  }
+
+  /**
+   * Returns the next mini batch of data.
+   *
+   * @return the dataset corresponding to the mini batch
+   */
+  @Override
+  public DataSet next() {
+    return next(batchSize);
+  }
+
+  /**
+   * Returns a batch of the given size (or smaller, if fewer instances remain).
+   *
+   * @param num the size of the batch to return
+   * @return a mini-batch of the given size
+   */
+  @Override
+  public DataSet next(int num) {
+    if (cursor == 0) {
+      order = nextEpochOrder();
+    }
+    int size = Math.min(num, data.numInstances() - cursor);
+    DataSet thisBatch = buildBatch(cursor, size);
+    cursor += size;
+
+    // Apply preprocessor
+    if (preProcessor != null) {
+      preProcessor.preProcess(thisBatch);
+    }
+    return thisBatch;
+  }
+
+  /**
+   * Fills the feature and label arrays for the instances in [from, from + size).
+   *
+   * @param from Index of the first instance
+   * @param size Number of instances
+   * @return DataSet backed by the (possibly reused) buffers
+   */
+  protected DataSet buildBatch(int from, int size) {
+    final int numFeatures = inputColumns();
+    final int numClasses = totalOutcomes();
+    final int classIndex = data.classIndex();
+
+    if (!reuseBuffers || featureBuffer == null || featureBuffer.size(0) != size) {
+      featureBuffer = Nd4j.create(Nd4j.defaultFloatingPointType(), size, numFeatures);
+      labelBuffer = Nd4j.create(Nd4j.defaultFloatingPointType(), size, numClasses);
+    } else {
+      // Sparse instances only write their non-zero values
+      featureBuffer.assign(0);
+      labelBuffer.assign(0);
+    }
+
+    final DataBuffer features = featureBuffer.data();
+    final DataBuffer labels = labelBuffer.data();
+    for (int i = 0; i < size; i++) {
+      Instance current = data.instance(order == null ? from + i : order[from + i]);
+      putFeatures(current, classIndex, features, (long) i * numFeatures);
+
+      // Set class values
+      if (numClasses > 1) { // Classification
+        labels.put((long) i * numClasses + (int) current.classValue(), 1.0);
+      } else { // Regression (currently only single class)
+        labels.put(i, current.classValue());
+      }
+    }
+
+    INDArray batchFeatures = featureBuffer;
+    if (featureShape != null) {
+      long[] shape = new long[featureShape.length + 1];
+      shape[0] = size;
+      System.arraycopy(featureShape, 0, shape, 1, featureShape.length);
+      batchFeatures = featureBuffer.reshape(shape);
+    }
+    return new DataSet(batchFeatures, labelBuffer);
+  }
+
+  /**
+   * Writes the non-class values of an instance into a buffer, starting at the given offset. Only
+   * the stored values of sparse instances are written, the remaining entries are left untouched.
+   *
+   * @param inst Instance to write
+   * @param classIndex Class index which is left out
+   * @param buffer Buffer to write into
+   * @param offset Buffer offset of the first feature
+   */
+  public static void putFeatures(Instance inst, int classIndex, DataBuffer buffer, long offset) {
+    for (int j = 0; j < inst.numValues(); j++) {
+      int index = inst.index(j);
+      if (index < classIndex) {
+        buffer.put(offset + index, inst.valueSparse(j));
+      } else if (index > classIndex) {
+        // Shift by -1, since the class is left out from the feature matrix
+        buffer.put(offset + index - 1, inst.valueSparse(j));
+      }
+    }
+  }
+
+  /**
+   * Compute the example order of the next epoch.
+   *
+   * @return Example order, null for the original order
+   */
+  protected int[] nextEpochOrder() {
+    if (!shuffle || !reorderingAllowed) {
+      return null;
+    }
+    if (scheduler == null) {
+      scheduler = new BatchScheduler(data.numInstances(), seed);
+      scheduler.setShuffle(true);
+      if (stratified && data.classAttribute().isNominal()) {
+        int[] strata = new int[data.numInstances()];
+        for (int i = 0; i < strata.length; i++) {
+          final Instance inst = data.instance(i);
+          // Missing class values form their own stratum
+          strata[i] = inst.classIsMissing() ? data.numClasses() : (int) inst.classValue();
+        }
+        scheduler.setStrata(strata);
+      }
+    }
+    return scheduler.nextEpoch();
+  }
+
+  /**
+   * Enable shuffling of the examples in each epoch. Only takes effect if reordering is allowed.
+   *
+   * @param stratified Whether to spread the examples of each class evenly over the epoch
+   * @param seed Seed for shuffling
+   */
+  public void enableShuffling(boolean stratified, long seed) {
+    this.shuffle = true;
+    this.stratified = stratified;
+    this.seed = seed;
+    this.scheduler = null;
+  }
+
+  /**
+   * Set whether the last, smaller batch of an epoch is returned.
+   *
+   * @param keepPartialBatch true if the last batch may be smaller than the batch size
+   */
+  public void setKeepPartialBatch(boolean keepPartialBatch) {
+    this.keepPartialBatch = keepPartialBatch;
+  }
+
+  @Override
+  public void setReorderingAllowed(boolean reorderingAllowed) {
+    this.reorderingAllowed = reorderingAllowed;
+  }
+
+  @Override
+  public boolean isReordering() {
+    return shuffle && reorderingAllowed;
+  }
+
+  /**
+   * Whether the feature/label buffers are reused between batches.
+   *
+   * @return true if buffers are reused
+   */
+  public boolean isReuseBuffers() {
+    return reuseBuffers;
+  }
+
+  /**
+   * Set whether the feature/label buffers are reused between batches. Must be disabled if more
+   * than one batch is alive at the same time.
+   *
+   * @param reuseBuffers true if buffers should be reused
+   */
+  public void setReuseBuffers(boolean reuseBuffers) {
+    this.reuseBuffers = reuseBuffers;
+  }
+
+  /**
+   * Returns the number of input columns.
+   *
+   * @return the number of input columns
+   */
+  @Override
+  public int inputColumns() {
+    return data.numAttributes() - 1;
+  }
+
+  /**
+   * Returns the total number of labels.
+   *
+   * @return the total number of labels
+   */
+  @Override
+  public int totalOutcomes() {
+    return data.numClasses();
+  }
+
+  /**
+   * Resets the cursor.
+   */
+  @Override
+  public void reset() {
+    cursor = 0;
+  }
+
+  /**
+   * Whether the iterator can be reset.
+   *
+   * @return true
+   */
+  @Override
+  public boolean resetSupported() {
+    return true;
+  }
+
+  /**
+   * Whether the iterator can be used asynchronously.
+   *
+   * @return false
+   */
+  @Override
+  public boolean asyncSupported() {
+    return false;
+  }
+
+  /**
+   * The size of the mini batches.
+   *
+   * @return the size of the mini batches
+   */
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  /**
+   * Gets the preprocessor.
+   *
+   * @return preProcessor
+   */
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  /**
+   * Sets the preprocessor.
+   *
+   * @param preProcessor A DataSet preprocessor.
+   */
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  /**
+   * Gets the labels, i.e. the label index of each instance.
+   *
+   * @return the labels
+   */
+  @Override
+  public List<String> getLabels() {
+    List<String> labels = new ArrayList<>();
+    boolean isClassification = data.numClasses() > 1;
+    for (int i = 0; i < data.numInstances(); i++) {
+      int label = isClassification ? (int) data.instance(i).classValue() : 0;
+      labels.add(String.valueOf(label));
+    }
+    return labels;
+  }
+
+  /**
+   * Enables removing of a mini-batch.
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,736 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * MappedDataSetCache.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import lombok.extern.log4j.Log4j2;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.concurrency.AffinityManager.Location;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.CachingDataSetIterator;
+import org.nd4j.linalg.dataset.api.iterator.cache.DataSetCache;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import weka.dl4j.CachePrecision;
+
+/**
+ * A filesystem cache of the batches of a {@link CachingDataSetIterator}, stored in a single file.
+ * <p>
+ * Each batch is appended to the file as a record with one column per array (features, labels and
+ * their masks). The raw values of each column are stored in native byte order, optionally
+ * compressed, and the features can be stored with reduced precision (see {@link CachePrecision}).
+ * Once the source iterator is exhausted, an index of the records is appended and the file is
+ * memory-mapped, so later epochs copy the batches straight from the page cache.
+ * <p>
+ * The file is named after a fingerprint of the data and the iterator configuration, so later runs
+ * on the same data reuse it. It is written under a temporary name and only renamed once it is
+ * complete, so an incomplete cache is never read. Batches can not be added to a complete cache.
+ *
+ * @author agent
+ */
+@Log4j2
+public class MappedDataSetCache implements DataSetCache {
+
+  /**
+   * Extension of complete cache files
+   */
+  public static final String FILE_EXTENSION = ".dsc";
+
+  /**
+   * Extension of cache files that are being written
+   */
+  private static final String TMP_EXTENSION = ".tmp";
+
+  /**
+   * Magic number at the start and the end of a cache file
+   */
+  private static final int MAGIC = 0x44534331;
+
+  /**
+   * Format version. Version 2 stores the batches before preprocessing.
+   */
+  private static final int FORMAT_VERSION = 2;
+
+  /**
+   * Size of the file header: magic, version, byte order
+   */
+  private static final int HEADER_SIZE = 9;
+
+  /**
+   * Size of the file footer: index offset, magic
+   */
+  private static final int FOOTER_SIZE = 12;
+
+  /**
+   * Maximum size of a single memory-mapped region
+   */
+  private static final long MAX_REGION_SIZE = 1L << 30;
+
+  /**
+   * Age after which abandoned temporary files of other runs are deleted
+   */
+  private static final long TMP_FILE_MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+  /**
+   * Location of a batch in the cache file.
+   */
+  protected static class Record {
+
+    /**
+     * Offset of the record in the file
+     */
+    final long offset;
+
+    /**
+     * Size of the record in bytes
+     */
+    final int length;
+
+    /**
+     * Index of the mapped region that holds the record, -1 if the file is not mapped yet
+     */
+    int region = -1;
+
+    Record(long offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Cache file
+   */
+  protected final File file;
+
+  /**
+   * Storage precision of the features
+   */
+  protected final CachePrecision precision;
+
+  /**
+   * Whether to compress the columns
+   */
+  protected final boolean compress;
+
+  /**
+   * Records of the cached batches, by key
+   */
+  protected final Map<String, Record> records = new HashMap<>();
+
+  /**
+   * Namespaces whose batches are all in the cache
+   */
+  protected final Set<String> completeNamespaces = new HashSet<>();
+
+  /**
+   * Memory-mapped regions of the complete file
+   */
+  protected final List<MappedByteBuffer> regions = new ArrayList<>();
+
+  /**
+   * File offsets of the memory-mapped regions
+   */
+  protected final List<Long> regionOffsets = new ArrayList<>();
+
+  /**
+   * Temporary file while the cache is written, null otherwise
+   */
+  protected File tmpFile;
+
+  /**
+   * Channel of the temporary file while the cache is written, null otherwise
+   */
+  protected FileChannel channel;
+
+  /**
+   * Write position in the temporary file
+   */
+  protected long writePosition;
+
+  /**
+   * Whether the cache file is complete
+   */
+  protected boolean finished;
+
+  /**
+   * Open the cache with the given fingerprint. Reuses a complete cache file from an earlier run,
+   * an invalid file is replaced once the new cache is complete.
+   *
+   * @param directory Cache directory
+   * @param fingerprint Fingerprint of the cached data and iterator configuration
+   * @param precision Storage precision of the features
+   * @param compress Whether to compress the columns
+   * @throws IOException Could not create the cache directory
+   */
+  public MappedDataSetCache(File directory, String fingerprint, CachePrecision precision,
+      boolean compress) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create dataset cache directory " + directory);
+    }
+    this.file = new File(directory, fingerprint + FILE_EXTENSION);
+    this.precision = precision;
+    this.compress = compress;
+
+    if (file.exists()) {
+      try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+        readIndex(in);
+        mapRegions(in);
+        finished = true;
+        log.info("Reusing dataset cache {} ({} batches)", file, records.size());
+      } catch (IOException | RuntimeException e) {
+        log.warn("Ignoring invalid dataset cache " + file, e);
+        records.clear();
+        completeNamespaces.clear();
+        regions.clear();
+        regionOffsets.clear();
+      }
+    }
+  }
+
+  /**
+   * Delete all files in the cache directory except the cache with the given fingerprint and the
+   * caches that are being written, including the per-batch files of older versions.
+   *
+   * @param directory Cache directory
+   * @param fingerprint Fingerprint of the cache to keep
+   */
+  public static void deleteOtherCaches(File directory, String fingerprint) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    for (File f : files) {
+      final String name = f.getName();
+      if (name.equals(fingerprint + FILE_EXTENSION) || (name.endsWith(TMP_EXTENSION)
+          && now - f.lastModified() < TMP_FILE_MAX_AGE)) {
+        continue;
+      }
+      if (f.isFile() && !f.delete()) {
+        log.warn("Unable to delete cache file {}", f);
+      }
+    }
+  }
+
+  @Override
+  public synchronized boolean isComplete(String namespace) {
+    return completeNamespaces.contains(namespace);
+  }
+
+  @Override
+  public synchronized void setComplete(String namespace, boolean value) {
+    if (!value) {
+      completeNamespaces.remove(namespace);
+      return;
+    }
+    if (completeNamespaces.add(namespace) && !finished) {
+      try {
+        finish();
+      } catch (IOException e) {
+        throw new RuntimeException("Could not write dataset cache " + file, e);
+      }
+    }
+  }
+
+  @Override
+  public DataSet get(String key) {
+    ByteBuffer buf;
+    try {
+      synchronized (this) {
+        final Record record = records.get(key);
+        if (record == null) {
+          return null;
+        }
+        buf = readRecord(record);
+      }
+      // Decode outside of the lock, the buffer is not shared
+      final INDArray features = readColumn(buf);
+      final INDArray labels = readColumn(buf);
+      final INDArray featuresMask = readColumn(buf);
+      final INDArray labelsMask = readColumn(buf);
+      return new DataSet(features, labels, featuresMask, labelsMask);
+    } catch (IOException e) {
+      throw new RuntimeException("Could not read batch " + key + " from dataset cache " + file, e);
+    }
+  }
+
+  @Override
+  public synchronized void put(String key, DataSet dataSet) {
+    if (finished) {
+      throw new IllegalStateException("Can not add batches to the complete dataset cache "
+          + file);
+    }
+    try {
+      if (channel == null) {
+        startWriting();
+      }
+      final long offset = writePosition;
+      writeColumn(dataSet.getFeatures(), true);
+      writeColumn(dataSet.getLabels(), false);
+      writeColumn(dataSet.getFeaturesMaskArray(), false);
+      writeColumn(dataSet.getLabelsMaskArray(), false);
+      final long length = writePosition - offset;
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Batch is too large to be cached: " + length + " bytes");
+      }
+      // A batch that is put again (e.g. after a reset in the first epoch) replaces the old record
+      records.put(key, new Record(offset, (int) length));
+    } catch (IOException e) {
+      throw new RuntimeException("Could not write batch " + key + " to dataset cache " + file, e);
+    }
+  }
+
+  @Override
+  public synchronized boolean contains(String key) {
+    return records.containsKey(key);
+  }
+
+  /**
+   * Create the temporary file and write the file header.
+   *
+   * @throws IOException Could not create the file
+   */
+  protected void startWriting() throws IOException {
+    tmpFile = File.createTempFile(file.getName(), TMP_EXTENSION, file.getParentFile());
+    tmpFile.deleteOnExit();
+    channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    writePosition = 0;
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).putInt(FORMAT_VERSION)
+        .put((byte) (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0)).flip();
+    write(header);
+  }
+
+  /**
+   * Append the index and the footer, move the temporary file to the cache file and map it.
+   *
+   * @throws IOException Could not write the file
+   */
+  protected void finish() throws IOException {
+    if (channel == null) {
+      startWriting();
+    }
+    final long indexOffset = writePosition;
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bos);
+    out.writeInt(completeNamespaces.size());
+    for (String namespace : completeNamespaces) {
+      writeString(out, namespace);
+    }
+    out.writeInt(records.size());
+    for (Map.Entry<String, Record> entry : records.entrySet()) {
+      writeString(out, entry.getKey());
+      out.writeLong(entry.getValue().offset);
+      out.writeInt(entry.getValue().length);
+    }
+    out.writeLong(indexOffset);
+    out.writeInt(MAGIC);
+    out.flush();
+    write(ByteBuffer.wrap(bos.toByteArray()));
+    channel.force(false);
+
+    try {
+      Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      mapRegions(channel);
+    } finally {
+      channel.close();
+      channel = null;
+      tmpFile = null;
+    }
+    finished = true;
+    log.info("Wrote dataset cache {} ({} batches, {} bytes)", file, records.size(),
+        writePosition);
+  }
+
+  /**
+   * Read the index of a complete cache file.
+   *
+   * @param in Channel of the cache file
+   * @throws IOException The file is incomplete or has a different format
+   */
+  protected void readIndex(FileChannel in) throws IOException {
+    final long size = in.size();
+    if (size < HEADER_SIZE + FOOTER_SIZE) {
+      throw new IOException("Cache file is truncated");
+    }
+    ByteBuffer header = readFully(in, 0, HEADER_SIZE);
+    final boolean littleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION
+        || (header.get() == 1) != littleEndian) {
+      throw new IOException("Cache file has a different format");
+    }
+    ByteBuffer footer = readFully(in, size - FOOTER_SIZE, FOOTER_SIZE);
+    final long indexOffset = footer.getLong();
+    if (footer.getInt() != MAGIC || indexOffset < HEADER_SIZE
+        || indexOffset > size - FOOTER_SIZE) {
+      throw new IOException("Cache file is incomplete");
+    }
+
+    ByteBuffer index = readFully(in, indexOffset, (int) (size - FOOTER_SIZE - indexOffset));
+    final int numNamespaces = index.getInt();
+    for (int i = 0; i < numNamespaces; i++) {
+      completeNamespaces.add(readString(index));
+    }
+    final int numRecords = index.getInt();
+    for (int i = 0; i < numRecords; i++) {
+      final String key = readString(index);
+      final long offset = index.getLong();
+      final int length = index.getInt();
+      if (offset < HEADER_SIZE || offset + length > indexOffset) {
+        throw new IOException("Cache file index is corrupt");
+      }
+      records.put(key, new Record(offset, length));
+    }
+  }
+
+  /**
+   * Map the records of the complete file into regions of at most {@link #MAX_REGION_SIZE} bytes
+   * (or a single larger record), so no record spans two regions.
+   *
+   * @param in Channel of the cache file
+   * @throws IOException Could not map the file
+   */
+  protected void mapRegions(FileChannel in) throws IOException {
+    List<Record> sorted = new ArrayList<>(records.values());
+    sorted.sort(Comparator.comparingLong(r -> r.offset));
+    long start = -1;
+    long end = -1;
+    for (Record record : sorted) {
+      if (start >= 0 && record.offset + record.length - start > MAX_REGION_SIZE) {
+        mapRegion(in, start, end);
+        start = -1;
+      }
+      if (start < 0) {
+        start = record.offset;
+      }
+      end = Math.max(end, record.offset + record.length);
+      record.region = regions.size();
+    }
+    if (start >= 0) {
+      mapRegion(in, start, end);
+    }
+  }
+
+  /**
+   * Map a region of the file.
+   *
+   * @param in Channel of the cache file
+   * @param start Start offset
+   * @param end End offset (exclusive)
+   * @throws IOException Could not map the file
+   */
+  private void mapRegion(FileChannel in, long start, long end) throws IOException {
+    regions.add(in.map(MapMode.READ_ONLY, start, end - start));
+    regionOffsets.add(start);
+  }
+
+  /**
+   * Get the bytes of a record, from the mapped file or from the file that is being written.
+   *
+   * @param record Record
+   * @return Buffer that holds exactly the record
+   * @throws IOException Could not read the record
+   */
+  protected ByteBuffer readRecord(Record record) throws IOException {
+    if (record.region < 0) {
+      return readFully(channel, record.offset, record.length);
+    }
+    ByteBuffer buf = regions.get(record.region).duplicate();
+    final int position = (int) (record.offset - regionOffsets.get(record.region));
+    buf.position(position);
+    buf.limit(position + record.length);
+    return buf.slice();
+  }
+
+  /**
+   * Append a column to the file that is being written.
+   *
+   * @param array Values of the column, may be null
+   * @param features Whether the column holds the features, which are stored with the configured
+   * precision
+   * @throws IOException Could not write the column
+   */
+  protected void writeColumn(INDArray array, boolean features) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    DataOutputStream header = new DataOutputStream(bos);
+    if (array == null) {
+      header.writeBoolean(false);
+      header.flush();
+      write(ByteBuffer.wrap(bos.toByteArray()));
+      return;
+    }
+
+    INDArray stored = array;
+    float offset = 0;
+    float scale = 1;
+    if (features && array.dataType().isFPType()) {
+      switch (precision) {
+        case FLOAT16:
+          stored = array.castTo(DataType.HALF);
+          break;
+        case UINT8:
+          final float min = array.minNumber().floatValue();
+          final float max = array.maxNumber().floatValue();
+          final INDArray rounded = Transforms.round(array, true);
+          if (min >= 0 && max <= 255 && array.sub(rounded).amaxNumber().floatValue() == 0) {
+            // 8-bit values are stored exactly
+            stored = rounded.castTo(DataType.UBYTE);
+          } else {
+            // Quantize lossily to 256 levels between the minimum and maximum of the batch
+            offset = min;
+            scale = max > min ? (max - min) / 255 : 1;
+            stored = Transforms.round(array.sub(offset).divi(scale), false)
+                .castTo(DataType.UBYTE);
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    if (stored.isView() || stored.ordering() != 'c'
+        || stored.data().length() != stored.length()) {
+      stored = stored.dup('c');
+    }
+    Nd4j.getAffinityManager().ensureLocation(stored, Location.HOST);
+
+    final long rawLength = stored.length() * stored.data().getElementSize();
+    if (rawLength > Integer.MAX_VALUE) {
+      throw new IOException("Array is too large to be cached: " + rawLength + " bytes");
+    }
+    ByteBuffer payload = stored.data().asNio();
+    payload.position(0);
+    payload.limit((int) rawLength);
+    boolean compressed = false;
+    if (compress) {
+      byte[] deflated = deflate(payload);
+      payload.position(0);
+      // Incompressible columns are stored as they are
+      if (deflated.length < rawLength) {
+        payload = ByteBuffer.wrap(deflated);
+        compressed = true;
+      }
+    }
+
+    header.writeBoolean(true);
+    writeString(header, array.dataType().name());
+    writeString(header, stored.dataType().name());
+    final long[] shape = stored.shape();
+    header.writeInt(shape.length);
+    for (long s : shape) {
+      header.writeLong(s);
+    }
+    header.writeFloat(offset);
+    header.writeFloat(scale);
+    header.writeBoolean(compressed);
+    header.writeInt((int) rawLength);
+    header.writeInt(payload.remaining());
+    header.flush();
+    write(ByteBuffer.wrap(bos.toByteArray()));
+    write(payload);
+  }
+
+  /**
+   * Read the next column of a record.
+   *
+   * @param buf Record buffer, positioned at the column
+   * @return Values of the column, null if the column is empty
+   * @throws IOException The column is corrupt
+   */
+  protected static INDArray readColumn(ByteBuffer buf) throws IOException {
+    if (buf.get() == 0) {
+      return null;
+    }
+    final DataType dataType = DataType.valueOf(readString(buf));
+    final DataType storedType = DataType.valueOf(readString(buf));
+    final long[] shape = new long[buf.getInt()];
+    for (int i = 0; i < shape.length; i++) {
+      shape[i] = buf.getLong();
+    }
+    final float offset = buf.getFloat();
+    final float scale = buf.getFloat();
+    final boolean compressed = buf.get() != 0;
+    final int rawLength = buf.getInt();
+    final int length = buf.getInt();
+
+    ByteBuffer payload = buf.slice();
+    payload.limit(length);
+    buf.position(buf.position() + length);
+
+    INDArray stored = Nd4j.createUninitialized(storedType, shape, 'c');
+    ByteBuffer dst = stored.data().asNio();
+    dst.position(0);
+    if (dst.remaining() < rawLength) {
+      throw new IOException("Column does not match its shape");
+    }
+    if (compressed) {
+      dst.put(inflate(payload, rawLength));
+    } else {
+      dst.put(payload);
+    }
+    Nd4j.getAffinityManager().tagLocation(stored, Location.HOST);
+
+    if (storedType == dataType) {
+      return stored;
+    }
+    INDArray array = stored.castTo(dataType);
+    if (storedType == DataType.UBYTE) {
+      array.muli(scale).addi(offset);
+    }
+    return array;
+  }
+
+  /**
+   * Compress bytes.
+   *
+   * @param src Bytes to compress, the position is moved to the limit
+   * @return Compressed bytes
+   */
+  private static byte[] deflate(ByteBuffer src) {
+    byte[] raw = new byte[src.remaining()];
+    src.get(raw);
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    try {
+      deflater.setInput(raw);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+      byte[] chunk = new byte[1 << 16];
+      while (!deflater.finished()) {
+        out.write(chunk, 0, deflater.deflate(chunk));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Decompress bytes.
+   *
+   * @param src Compressed bytes
+   * @param rawLength Number of decompressed bytes
+   * @return Decompressed bytes
+   * @throws IOException The bytes are corrupt
+   */
+  private static byte[] inflate(ByteBuffer src, int rawLength) throws IOException {
+    byte[] compressed = new byte[src.remaining()];
+    src.get(compressed);
+    byte[] raw = new byte[rawLength];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      int n = 0;
+      while (n < rawLength) {
+        final int len = inflater.inflate(raw, n, rawLength - n);
+        if (len == 0 && (inflater.finished() || inflater.needsInput())) {
+          throw new IOException("Compressed column is truncated");
+        }
+        n += len;
+      }
+      return raw;
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Append bytes to the file that is being written.
+   *
+   * @param buf Bytes to write
+   * @throws IOException Could not write the bytes
+   */
+  private void write(ByteBuffer buf) throws IOException {
+    while (buf.hasRemaining()) {
+      writePosition += channel.write(buf, writePosition);
+    }
+  }
+
+  /**
+   * Read bytes from a file.
+   *
+   * @param in Channel of the file
+   * @param position Start offset
+   * @param length Number of bytes
+   * @return Buffer holding the bytes
+   * @throws IOException The file is too short
+   */
+  private static ByteBuffer readFully(FileChannel in, long position, int length)
+      throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(length);
+    while (buf.hasRemaining()) {
+      if (in.read(buf, position + buf.position()) < 0) {
+        throw new IOException("Unexpected end of cache file");
+      }
+    }
+    buf.flip();
+    return buf;
+  }
+
+  /**
+   * Write a length-prefixed UTF-8 string.
+   *
+   * @param out Stream to write to
+   * @param s String
+   * @throws IOException Could not write the string
+   */
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Read a string written by {@link #writeString(DataOutputStream, String)}.
+   *
+   * @param buf Buffer to read from
+   * @return String
+   */
+  private static String readString(ByteBuffer buf) {
+    byte[] bytes = new byte[buf.getInt()];
+    buf.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
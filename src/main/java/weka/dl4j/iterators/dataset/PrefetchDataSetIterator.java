@@ -0,0 +1,517 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * PrefetchDataSetIterator.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.extern.log4j.Log4j2;
+import org.bytedeco.javacpp.Pointer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.classifiers.functions.dl4j.Utils;
+
+/**
+ * A dataset iterator that prefetches the batches of another iterator in a background thread.
+ * <p>
+ * The size of the prefetch queue adapts to the observed stalls: if the consumer waits for batches
+ * more than the producer waits for free space, the queue grows, if only the producer waits, it
+ * shrinks again. The queue never holds more batches than fit into a quarter of the free off-heap
+ * memory.
+ * <p>
+ * Unlike {@link org.deeplearning4j.datasets.iterator.AsyncDataSetIterator}, batches are handed
+ * over to the consumer (they are not reused), so this iterator can be stacked on top of caching
+ * iterators and supports {@link #next(int)} by merging whole batches. The time the producer and
+ * the consumer stalled is reported at the end of each epoch.
+ *
+ * @author agent
+ */
+@Log4j2
+public class PrefetchDataSetIterator implements DataSetIterator {
+
+  /**
+   * Marks the end of an epoch in the queue
+   */
+  private static final Object END = new Object();
+
+  /**
+   * Minimum queue capacity
+   */
+  private static final int MIN_CAPACITY = 2;
+
+  /**
+   * Maximum queue capacity
+   */
+  private static final int MAX_CAPACITY = 64;
+
+  /**
+   * Number of consumed batches after which the queue capacity is adapted
+   */
+  private static final int ADAPT_INTERVAL = 16;
+
+  /**
+   * Fraction of the free off-heap memory the queue may use
+   */
+  private static final double MEMORY_FRACTION = 0.25;
+
+  /**
+   * The prefetched iterator
+   */
+  private final DataSetIterator backing;
+
+  /**
+   * Device of the thread that created this iterator
+   */
+  private final Integer deviceId;
+
+  /**
+   * Prefetched batches
+   */
+  private final ArrayDeque<Object> queue = new ArrayDeque<>();
+
+  /**
+   * Guards the queue, its capacity, the batch size and the stall times
+   */
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /**
+   * Signalled when a batch was added to the queue
+   */
+  private final Condition notEmpty = lock.newCondition();
+
+  /**
+   * Signalled when a batch was taken from the queue or the capacity grew
+   */
+  private final Condition notFull = lock.newCondition();
+
+  /**
+   * Current queue capacity
+   */
+  private int capacity;
+
+  /**
+   * Size of a batch in bytes, 0 if unknown
+   */
+  private long batchBytes;
+
+  /**
+   * Producer thread of the current epoch
+   */
+  private Thread producer;
+
+  /**
+   * Whether the producer should stop
+   */
+  private volatile boolean stopped;
+
+  /**
+   * Error of the producer, rethrown to the consumer
+   */
+  private volatile Throwable producerError;
+
+  /**
+   * Next batch, taken from the queue by {@link #hasNext()}
+   */
+  private DataSet nextBatch;
+
+  /**
+   * Whether the end of the current epoch was reached
+   */
+  private boolean exhausted;
+
+  /**
+   * Number of batches consumed in the current epoch
+   */
+  private int numBatches;
+
+  /**
+   * Number of batches consumed since the capacity was adapted
+   */
+  private int windowBatches;
+
+  /**
+   * Time the producer waited for free space in the current epoch (nanoseconds)
+   */
+  private long producerStall;
+
+  /**
+   * Time the consumer waited for batches in the current epoch (nanoseconds)
+   */
+  private long consumerStall;
+
+  /**
+   * Producer stall time since the capacity was adapted (nanoseconds)
+   */
+  private long windowProducerStall;
+
+  /**
+   * Consumer stall time since the capacity was adapted (nanoseconds)
+   */
+  private long windowConsumerStall;
+
+  /**
+   * Producer stall time of the last finished epoch (nanoseconds)
+   */
+  private long lastProducerStall;
+
+  /**
+   * Consumer stall time of the last finished epoch (nanoseconds)
+   */
+  private long lastConsumerStall;
+
+  /**
+   * Constructor.
+   *
+   * @param backing Iterator to prefetch
+   * @param initialCapacity Initial number of prefetched batches
+   */
+  public PrefetchDataSetIterator(DataSetIterator backing, int initialCapacity) {
+    this.backing = backing;
+    this.capacity = Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, initialCapacity));
+    this.deviceId = Nd4j.getAffinityManager().getDeviceForCurrentThread();
+  }
+
+  /**
+   * Start prefetching the current epoch.
+   */
+  private void startProducer() {
+    stopped = false;
+    producer = new Thread(this::produce, "PrefetchDataSetIterator");
+    producer.setDaemon(true);
+    Nd4j.getAffinityManager().attachThreadToDevice(producer, deviceId);
+    producer.start();
+  }
+
+  /**
+   * Stop prefetching and wait for the producer to finish its current batch.
+   */
+  public void shutdown() {
+    if (producer == null) {
+      return;
+    }
+    stopped = true;
+    lock.lock();
+    try {
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      producer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    producer = null;
+  }
+
+  /**
+   * Producer loop: fetch all batches of the backing iterator into the queue.
+   */
+  private void produce() {
+    try {
+      while (!stopped && backing.hasNext()) {
+        put(Utils.getNext(backing));
+      }
+    } catch (Throwable t) {
+      producerError = t;
+    }
+    lock.lock();
+    try {
+      // The end marker does not count against the capacity
+      queue.add(END);
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Add a batch to the queue, waiting for free space.
+   *
+   * @param ds Batch
+   */
+  private void put(DataSet ds) {
+    lock.lock();
+    try {
+      if (batchBytes == 0) {
+        batchBytes = sizeOf(ds);
+      }
+      while (queue.size() >= capacity && !stopped) {
+        final long start = System.nanoTime();
+        notFull.awaitUninterruptibly();
+        final long stall = System.nanoTime() - start;
+        producerStall += stall;
+        windowProducerStall += stall;
+      }
+      queue.add(ds);
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Take the next element from the queue, waiting for the producer.
+   *
+   * @return Batch or end marker
+   */
+  private Object take() {
+    lock.lock();
+    try {
+      while (queue.isEmpty()) {
+        final long start = System.nanoTime();
+        notEmpty.awaitUninterruptibly();
+        final long stall = System.nanoTime() - start;
+        consumerStall += stall;
+        windowConsumerStall += stall;
+      }
+      Object next = queue.poll();
+      notFull.signalAll();
+      return next;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Adapt the queue capacity to the stalls since the last adaption: grow if the consumer waited
+   * longer than the producer, shrink if only the producer waited.
+   */
+  private void adaptCapacity() {
+    lock.lock();
+    try {
+      final int limit = getMemoryLimit();
+      if (windowConsumerStall > windowProducerStall && capacity < limit) {
+        capacity = Math.min(limit, capacity * 2);
+        notFull.signalAll();
+      } else if (windowConsumerStall == 0 && windowProducerStall > 0 && capacity > MIN_CAPACITY) {
+        capacity--;
+      } else if (capacity > limit) {
+        capacity = limit;
+      }
+      windowProducerStall = 0;
+      windowConsumerStall = 0;
+      windowBatches = 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of batches that fit into the share of the free off-heap memory.
+   *
+   * @return Maximum queue capacity
+   */
+  private int getMemoryLimit() {
+    if (batchBytes <= 0) {
+      return MAX_CAPACITY;
+    }
+    long maxBytes = Pointer.maxBytes();
+    if (maxBytes <= 0) {
+      maxBytes = Runtime.getRuntime().maxMemory();
+    }
+    final long free = Math.max(0, maxBytes - Pointer.totalBytes());
+    final long limit = (long) (free * MEMORY_FRACTION / batchBytes);
+    return (int) Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, limit));
+  }
+
+  /**
+   * Get the size of the arrays of a batch.
+   *
+   * @param ds Batch
+   * @return Size in bytes
+   */
+  private static long sizeOf(DataSet ds) {
+    long bytes = 0;
+    for (INDArray arr : new INDArray[] {ds.getFeatures(), ds.getLabels(),
+        ds.getFeaturesMaskArray(), ds.getLabelsMaskArray()}) {
+      if (arr != null) {
+        bytes += arr.length() * arr.data().getElementSize();
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Report the stalls of the finished epoch.
+   */
+  private void finishEpoch() {
+    adaptCapacity();
+    lock.lock();
+    try {
+      lastProducerStall = producerStall;
+      lastConsumerStall = consumerStall;
+    } finally {
+      lock.unlock();
+    }
+    log.info("Prefetched {} batches, producer stalled {} ms, consumer stalled {} ms, "
+            + "queue capacity {}", numBatches, TimeUnit.NANOSECONDS.toMillis(lastProducerStall),
+        TimeUnit.NANOSECONDS.toMillis(lastConsumerStall), capacity);
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (nextBatch == null && !exhausted) {
+      if (producer == null) {
+        startProducer();
+      }
+      Object next = take();
+      if (next == END) {
+        exhausted = true;
+        shutdown();
+        if (producerError != null) {
+          throw new RuntimeException("Prefetching failed", producerError);
+        }
+        finishEpoch();
+      } else {
+        nextBatch = (DataSet) next;
+      }
+    }
+    return nextBatch != null;
+  }
+
+  @Override
+  public DataSet next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    DataSet next = nextBatch;
+    nextBatch = null;
+    numBatches++;
+    if (++windowBatches >= ADAPT_INTERVAL) {
+      adaptCapacity();
+    }
+    return next;
+  }
+
+  /**
+   * Get the next batches, merged until they hold at least the given number of examples.
+   *
+   * @param num Number of examples
+   * @return Merged batches
+   */
+  @Override
+  public DataSet next(int num) {
+    return Utils.getNextMerged(this, num);
+  }
+
+  /**
+   * Get the time the producer waited for free space in the queue during the last epoch.
+   *
+   * @return Producer stall time in milliseconds
+   */
+  public long getProducerStallTime() {
+    return TimeUnit.NANOSECONDS.toMillis(lastProducerStall);
+  }
+
+  /**
+   * Get the time the consumer waited for batches during the last epoch.
+   *
+   * @return Consumer stall time in milliseconds
+   */
+  public long getConsumerStallTime() {
+    return TimeUnit.NANOSECONDS.toMillis(lastConsumerStall);
+  }
+
+  /**
+   * Get the current queue capacity.
+   *
+   * @return Number of prefetched batches
+   */
+  public int getCapacity() {
+    return capacity;
+  }
+
+  @Override
+  public int inputColumns() {
+    return backing.inputColumns();
+  }
+
+  @Override
+  public int totalOutcomes() {
+    return backing.totalOutcomes();
+  }
+
+  @Override
+  public boolean resetSupported() {
+    return backing.resetSupported();
+  }
+
+  /**
+   * Whether the iterator can be wrapped in another asynchronous iterator.
+   *
+   * @return false, since it already prefetches
+   */
+  @Override
+  public boolean asyncSupported() {
+    return false;
+  }
+
+  @Override
+  public void reset() {
+    shutdown();
+    queue.clear();
+    backing.reset();
+    nextBatch = null;
+    exhausted = false;
+    producerError = null;
+    numBatches = 0;
+    producerStall = 0;
+    consumerStall = 0;
+    windowBatches = 0;
+    windowProducerStall = 0;
+    windowConsumerStall = 0;
+  }
+
+  @Override
+  public int batch() {
+    return backing.batch();
+  }
+
+  /**
+   * Sets the preprocessor of the backing iterator, it is applied while prefetching.
+   *
+   * @param preProcessor A DataSet preprocessor.
+   */
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    backing.setPreProcessor(preProcessor);
+  }
+
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return backing.getPreProcessor();
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return backing.getLabels();
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ReorderableDataSetIterator.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+/**
+ * A DataSetIterator which is able to change the order of its examples in each epoch.
+ * <p>
+ * Predictions are matched to their instances by position, so iterators must keep the order of the
+ * instances by default. Reordering is only enabled by the classifier for its training iterator.
+ *
+ * @author agent
+ */
+public interface ReorderableDataSetIterator extends DataSetIterator {
+
+  /**
+   * Set whether the iterator may change the order of its examples.
+   *
+   * @param reorderingAllowed true if the order of the examples may change
+   */
+  void setReorderingAllowed(boolean reorderingAllowed);
+
+  /**
+   * Whether the iterator changes the order of its examples between epochs with its current
+   * settings. Such an iterator must not be cached, since a cache would replay the order of the
+   * first epoch in all later epochs.
+   *
+   * @return true if the order of the examples changes in each epoch
+   */
+  default boolean isReordering() {
+    return false;
+  }
+}
@@ -0,0 +1,713 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ShardedInstancesDataSetIterator.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import lombok.extern.log4j.Log4j2;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.AbstractFileLoader;
+import weka.core.converters.ConverterUtils;
+
+/**
+ * An nd4j mini-batch iterator that streams its examples from a list of ARFF/CSV shards, using the
+ * incremental mode of the WEKA loaders.
+ * <p>
+ * Only the current mini-batch and an optional shuffle window are held in memory, so the heap usage
+ * is independent of the dataset size. Each epoch re-reads the shards from the start. Every instance
+ * is passed through an {@link InstanceTransform} (e.g. the fitted preprocessing filters of the
+ * classifier) before it is put into a mini-batch. Instances with a missing class value are skipped.
+ * <p>
+ * If shuffling is enabled and reordering is allowed, the examples are drawn at random from a window
+ * of the given size that is refilled from the shards, with a seed-stable order per epoch.
+ *
+ * @author agent
+ */
+@Log4j2
+public class ShardedInstancesDataSetIterator implements ReorderableDataSetIterator {
+
+  /**
+   * Transformation applied to each instance read from the shards.
+   */
+  public interface InstanceTransform {
+
+    /**
+     * Transform an instance.
+     *
+     * @param inst Instance read from a shard
+     * @return Transformed instance
+     * @throws Exception Instance could not be transformed
+     */
+    Instance apply(Instance inst) throws Exception;
+  }
+
+  /**
+   * Reads the instances of a list of shards one by one, converting them to a common header.
+   */
+  public static class ShardReader {
+
+    /**
+     * Shard files
+     */
+    protected final File[] shards;
+
+    /**
+     * Common header of all shards
+     */
+    protected final Instances header;
+
+    /**
+     * Index of the current shard
+     */
+    protected int shardIdx = 0;
+
+    /**
+     * Loader of the current shard, null if no shard is open
+     */
+    protected AbstractFileLoader loader;
+
+    /**
+     * Stream of the current shard
+     */
+    protected InputStream stream;
+
+    /**
+     * Structure of the current shard
+     */
+    protected Instances structure;
+
+    /**
+     * Maps the nominal value indices of the current shard to the header, null if identical
+     */
+    protected int[][] valueMap;
+
+    /**
+     * Position of the last returned instance over all shards
+     */
+    protected long position = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param shards Shard files
+     * @param header Common header of all shards
+     */
+    public ShardReader(File[] shards, Instances header) {
+      this.shards = shards;
+      this.header = header;
+    }
+
+    /**
+     * Read the structure of a shard.
+     *
+     * @param shard Shard file
+     * @return Structure of the shard
+     * @throws IOException Could not read the shard
+     */
+    public static Instances readStructure(File shard) throws IOException {
+      ShardReader reader = new ShardReader(new File[]{shard}, null);
+      try {
+        reader.openSource(shard);
+        return new Instances(reader.structure, 0);
+      } finally {
+        reader.close();
+      }
+    }
+
+    /**
+     * Read the common header of a list of shards: the structure of the first shard, with the
+     * nominal values declared by any of the shards. CSV shards only declare the nominal values
+     * that occur in them, so a value may be missing from the first shard.
+     *
+     * @param shards Shard files
+     * @return Common header
+     * @throws IOException Could not read a shard or incompatible structures
+     */
+    public static Instances readHeader(File[] shards) throws IOException {
+      final Instances first = readStructure(shards[0]);
+      // Nominal values of each attribute in order of first occurrence, null if not nominal
+      List<LinkedHashSet<String>> values = new ArrayList<>();
+      for (int j = 0; j < first.numAttributes(); j++) {
+        final Attribute att = first.attribute(j);
+        LinkedHashSet<String> attValues = null;
+        if (att.isNominal()) {
+          attValues = new LinkedHashSet<>();
+          for (int v = 0; v < att.numValues(); v++) {
+            attValues.add(att.value(v));
+          }
+        }
+        values.add(attValues);
+      }
+
+      boolean extended = false;
+      for (int i = 1; i < shards.length; i++) {
+        final Instances structure = readStructure(shards[i]);
+        checkAttributes(first, structure, shards[i]);
+        for (int j = 0; j < structure.numAttributes(); j++) {
+          final Attribute att = structure.attribute(j);
+          for (int v = 0; att.isNominal() && v < att.numValues(); v++) {
+            extended |= values.get(j).add(att.value(v));
+          }
+        }
+      }
+      if (!extended) {
+        return first;
+      }
+
+      ArrayList<Attribute> atts = new ArrayList<>();
+      for (int j = 0; j < first.numAttributes(); j++) {
+        final Attribute att = first.attribute(j);
+        if (att.isNominal() && values.get(j).size() > att.numValues()) {
+          atts.add(new Attribute(att.name(), new ArrayList<>(values.get(j))));
+        } else {
+          atts.add((Attribute) att.copy());
+        }
+      }
+      return new Instances(first.relationName(), atts, 0);
+    }
+
+    /**
+     * Check that a shard has the same attribute names and types as the header.
+     *
+     * @param header Common header
+     * @param structure Structure of the shard
+     * @param shard Shard file
+     * @throws IOException Incompatible structure
+     */
+    protected static void checkAttributes(Instances header, Instances structure, File shard)
+        throws IOException {
+      if (structure.numAttributes() != header.numAttributes()) {
+        throw new IOException("Shard " + shard + " has " + structure.numAttributes()
+            + " attributes, expected " + header.numAttributes() + ".");
+      }
+      for (int j = 0; j < header.numAttributes(); j++) {
+        final Attribute expected = header.attribute(j);
+        final Attribute actual = structure.attribute(j);
+        if (expected.type() != actual.type() || !expected.name().equals(actual.name())) {
+          throw new IOException("Attribute " + actual.name() + " of shard " + shard
+              + " does not match attribute " + expected.name() + " of the header.");
+        }
+      }
+    }
+
+    /**
+     * Read the next instance.
+     *
+     * @return Next instance with the header as dataset, null if all shards have been read
+     * @throws IOException Could not read a shard
+     */
+    public Instance next() throws IOException {
+      while (shardIdx < shards.length) {
+        if (loader == null) {
+          open(shards[shardIdx]);
+        }
+        Instance inst = loader.getNextInstance(structure);
+        if (inst == null) {
+          close();
+          shardIdx++;
+          continue;
+        }
+        position++;
+        if (valueMap != null) {
+          inst = convert(inst);
+        }
+        inst.setDataset(header);
+        return inst;
+      }
+      return null;
+    }
+
+    /**
+     * Open a shard and check that it is compatible with the header.
+     *
+     * @param shard Shard file
+     * @throws IOException Could not open the shard or incompatible structure
+     */
+    protected void open(File shard) throws IOException {
+      openSource(shard);
+      valueMap = null;
+      checkAttributes(header, structure, shard);
+      for (int j = 0; j < header.numAttributes(); j++) {
+        final Attribute expected = header.attribute(j);
+        final Attribute actual = structure.attribute(j);
+        if (expected.isNominal() && !expected.equals(actual)) {
+          // E.g. CSV shards only declare the nominal values that occur in them
+          if (valueMap == null) {
+            valueMap = new int[header.numAttributes()][];
+          }
+          valueMap[j] = new int[actual.numValues()];
+          for (int v = 0; v < actual.numValues(); v++) {
+            valueMap[j][v] = expected.indexOfValue(actual.value(v));
+            if (valueMap[j][v] < 0) {
+              throw new IOException("Value " + actual.value(v) + " of attribute "
+                  + actual.name() + " in shard " + shard + " is not declared in the header.");
+            }
+          }
+        }
+      }
+    }
+
+    /**
+     * Convert the nominal values of an instance to the value indices of the header.
+     *
+     * @param inst Instance of the current shard
+     * @return Converted instance
+     */
+    protected Instance convert(Instance inst) {
+      double[] values = inst.toDoubleArray();
+      for (int j = 0; j < values.length; j++) {
+        if (valueMap[j] != null && !Double.isNaN(values[j])) {
+          values[j] = valueMap[j][(int) values[j]];
+        }
+      }
+      return new DenseInstance(inst.weight(), values);
+    }
+
+    /**
+     * Get the position of the last returned instance, counted over all shards.
+     *
+     * @return Position, -1 if no instance has been read yet
+     */
+    public long position() {
+      return position;
+    }
+
+    /**
+     * Open the loader of a shard in incremental mode and read its structure. The loader reads from
+     * a stream owned by this reader, so the file can be closed as soon as it has been read.
+     *
+     * @param shard Shard file
+     * @throws IOException Could not open the shard
+     */
+    protected void openSource(File shard) throws IOException {
+      loader = ConverterUtils.getLoaderForFile(shard);
+      if (loader == null) {
+        throw new IOException("No loader found for shard " + shard);
+      }
+      stream = new BufferedInputStream(new FileInputStream(shard));
+      if (shard.getName().endsWith(".gz")) {
+        stream = new GZIPInputStream(stream);
+      }
+      loader.setSource(stream);
+      structure = loader.getStructure();
+    }
+
+    /**
+     * Close the current shard.
+     */
+    public void close() {
+      if (stream != null) {
+        try {
+          stream.close();
+        } catch (IOException e) {
+          log.warn("Could not close shard: {}", e.getMessage());
+        }
+        stream = null;
+      }
+      loader = null;
+    }
+  }
+
+  /**
+   * Shard files
+   */
+  protected final File[] shards;
+
+  /**
+   * Common header of all shards (class index must be set)
+   */
+  protected final Instances header;
+
+  /**
+   * Format of the transformed instances
+   */
+  protected final Instances outputFormat;
+
+  /**
+   * Transformation applied to each instance
+   */
+  protected final InstanceTransform transform;
+
+  /**
+   * The batch size
+   */
+  protected final int batchSize;
+
+  /**
+   * Sorted positions of the instances that are skipped, e.g. because they are used for validation
+   */
+  protected long[] skippedPositions = new long[0];
+
+  /**
+   * Whether to return the last, smaller batch of an epoch
+   */
+  protected boolean keepPartialBatch = false;
+
+  /**
+   * Size of the shuffle window, values below 2 disable shuffling
+   */
+  protected int shuffleWindowSize = 0;
+
+  /**
+   * Seed for shuffling
+   */
+  protected long seed = 0;
+
+  /**
+   * Whether the order of the examples may change in each epoch
+   */
+  protected boolean reorderingAllowed = false;
+
+  /**
+   * An optional dataset preprocessor
+   */
+  protected DataSetPreProcessor preProcessor;
+
+  /**
+   * Reader of the current epoch
+   */
+  protected ShardReader reader;
+
+  /**
+   * Index of the next entry in {@link #skippedPositions}
+   */
+  protected int skipIdx = 0;
+
+  /**
+   * Shuffle window
+   */
+  protected final List<Instance> window = new ArrayList<>();
+
+  /**
+   * Transformed instances of the next batch
+   */
+  protected final List<Instance> batchInstances = new ArrayList<>();
+
+  /**
+   * Random number generator of the current epoch
+   */
+  protected Random random;
+
+  /**
+   * Number of started epochs
+   */
+  protected int epoch = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param shards Shard files
+   * @param header Common header of all shards (class index must be set)
+   * @param outputFormat Format of the transformed instances
+   * @param transform Transformation applied to each instance
+   * @param batchSize The batch size
+   */
+  public ShardedInstancesDataSetIterator(File[] shards, Instances header, Instances outputFormat,
+      InstanceTransform transform, int batchSize) {
+    this.shards = shards;
+    this.header = header;
+    this.outputFormat = outputFormat;
+    this.transform = transform;
+    this.batchSize = batchSize;
+    reset();
+  }
+
+  /**
+   * Whether another batch of data is still available. Reads the instances of the next batch.
+   *
+   * @return true if another batch is still available
+   */
+  @Override
+  public boolean hasNext() {
+    while (batchInstances.size() < batchSize) {
+      Instance inst = nextInstance();
+      if (inst == null) {
+        break;
+      }
+      batchInstances.add(inst);
+    }
+    final int minBatchSize = keepPartialBatch ? 1 : batchSize;
+    return batchInstances.size() >= minBatchSize;
+  }
+
+  /**
+   * Returns the next mini batch of data.
+   *
+   * @return the dataset corresponding to the mini batch
+   */
+  @Override
+  public DataSet next() {
+    return next(batchSize);
+  }
+
+  /**
+   * Returns the next mini batch. The batch size is fixed by the constructor, so {@code num} is
+   * ignored.
+   *
+   * @param num ignored
+   * @return the next mini batch
+   */
+  @Override
+  public DataSet next(int num) {
+    if (!hasNext()) {
+      throw new IllegalStateException("No more batches in the shards.");
+    }
+    final int size = batchInstances.size();
+    final int numFeatures = inputColumns();
+    final int numClasses = totalOutcomes();
+    final int classIndex = outputFormat.classIndex();
+
+    // Batches are handed out to the consumer, hence the buffers are not reused
+    INDArray features = Nd4j.create(Nd4j.defaultFloatingPointType(), size, numFeatures);
+    INDArray labels = Nd4j.create(Nd4j.defaultFloatingPointType(), size, numClasses);
+    final DataBuffer featureData = features.data();
+    final DataBuffer labelData = labels.data();
+    for (int i = 0; i < size; i++) {
+      final Instance current = batchInstances.get(i);
+      InstancesDataSetIterator.putFeatures(current, classIndex, featureData,
+          (long) i * numFeatures);
+      if (numClasses > 1) { // Classification
+        labelData.put((long) i * numClasses + (int) current.classValue(), 1.0);
+      } else { // Regression (currently only single class)
+        labelData.put(i, current.classValue());
+      }
+    }
+    batchInstances.clear();
+
+    DataSet thisBatch = new DataSet(features, labels);
+    if (preProcessor != null) {
+      preProcessor.preProcess(thisBatch);
+    }
+    return thisBatch;
+  }
+
+  /**
+   * Get the next transformed instance of the epoch, drawn from the shuffle window if shuffling is
+   * enabled.
+   *
+   * @return Next instance, null at the end of the epoch
+   */
+  protected Instance nextInstance() {
+    if (shuffleWindowSize < 2 || !reorderingAllowed) {
+      return readInstance();
+    }
+    while (window.size() < shuffleWindowSize) {
+      Instance inst = readInstance();
+      if (inst == null) {
+        break;
+      }
+      window.add(inst);
+    }
+    if (window.isEmpty()) {
+      return null;
+    }
+    // Swap a random instance to the end and remove it
+    final int last = window.size() - 1;
+    final int idx = random.nextInt(window.size());
+    Instance inst = window.get(idx);
+    window.set(idx, window.get(last));
+    window.remove(last);
+    return inst;
+  }
+
+  /**
+   * Read and transform the next instance from the shards.
+   *
+   * @return Next instance, null if all shards have been read
+   */
+  protected Instance readInstance() {
+    try {
+      Instance inst;
+      while ((inst = reader.next()) != null) {
+        final long position = reader.position();
+        while (skipIdx < skippedPositions.length && skippedPositions[skipIdx] < position) {
+          skipIdx++;
+        }
+        if (skipIdx < skippedPositions.length && skippedPositions[skipIdx] == position) {
+          continue;
+        }
+        if (inst.classIsMissing()) {
+          continue;
+        }
+        return transform.apply(inst);
+      }
+      return null;
+    } catch (Exception e) {
+      throw new RuntimeException("Could not read the next instance from the shards.", e);
+    }
+  }
+
+  /**
+   * Set the positions of the instances that are skipped in each epoch, counted over all shards.
+   *
+   * @param positions Positions of the skipped instances
+   */
+  public void setSkippedPositions(long[] positions) {
+    skippedPositions = positions.clone();
+    Arrays.sort(skippedPositions);
+    reset();
+  }
+
+  /**
+   * Enable shuffling within a window of instances. Only takes effect if reordering is allowed.
+   *
+   * @param windowSize Number of instances to draw the examples from
+   * @param seed Seed for shuffling
+   */
+  public void enableShuffling(int windowSize, long seed) {
+    this.shuffleWindowSize = windowSize;
+    this.seed = seed;
+    this.epoch = 0;
+    reset();
+  }
+
+  /**
+   * Set whether the last, smaller batch of an epoch is returned.
+   *
+   * @param keepPartialBatch true if the last batch may be smaller than the batch size
+   */
+  public void setKeepPartialBatch(boolean keepPartialBatch) {
+    this.keepPartialBatch = keepPartialBatch;
+  }
+
+  @Override
+  public void setReorderingAllowed(boolean reorderingAllowed) {
+    this.reorderingAllowed = reorderingAllowed;
+  }
+
+  /**
+   * Returns the number of input columns.
+   *
+   * @return the number of input columns
+   */
+  @Override
+  public int inputColumns() {
+    return outputFormat.numAttributes() - 1;
+  }
+
+  /**
+   * Returns the total number of labels.
+   *
+   * @return the total number of labels
+   */
+  @Override
+  public int totalOutcomes() {
+    return outputFormat.numClasses();
+  }
+
+  /**
+   * Restart reading from the first shard.
+   */
+  @Override
+  public void reset() {
+    if (reader != null) {
+      reader.close();
+    }
+    reader = new ShardReader(shards, header);
+    skipIdx = 0;
+    window.clear();
+    batchInstances.clear();
+    random = new Random(seed + epoch++);
+  }
+
+  /**
+   * Whether the iterator can be reset.
+   *
+   * @return true
+   */
+  @Override
+  public boolean resetSupported() {
+    return true;
+  }
+
+  /**
+   * Whether the iterator can be used asynchronously.
+   *
+   * @return true, since every batch has its own buffers
+   */
+  @Override
+  public boolean asyncSupported() {
+    return true;
+  }
+
+  /**
+   * The size of the mini batches.
+   *
+   * @return the size of the mini batches
+   */
+  @Override
+  public int batch() {
+    return batchSize;
+  }
+
+  /**
+   * Gets the preprocessor.
+   *
+   * @return preProcessor
+   */
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return preProcessor;
+  }
+
+  /**
+   * Sets the preprocessor.
+   *
+   * @param preProcessor A DataSet preprocessor.
+   */
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.preProcessor = preProcessor;
+  }
+
+  /**
+   * The labels are not known without reading all shards.
+   *
+   * @return null
+   */
+  @Override
+  public List<String> getLabels() {
+    return null;
+  }
+
+  /**
+   * Enables removing of a mini-batch.
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+}
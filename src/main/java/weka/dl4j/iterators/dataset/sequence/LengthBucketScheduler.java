@@ -0,0 +1,196 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * LengthBucketScheduler.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset.sequence;
+
+import java.util.Random;
+import lombok.extern.log4j.Log4j2;
+
+/**
+ * Batch scheduler that groups sequences of similar length into the same mini-batch.
+ * <p>
+ * Sequence iterators pad each mini-batch to its longest member. Mixing short and long sequences in
+ * a batch therefore wastes computation on padding. For each epoch, this scheduler puts all
+ * sequences into buckets of width {@link #bucketWidth} (by length), shuffles the sequences within
+ * each bucket, cuts the length-sorted sequence of buckets into mini-batches and finally shuffles
+ * the order of the full mini-batches. A remaining partial batch is always scheduled last.
+ *
+ * @author agent
+ */
+@Log4j2
+public class LengthBucketScheduler {
+
+  /**
+   * Sequence length of each example
+   */
+  protected final int[] lengths;
+
+  /**
+   * Batch size
+   */
+  protected final int batchSize;
+
+  /**
+   * Range of sequence lengths that share a bucket
+   */
+  protected final int bucketWidth;
+
+  /**
+   * Random number generator for shuffling
+   */
+  protected final Random random;
+
+  /**
+   * Fraction of padded time steps without bucketing
+   */
+  protected final double unbucketedPaddingRatio;
+
+  /**
+   * Fraction of padded time steps in the last scheduled epoch
+   */
+  protected double paddingRatio;
+
+  /**
+   * Constructor.
+   *
+   * @param lengths Sequence length of each example (after truncation)
+   * @param batchSize Batch size
+   * @param bucketWidth Range of sequence lengths that share a bucket
+   * @param seed Seed for shuffling
+   */
+  public LengthBucketScheduler(int[] lengths, int batchSize, int bucketWidth, long seed) {
+    this.lengths = lengths;
+    this.batchSize = batchSize;
+    this.bucketWidth = Math.max(1, bucketWidth);
+    this.random = new Random(seed);
+
+    int[] identity = new int[lengths.length];
+    for (int i = 0; i < identity.length; i++) {
+      identity[i] = i;
+    }
+    this.unbucketedPaddingRatio = computePaddingRatio(identity);
+    this.paddingRatio = unbucketedPaddingRatio;
+  }
+
+  /**
+   * Compute the example order of the next epoch.
+   *
+   * @return Example indices in the order they should be put into mini-batches
+   */
+  public int[] nextEpoch() {
+    final int n = lengths.length;
+
+    // Shuffle, then stable counting sort by bucket: sequences are shuffled within each bucket
+    int[] shuffled = new int[n];
+    for (int i = 0; i < n; i++) {
+      shuffled[i] = i;
+    }
+    shuffle(shuffled, n);
+
+    int numBuckets = 0;
+    for (int length : lengths) {
+      numBuckets = Math.max(numBuckets, length / bucketWidth + 1);
+    }
+    int[] bucketStart = new int[numBuckets + 1];
+    for (int length : lengths) {
+      bucketStart[length / bucketWidth + 1]++;
+    }
+    for (int b = 0; b < numBuckets; b++) {
+      bucketStart[b + 1] += bucketStart[b];
+    }
+    int[] sorted = new int[n];
+    for (int idx : shuffled) {
+      sorted[bucketStart[lengths[idx] / bucketWidth]++] = idx;
+    }
+
+    // Shuffle the order of the full batches, keep the partial batch at the end
+    final int numFullBatches = n / batchSize;
+    int[] batchOrder = new int[numFullBatches];
+    for (int i = 0; i < numFullBatches; i++) {
+      batchOrder[i] = i;
+    }
+    shuffle(batchOrder, numFullBatches);
+
+    int[] order = new int[n];
+    for (int i = 0; i < numFullBatches; i++) {
+      System.arraycopy(sorted, batchOrder[i] * batchSize, order, i * batchSize, batchSize);
+    }
+    final int rest = numFullBatches * batchSize;
+    System.arraycopy(sorted, rest, order, rest, n - rest);
+
+    paddingRatio = computePaddingRatio(order);
+    log.info("Length bucketing: {}% of the time steps are padding (unbucketed: {}%)",
+        String.format("%.1f", paddingRatio * 100),
+        String.format("%.1f", unbucketedPaddingRatio * 100));
+    return order;
+  }
+
+  /**
+   * Compute the fraction of padded time steps if the examples are batched in the given order.
+   *
+   * @param order Example order
+   * @return Fraction of padded time steps
+   */
+  protected double computePaddingRatio(int[] order) {
+    long total = 0;
+    long used = 0;
+    for (int from = 0; from < order.length; from += batchSize) {
+      final int to = Math.min(order.length, from + batchSize);
+      int max = 0;
+      for (int i = from; i < to; i++) {
+        max = Math.max(max, lengths[order[i]]);
+        used += lengths[order[i]];
+      }
+      total += (long) max * (to - from);
+    }
+    return total == 0 ? 0 : 1.0 - (double) used / total;
+  }
+
+  /**
+   * Fisher-Yates shuffle of the first n entries.
+   *
+   * @param arr Array to shuffle
+   * @param n Number of entries to shuffle
+   */
+  protected void shuffle(int[] arr, int n) {
+    for (int i = n - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      int tmp = arr[i];
+      arr[i] = arr[j];
+      arr[j] = tmp;
+    }
+  }
+
+  /**
+   * Get the fraction of padded time steps in the last scheduled epoch.
+   *
+   * @return Fraction of padded time steps
+   */
+  public double getPaddingRatio() {
+    return paddingRatio;
+  }
+
+  /**
+   * Get the fraction of padded time steps if the examples were batched in their original order.
+   *
+   * @return Fraction of padded time steps
+   */
+  public double getUnbucketedPaddingRatio() {
+    return unbucketedPaddingRatio;
+  }
+}
@@ -18,28 +18,25 @@
 
 package weka.dl4j.iterators.dataset.sequence;
 
-import static org.nd4j.linalg.indexing.NDArrayIndex.all;
-import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
-import static org.nd4j.linalg.indexing.NDArrayIndex.point;
-
-import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
-import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
-import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.indexing.INDArrayIndex;
 import weka.core.Instance;
 import weka.core.Instances;
+import weka.dl4j.iterators.dataset.ReorderableDataSetIterator;
 
 /**
  * A DataSetIterator implementation that parses Instances with relational attributes.
+ * <p>
+ * If reordering is allowed, rows with sequences of similar length can be grouped into the same
+ * batch with a {@link LengthBucketScheduler}.
  *
  * @author Steven Lang
  */
-public class RelationalDataSetIterator implements DataSetIterator {
+public class RelationalDataSetIterator implements ReorderableDataSetIterator {
 
   private static final long serialVersionUID = 8353870921670443077L;
 
@@ -67,6 +64,26 @@ public class RelationalDataSetIterator implements DataSetIterator {
    * Cursor to current row
    */
   protected int cursor;
+  /**
+   * Range of sequence lengths that share a bucket, 0 disables length bucketing
+   */
+  protected int lengthBucketWidth = 0;
+  /**
+   * Seed for the length bucketing
+   */
+  protected long seed = 0;
+  /**
+   * Whether the order of the rows may change
+   */
+  protected boolean reorderingAllowed = false;
+  /**
+   * Length bucketing scheduler
+   */
+  protected transient LengthBucketScheduler scheduler;
+  /**
+   * Row order of the current epoch, null for the original order
+   */
+  protected transient int[] order;
 
   /**
    * Constructor.
@@ -88,19 +105,19 @@ public class RelationalDataSetIterator implements DataSetIterator {
 
   @Override
   public DataSet next(int num) {
-    List<Instances> currentBatch = new ArrayList<>(num);
-    List<Double> lbls = new ArrayList<>(num);
-
-    for (int i = 0; i < num && cursor + i < data.numInstances(); i++) {
-      currentBatch.add(data.get(cursor + i).relationalValue(relationalAttributeIndex));
-      lbls.add(data.get(cursor + i).classValue());
+    if (cursor == 0) {
+      order = nextEpochOrder();
     }
-
-    final int currentBatchSize = currentBatch.size();
+    final int currentBatchSize = Math.min(num, data.numInstances() - cursor);
+    final Instances[] currentBatch = new Instances[currentBatchSize];
+    final double[] lbls = new double[currentBatchSize];
 
     int maxLength = 0;
-    for (Instances instances : currentBatch) {
-      maxLength = Math.max(maxLength, instances.numInstances());
+    for (int i = 0; i < currentBatchSize; i++) {
+      final Instance row = data.get(rowAt(cursor + i));
+      currentBatch[i] = row.relationalValue(relationalAttributeIndex);
+      lbls[i] = row.classValue();
+      maxLength = Math.max(maxLength, currentBatch[i].numInstances());
     }
 
     // If longest instance exceeds 'truncateLength': only take the first 'truncateLength' instances
@@ -108,19 +125,24 @@ public class RelationalDataSetIterator implements DataSetIterator {
       maxLength = truncateLength;
     }
 
-    // Create data for training
-    INDArray features = Nd4j.create(new int[]{currentBatchSize, numFeatures, maxLength}, 'f');
-    INDArray labels = Nd4j.create(new int[]{currentBatchSize, data.numClasses(), maxLength}, 'f');
+    // All arrays are filled in 'f' order and copied into an INDArray only once:
+    // features: {currentBatchSize, numFeatures, maxLength}
+    // labels: {currentBatchSize, numClasses, maxLength}
+    // masks: {currentBatchSize, maxLength}
+    final int numClasses = data.numClasses();
+    final float[] features = new float[currentBatchSize * numFeatures * maxLength];
+    final float[] labels = new float[currentBatchSize * numClasses * maxLength];
 
     // Because we are dealing with instances of different lengths and only one output at the final
     // time step: use padding arrays
     // Mask arrays contain 1 if data is present at that time step for that example, or 0 if data is
     // just padding
-    INDArray featuresMask = Nd4j.zeros(currentBatchSize, maxLength);
-    INDArray labelsMask = Nd4j.zeros(currentBatchSize, maxLength);
+    final float[] featuresMask = new float[currentBatchSize * maxLength];
+    final float[] labelsMask = new float[currentBatchSize * maxLength];
 
+    final int timeStepStride = currentBatchSize * numFeatures;
     for (int i = 0; i < currentBatchSize; i++) {
-      Instances currInstances = currentBatch.get(i);
+      Instances currInstances = currentBatch[i];
 
       // Check for empty row
       final int currNumInstances = currInstances.numInstances();
@@ -131,52 +153,109 @@ public class RelationalDataSetIterator implements DataSetIterator {
       // Get the sequence length of row (i)
       int lastIdx = Math.min(currNumInstances, maxLength);
 
-      // Matrix that will represent the current row/instances object
-      INDArray currDataND = Nd4j.create(numFeatures, lastIdx);
-
       // Iterate over truncated number of instances for the current row
       for (int j = 0; j < lastIdx; j++) {
-        // Get as double array
-        final double[] doubles = currInstances.get(j).toDoubleArray();
-        final INDArray indArray = Nd4j.create(doubles);
-        currDataND.putColumn(j, indArray);
+        final Instance step = currInstances.get(j);
+        final int offset = i + j * timeStepStride;
+        for (int k = 0; k < step.numValues(); k++) {
+          features[offset + step.index(k) * currentBatchSize] = (float) step.valueSparse(k);
+        }
+
+        // Assign "1" to each position where a feature is present, that is, in the interval of
+        // [0, lastIdx)
+        featuresMask[i + j * currentBatchSize] = 1;
       }
 
-      features.put(new INDArrayIndex[]{point(i), all(), interval(0, lastIdx)}, currDataND);
-
-      // Assign "1" to each position where a feature is present, that is, in the interval of
-      // [0, lastIdx)
-      featuresMask.get(new INDArrayIndex[]{point(i), interval(0, lastIdx)}).assign(1);
-
       /*
        Put the labels in the labels and labelsMask arrays
       */
+      final int lastTimeStepOffset = i + (lastIdx - 1) * currentBatchSize * numClasses;
 
       // Differ between classification and regression task
-      if (data.numClasses() == 1) { // Regression
-        double val = lbls.get(i);
-        labels.putScalar(new int[]{i, 0, lastIdx - 1}, val);
-      } else if (data.numClasses() > 1) { // Classification
+      if (numClasses == 1) { // Regression
+        labels[lastTimeStepOffset] = (float) lbls[i];
+      } else if (numClasses > 1) { // Classification
         // One-Hot-Encoded class
-        int idx = lbls.get(i).intValue();
+        int idx = (int) lbls[i];
         // Set label
-        labels.putScalar(new int[]{i, idx, lastIdx - 1}, 1.0);
+        labels[lastTimeStepOffset + idx * currentBatchSize] = 1;
       } else {
         throw new RuntimeException("Could not detect classification or regression task.");
       }
 
       // Specify that an output exists at the final time step for this example
-      labelsMask.putScalar(new int[]{i, lastIdx - 1}, 1.0);
+      labelsMask[i + (lastIdx - 1) * currentBatchSize] = 1;
     }
 
-    // Cache the dataset
-    final DataSet ds = new DataSet(features, labels, featuresMask, labelsMask);
+    final DataType dataType = Nd4j.defaultFloatingPointType();
+    final DataSet ds =
+        new DataSet(
+            Nd4j.create(features, new long[]{currentBatchSize, numFeatures, maxLength}, 'f')
+                .castTo(dataType),
+            Nd4j.create(labels, new long[]{currentBatchSize, numClasses, maxLength}, 'f')
+                .castTo(dataType),
+            Nd4j.create(featuresMask, new long[]{currentBatchSize, maxLength}, 'f')
+                .castTo(dataType),
+            Nd4j.create(labelsMask, new long[]{currentBatchSize, maxLength}, 'f')
+                .castTo(dataType));
 
     // Move cursor
     cursor += ds.numExamples();
     return ds;
   }
 
+  /**
+   * Get the row at the given position of the current epoch.
+   *
+   * @param pos Position
+   * @return Row index
+   */
+  protected int rowAt(int pos) {
+    return order == null ? pos : order[pos];
+  }
+
+  /**
+   * Compute the row order for the next epoch.
+   *
+   * @return Row order, null for the original order
+   */
+  protected int[] nextEpochOrder() {
+    if (!reorderingAllowed || lengthBucketWidth <= 0) {
+      return null;
+    }
+    if (scheduler == null) {
+      int[] lengths = new int[data.numInstances()];
+      for (int i = 0; i < lengths.length; i++) {
+        final int length = data.get(i).relationalValue(relationalAttributeIndex).numInstances();
+        lengths[i] = Math.min(length, truncateLength);
+      }
+      scheduler = new LengthBucketScheduler(lengths, batchSize, lengthBucketWidth, seed);
+    }
+    return scheduler.nextEpoch();
+  }
+
+  /**
+   * Set the length bucketing. Only takes effect if reordering is allowed.
+   *
+   * @param lengthBucketWidth Range of sequence lengths that share a bucket, 0 disables bucketing
+   * @param seed Seed for shuffling
+   */
+  public void setLengthBucketing(int lengthBucketWidth, long seed) {
+    this.lengthBucketWidth = lengthBucketWidth;
+    this.seed = seed;
+    this.scheduler = null;
+  }
+
+  @Override
+  public void setReorderingAllowed(boolean reorderingAllowed) {
+    this.reorderingAllowed = reorderingAllowed;
+  }
+
+  @Override
+  public boolean isReordering() {
+    return reorderingAllowed && lengthBucketWidth > 0;
+  }
+
   @Override
   public int inputColumns() {
     return numFeatures;
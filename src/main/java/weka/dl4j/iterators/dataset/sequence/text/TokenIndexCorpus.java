@@ -0,0 +1,337 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * TokenIndexCorpus.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.iterators.dataset.sequence.text;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.extern.log4j.Log4j2;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+
+/**
+ * A pre-tokenized text corpus. Each document is stored as a sequence of word indices in a single
+ * primitive arena, together with its label.
+ * <p>
+ * Only the word vectors of the words that actually occur in the corpus are kept, as rows of a flat
+ * embedding matrix which is indexed by the stored word indices. Building a mini-batch is therefore
+ * a plain gather from this matrix and does not require any tokenization, stopword filtering or
+ * vocabulary lookups.
+ * <p>
+ * The token arena can optionally be moved into a memory-mapped file (see {@link #mapToFile()}) to
+ * keep large corpora off the heap.
+ *
+ * @author agent
+ */
+@Log4j2
+public class TokenIndexCorpus {
+
+  /**
+   * Size of a single word vector
+   */
+  protected final int vectorSize;
+
+  /**
+   * Maximum number of tokens stored per document
+   */
+  protected final int maxLength;
+
+  /**
+   * Word to word index mapping
+   */
+  protected Map<String, Integer> wordIndices = new HashMap<>();
+
+  /**
+   * Word vectors of all words in the corpus, row-major with shape [numWords, vectorSize]
+   */
+  protected float[] embeddings = new float[0];
+
+  /**
+   * Number of distinct words
+   */
+  protected int numWords = 0;
+
+  /**
+   * Token arena, holds the word indices of all documents
+   */
+  protected int[] tokens = new int[1024];
+
+  /**
+   * Memory-mapped token arena, replaces {@link #tokens} after {@link #mapToFile()}
+   */
+  protected IntBuffer mappedTokens;
+
+  /**
+   * Offset of each document in the token arena, the last entry marks the end of the arena
+   */
+  protected int[] offsets = new int[1025];
+
+  /**
+   * Label of each document
+   */
+  protected double[] labels = new double[1024];
+
+  /**
+   * Number of documents
+   */
+  protected int numDocuments = 0;
+
+  /**
+   * Whether to store normalized word vectors
+   */
+  protected boolean useNormalizedVectors = false;
+
+  /**
+   * Create an empty corpus.
+   *
+   * @param vectorSize Size of a single word vector
+   * @param maxLength Maximum number of tokens stored per document, further tokens are dropped
+   */
+  public TokenIndexCorpus(int vectorSize, int maxLength) {
+    this.vectorSize = vectorSize;
+    this.maxLength = maxLength;
+  }
+
+  /**
+   * Add a document. All tokens must be known to the given word vectors.
+   *
+   * @param docTokens Tokens of the document
+   * @param label Label of the document
+   * @param wordVectors Word vectors to look up new words
+   */
+  public void addDocument(List<String> docTokens, double label, WordVectors wordVectors) {
+    if (wordIndices == null) {
+      throw new IllegalStateException("Cannot add documents to a finished corpus.");
+    }
+    final int length = Math.min(docTokens.size(), maxLength);
+    final int start = offsets[numDocuments];
+
+    // Grow arrays
+    if (numDocuments + 1 >= labels.length) {
+      labels = Arrays.copyOf(labels, labels.length * 2);
+      offsets = Arrays.copyOf(offsets, offsets.length * 2);
+    }
+    if (start + length > tokens.length) {
+      tokens = Arrays.copyOf(tokens, Math.max(tokens.length * 2, start + length));
+    }
+
+    for (int i = 0; i < length; i++) {
+      tokens[start + i] = indexOf(docTokens.get(i), wordVectors);
+    }
+    labels[numDocuments] = label;
+    numDocuments++;
+    offsets[numDocuments] = start + length;
+  }
+
+  /**
+   * Get the word index of a word. Adds the word and its vector if it has not been seen before.
+   *
+   * @param word Word
+   * @param wordVectors Word vectors to look up new words
+   * @return Word index
+   */
+  protected int indexOf(String word, WordVectors wordVectors) {
+    Integer idx = wordIndices.get(word);
+    if (idx != null) {
+      return idx;
+    }
+    final double[] vector = useNormalizedVectors
+        ? wordVectors.getWordVectorMatrixNormalized(word).toDoubleVector()
+        : wordVectors.getWordVector(word);
+    return addWord(word, vector);
+  }
+
+  /**
+   * Add a word with the given vector. This allows to use words that are not part of the word
+   * vector model, e.g. a sentinel for unknown words.
+   *
+   * @param word Word
+   * @param vector Word vector
+   * @return Word index
+   */
+  public int addWord(String word, double[] vector) {
+    Integer idx = wordIndices.get(word);
+    if (idx != null) {
+      return idx;
+    }
+
+    if ((numWords + 1) * vectorSize > embeddings.length) {
+      embeddings = Arrays.copyOf(embeddings, Math.max(embeddings.length * 2, vectorSize * 64));
+    }
+    final int offset = numWords * vectorSize;
+    for (int i = 0; i < vectorSize; i++) {
+      embeddings[offset + i] = (float) vector[i];
+    }
+    wordIndices.put(word, numWords);
+    return numWords++;
+  }
+
+  /**
+   * Move the token arena of a finished corpus into a temporary memory-mapped file. The file is
+   * deleted on exit. If the corpus is too large to be mapped at once, it is kept on the heap.
+   *
+   * @throws IOException Could not write the temporary file
+   */
+  public void mapToFile() throws IOException {
+    if (mappedTokens != null) {
+      return;
+    }
+    final long numBytes = (long) offsets[numDocuments] * Integer.BYTES;
+    if (numBytes > Integer.MAX_VALUE) {
+      log.warn("Token corpus too large to be memory-mapped ({} bytes), keeping it on the heap.",
+          numBytes);
+      return;
+    }
+
+    File file = File.createTempFile("token-corpus-", ".bin");
+    file.deleteOnExit();
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel()) {
+      ByteBuffer buf = channel.map(MapMode.READ_WRITE, 0, numBytes);
+      buf.order(ByteOrder.nativeOrder());
+      buf.asIntBuffer().put(tokens, 0, offsets[numDocuments]);
+      mappedTokens = buf.asIntBuffer();
+    }
+    tokens = null;
+    log.debug("Mapped {} tokens to {}", offsets[numDocuments], file.getAbsolutePath());
+  }
+
+  /**
+   * Finish the corpus. Drops the word lookup table, which is only needed while adding documents,
+   * and trims all arrays to their final size. No documents can be added afterwards.
+   */
+  public void finish() {
+    wordIndices = null;
+    embeddings = Arrays.copyOf(embeddings, numWords * vectorSize);
+    labels = Arrays.copyOf(labels, numDocuments);
+    offsets = Arrays.copyOf(offsets, numDocuments + 1);
+    if (tokens != null) {
+      tokens = Arrays.copyOf(tokens, offsets[numDocuments]);
+    }
+  }
+
+  /**
+   * Copy the word vector of the token at the given position into a feature array, writing the
+   * vector elements with the given stride. E.g. for an 'f'-ordered tensor of shape [batchSize,
+   * vectorSize, sequenceLength], the stride is the batch size.
+   *
+   * @param doc Document index
+   * @param pos Token position within the document
+   * @param dst Feature array
+   * @param dstOffset Offset of the first vector element in the feature array
+   * @param stride Distance between two vector elements in the feature array
+   */
+  public void putVector(int doc, int pos, float[] dst, int dstOffset, int stride) {
+    final int src = tokenAt(doc, pos) * vectorSize;
+    int dstIdx = dstOffset;
+    for (int k = 0; k < vectorSize; k++) {
+      dst[dstIdx] = embeddings[src + k];
+      dstIdx += stride;
+    }
+  }
+
+  /**
+   * Copy the word vector of the token at the given position into a contiguous region of a feature
+   * array, e.g. a row of a 'c'-ordered tensor of shape [batchSize, 1, sequenceLength, vectorSize].
+   *
+   * @param doc Document index
+   * @param pos Token position within the document
+   * @param dst Feature array
+   * @param dstOffset Offset of the first vector element in the feature array
+   */
+  public void copyVector(int doc, int pos, float[] dst, int dstOffset) {
+    System.arraycopy(embeddings, tokenAt(doc, pos) * vectorSize, dst, dstOffset, vectorSize);
+  }
+
+  /**
+   * Get the word index at the given position of a document.
+   *
+   * @param doc Document index
+   * @param pos Token position within the document
+   * @return Word index
+   */
+  public int tokenAt(int doc, int pos) {
+    final int idx = offsets[doc] + pos;
+    return mappedTokens != null ? mappedTokens.get(idx) : tokens[idx];
+  }
+
+  /**
+   * Get the number of stored tokens of a document.
+   *
+   * @param doc Document index
+   * @return Number of tokens
+   */
+  public int length(int doc) {
+    return offsets[doc + 1] - offsets[doc];
+  }
+
+  /**
+   * Get the label of a document.
+   *
+   * @param doc Document index
+   * @return Label
+   */
+  public double label(int doc) {
+    return labels[doc];
+  }
+
+  /**
+   * Get the number of documents.
+   *
+   * @return Number of documents
+   */
+  public int numDocuments() {
+    return numDocuments;
+  }
+
+  /**
+   * Get the number of distinct words.
+   *
+   * @return Number of distinct words
+   */
+  public int numWords() {
+    return numWords;
+  }
+
+  /**
+   * Set whether normalized word vectors are stored. Must be set before adding documents.
+   *
+   * @param useNormalizedVectors true if normalized word vectors should be stored
+   */
+  public void setUseNormalizedVectors(boolean useNormalizedVectors) {
+    this.useNormalizedVectors = useNormalizedVectors;
+  }
+
+  /**
+   * Get the size of a single word vector.
+   *
+   * @return Word vector size
+   */
+  public int getVectorSize() {
+    return vectorSize;
+  }
+}
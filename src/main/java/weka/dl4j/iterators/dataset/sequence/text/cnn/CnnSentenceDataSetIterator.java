@@ -18,89 +18,156 @@
 
 package weka.dl4j.iterators.dataset.sequence.text.cnn;
 
-import static org.nd4j.linalg.indexing.NDArrayIndex.all;
-import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
-import static org.nd4j.linalg.indexing.NDArrayIndex.point;
-import static weka.classifiers.functions.dl4j.Utils.getFieldValue;
-import static weka.classifiers.functions.dl4j.Utils.invokeMethod;
-import static weka.classifiers.functions.dl4j.Utils.setFieldValue;
-
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.stream.Collectors;
+import lombok.extern.log4j.Log4j2;
 import org.deeplearning4j.iterator.LabeledSentenceProvider;
 import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.text.tokenization.tokenizer.Tokenizer;
+import org.deeplearning4j.text.tokenization.tokenizerfactory.TokenizerFactory;
 import org.nd4j.common.primitives.Pair;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.indexing.INDArrayIndex;
 import weka.core.stopwords.AbstractStopwords;
+import weka.dl4j.iterators.dataset.sequence.text.TokenIndexCorpus;
 
 /**
- * CnnSentenceDataSetIterator extension to Deeplearning4j implementation. This class extends its
- * parent {@link org.deeplearning4j.iterator.CnnSentenceDataSetIterator#next(int)} method to support
- * regression with numeric values.
- * <p>
- * Since {@link org.deeplearning4j.iterator.CnnSentenceDataSetIterator} only has private access to
- * its fields and most of its methods, it is necessary to make use of
+ * A DataSetIterator that translates sentences into 2D word vector images for convolutional
+ * networks, supporting classification and regression.
  * <p>
- * - {@link weka.classifiers.functions.dl4j.Utils#getFieldValue(Object, String)}, - {@link
- * weka.classifiers.functions.dl4j.Utils#setFieldValue(Object, String, Object)} - {@link
- * weka.classifiers.functions.dl4j.Utils#invokeMethod(Object, String, Object...)}
+ * Each sentence is tokenized, filtered with the given stopwords and converted into word indices
+ * only once (see {@link TokenIndexCorpus}). Tokens which are not part of the word vector model are
+ * replaced by an unknown word vector, empty sentences consist of a single unknown word.
  * <p>
- * until field/method visibility is changed upstream.
+ * The feature tensor of a mini-batch has the shape [batchSize, 1, sentenceLength, wordVectorSize]
+ * (or [batchSize, 1, wordVectorSize, sentenceLength] if sentences are not aligned along the
+ * height). With sentences along the height, each token is copied from the embedding matrix of the
+ * corpus with a single array copy.
  *
  * @author Steven Lang
  */
-public class CnnSentenceDataSetIterator extends
-    org.deeplearning4j.iterator.CnnSentenceDataSetIterator {
+@Log4j2
+public class CnnSentenceDataSetIterator implements DataSetIterator {
 
   private static final long serialVersionUID = 685006779872000151L;
 
   /**
-   * Stop words.
+   * Sentinel for unknown words
    */
-  private AbstractStopwords stopwords;
+  private static final String UNKNOWN_WORD_SENTINEL = "UNKNOWN_WORD_SENTINEL";
 
   /**
-   * Constructor that uses {@link Builder} extended with stopwords.
+   * Sentence provider
+   */
+  protected final LabeledSentenceProvider sentenceProvider;
+
+  /**
+   * Word vectors
+   */
+  protected final WordVectors wordVectors;
+
+  /**
+   * Tokenizer factory
+   */
+  protected final TokenizerFactory tokenizerFactory;
+
+  /**
+   * Stop words
+   */
+  protected final AbstractStopwords stopwords;
+
+  /**
+   * Batch size
+   */
+  protected final int minibatchSize;
+
+  /**
+   * Maximum number of tokens per sentence, no limit if not positive
+   */
+  protected final int maxSentenceLength;
+
+  /**
+   * Whether sentences are aligned along the height of the feature image
+   */
+  protected final boolean sentencesAlongHeight;
+
+  /**
+   * Whether to use normalized word vectors
+   */
+  protected final boolean useNormalizedWordVectors;
+
+  /**
+   * Size of a single word vector
+   */
+  protected final int wordVectorSize;
+
+  /**
+   * Number of classes (1 for regression)
+   */
+  protected final int numClasses;
+
+  /**
+   * Word vector for unknown words
+   */
+  protected final double[] unknown;
+
+  /**
+   * Dataset preprocessor
+   */
+  protected DataSetPreProcessor dataSetPreProcessor;
+
+  /**
+   * Cursor to the current sentence
+   */
+  protected int cursor = 0;
+
+  /**
+   * Pre-tokenized sentences, built on the first call to next()
+   */
+  protected transient TokenIndexCorpus corpus;
+
+  /**
+   * Constructor that uses {@link Builder}.
    *
    * @param builder Builder
    */
-  protected CnnSentenceDataSetIterator(CnnSentenceDataSetIterator.Builder builder) {
-    super(builder);
+  protected CnnSentenceDataSetIterator(Builder builder) {
+    this.sentenceProvider = builder.sentenceProvider;
+    this.wordVectors = builder.wordVectors;
+    this.tokenizerFactory = builder.tokenizerFactory;
     this.stopwords = builder.stopwords;
-    setUnknownWordHandling(UnknownWordHandling.UseUnknownVector);
-
-    // Set unknown word
-    WordVectors wordVectors = getWordVectors();
+    this.minibatchSize = builder.minibatchSize;
+    this.maxSentenceLength = builder.maxSentenceLength;
+    this.sentencesAlongHeight = builder.sentencesAlongHeight;
+    this.useNormalizedWordVectors = builder.useNormalizedWordVectors;
+    this.dataSetPreProcessor = builder.dataSetPreProcessor;
+    this.numClasses = sentenceProvider.numLabelClasses();
+    this.wordVectorSize = wordVectors.getWordVector(wordVectors.vocab().wordAtIndex(0)).length;
+
+    // Initialize unknown word
     wordVectors.setUNK("UNKNOWN");
-
-    // Initialize unknown word manually
-    INDArray unknown;
-    if (getUseNormalizedWordVectors()) {
-      unknown = wordVectors.getWordVectorMatrixNormalized(wordVectors.getUNK());
+    INDArray unknownVector;
+    if (useNormalizedWordVectors) {
+      unknownVector = wordVectors.getWordVectorMatrixNormalized(wordVectors.getUNK());
     } else {
-      unknown = wordVectors.getWordVectorMatrix(wordVectors.getUNK());
+      unknownVector = wordVectors.getWordVectorMatrix(wordVectors.getUNK());
     }
-    setUnknown(unknown);
+    this.unknown =
+        unknownVector == null ? new double[wordVectorSize] : unknownVector.toDoubleVector();
   }
 
   public static String getUnknownWordSentinel() {
-    return "UNKNOWN_WORD_SENTINEL";
+    return UNKNOWN_WORD_SENTINEL;
   }
 
   @Override
   public boolean hasNext() {
-    LabeledSentenceProvider sentenceProvider = getSentenceProvider();
-    if (sentenceProvider == null) {
-      throw new RuntimeException("Sentenceprovider was null");
-    }
-    return sentenceProvider.hasNext();
+    return cursor < getCorpus().numDocuments();
   }
 
   @Override
@@ -110,301 +177,294 @@ public class CnnSentenceDataSetIterator extends
       throw new NoSuchElementException("No next element available");
     }
 
-    // Get the data for this mini batch
-    List<Datum> data = collectData(num);
+    final TokenIndexCorpus corpus = getCorpus();
+    final int numSentences = Math.min(num, corpus.numDocuments() - cursor);
 
-    // Get min and max token sizes in the current mini batch
-    int maxTokenSizeBatch = Integer.MIN_VALUE;
+    // Get min and max token sizes in the current mini batch (already clipped to the token limit)
+    int maxTokenSizeBatch = 0;
     int minTokenSizeBatch = Integer.MAX_VALUE;
-    if (data.size() > 0) {
-      maxTokenSizeBatch = data.stream().mapToInt(Datum::numTokens).max().getAsInt();
-      minTokenSizeBatch = data.stream().mapToInt(Datum::numTokens).min().getAsInt();
-    }
-
-    // Clip maxTokenSizeBatch with tokenLimit as upper bound
-    int tokenLimit = getMaxSentenceLength();
-    if (tokenLimit > 0) {
-      maxTokenSizeBatch = Math.min(maxTokenSizeBatch, tokenLimit);
+    for (int i = 0; i < numSentences; i++) {
+      final int length = corpus.length(cursor + i);
+      maxTokenSizeBatch = Math.max(maxTokenSizeBatch, length);
+      minTokenSizeBatch = Math.min(minTokenSizeBatch, length);
     }
 
-    // Create labels
-    INDArray labels = createLabels(data);
-
-    // Create features
-    INDArray features = createFeatures(data, maxTokenSizeBatch);
-
-    // Create feature mask if token sizes vary
+    // Create features, labels and the feature mask if token sizes vary
+    final DataType dataType = Nd4j.defaultFloatingPointType();
+    INDArray features = createFeatures(numSentences, maxTokenSizeBatch).castTo(dataType);
+    INDArray labels = createLabels(numSentences).castTo(dataType);
     INDArray featuresMask = null;
-    boolean hasDifferentTokenSizes = minTokenSizeBatch != maxTokenSizeBatch;
-    if (hasDifferentTokenSizes) {
-      featuresMask = createFeatureMask(data, maxTokenSizeBatch);
+    if (minTokenSizeBatch != maxTokenSizeBatch) {
+      featuresMask = createFeatureMask(numSentences, maxTokenSizeBatch).castTo(dataType);
     }
 
     // Create DataSet
     DataSet dataSet = new DataSet(features, labels, featuresMask, null);
 
     // Preprocess DataSet
-    applyPreProcessing(dataSet);
+    if (dataSetPreProcessor != null) {
+      dataSetPreProcessor.preProcess(dataSet);
+    }
 
     // Increment the cursor
-    incrementCursor(dataSet.numExamples());
+    cursor += numSentences;
     return dataSet;
   }
 
   /**
-   * Collect the data (List of datapoints containing tokens and an associated label.
+   * Create the features of the sentences in [cursor, cursor + numSentences).
    *
-   * @param num Requested number of data points
-   * @return List of datapoints
+   * @param numSentences Number of sentences in the batch
+   * @param maxTokenSizeBatch Maximum token size in this batch
+   * @return INDArray containing the features
    */
-  protected List<Datum> collectData(int num) {
-    LabeledSentenceProvider sentenceProvider = getSentenceProvider();
-    String unknownWordSentinel = getUnknownWordSentinel();
-    List<Datum> data = new ArrayList<>(num);
-    for (int i = data.size(); i < num && sentenceProvider.hasNext(); i++) {
-      Pair<String, String> p = sentenceProvider.nextSentence();
-      String sentence = p.getFirst();
-      String label = p.getSecond();
-      List<String> tokens = tokenizeSentence(sentence);
-
-      // Skip stopwords
-      tokens = tokens.stream()
-          .filter(s -> !stopwords.isStopword(s))
-          .collect(Collectors.toList());
-
-      // If tokens are empty, add at least the UNKNOWN_WORD_SENTINEL
-      if (tokens.isEmpty()) {
-        tokens.add(unknownWordSentinel);
+  protected INDArray createFeatures(int numSentences, int maxTokenSizeBatch) {
+    final float[] features = new float[numSentences * maxTokenSizeBatch * wordVectorSize];
+    final int sentenceSize = maxTokenSizeBatch * wordVectorSize;
+    for (int i = 0; i < numSentences; i++) {
+      final int doc = cursor + i;
+      final int length = corpus.length(doc);
+      for (int j = 0; j < length; j++) {
+        if (sentencesAlongHeight) {
+          // Each token is a contiguous row of the feature image
+          corpus.copyVector(doc, j, features, i * sentenceSize + j * wordVectorSize);
+        } else {
+          corpus.putVector(doc, j, features, i * sentenceSize + j, maxTokenSizeBatch);
+        }
       }
-
-      data.add(new Datum(tokens, label));
     }
-    return data;
+    return Nd4j.create(features, getFeatureShape(maxTokenSizeBatch, numSentences), 'c');
   }
 
   /**
-   * Create labels NDArray based on the input batch data
+   * Create labels of the sentences in [cursor, cursor + numSentences).
    *
-   * @param data Input batch data
+   * @param numSentences Number of sentences in the batch
    * @return NDArray containing the labels
    */
-  protected INDArray createLabels(List<Datum> data) {
-    int numClasses = getNumClasses();
-    INDArray labels = Nd4j.create(data.size(), numClasses);
-    boolean isClassification = numClasses > 1;
-    boolean isRegression = numClasses == 1;
-
-    // Create labels based on task (Regression/Classification)
-    if (isClassification) {
-      createLabelsOneHot(data, labels);
-    } else if (isRegression) {
-      createLabelsRegression(data, labels);
-    } else {
+  protected INDArray createLabels(int numSentences) {
+    if (numClasses < 1) {
       throw new IllegalStateException("Number of classes must be >= 1.");
     }
-    return labels;
-  }
 
-  /**
-   * Create labels from a regression task and store them in {@code labels}.
-   *
-   * @param data Input batch data
-   * @param labels NDArray to store the labels in
-   */
-  protected void createLabelsRegression(List<Datum> data, INDArray labels) {
-    // Fix labels array for Regression task
-    for (int i = 0; i < data.size(); i++) {
-      final String labelStr = data.get(i).getLabel();
-      double lbl = Double.parseDouble(labelStr);
-      labels.putScalar(i, lbl);
+    final float[] labels = new float[numSentences * numClasses];
+    for (int i = 0; i < numSentences; i++) {
+      final double label = corpus.label(cursor + i);
+      if (numClasses > 1) { // Classification: one-hot encoded label
+        final int oneHotIndex = (int) label;
+        if (oneHotIndex < 0 || oneHotIndex >= numClasses) {
+          throw new IllegalStateException("Invalid label " + label + ".");
+        }
+        labels[i * numClasses + oneHotIndex] = 1;
+      } else { // Regression
+        labels[i] = (float) label;
+      }
     }
+    return Nd4j.create(labels, new long[]{numSentences, numClasses}, 'c');
   }
 
   /**
-   * Create one-hot encoded labels for classification and store them in {@code labels}.
+   * Create the feature mask of the sentences in [cursor, cursor + numSentences).
    *
-   * @param data Input batch data
-   * @param labels NDArray to store the labels in
+   * @param numSentences Number of sentences in the batch
+   * @param maxTokenSize Maximum token size
+   * @return Feature mask
    */
-  protected void createLabelsOneHot(List<Datum> data, INDArray labels) {
-    Map<String, Integer> labelClassMap = getLabelClassMap();
-    for (int i = 0; i < data.size(); i++) {
-      String label = data.get(i).getLabel();
-      if (!labelClassMap.containsKey(label)) {
-        throw new IllegalStateException("Invalid label " + label + ".");
+  protected INDArray createFeatureMask(int numSentences, int maxTokenSize) {
+    final float[] featuresMask = new float[numSentences * maxTokenSize];
+    for (int i = 0; i < numSentences; i++) {
+      final int length = corpus.length(cursor + i);
+      for (int j = 0; j < length; j++) {
+        featuresMask[i * maxTokenSize + j] = 1;
       }
-
-      // Assign value 1.0 label at one-hot encoded label index
-      int oneHotIndex = labelClassMap.get(label);
-      labels.putScalar(i, oneHotIndex, 1.0);
     }
+    return Nd4j.create(featuresMask, new long[]{numSentences, 1, maxTokenSize, 1}, 'c');
   }
 
   /**
-   * Create the features based on the data of this batch.
+   * Get the feature shape.
    *
-   * @param data Batch data
-   * @param maxTokenSizeBatch Maximum token size in this batch
-   * @return INDArray containing the features
+   * @param maxLength Maximum token length
+   * @param numSamples Minibatch size
+   * @return Feature shape
    */
-  protected INDArray createFeatures(List<Datum> data, int maxTokenSizeBatch) {
-    int tokenLimit = getMaxSentenceLength();
-
-    // Determine feature shape
-    int[] featuresShape = getFeatureShape(maxTokenSizeBatch, data.size());
-
-    // Create features from tokens
-    INDArray features = Nd4j.create(featuresShape);
-    for (int i = 0; i < data.size(); i++) {
-      List<String> currSentence = data.get(i).getTokens();
-      for (int j = 0; j < currSentence.size() && j < tokenLimit; j++) {
-        String token = currSentence.get(j);
-        INDArray vectorizedToken = getVector(token);
-        INDArrayIndex[] indices = new INDArrayIndex[4];
-        indices[0] = point(i);
-        indices[1] = point(0);
-        indices[2] = point(j);
-        indices[3] = all();
-        features.put(indices, vectorizedToken);
-      }
+  protected long[] getFeatureShape(int maxLength, int numSamples) {
+    if (sentencesAlongHeight) {
+      return new long[]{numSamples, 1, maxLength, wordVectorSize};
+    } else {
+      return new long[]{numSamples, 1, wordVectorSize, maxLength};
     }
-    return features;
   }
 
   /**
-   * Create the feature mask.
+   * Get the pre-tokenized sentences. On the first call, all sentences of the sentence provider are
+   * tokenized, filtered and converted into word indices.
    *
-   * @param data Tokenized sentences with labels
-   * @param maxTokenSize Maximum token size
-   * @return Feature mask
+   * @return Pre-tokenized sentences
    */
-  protected INDArray createFeatureMask(List<Datum> data, int maxTokenSize) {
-    INDArray featuresMask = Nd4j.create(data.size(), 1, maxTokenSize, 1);
-    INDArrayIndex[] indices = new INDArrayIndex[4];
-    indices[1] = all();
-    indices[3] = all();
-    for (int i = 0; i < data.size(); i++) {
-      indices[0] = point(i);
-      int sentenceLength = data.get(i).numTokens();
-      sentenceLength = Math.min(sentenceLength, maxTokenSize);
-      indices[2] = interval(0, sentenceLength);
-      featuresMask.put(indices, 1.0);
+  protected synchronized TokenIndexCorpus getCorpus() {
+    if (corpus != null) {
+      return corpus;
     }
-    return featuresMask;
-  }
 
-  /**
-   * Apply the preprocessing step if preprocessor is available.
-   *
-   * @param dataSet DataSet
-   */
-  protected void applyPreProcessing(DataSet dataSet) {
-    DataSetPreProcessor preProcessor = getDataSetPreProcessor();
-    if (preProcessor != null) {
-      preProcessor.preProcess(dataSet);
+    final int limit = maxSentenceLength > 0 ? maxSentenceLength : Integer.MAX_VALUE;
+    TokenIndexCorpus newCorpus = new TokenIndexCorpus(wordVectorSize, limit);
+    newCorpus.setUseNormalizedVectors(useNormalizedWordVectors);
+    newCorpus.addWord(UNKNOWN_WORD_SENTINEL, unknown);
+    sentenceProvider.reset();
+    while (sentenceProvider.hasNext()) {
+      final Pair<String, String> p = sentenceProvider.nextSentence();
+      newCorpus.addDocument(
+          tokenizeSentence(p.getFirst()), Double.parseDouble(p.getSecond()), wordVectors);
     }
+    newCorpus.finish();
+    log.debug("Pre-tokenized {} sentences with {} distinct words", newCorpus.numDocuments(),
+        newCorpus.numWords());
+    corpus = newCorpus;
+    return corpus;
   }
 
   /**
-   * Get the feature shape.
+   * Tokenize a sentence. Tokens which are not part of the word vector model are replaced by the
+   * unknown word sentinel, stopwords are removed. If no tokens remain, the sentence consists of the
+   * unknown word sentinel.
    *
-   * @param maxLength Maximum token lenght
-   * @param numSamples Minibatch size
-   * @return Feature shape
+   * @param sentence Sentence
+   * @return Tokens
    */
-  protected int[] getFeatureShape(int maxLength, int numSamples) {
-    return new int[]{numSamples, 1, maxLength, getWordVectorSize()};
-  }
+  protected List<String> tokenizeSentence(String sentence) {
+    Tokenizer t = tokenizerFactory.create(sentence);
+    List<String> tokens = new ArrayList<>();
+    while (t.hasMoreTokens()) {
+      String token = t.nextToken();
+      if (!wordVectors.hasWord(token)) {
+        token = UNKNOWN_WORD_SENTINEL;
+      } else if (stopwords.isStopword(token)) {
+        continue;
+      }
+      tokens.add(token);
+    }
 
-  public LabeledSentenceProvider getSentenceProvider() {
-    return getFieldValue(this, "sentenceProvider");
+    if (tokens.isEmpty()) {
+      tokens.add(UNKNOWN_WORD_SENTINEL);
+    }
+    return tokens;
   }
 
-  public int getMaxSentenceLength() {
-    return getFieldValue(this, "maxSentenceLength");
+  @Override
+  public int inputColumns() {
+    return wordVectorSize;
   }
 
-  public boolean isSentencesAlongHeight() {
-    return getFieldValue(this, "sentencesAlongHeight");
+  @Override
+  public int totalOutcomes() {
+    return numClasses;
   }
 
-  public DataSetPreProcessor getDataSetPreProcessor() {
-    return getFieldValue(this, "dataSetPreProcessor");
+  @Override
+  public boolean resetSupported() {
+    return true;
   }
 
-  public int getWordVectorSize() {
-    return getFieldValue(this, "wordVectorSize");
+  @Override
+  public boolean asyncSupported() {
+    return true;
   }
 
-  public int getNumClasses() {
-    return getFieldValue(this, "numClasses");
+  @Override
+  public void reset() {
+    cursor = 0;
   }
 
-
-  public boolean getUseNormalizedWordVectors() {
-    return getFieldValue(this, "useNormalizedWordVectors");
+  @Override
+  public int batch() {
+    return minibatchSize;
   }
 
-  public void setUseNormalizedWordVectors(boolean value) {
-    setFieldValue(this, "useNormalizedWordVectors", value);
+  @Override
+  public void setPreProcessor(DataSetPreProcessor preProcessor) {
+    this.dataSetPreProcessor = preProcessor;
   }
 
-  public int getCursor() {
-    return getFieldValue(this, "cursor");
+  @Override
+  public DataSetPreProcessor getPreProcessor() {
+    return dataSetPreProcessor;
   }
 
-  public void setCursor(int value) {
-    setFieldValue(this, "cursor", value);
+  @Override
+  public List<String> getLabels() {
+    List<String> labels = new ArrayList<>(numClasses);
+    for (int i = 0; i < numClasses; i++) {
+      labels.add(String.valueOf((double) i));
+    }
+    return labels;
   }
 
-  public INDArray getUnknown() {
-    return getFieldValue(this, "unknown");
+  @Override
+  public DataSet next() {
+    return next(minibatchSize);
   }
 
-  public void setUnknown(INDArray value) {
-    setFieldValue(this, "unknown", value);
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
   }
 
-  public WordVectors getWordVectors() {
-    return getFieldValue(this, "wordVectors");
+  public LabeledSentenceProvider getSentenceProvider() {
+    return sentenceProvider;
   }
 
-  public void setWordVectors(WordVectors value) {
-    setFieldValue(this, "wordVectors", value);
+  public int getMaxSentenceLength() {
+    return maxSentenceLength;
   }
 
+  public boolean isSentencesAlongHeight() {
+    return sentencesAlongHeight;
+  }
 
-  public UnknownWordHandling getUnknownWordHandling() {
-    return getFieldValue(this, "unknownWordHandling");
+  public int getWordVectorSize() {
+    return wordVectorSize;
   }
 
-  public void setUnknownWordHandling(UnknownWordHandling value) {
-    setFieldValue(this, "unknownWordHandling", value);
+  public int getNumClasses() {
+    return numClasses;
   }
 
+  public boolean getUseNormalizedWordVectors() {
+    return useNormalizedWordVectors;
+  }
 
-  protected void incrementCursor(int n) {
-    int oldCurser = getCursor();
-    setCursor(oldCurser + n);
+  public WordVectors getWordVectors() {
+    return wordVectors;
   }
 
   public AbstractStopwords getStopwords() {
     return stopwords;
   }
 
-  protected INDArray getVector(String s) {
-    return invokeMethod(this, "getVector", s);
-  }
-
-  protected List<String> tokenizeSentence(String sentence) {
-    return invokeMethod(this, "tokenizeSentence", sentence);
+  public int getCursor() {
+    return cursor;
   }
 
   /**
-   * CnnSentenceDataSetIterator.Builder implementation that supports stopwords.
+   * Builder for {@link CnnSentenceDataSetIterator}.
    */
-  public static class Builder extends
-      org.deeplearning4j.iterator.CnnSentenceDataSetIterator.Builder {
+  public static class Builder {
+
+    /**
+     * Sentence provider
+     */
+    LabeledSentenceProvider sentenceProvider;
+
+    /**
+     * Word vectors
+     */
+    WordVectors wordVectors;
+
+    /**
+     * Tokenizer factory
+     */
+    TokenizerFactory tokenizerFactory;
 
     /**
      * Stopwords
@@ -412,77 +472,141 @@ public class CnnSentenceDataSetIterator extends
     AbstractStopwords stopwords;
 
     /**
-     * Set stopwords.
+     * Batch size
+     */
+    int minibatchSize = 32;
+
+    /**
+     * Maximum number of tokens per sentence
+     */
+    int maxSentenceLength = -1;
+
+    /**
+     * Whether sentences are aligned along the height of the feature image
+     */
+    boolean sentencesAlongHeight = true;
+
+    /**
+     * Whether to use normalized word vectors
+     */
+    boolean useNormalizedWordVectors = true;
+
+    /**
+     * Dataset preprocessor
+     */
+    DataSetPreProcessor dataSetPreProcessor;
+
+    /**
+     * Set the sentence provider.
      *
-     * @param stopwords Stopwords
+     * @param sentenceProvider Sentence provider
      * @return Builder instance
      */
-    public Builder stopwords(AbstractStopwords stopwords) {
-      this.stopwords = stopwords;
+    public Builder sentenceProvider(LabeledSentenceProvider sentenceProvider) {
+      this.sentenceProvider = sentenceProvider;
       return this;
     }
 
     /**
-     * Build the iterator.
+     * Set the word vectors.
      *
-     * @return {@link CnnSentenceDataSetIterator} instance
+     * @param wordVectors Word vectors
+     * @return Builder instance
      */
-    public CnnSentenceDataSetIterator build() {
-      return new CnnSentenceDataSetIterator(this);
+    public Builder wordVectors(WordVectors wordVectors) {
+      this.wordVectors = wordVectors;
+      return this;
     }
-  }
 
-  /**
-   * Simple data point of tokens with an associated label
-   */
-  private class Datum {
+    /**
+     * Set the tokenizer factory.
+     *
+     * @param tokenizerFactory Tokenizer factory
+     * @return Builder instance
+     */
+    public Builder tokenizerFactory(TokenizerFactory tokenizerFactory) {
+      this.tokenizerFactory = tokenizerFactory;
+      return this;
+    }
+
+    /**
+     * Set stopwords.
+     *
+     * @param stopwords Stopwords
+     * @return Builder instance
+     */
+    public Builder stopwords(AbstractStopwords stopwords) {
+      this.stopwords = stopwords;
+      return this;
+    }
 
     /**
-     * Tokens in this datum
+     * Set the batch size.
+     *
+     * @param minibatchSize Batch size
+     * @return Builder instance
      */
-    private List<String> tokens;
+    public Builder minibatchSize(int minibatchSize) {
+      this.minibatchSize = minibatchSize;
+      return this;
+    }
 
     /**
-     * Associated label with the tokens
+     * Set the maximum number of tokens per sentence.
+     *
+     * @param maxSentenceLength Maximum number of tokens per sentence, no limit if not positive
+     * @return Builder instance
      */
-    private String label;
+    public Builder maxSentenceLength(int maxSentenceLength) {
+      this.maxSentenceLength = maxSentenceLength;
+      return this;
+    }
 
     /**
-     * Constructor with tokens and label.
+     * Set whether sentences are aligned along the height of the feature image.
      *
-     * @param tokens Tokens
-     * @param label Label
+     * @param sentencesAlongHeight true for shape [batch, 1, length, vectorSize]
+     * @return Builder instance
      */
-    public Datum(List<String> tokens, String label) {
-      this.tokens = tokens;
-      this.label = label;
+    public Builder sentencesAlongHeight(boolean sentencesAlongHeight) {
+      this.sentencesAlongHeight = sentencesAlongHeight;
+      return this;
     }
 
     /**
-     * Get the number of tokens in this datum.
+     * Set whether normalized word vectors are used.
      *
-     * @return Number of tokens in this datum
+     * @param useNormalizedWordVectors true if normalized word vectors are used
+     * @return Builder instance
      */
-    public int numTokens() {
-      return tokens.size();
+    public Builder useNormalizedWordVectors(boolean useNormalizedWordVectors) {
+      this.useNormalizedWordVectors = useNormalizedWordVectors;
+      return this;
     }
 
     /**
-     * Get the label.
+     * Set the dataset preprocessor.
      *
-     * @return Label
+     * @param dataSetPreProcessor Dataset preprocessor
+     * @return Builder instance
      */
-    public String getLabel() {
-      return label;
+    public Builder dataSetPreProcessor(DataSetPreProcessor dataSetPreProcessor) {
+      this.dataSetPreProcessor = dataSetPreProcessor;
+      return this;
     }
 
     /**
-     * Get the tokens.
+     * Build the iterator.
      *
-     * @return Tokens
+     * @return {@link CnnSentenceDataSetIterator} instance
      */
-    public List<String> getTokens() {
-      return tokens;
+    public CnnSentenceDataSetIterator build() {
+      if (sentenceProvider == null || wordVectors == null || tokenizerFactory == null
+          || stopwords == null) {
+        throw new IllegalStateException(
+            "Sentence provider, word vectors, tokenizer factory and stopwords must be set.");
+      }
+      return new CnnSentenceDataSetIterator(this);
     }
   }
 }
@@ -18,10 +18,7 @@
 
 package weka.dl4j.iterators.dataset.sequence.text.rnn;
 
-import static org.nd4j.linalg.indexing.NDArrayIndex.all;
-import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
-import static org.nd4j.linalg.indexing.NDArrayIndex.point;
-
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
@@ -32,25 +29,34 @@ import lombok.extern.log4j.Log4j2;
 import org.deeplearning4j.iterator.LabeledSentenceProvider;
 import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
 import org.nd4j.common.primitives.Pair;
-import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
-import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.indexing.INDArrayIndex;
 import weka.core.Instances;
 import weka.core.stopwords.AbstractStopwords;
+import weka.dl4j.iterators.dataset.ReorderableDataSetIterator;
+import weka.dl4j.iterators.dataset.sequence.LengthBucketScheduler;
+import weka.dl4j.iterators.dataset.sequence.text.TokenIndexCorpus;
 import weka.dl4j.text.tokenization.preprocessor.TokenPreProcess;
 import weka.dl4j.text.tokenization.tokenizer.factory.TokenizerFactory;
 
 /**
  * A DataSetIterator implementation that reads text documents from an arff file and translates each
  * document to a sequence of wordvectors, given a wordvector model.
+ * <p>
+ * Documents are tokenized only once: the first batch triggers a pre-pass that stores each document
+ * as a sequence of word indices in a {@link TokenIndexCorpus}. All batches are then built by
+ * gathering rows from the corpus' embedding matrix.
+ * <p>
+ * If reordering is allowed, documents of similar length can be grouped into the same batch with a
+ * {@link LengthBucketScheduler}.
  *
  * @author Steven Lang
  */
 @Log4j2
-public class RnnTextEmbeddingDataSetIterator implements DataSetIterator, Serializable {
+public class RnnTextEmbeddingDataSetIterator implements ReorderableDataSetIterator,
+    Serializable {
 
   private static final long serialVersionUID = 1682821361704251554L;
   protected final Instances data;
@@ -62,6 +68,34 @@ public class RnnTextEmbeddingDataSetIterator implements DataSetIterator, Seriali
   protected AbstractStopwords stopWords;
   protected int cursor = 0;
   private LabeledSentenceProvider sentenceProvider;
+  /**
+   * Whether to memory-map the pre-tokenized corpus
+   */
+  protected boolean memoryMapCorpus = false;
+  /**
+   * Pre-tokenized corpus, built on the first call to next()
+   */
+  protected transient TokenIndexCorpus corpus;
+  /**
+   * Range of document lengths that share a bucket, 0 disables length bucketing
+   */
+  protected int lengthBucketWidth = 0;
+  /**
+   * Seed for the length bucketing
+   */
+  protected long seed = 0;
+  /**
+   * Whether the order of the documents may change
+   */
+  protected boolean reorderingAllowed = false;
+  /**
+   * Length bucketing scheduler
+   */
+  protected transient LengthBucketScheduler scheduler;
+  /**
+   * Document order of the current epoch, null for the original order
+   */
+  protected transient int[] order;
 
   /**
    * Constructor with necessary objects to create RNN features.
@@ -99,80 +133,76 @@ public class RnnTextEmbeddingDataSetIterator implements DataSetIterator, Seriali
     // Check if next() call is valid - throws appropriate exceptions
     checkIfNextIsValid();
 
-    // Collect
-    List<String> sentences = new ArrayList<>(num);
-    List<Double> labelsRaw = new ArrayList<>(num);
-    collectData(num, sentences, labelsRaw);
-    final int numDocuments = sentences.size();
-
-    // Tokenize sentences
-    List<List<String>> tokenizedSentences = tokenizeSentences(sentences);
-
-    // Get longest sentence length
-    int maxSentenceLength = tokenizedSentences.stream().mapToInt(List::size).max().getAsInt();
+    final TokenIndexCorpus corpus = getCorpus();
+    if (cursor == 0) {
+      order = nextEpochOrder();
+    }
+    final int numDocuments = Math.min(num, corpus.numDocuments() - cursor);
 
-    // Truncate maximum sentence length
-    if (maxSentenceLength > truncateLength || maxSentenceLength == 0) {
+    // Get longest sentence length (documents are already truncated in the corpus)
+    int maxSentenceLength = 0;
+    for (int i = 0; i < numDocuments; i++) {
+      maxSentenceLength = Math.max(maxSentenceLength, corpus.length(documentAt(cursor + i)));
+    }
+    if (maxSentenceLength == 0) {
       maxSentenceLength = truncateLength;
     }
 
-    // Init feature/label arrays
-    int[] featureShape = {numDocuments, wordVectorSize, maxSentenceLength};
-    int[] labelShape = {numDocuments, data.numClasses(), maxSentenceLength};
-    INDArray features = Nd4j.create(featureShape, 'f');
-    INDArray labels = Nd4j.create(labelShape, 'f');
-    INDArray featuresMask = Nd4j.zeros(numDocuments, maxSentenceLength);
-    INDArray labelsMask = Nd4j.zeros(numDocuments, maxSentenceLength);
+    // Init feature/label arrays in 'f' order:
+    // features: {numDocuments, wordVectorSize, maxSentenceLength}
+    // labels: {numDocuments, numClasses, maxSentenceLength}
+    // masks: {numDocuments, maxSentenceLength}
+    final int numClasses = data.numClasses();
+    final float[] features = new float[numDocuments * wordVectorSize * maxSentenceLength];
+    final float[] labels = new float[numDocuments * numClasses * maxSentenceLength];
+    final float[] featuresMask = new float[numDocuments * maxSentenceLength];
+    final float[] labelsMask = new float[numDocuments * maxSentenceLength];
 
     for (int i = 0; i < numDocuments; i++) {
-      List<String> tokens = tokenizedSentences.get(i);
+      final int doc = documentAt(cursor + i);
+      final int length = corpus.length(doc);
 
       // Check for empty document
-      if (tokens.isEmpty()) {
+      if (length == 0) {
         continue;
       }
 
-      // Get the last index of the current document (truncated)
-      int lastIdx = Math.min(tokens.size(), maxSentenceLength);
-
-      // Get all wordvectors in batch
-      List<String> truncatedTokenList = tokens.subList(0, lastIdx);
-      final INDArray vectors = wordVectors.getWordVectors(truncatedTokenList).transpose();
-
-      /*
-       * Put wordvectors into features array at the following indices:
-       * 1) Document (i)
-       * 2) All vector elements which is equal to NDArrayIndex.interval(0, vectorSize)
-       * 3) All elements between 0 and the length of the current sequence
-       */
-      INDArrayIndex[] indices = {point(i), all(), interval(0, lastIdx)};
-      features.put(indices, vectors);
-
-      // Assign "1" to each position where a feature is present, that is, in the interval of
-      // [0, lastIdx)
-      featuresMask.get(point(i), interval(0, lastIdx)).assign(1);
+      // Gather the wordvectors of the document and mark each position where a feature is present,
+      // that is, in the interval of [0, length)
+      for (int t = 0; t < length; t++) {
+        corpus.putVector(doc, t, features, i + t * numDocuments * wordVectorSize, numDocuments);
+        featuresMask[i + t * numDocuments] = 1;
+      }
 
       // Put the labels in the labels and labelsMask arrays
       // Differ between classification and regression task
-      if (data.numClasses() == 1) { // Regression
-        double val = labelsRaw.get(i);
-        labels.putScalar(new int[]{i, 0, lastIdx - 1}, val);
-      } else if (data.numClasses() > 1) { // Classification
+      final int lastIdx = length - 1;
+      final int lastTimestepOffset = i + lastIdx * numDocuments * numClasses;
+      if (numClasses == 1) { // Regression
+        labels[lastTimestepOffset] = (float) corpus.label(doc);
+      } else if (numClasses > 1) { // Classification
         // One-Hot-Encoded class
-        int idx = labelsRaw.get(i).intValue();
-        // Set label
-        labels.putScalar(new int[]{i, idx, lastIdx - 1}, 1.0);
+        int idx = (int) corpus.label(doc);
+        labels[lastTimestepOffset + idx * numDocuments] = 1;
       } else {
         throw new RuntimeException("Could not detect classification or regression task.");
       }
 
       // Set final timestep for this example to 1.0 to show that an output exists here
-      int[] lastTimestepIndex = {i, lastIdx - 1};
-      labelsMask.putScalar(lastTimestepIndex, 1.0);
+      labelsMask[i + lastIdx * numDocuments] = 1;
     }
 
-    // Cache the dataset
-    final DataSet ds = new DataSet(features, labels, featuresMask, labelsMask);
+    final DataType dataType = Nd4j.defaultFloatingPointType();
+    final DataSet ds =
+        new DataSet(
+            Nd4j.create(features, new long[]{numDocuments, wordVectorSize, maxSentenceLength}, 'f')
+                .castTo(dataType),
+            Nd4j.create(labels, new long[]{numDocuments, numClasses, maxSentenceLength}, 'f')
+                .castTo(dataType),
+            Nd4j.create(featuresMask, new long[]{numDocuments, maxSentenceLength}, 'f')
+                .castTo(dataType),
+            Nd4j.create(labelsMask, new long[]{numDocuments, maxSentenceLength}, 'f')
+                .castTo(dataType));
 
     // Move cursor
     cursor += ds.numExamples();
@@ -180,15 +210,108 @@ public class RnnTextEmbeddingDataSetIterator implements DataSetIterator, Seriali
   }
 
   /**
-   * Tokenize the given sentences.
+   * Get the pre-tokenized corpus. On the first call, all documents of the sentence provider are
+   * tokenized, filtered and converted into word indices once. All subsequent batches, including
+   * those of later epochs, are built from this corpus.
    *
-   * @param sentences List of sentences to tokenize
-   * @return List of list of tokens
+   * @return Pre-tokenized corpus
    */
-  protected List<List<String>> tokenizeSentences(List<String> sentences) {
-    return sentences.stream()
-        .map(this::tokenizeSingleSentence)
-        .collect(Collectors.toList());
+  protected synchronized TokenIndexCorpus getCorpus() {
+    if (corpus != null) {
+      return corpus;
+    }
+
+    log.debug("Pre-tokenizing {} documents", data.numInstances());
+    TokenIndexCorpus newCorpus = new TokenIndexCorpus(wordVectorSize, truncateLength);
+    sentenceProvider.reset();
+    while (sentenceProvider.hasNext()) {
+      final Pair<String, String> next = sentenceProvider.nextSentence();
+      newCorpus.addDocument(
+          tokenizeSingleSentence(next.getFirst()), Double.valueOf(next.getSecond()), wordVectors);
+    }
+    newCorpus.finish();
+    log.debug("Pre-tokenized corpus contains {} distinct words", newCorpus.numWords());
+
+    if (memoryMapCorpus) {
+      try {
+        newCorpus.mapToFile();
+      } catch (IOException e) {
+        log.warn("Could not memory-map the token corpus, keeping it on the heap.", e);
+      }
+    }
+    corpus = newCorpus;
+    return corpus;
+  }
+
+  /**
+   * Get the document at the given position of the current epoch.
+   *
+   * @param pos Position
+   * @return Document index
+   */
+  protected int documentAt(int pos) {
+    return order == null ? pos : order[pos];
+  }
+
+  /**
+   * Compute the document order for the next epoch.
+   *
+   * @return Document order, null for the original order
+   */
+  protected int[] nextEpochOrder() {
+    if (!reorderingAllowed || lengthBucketWidth <= 0) {
+      return null;
+    }
+    if (scheduler == null) {
+      final TokenIndexCorpus corpus = getCorpus();
+      int[] lengths = new int[corpus.numDocuments()];
+      for (int i = 0; i < lengths.length; i++) {
+        lengths[i] = corpus.length(i);
+      }
+      scheduler = new LengthBucketScheduler(lengths, batchSize, lengthBucketWidth, seed);
+    }
+    return scheduler.nextEpoch();
+  }
+
+  /**
+   * Set the length bucketing. Only takes effect if reordering is allowed.
+   *
+   * @param lengthBucketWidth Range of document lengths that share a bucket, 0 disables bucketing
+   * @param seed Seed for shuffling
+   */
+  public void setLengthBucketing(int lengthBucketWidth, long seed) {
+    this.lengthBucketWidth = lengthBucketWidth;
+    this.seed = seed;
+    this.scheduler = null;
+  }
+
+  @Override
+  public void setReorderingAllowed(boolean reorderingAllowed) {
+    this.reorderingAllowed = reorderingAllowed;
+  }
+
+  @Override
+  public boolean isReordering() {
+    return reorderingAllowed && lengthBucketWidth > 0;
+  }
+
+  /**
+   * Whether the pre-tokenized corpus is moved into a memory-mapped file.
+   *
+   * @return true if the corpus is memory-mapped
+   */
+  public boolean isMemoryMapCorpus() {
+    return memoryMapCorpus;
+  }
+
+  /**
+   * Set whether the pre-tokenized corpus is moved into a memory-mapped file to keep it off the
+   * heap.
+   *
+   * @param memoryMapCorpus true if the corpus should be memory-mapped
+   */
+  public void setMemoryMapCorpus(boolean memoryMapCorpus) {
+    this.memoryMapCorpus = memoryMapCorpus;
   }
 
   /**
@@ -211,21 +334,6 @@ public class RnnTextEmbeddingDataSetIterator implements DataSetIterator, Seriali
         .collect(Collectors.toList());
   }
 
-  /**
-   * Collect data from sentence provider and store it in {@code sentences} and {@code labelsRaw}.
-   *
-   * @param num Number of datapoints to collect from sentence provider
-   * @param sentences Empty sentences list
-   * @param labelsRaw Empty labels list
-   */
-  protected void collectData(int num, List<String> sentences, List<Double> labelsRaw) {
-    for (int i = 0; i < num && sentenceProvider.hasNext(); i++) {
-      final Pair<String, String> next = sentenceProvider.nextSentence();
-      sentences.add(next.getFirst());
-      labelsRaw.add(Double.valueOf(next.getSecond()));
-    }
-  }
-
   /**
    * Check if the next() call is valid.
    */
@@ -250,7 +358,6 @@ public class RnnTextEmbeddingDataSetIterator implements DataSetIterator, Seriali
 
   @Override
   public void reset() {
-    sentenceProvider.reset();
     cursor = 0;
   }
 
@@ -295,9 +402,14 @@ public class RnnTextEmbeddingDataSetIterator implements DataSetIterator, Seriali
   public void remove() {
   }
 
+  /**
+   * Preprocessors are not supported, so there is none.
+   *
+   * @return null
+   */
   @Override
   public DataSetPreProcessor getPreProcessor() {
-    throw new UnsupportedOperationException("Not implemented");
+    return null;
   }
 
   @Override
@@ -19,18 +19,16 @@
 package weka.dl4j.iterators.instance;
 
 import java.util.Enumeration;
-import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import weka.classifiers.functions.dl4j.Utils;
 import weka.core.Instances;
 import weka.core.Option;
 import weka.core.OptionMetadata;
-import weka.dl4j.iterators.dataset.DefaultDataSetIterator;
+import weka.dl4j.iterators.dataset.InstancesDataSetIterator;
 import weka.dl4j.iterators.instance.api.ConvolutionalIterator;
 
 /**
- * Converts the given Instances object into a DataSet and then constructs and returns a
- * DefaultDataSetIterator. This iterator is designed for training convolutional networks on data
+ * Constructs and returns an InstancesDataSetIterator which reshapes each row of the given
+ * Instances object into a (channels x width x height) tensor. This iterator is designed for training convolutional networks on data
  * that is represented as standard WEKA instances. It enables specification of filter width and
  * height, and number of channels.
  *
@@ -117,10 +115,9 @@ public class ConvolutionInstanceIterator extends DefaultInstanceIterator impleme
    */
   @Override
   public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize) {
-    // Convert Instances to DataSet
-    DataSet dataset = Utils.instancesToConvDataSet(data, getHeight(), getWidth(), getNumChannels());
-
-    return new DefaultDataSetIterator(dataset, batchSize);
+    // Build mini-batches straight from the instances, reshaped to the image dimensions
+    long[] featureShape = new long[]{getNumChannels(), getWidth(), getHeight()};
+    return configureIterator(new InstancesDataSetIterator(data, batchSize, featureShape), seed);
   }
 
   /**
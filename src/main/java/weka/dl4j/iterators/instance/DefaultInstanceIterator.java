@@ -19,17 +19,16 @@
 package weka.dl4j.iterators.instance;
 
 import java.util.Enumeration;
-import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import weka.classifiers.functions.dl4j.Utils;
 import weka.core.Instances;
 import weka.core.InvalidInputDataException;
 import weka.core.Option;
-import weka.dl4j.iterators.dataset.DefaultDataSetIterator;
+import weka.core.OptionMetadata;
+import weka.dl4j.iterators.dataset.InstancesDataSetIterator;
 
 /**
- * Converts the given Instances object into a DataSet and then constructs and returns a
- * DefaultDataSetIterator.
+ * Constructs and returns an InstancesDataSetIterator which builds each mini-batch directly from
+ * the given Instances object.
  *
  * @author Christopher Beckham
  * @author Eibe Frank
@@ -42,6 +41,72 @@ public class DefaultInstanceIterator extends AbstractInstanceIterator {
    */
   private static final long serialVersionUID = 1316260988724548474L;
 
+  /**
+   * Whether to shuffle the training instances in each epoch
+   */
+  protected boolean shuffle = false;
+
+  /**
+   * Whether to stratify the shuffled training batches by class
+   */
+  protected boolean stratify = false;
+
+  /**
+   * Whether to keep the last, smaller batch of each epoch
+   */
+  protected boolean keepPartialBatch = false;
+
+  @OptionMetadata(
+      displayName = "shuffle each epoch",
+      description = "Whether to shuffle the training instances in each epoch, based on the seed. "
+          + "Shuffled training data is not cached (default = false).",
+      commandLineParamName = "shuffle",
+      commandLineParamSynopsis = "-shuffle",
+      commandLineParamIsFlag = true,
+      displayOrder = 10
+  )
+  public boolean getShuffle() {
+    return shuffle;
+  }
+
+  public void setShuffle(boolean shuffle) {
+    this.shuffle = shuffle;
+  }
+
+  @OptionMetadata(
+      displayName = "stratify batches",
+      description = "Whether shuffled training batches contain each nominal class in proportion "
+          + "to its frequency (only with shuffling, default = false).",
+      commandLineParamName = "stratify",
+      commandLineParamSynopsis = "-stratify",
+      commandLineParamIsFlag = true,
+      displayOrder = 11
+  )
+  public boolean getStratify() {
+    return stratify;
+  }
+
+  public void setStratify(boolean stratify) {
+    this.stratify = stratify;
+  }
+
+  @OptionMetadata(
+      displayName = "keep partial batch",
+      description = "Whether to keep the last batch of each epoch if it is smaller than the batch "
+          + "size (default = false).",
+      commandLineParamName = "keepPartialBatch",
+      commandLineParamSynopsis = "-keepPartialBatch",
+      commandLineParamIsFlag = true,
+      displayOrder = 12
+  )
+  public boolean getKeepPartialBatch() {
+    return keepPartialBatch;
+  }
+
+  public void setKeepPartialBatch(boolean keepPartialBatch) {
+    this.keepPartialBatch = keepPartialBatch;
+  }
+
   @Override
   public void validate(Instances data) throws InvalidInputDataException {
     if (data.classIndex() < 0) {
@@ -62,9 +127,23 @@ public class DefaultInstanceIterator extends AbstractInstanceIterator {
   public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize)
       throws InvalidInputDataException {
     validate(data);
-    // Convert Instances to DataSet
-    DataSet dataset = Utils.instancesToDataSet(data);
-    return new DefaultDataSetIterator(dataset, batchSize);
+    // Build mini-batches straight from the instances
+    return configureIterator(new InstancesDataSetIterator(data, batchSize), seed);
+  }
+
+  /**
+   * Apply the batch scheduling options to the iterator.
+   *
+   * @param it the iterator
+   * @param seed the seed for shuffling
+   * @return the given iterator
+   */
+  protected InstancesDataSetIterator configureIterator(InstancesDataSetIterator it, int seed) {
+    if (shuffle) {
+      it.enableShuffling(stratify, seed);
+    }
+    it.setKeepPartialBatch(keepPartialBatch);
+    return it;
   }
 
   public String globalInfo() {
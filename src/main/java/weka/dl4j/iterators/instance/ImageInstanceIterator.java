@@ -19,19 +19,24 @@
 package weka.dl4j.iterators.instance;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import org.datavec.api.split.CollectionInputSplit;
 import org.datavec.image.recordreader.ImageRecordReader;
-import org.deeplearning4j.datasets.datavec.RecordReaderDataSetIterator;
+import org.datavec.image.transform.ImageTransform;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import org.nd4j.linalg.dataset.api.preprocessor.DataNormalization;
 import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
 import weka.core.Environment;
+import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.InvalidInputDataException;
 import weka.core.Option;
 import weka.core.OptionMetadata;
 import weka.dl4j.ArffMetaDataLabelGenerator;
+import weka.dl4j.iterators.dataset.DecodedImageCache;
+import weka.dl4j.iterators.dataset.ImageDataSetIterator;
 import weka.dl4j.iterators.instance.api.ConvolutionalIterator;
 import weka.gui.FilePropertyMetadata;
 import weka.gui.knowledgeflow.KFGUIConsts;
@@ -76,6 +81,37 @@ public class ImageInstanceIterator extends AbstractInstanceIterator implements
    */
   protected File imagesLocation = new File(System.getProperty("user.dir"));
 
+  /**
+   * The number of threads used to decode images, 0 to use all available processors
+   */
+  protected int numDecodeWorkers = 0;
+
+  /**
+   * The number of batches that are decoded ahead
+   */
+  protected int decodePrefetchBatches = 4;
+
+  /**
+   * Whether to shuffle the training images in each epoch
+   */
+  protected boolean shuffle = false;
+
+  /**
+   * Whether to stratify the shuffled training batches by class
+   */
+  protected boolean stratify = false;
+
+  /**
+   * Whether to keep decoded images in a persistent cache
+   */
+  protected boolean cacheDecodedImages = false;
+
+  /**
+   * The directory of the decoded image cache
+   */
+  protected File decodedImageCacheLocation =
+      new File(System.getProperty("java.io.tmpdir"), "decoded-image-cache");
+
   @FilePropertyMetadata(fileChooserDialogType = KFGUIConsts.SAVE_DIALOG, directoriesOnly = true)
   @OptionMetadata(
       displayName = "directory of images",
@@ -153,6 +189,105 @@ public class ImageInstanceIterator extends AbstractInstanceIterator implements
     this.channelsLast = channelsLast;
   }
 
+  @OptionMetadata(
+      displayName = "number of decoding threads",
+      description = "The number of threads used to decode images (default = 0, i.e. all "
+          + "available processors).",
+      commandLineParamName = "numDecodeWorkers",
+      commandLineParamSynopsis = "-numDecodeWorkers <int>",
+      displayOrder = 5
+  )
+  public int getNumDecodeWorkers() {
+    return numDecodeWorkers;
+  }
+
+  public void setNumDecodeWorkers(int numDecodeWorkers) {
+    this.numDecodeWorkers = numDecodeWorkers;
+  }
+
+  @OptionMetadata(
+      displayName = "number of prefetched batches",
+      description = "The maximum number of batches that are decoded ahead (default = 4).",
+      commandLineParamName = "decodePrefetchBatches",
+      commandLineParamSynopsis = "-decodePrefetchBatches <int>",
+      displayOrder = 6
+  )
+  public int getDecodePrefetchBatches() {
+    return decodePrefetchBatches;
+  }
+
+  public void setDecodePrefetchBatches(int decodePrefetchBatches) {
+    this.decodePrefetchBatches = decodePrefetchBatches;
+  }
+
+  @OptionMetadata(
+      displayName = "shuffle each epoch",
+      description = "Whether to shuffle the training images in each epoch, based on the seed. "
+          + "Shuffled training data is not cached (default = false).",
+      commandLineParamName = "shuffle",
+      commandLineParamSynopsis = "-shuffle",
+      commandLineParamIsFlag = true,
+      displayOrder = 9
+  )
+  public boolean getShuffle() {
+    return shuffle;
+  }
+
+  public void setShuffle(boolean shuffle) {
+    this.shuffle = shuffle;
+  }
+
+  @OptionMetadata(
+      displayName = "stratify batches",
+      description = "Whether shuffled training batches contain each class in proportion to its "
+          + "frequency (only with shuffling, default = false).",
+      commandLineParamName = "stratify",
+      commandLineParamSynopsis = "-stratify",
+      commandLineParamIsFlag = true,
+      displayOrder = 10
+  )
+  public boolean getStratify() {
+    return stratify;
+  }
+
+  public void setStratify(boolean stratify) {
+    this.stratify = stratify;
+  }
+
+  @OptionMetadata(
+      displayName = "cache decoded images",
+      description = "Whether to keep decoded images in a persistent cache which is reused by "
+          + "later epochs and runs with the same image size (default = false).",
+      commandLineParamName = "cacheDecodedImages",
+      commandLineParamSynopsis = "-cacheDecodedImages",
+      commandLineParamIsFlag = true,
+      displayOrder = 7
+  )
+  public boolean getCacheDecodedImages() {
+    return cacheDecodedImages;
+  }
+
+  public void setCacheDecodedImages(boolean cacheDecodedImages) {
+    this.cacheDecodedImages = cacheDecodedImages;
+  }
+
+  @FilePropertyMetadata(fileChooserDialogType = KFGUIConsts.SAVE_DIALOG, directoriesOnly = true)
+  @OptionMetadata(
+      displayName = "decoded image cache directory",
+      description = "The directory of the decoded image cache (default = "
+          + "<java.io.tmpdir>/decoded-image-cache).",
+      commandLineParamName = "decodedImageCacheLocation",
+      commandLineParamSynopsis = "-decodedImageCacheLocation <string>",
+      displayOrder = 8
+  )
+  public File getDecodedImageCacheLocation() {
+    return decodedImageCacheLocation;
+  }
+
+  public void setDecodedImageCacheLocation(File decodedImageCacheLocation) {
+    this.decodedImageCacheLocation = decodedImageCacheLocation;
+  }
+
   /**
    * Validates the input dataset
    *
@@ -212,8 +347,19 @@ public class ImageInstanceIterator extends AbstractInstanceIterator implements
     return reader;
   }
 
+  /**
+   * Returns the optional transform applied to each image after loading. Called once per decoding
+   * thread.
+   *
+   * @return the image transform, null if no transform is applied
+   */
+  protected ImageTransform getImageTransform() {
+    return null;
+  }
+
   /**
    * This method returns the iterator. Scales all intensity values: it divides them by 255.
+   * Images are decoded in parallel by {@link #getNumDecodeWorkers()} threads.
    *
    * @param data the dataset to use
    * @param seed the seed for the random number generator
@@ -226,20 +372,66 @@ public class ImageInstanceIterator extends AbstractInstanceIterator implements
 
     batchSize = Math.min(data.numInstances(), batchSize);
     validate(data);
-    ImageRecordReader reader = getImageRecordReader(data);
-
-    // Required for supporting channels-last models (currently only EfficientNet)
-    if (getChannelsLast())
-      reader.setNchw_channels_first(false);
-
-    final int labelIndex = 1; // Use explicit label index position
-    final int numPossibleLabels = data.numClasses();
-    DataSetIterator tmpIter =
-        new RecordReaderDataSetIterator(reader, batchSize, labelIndex, numPossibleLabels);
-    DataNormalization scaler = new ImagePreProcessingScaler(0, 1);
-    scaler.fit(tmpIter);
-    tmpIter.setPreProcessor(scaler);
-    return tmpIter;
+
+    // Resolve image paths and labels
+    Environment env = Environment.getSystemWide();
+    String resolved = getImagesLocation().toString();
+    try {
+      resolved = env.substitute(resolved);
+    } catch (Exception ex) {
+      // ignore
+    }
+    final File basePath = new File(resolved).getAbsoluteFile();
+
+    // Labels are sorted by name, consistent with the label order expected by the classifier
+    List<String> labels = new ArrayList<>();
+    int[] sortedIndex = null;
+    if (data.classAttribute().isNominal()) {
+      for (int i = 0; i < data.numClasses(); i++) {
+        labels.add(data.classAttribute().value(i));
+      }
+      Collections.sort(labels);
+      sortedIndex = new int[data.numClasses()];
+      for (int i = 0; i < sortedIndex.length; i++) {
+        sortedIndex[i] = labels.indexOf(data.classAttribute().value(i));
+      }
+    } else {
+      labels.add(data.classAttribute().name());
+    }
+
+    final File[] files = new File[data.numInstances()];
+    final double[] targets = new double[data.numInstances()];
+    for (int i = 0; i < files.length; i++) {
+      Instance inst = data.instance(i);
+      files[i] = new File(basePath, inst.stringValue(0));
+      if (inst.classIsMissing()) {
+        targets[i] = Double.NaN;
+      } else if (sortedIndex != null) {
+        targets[i] = sortedIndex[(int) inst.classValue()];
+      } else {
+        targets[i] = inst.classValue();
+      }
+    }
+
+    final int numWorkers = numDecodeWorkers > 0
+        ? numDecodeWorkers
+        : Runtime.getRuntime().availableProcessors();
+    // Channels last is required for supporting channels-last models (currently only EfficientNet)
+    ImageDataSetIterator it = new ImageDataSetIterator(files, targets, labels,
+        !data.classAttribute().isNominal(), getHeight(), getWidth(), getNumChannels(),
+        getChannelsLast(), this::getImageTransform, batchSize, numWorkers, decodePrefetchBatches,
+        seed);
+    if (shuffle) {
+      it.enableShuffling(stratify);
+    }
+    if (cacheDecodedImages) {
+      final ImageTransform transform = getImageTransform();
+      it.setDecodedImageCache(DecodedImageCache.open(decodedImageCacheLocation, getHeight(),
+          getWidth(), getNumChannels(), getChannelsLast(),
+          transform == null ? "" : transform.getClass().getSimpleName()));
+    }
+    it.setPreProcessor(new ImagePreProcessingScaler(0, 1));
+    return it;
   }
 
   public String globalInfo() {
@@ -21,6 +21,7 @@ package weka.dl4j.iterators.instance;
 import java.io.File;
 import org.datavec.api.split.CollectionInputSplit;
 import org.datavec.image.recordreader.ImageRecordReader;
+import org.datavec.image.transform.ImageTransform;
 import org.datavec.image.transform.ResizeImageTransform;
 import weka.core.Environment;
 import weka.core.Instances;
@@ -77,6 +78,12 @@ public class ResizeImageInstanceIterator extends ImageInstanceIterator {
     this.setImagesLocation(iii.getImagesLocation());
     this.setNumChannels(iii.getNumChannels());
     this.setChannelsLast(iii.getChannelsLast());
+    this.setNumDecodeWorkers(iii.getNumDecodeWorkers());
+    this.setDecodePrefetchBatches(iii.getDecodePrefetchBatches());
+    this.setShuffle(iii.getShuffle());
+    this.setStratify(iii.getStratify());
+    this.setCacheDecodedImages(iii.getCacheDecodedImages());
+    this.setDecodedImageCacheLocation(iii.getDecodedImageCacheLocation());
   }
 
   @OptionMetadata(
@@ -164,6 +171,11 @@ public class ResizeImageInstanceIterator extends ImageInstanceIterator {
     iii.setImagesLocation(imagesLocation);
   }
 
+  @Override
+  protected ImageTransform getImageTransform() {
+    return new ResizeImageTransform(getWidth(), getHeight());
+  }
+
   @Override
   protected ImageRecordReader getImageRecordReader(Instances data) throws Exception {
     Environment env = Environment.getSystemWide();
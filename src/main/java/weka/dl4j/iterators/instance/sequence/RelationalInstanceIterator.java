@@ -42,12 +42,19 @@ public class RelationalInstanceIterator extends AbstractSequenceInstanceIterator
    * Index of the relational attribute
    */
   protected int relationalAttributeIndex = 0;
+  /**
+   * Range of sequence lengths that share a bucket, 0 disables length bucketing
+   */
+  protected int lengthBucketWidth = 0;
 
   @Override
   public DataSetIterator getDataSetIterator(Instances data, int seed, int batchSize)
       throws Exception {
     validate(data);
-    return new RelationalDataSetIterator(data, batchSize, truncateLength, relationalAttributeIndex);
+    RelationalDataSetIterator it =
+        new RelationalDataSetIterator(data, batchSize, truncateLength, relationalAttributeIndex);
+    it.setLengthBucketing(lengthBucketWidth, seed);
+    return it;
   }
 
   @Override
@@ -88,6 +95,23 @@ public class RelationalInstanceIterator extends AbstractSequenceInstanceIterator
     this.relationalAttributeIndex = relationalAttributeIndex;
   }
 
+  @OptionMetadata(
+      displayName = "length bucket width",
+      description = "Group training sequences whose lengths differ by less than this value into "
+          + "the same mini-batch to reduce padding, 0 disables bucketing. Bucketed training data "
+          + "is not cached (default = 0).",
+      commandLineParamName = "lengthBucketWidth",
+      commandLineParamSynopsis = "-lengthBucketWidth <int>",
+      displayOrder = 3
+  )
+  public int getLengthBucketWidth() {
+    return lengthBucketWidth;
+  }
+
+  public void setLengthBucketWidth(int lengthBucketWidth) {
+    this.lengthBucketWidth = lengthBucketWidth;
+  }
+
   /**
    * Returns an enumeration describing the available options.
    *
@@ -18,30 +18,21 @@
 
 package weka.dl4j.iterators.instance.sequence.text;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.UUID;
-import java.util.zip.GZIPInputStream;
 import lombok.extern.log4j.Log4j2;
-import org.apache.commons.io.FileUtils;
 import org.deeplearning4j.iterator.LabeledSentenceProvider;
 import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
 import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.OptionMetadata;
-import weka.core.converters.CSVSaver;
 import weka.dl4j.iterators.instance.sequence.AbstractSequenceInstanceIterator;
 import weka.dl4j.iterators.provider.CollectionLabeledSentenceProvider;
+import weka.dl4j.text.embeddings.WordVectorLoader;
 import weka.dl4j.text.stopwords.Dl4jAbstractStopwords;
 import weka.dl4j.text.stopwords.Dl4jRainbow;
 import weka.dl4j.text.tokenization.preprocessor.CommonPreProcessor;
@@ -83,6 +74,10 @@ public abstract class AbstractTextEmbeddingIterator extends AbstractSequenceInst
    * Truncation length (maximum number of tokens per document)
    */
   protected int truncateLength = 100;
+  /**
+   * Whether to cache parsed ARFF/CSV word vectors in a binary file for faster reloads
+   */
+  protected boolean cacheWordVectors = true;
 
   /**
    * Initialize the word vectors from the given file
@@ -96,175 +91,25 @@ public abstract class AbstractTextEmbeddingIterator extends AbstractSequenceInst
 
     log.debug("Loading word vector model");
 
-    final String path = wordVectorLocation.getAbsolutePath();
-    final String pathLower = path.toLowerCase();
-    if (pathLower.endsWith(".arff")) {
-      loadEmbeddingFromArff(path);
-    } else if (pathLower.endsWith(".csv")) {
-      // Check if file is CSV
-      boolean success = loadEmbeddingFromCSV(wordVectorLocation);
-      if (!success) {
-        throw new RuntimeException("Could not load the word vector file.");
+    final String pathLower = wordVectorLocation.getAbsolutePath().toLowerCase();
+    if (pathLower.endsWith(".arff") || pathLower.endsWith(".csv")
+        || pathLower.endsWith(".csv.gz")) {
+      final File cacheDirectory = cacheWordVectors
+          ? Paths.get(System.getProperty("java.io.tmpdir"), "wordvector-cache").toFile()
+          : null;
+      try {
+        wordVectors = new WordVectorLoader(cacheDirectory).load(wordVectorLocation);
+      } catch (IOException e) {
+        throw new RuntimeException(
+            "Could not load the word vector file (" + wordVectorLocation.getAbsolutePath() + ")",
+            e);
       }
-    } else if (pathLower.endsWith(".csv.gz")) {
-      loadGZipped();
     } else {
       // If no file extension was caught before, try loading as is
       wordVectors = WordVectorSerializer.loadStaticModel(wordVectorLocation);
     }
   }
 
-  /**
-   * Load wordVectors from a gzipped csv file
-   */
-  private void loadGZipped() {
-    try {
-      GZIPInputStream gzis = new GZIPInputStream(new FileInputStream(wordVectorLocation));
-      File tmpFile =
-          Paths.get(System.getProperty("java.io.tmpdir"), "wordmodel-tmp.csv").toFile();
-      tmpFile.delete();
-      FileOutputStream fos = new FileOutputStream(tmpFile);
-      int length;
-      byte[] buffer = new byte[1024];
-      while ((length = gzis.read(buffer)) > 0) {
-        fos.write(buffer, 0, length);
-      }
-      fos.close();
-      gzis.close();
-
-      // Try loading decompressed CSV file
-      boolean success = loadEmbeddingFromCSV(tmpFile);
-      if (!success) {
-        throw new RuntimeException("Could not load the word vector file.");
-      }
-    } catch (IOException e) {
-      e.printStackTrace();
-    }
-  }
-
-  /**
-   * Load the embedding from a given arff file. First converts the ARFF to a temporary CSV file and
-   * continues the loading mechanism with the CSV file afterwards
-   *
-   * @param path Path to the ARFF file
-   */
-  private void loadEmbeddingFromArff(String path) {
-    // Try loading ARFF file
-    try {
-      Instances insts = new Instances(new FileReader(path));
-      CSVSaver saver = new CSVSaver();
-      saver.setFieldSeparator(" ");
-      saver.setInstances(insts);
-      final File tmpFile =
-          Paths.get(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString() + ".csv")
-              .toFile();
-      saver.setFile(tmpFile);
-      saver.setNoHeaderRow(true);
-      saver.writeBatch();
-      loadEmbeddingFromCSV(tmpFile);
-      tmpFile.delete();
-    } catch (Exception e) {
-      throw new RuntimeException(
-          "ARFF file could not be read (" + wordVectorLocation.getAbsolutePath() + ")", e);
-    }
-  }
-
-  /**
-   * Try to load the embedding from a CSV file. This iterates over different separators.
-   *
-   * @param f CSV file
-   * @return True if loading was successful
-   */
-  private boolean loadEmbeddingFromCSV(File f) {
-    // Try different separators
-    for (String sep : new String[]{" ", ";", ",", "\t", "\\w", ":"}) {
-      boolean success = loadEmbeddingFromCSV(sep, f);
-      if (success) {
-        return true;
-      }
-    }
-    return false;
-  }
-
-  /**
-   * Try to load the embedding from a CSV file.
-   *
-   * @param separator Separator for CSV interpretation
-   * @param file CSV file
-   */
-  private boolean loadEmbeddingFromCSV(String separator, File file) {
-    try {
-      File augmentedCSVFile = Paths.get(file.getAbsolutePath() + ".aug").toFile();
-      augmentedCSVFile.delete();
-      BufferedReader br = new BufferedReader(new FileReader(file));
-      BufferedWriter bw = new BufferedWriter(new FileWriter(augmentedCSVFile));
-      String line;
-      // Replace separator with whitespace in each line for dl4j parsing
-      while ((line = br.readLine()) != null) {
-        if (!line.contains(separator)) {
-          return false; // Continue to the next separator
-        }
-        bw.write(line.replaceAll(separator, " "));
-        bw.newLine();
-      }
-      br.close();
-      bw.close();
-
-      // First try to load it as is
-      try {
-        wordVectors = WordVectorSerializer.loadStaticModel(augmentedCSVFile);
-        if (wordVectors.vocab().words().size() != FileUtils.readLines(augmentedCSVFile).size()) {
-          throw new Exception("Something went wrong"); // Continue in catch clause
-        }
-        augmentedCSVFile.delete();
-        return true;
-      } catch (Exception e) {
-        // Failed: this might be due to DL4J expecting the word at pos [0] and the CSV file having
-        // the word at the last position
-
-        // Try to put the last token to the first position and reload the model
-        File augmentedCSVFileSwitched = Paths.get(file.getAbsolutePath() + ".aug2").toFile();
-        augmentedCSVFileSwitched.delete();
-        br = new BufferedReader(new FileReader(augmentedCSVFile));
-        bw = new BufferedWriter(new FileWriter(augmentedCSVFileSwitched));
-
-        // Replace separator with whitespace in each line for dl4j parsing
-        while ((line = br.readLine()) != null) {
-          String[] parts = line.split(" ");
-          // Join the parts, starting with the last one
-          StringBuilder sb = new StringBuilder();
-          sb.append(parts[parts.length - 1]);
-          for (int i = 0; i < parts.length - 1; i++) {
-            if (i < parts.length - 1) {
-              sb.append(" ");
-            }
-            sb.append(parts[i]);
-          }
-          bw.write(sb.toString());
-          bw.newLine();
-        }
-        br.close();
-        bw.close();
-
-        try {
-          wordVectors = WordVectorSerializer.loadStaticModel(augmentedCSVFileSwitched);
-          // Success
-          return true;
-        } catch (Exception ex) {
-          return false;
-        } finally {
-          augmentedCSVFile.delete();
-          augmentedCSVFileSwitched.delete();
-        }
-      } finally {
-        augmentedCSVFile.delete();
-      }
-    } catch (IOException e) {
-      // Not successful
-      return false;
-    }
-  }
-
   @OptionMetadata(
       displayName = "truncation length",
       description = "The maximum number of tokens per document (default = 100).",
@@ -345,6 +190,22 @@ public abstract class AbstractTextEmbeddingIterator extends AbstractSequenceInst
     this.stopwords = stopwords;
   }
 
+  @OptionMetadata(
+      displayName = "cache word vectors",
+      description = "Whether to cache parsed ARFF/CSV word vectors in a binary file in the "
+          + "temporary directory for faster reloads (default = true).",
+      commandLineParamName = "cacheWordVectors",
+      commandLineParamSynopsis = "-cacheWordVectors <boolean>",
+      displayOrder = 8
+  )
+  public boolean getCacheWordVectors() {
+    return cacheWordVectors;
+  }
+
+  public void setCacheWordVectors(boolean cacheWordVectors) {
+    this.cacheWordVectors = cacheWordVectors;
+  }
+
   @ProgrammaticProperty
   public WordVectors getWordVectors() {
     return wordVectors;
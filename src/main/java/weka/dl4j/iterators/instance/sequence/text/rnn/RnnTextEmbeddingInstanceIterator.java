@@ -26,6 +26,7 @@ import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import weka.core.Instances;
 import weka.core.InvalidInputDataException;
 import weka.core.Option;
+import weka.core.OptionMetadata;
 import weka.dl4j.iterators.dataset.sequence.text.rnn.RnnTextEmbeddingDataSetIterator;
 import weka.dl4j.iterators.instance.sequence.text.AbstractTextEmbeddingIterator;
 
@@ -50,6 +51,16 @@ public class RnnTextEmbeddingInstanceIterator extends AbstractTextEmbeddingItera
    */
   private static final long serialVersionUID = 1316260988724548474L;
 
+  /**
+   * Whether to memory-map the pre-tokenized corpus
+   */
+  protected boolean memoryMapCorpus = false;
+
+  /**
+   * Range of document lengths that share a bucket, 0 disables length bucketing
+   */
+  protected int lengthBucketWidth = 0;
+
   @Override
   public void validate(Instances data) throws InvalidInputDataException {
     if (!((data.attribute(0).isString() && data.classIndex() == 1)
@@ -80,7 +91,7 @@ public class RnnTextEmbeddingInstanceIterator extends AbstractTextEmbeddingItera
     validate(data);
     initWordVectors();
     final LabeledSentenceProvider prov = getSentenceProvider(data);
-    return new RnnTextEmbeddingDataSetIterator(
+    RnnTextEmbeddingDataSetIterator it = new RnnTextEmbeddingDataSetIterator(
         data,
         wordVectors,
         tokenizerFactory,
@@ -89,6 +100,43 @@ public class RnnTextEmbeddingInstanceIterator extends AbstractTextEmbeddingItera
         prov,
         batchSize,
         truncateLength);
+    it.setMemoryMapCorpus(memoryMapCorpus);
+    it.setLengthBucketing(lengthBucketWidth, seed);
+    return it;
+  }
+
+  @OptionMetadata(
+      displayName = "memory-map token corpus",
+      description = "Whether to keep the pre-tokenized documents in a memory-mapped file instead "
+          + "of on the heap (default = false).",
+      commandLineParamName = "memoryMapCorpus",
+      commandLineParamSynopsis = "-memoryMapCorpus",
+      commandLineParamIsFlag = true,
+      displayOrder = 6
+  )
+  public boolean isMemoryMapCorpus() {
+    return memoryMapCorpus;
+  }
+
+  public void setMemoryMapCorpus(boolean memoryMapCorpus) {
+    this.memoryMapCorpus = memoryMapCorpus;
+  }
+
+  @OptionMetadata(
+      displayName = "length bucket width",
+      description = "Group training documents whose lengths differ by less than this value into "
+          + "the same mini-batch to reduce padding, 0 disables bucketing. Bucketed training data "
+          + "is not cached (default = 0).",
+      commandLineParamName = "lengthBucketWidth",
+      commandLineParamSynopsis = "-lengthBucketWidth <int>",
+      displayOrder = 7
+  )
+  public int getLengthBucketWidth() {
+    return lengthBucketWidth;
+  }
+
+  public void setLengthBucketWidth(int lengthBucketWidth) {
+    this.lengthBucketWidth = lengthBucketWidth;
   }
 
   @Override
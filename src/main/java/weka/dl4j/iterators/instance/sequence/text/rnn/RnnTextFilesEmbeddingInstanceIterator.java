@@ -58,7 +58,7 @@ public class RnnTextFilesEmbeddingInstanceIterator extends RnnTextEmbeddingInsta
     validate(data);
     initWordVectors();
     final LabeledSentenceProvider sentenceProvider = getSentenceProvider(data);
-    return new RnnTextEmbeddingDataSetIterator(
+    RnnTextEmbeddingDataSetIterator it = new RnnTextEmbeddingDataSetIterator(
         data,
         wordVectors,
         tokenizerFactory,
@@ -67,6 +67,9 @@ public class RnnTextFilesEmbeddingInstanceIterator extends RnnTextEmbeddingInsta
         sentenceProvider,
         batchSize,
         truncateLength);
+    it.setMemoryMapCorpus(memoryMapCorpus);
+    it.setLengthBucketing(lengthBucketWidth, seed);
+    return it;
   }
 
   @Override
@@ -0,0 +1,270 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * EpochEvaluation.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.listener;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.eval.RegressionEvaluation;
+import org.deeplearning4j.nn.conf.layers.BaseOutputLayer;
+import org.deeplearning4j.nn.conf.layers.LossLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.activations.impl.ActivationIdentity;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.lossfunctions.ILossFunction;
+import org.nd4j.linalg.lossfunctions.impl.LossMCXENT;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import weka.classifiers.functions.dl4j.Utils;
+
+/**
+ * The result of a single pass of a model over a dataset iterator: the loss together with the
+ * classification or regression metrics, computed from one forward pass per batch.
+ * <p>
+ * The last result of each iterator is kept, together with a stamp of the model state. Evaluating
+ * the same iterator again on an unchanged model, e.g. by the {@link EpochListener} and the early
+ * stopping in the same epoch, returns the kept result without another pass over the data.
+ *
+ * @author agent
+ */
+public class EpochEvaluation {
+
+  /**
+   * Softmax output clipping of the cross entropy loss, see {@link LossMCXENT}
+   */
+  private static final double SOFTMAX_CLIP_EPS = 1e-10;
+
+  /**
+   * Last evaluation of each iterator
+   */
+  private static final Map<DataSetIterator, EpochEvaluation> LAST_EVALUATIONS =
+      Collections.synchronizedMap(new WeakHashMap<>());
+
+  /**
+   * Evaluated model
+   */
+  private final WeakReference<ComputationGraph> model;
+
+  /**
+   * Iteration count of the model at evaluation time
+   */
+  private final int iterationCount;
+
+  /**
+   * Epoch count of the model at evaluation time
+   */
+  private final int epochCount;
+
+  /**
+   * Sum of the model parameters at evaluation time
+   */
+  private final double paramSum;
+
+  /**
+   * Average loss per batch, including the regularization terms
+   */
+  private double score;
+
+  /**
+   * Classification metrics, null for regression
+   */
+  private Evaluation classificationEvaluation;
+
+  /**
+   * Regression metrics, null for classification
+   */
+  private RegressionEvaluation regressionEvaluation;
+
+  /**
+   * Constructor.
+   *
+   * @param model Evaluated model
+   */
+  private EpochEvaluation(ComputationGraph model) {
+    this.model = new WeakReference<>(model);
+    this.iterationCount = model.getIterationCount();
+    this.epochCount = model.getEpochCount();
+    this.paramSum = model.params().sumNumber().doubleValue();
+  }
+
+  /**
+   * Evaluate a model on an iterator, or return the last evaluation of the iterator if the model
+   * has not changed since.
+   *
+   * @param model Model to evaluate
+   * @param iterator Iterator yielding datasets
+   * @return Evaluation result
+   */
+  public static EpochEvaluation evaluate(ComputationGraph model, DataSetIterator iterator) {
+    EpochEvaluation last = LAST_EVALUATIONS.get(iterator);
+    EpochEvaluation current = new EpochEvaluation(model);
+    if (last != null && last.isSameModelState(current)) {
+      return last;
+    }
+    current.run(model, iterator);
+    LAST_EVALUATIONS.put(iterator, current);
+    return current;
+  }
+
+  /**
+   * Whether this and the other evaluation were computed for the same model state.
+   *
+   * @param other Other evaluation
+   * @return true if the model and its state are the same
+   */
+  private boolean isSameModelState(EpochEvaluation other) {
+    return model.get() != null && model.get() == other.model.get()
+        && iterationCount == other.iterationCount && epochCount == other.epochCount
+        && Double.compare(paramSum, other.paramSum) == 0;
+  }
+
+  /**
+   * Run the model over all batches of the iterator.
+   *
+   * @param net Model to evaluate
+   * @param iterator Iterator yielding datasets
+   */
+  private void run(ComputationGraph net, DataSetIterator iterator) {
+    final ILossFunction lossFn = getLossFunction(net);
+    final double regularization = net.calcRegularizationScore(true);
+    double scoreSum = 0;
+    int numBatches = 0;
+
+    iterator.reset();
+    try {
+      while (iterator.hasNext()) {
+        final DataSet next = Utils.getNextInferenceBatch(iterator);
+        final INDArray labels = next.getLabels();
+        final INDArray labelsMask = next.getLabelsMaskArray();
+        final INDArray output = net.outputSingle(next.getFeatures());
+
+        final int numOutcomes = (int) labels.size(1);
+        if (numOutcomes > 1) {
+          if (classificationEvaluation == null) {
+            classificationEvaluation = new Evaluation(numOutcomes);
+          }
+          classificationEvaluation.eval(labels, output, labelsMask);
+        } else {
+          if (regressionEvaluation == null) {
+            regressionEvaluation = new RegressionEvaluation(numOutcomes);
+          }
+          regressionEvaluation.eval(labels, output, labelsMask);
+        }
+
+        // Compute the loss from the same output instead of another forward pass
+        if (lossFn != null) {
+          scoreSum += computeLoss(lossFn, labels, output, labelsMask) + regularization;
+        } else {
+          scoreSum += net.score(next);
+        }
+        numBatches++;
+      }
+    } finally {
+      iterator.reset();
+    }
+
+    score = numBatches == 0 ? 0 : scoreSum / numBatches;
+  }
+
+  /**
+   * Compute the loss of a batch from the network output, as the output layer does from its
+   * pre-activations: summed over the examples (time series are flattened), divided by the batch
+   * size.
+   *
+   * @param lossFn Loss function of the output layer
+   * @param labels Labels
+   * @param output Network output (after the output activation)
+   * @param labelsMask Labels mask, may be null
+   * @return Loss of the batch
+   */
+  private static double computeLoss(ILossFunction lossFn, INDArray labels, INDArray output,
+      INDArray labelsMask) {
+    final long batchSize = labels.size(0);
+    INDArray labels2d = labels;
+    INDArray output2d = output;
+    INDArray mask2d = labelsMask;
+    if (output.rank() == 3) {
+      // [batch, size, time] -> [batch * time, size]
+      final long numOutcomes = output.size(1);
+      labels2d = labels.permute(0, 2, 1).dup('c').reshape('c', -1, numOutcomes);
+      output2d = output.permute(0, 2, 1).dup('c').reshape('c', -1, numOutcomes);
+      if (labelsMask != null) {
+        mask2d = labelsMask.dup('c').reshape('c', -1, 1);
+      }
+    }
+    if (lossFn instanceof LossMCXENT) {
+      // The loss only clips the output when it knows that it comes from a softmax
+      output2d = Transforms.min(Transforms.max(output2d, SOFTMAX_CLIP_EPS, true),
+          1.0 - SOFTMAX_CLIP_EPS, false);
+    }
+    return lossFn.computeScore(labels2d, output2d, new ActivationIdentity(), mask2d, false)
+        / batchSize;
+  }
+
+  /**
+   * Get the loss function of the (single) output layer.
+   *
+   * @param net Model
+   * @return Loss function, null if the output layer does not expose one
+   */
+  private static ILossFunction getLossFunction(ComputationGraph net) {
+    if (net.getNumOutputArrays() != 1) {
+      return null;
+    }
+    final org.deeplearning4j.nn.conf.layers.Layer outputLayer =
+        net.getOutputLayer(0).conf().getLayer();
+    if (outputLayer instanceof BaseOutputLayer) {
+      return ((BaseOutputLayer) outputLayer).getLossFn();
+    } else if (outputLayer instanceof LossLayer) {
+      return ((LossLayer) outputLayer).getLossFn();
+    }
+    return null;
+  }
+
+  /**
+   * Get the average loss per batch, including the regularization terms, as computed by
+   * {@link Utils#computeScore(ComputationGraph, DataSetIterator)}.
+   *
+   * @return Average loss
+   */
+  public double getScore() {
+    return score;
+  }
+
+  /**
+   * Get the classification metrics.
+   *
+   * @return Classification metrics, null for regression or an empty iterator
+   */
+  public Evaluation getClassificationEvaluation() {
+    return classificationEvaluation;
+  }
+
+  /**
+   * Get the regression metrics.
+   *
+   * @return Regression metrics, null for classification or an empty iterator
+   */
+  public RegressionEvaluation getRegressionEvaluation() {
+    return regressionEvaluation;
+  }
+}
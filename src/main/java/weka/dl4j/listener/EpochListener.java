@@ -21,16 +21,9 @@ package weka.dl4j.listener;
 import java.util.Arrays;
 import java.util.stream.Collectors;
 import lombok.extern.log4j.Log4j2;
-import org.deeplearning4j.datasets.iterator.AsyncDataSetIterator;
-import org.deeplearning4j.eval.Evaluation;
-import org.deeplearning4j.eval.RegressionEvaluation;
 import org.deeplearning4j.nn.api.Model;
 import org.deeplearning4j.nn.graph.ComputationGraph;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.DataSet;
-import org.nd4j.linalg.dataset.api.iterator.CachingDataSetIterator;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import weka.classifiers.functions.dl4j.Utils;
 import weka.core.OptionMetadata;
 
 /**
@@ -79,7 +72,8 @@ public class EpochListener extends TrainingListener {
   }
 
   /**
-   * Evaluate an iterator on a given model
+   * Evaluate an iterator on a given model. The validation pass is shared with the early stopping
+   * (see {@link EpochEvaluation}).
    *
    * @param model Model which is to be evaluated
    * @param iterator Iterator yielding datasets
@@ -87,49 +81,22 @@ public class EpochListener extends TrainingListener {
    * @return Evaluation string for logging
    */
   private String evaluateDataSetIterator(Model model, DataSetIterator iterator, boolean train) {
-    iterator.reset();
     String s = "";
     try {
       boolean isClassification = numClasses > 1;
       if (model instanceof ComputationGraph) {
         ComputationGraph net = (ComputationGraph) model;
-
-        Evaluation classificationEvaluation = new Evaluation(numClasses);
-        RegressionEvaluation regressionEvaluation = new RegressionEvaluation(numClasses);
-        while (iterator.hasNext()) {
-          DataSet next;
-          // AsyncDataSetIterator and CachingDataSetIterator do not support next(num)
-          if (iterator instanceof AsyncDataSetIterator
-              || iterator instanceof CachingDataSetIterator) {
-            next = Utils.getNext(iterator);
-          } else {
-            // TODO: figure out which batch size is feasible for inference
-            final int batch = iterator.batch() * 8;
-            next = Utils.getNext(iterator, batch);
-          }
-          INDArray output =
-              net.outputSingle(next.getFeatures()); // get the networks prediction
-          if (isClassification) {
-            classificationEvaluation.eval(next.getLabels(), output, next.getLabelsMaskArray());
-          } else {
-            regressionEvaluation.eval(next.getLabels(), output, next.getLabelsMaskArray());
-          }
-        }
+        EpochEvaluation evaluation = EpochEvaluation.evaluate(net, iterator);
 
         // Add loss (denoted as score in dl4j)
-        final double score;
-        if (train) {
-          score = net.score();
-        } else {
-          score = Utils.computeScore(net, iterator);
-        }
-
+        final double score = train ? net.score() : evaluation.getScore();
         s += String.format(" Loss:           %9f" + System.lineSeparator(), score);
 
         // Add Dl4j metrics
-        if (isClassification) {
+        if (isClassification && evaluation.getClassificationEvaluation() != null) {
           final String stats =
-              Arrays.stream(classificationEvaluation.stats().split(System.lineSeparator()))
+              Arrays.stream(evaluation.getClassificationEvaluation().stats()
+                  .split(System.lineSeparator()))
                   .filter(line -> !line.contains("# of classes")) // Remove # classes line
                   .filter(line -> !line.contains("===")) // Remove separators
                   .filter(
@@ -137,8 +104,8 @@ public class EpochListener extends TrainingListener {
                   .filter(line -> !line.trim().isEmpty()) // Remove empty lines
                   .collect(Collectors.joining(System.lineSeparator())); // Join to original format
           s += stats + System.lineSeparator();
-        } else {
-          s += regressionEvaluation.stats() + System.lineSeparator();
+        } else if (!isClassification && evaluation.getRegressionEvaluation() != null) {
+          s += evaluation.getRegressionEvaluation().stats() + System.lineSeparator();
         }
       }
     } catch (UnsupportedOperationException e) {
@@ -146,8 +113,6 @@ public class EpochListener extends TrainingListener {
     } catch (Exception e) {
       log.error("Evaluation after epoch failed. Error: ", e);
       return "Not available";
-    } finally {
-      iterator.reset();
     }
 
     return s;
@@ -0,0 +1,664 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * WordVectorLoader.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j.text.embeddings;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+import lombok.extern.log4j.Log4j2;
+import org.deeplearning4j.models.embeddings.inmemory.InMemoryLookupTable;
+import org.deeplearning4j.models.embeddings.loader.WordVectorSerializer;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
+import org.deeplearning4j.models.word2vec.VocabWord;
+import org.deeplearning4j.models.word2vec.wordstore.VocabCache;
+import org.deeplearning4j.models.word2vec.wordstore.inmemory.AbstractCache;
+import org.nd4j.common.primitives.Pair;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Loads word vectors from delimited text files (optionally gzipped) and ARFF files.
+ * <p>
+ * Text files are read in a single pass. The separator and the position of the word (first or last
+ * column) are sniffed from the first lines, an optional "numWords dimension" header line is
+ * skipped. Lines are split without regular expressions and parsed in parallel chunks.
+ * <p>
+ * If a cache directory is given, the parsed vectors are stored in a compact binary file which is
+ * memory-mapped on subsequent loads of the same (unmodified) file.
+ *
+ * @author agent
+ */
+@Log4j2
+public class WordVectorLoader {
+
+  /**
+   * Magic number of the binary cache format
+   */
+  private static final int CACHE_MAGIC = 0x57564331;
+
+  /**
+   * Size of the binary cache header in bytes
+   */
+  private static final int CACHE_HEADER_SIZE = 32;
+
+  /**
+   * Number of lines that are used to sniff the format
+   */
+  private static final int NUM_SNIFF_LINES = 10;
+
+  /**
+   * Number of lines that are parsed in parallel
+   */
+  private static final int CHUNK_SIZE = 8192;
+
+  /**
+   * Candidate separators, in order of preference
+   */
+  private static final char[] SEPARATORS = {'\t', ' ', ',', ';', ':'};
+
+  /**
+   * Directory of the binary cache, null if caching is disabled
+   */
+  protected final File cacheDirectory;
+
+  /**
+   * Constructor.
+   *
+   * @param cacheDirectory Directory of the binary cache, null to disable caching
+   */
+  public WordVectorLoader(File cacheDirectory) {
+    this.cacheDirectory = cacheDirectory;
+  }
+
+  /**
+   * Load the word vectors from the given file. Supported are ARFF files (one string attribute for
+   * the word, numeric attributes for the vector) and delimited text files, optionally gzipped.
+   *
+   * @param file Word vector file
+   * @return Word vectors
+   * @throws IOException Could not read the file
+   */
+  public WordVectors load(File file) throws IOException {
+    final File cacheFile = getCacheFile(file);
+    if (cacheFile != null && cacheFile.isFile()) {
+      try {
+        Embedding cached = readCache(cacheFile, file);
+        if (cached != null) {
+          log.debug("Loaded word vectors from cache {}", cacheFile.getAbsolutePath());
+          return cached.toWordVectors();
+        }
+      } catch (IOException e) {
+        log.warn("Could not read word vector cache " + cacheFile.getAbsolutePath(), e);
+      }
+    }
+
+    final String pathLower = file.getName().toLowerCase();
+    Embedding embedding;
+    if (pathLower.endsWith(".arff")) {
+      embedding = parseArff(file);
+    } else if (pathLower.endsWith(".gz")) {
+      try (InputStream in = new GZIPInputStream(new FileInputStream(file), 1 << 16)) {
+        embedding = parseDelimited(
+            new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16));
+      }
+    } else {
+      try (BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16)) {
+        embedding = parseDelimited(reader);
+      }
+    }
+    log.debug("Parsed {} word vectors of size {}", embedding.numWords, embedding.dimension);
+
+    if (cacheFile != null) {
+      try {
+        writeCache(cacheFile, file, embedding);
+      } catch (IOException e) {
+        log.warn("Could not write word vector cache " + cacheFile.getAbsolutePath(), e);
+        cacheFile.delete();
+      }
+    }
+    return embedding.toWordVectors();
+  }
+
+  /**
+   * Parse word vectors from a delimited text file.
+   *
+   * @param reader Reader of the text file
+   * @return Parsed embedding
+   * @throws IOException Could not read the file or could not detect the format
+   */
+  protected Embedding parseDelimited(BufferedReader reader) throws IOException {
+    // Sniff format from the first lines
+    List<String> lines = new ArrayList<>(CHUNK_SIZE);
+    String line;
+    while (lines.size() < NUM_SNIFF_LINES && (line = reader.readLine()) != null) {
+      line = line.trim();
+      if (!line.isEmpty()) {
+        lines.add(line);
+      }
+    }
+    if (lines.size() > 1 && isHeader(lines.get(0))) {
+      lines.remove(0);
+    }
+    final LineFormat format = LineFormat.sniff(lines);
+    if (format == null) {
+      throw new IOException("Could not detect the format of the word vector file.");
+    }
+
+    Embedding embedding = new Embedding(format.dimension);
+    while ((line = reader.readLine()) != null) {
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      lines.add(line);
+      if (lines.size() == CHUNK_SIZE) {
+        embedding.parseChunk(lines, format);
+        lines.clear();
+      }
+    }
+    embedding.parseChunk(lines, format);
+    embedding.trim();
+    return embedding;
+  }
+
+  /**
+   * Check whether the line is a word2vec style header consisting of the number of words and the
+   * vector size.
+   *
+   * @param line Line
+   * @return True if the line is a header
+   */
+  protected static boolean isHeader(String line) {
+    final String[] parts = line.split(" ");
+    if (parts.length != 2) {
+      return false;
+    }
+    try {
+      Long.parseLong(parts[0]);
+      Long.parseLong(parts[1]);
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Parse word vectors from an ARFF file. The first string (or nominal) attribute is used as word,
+   * all other attributes as vector elements.
+   *
+   * @param file ARFF file
+   * @return Parsed embedding
+   * @throws IOException Could not read the file
+   */
+  protected Embedding parseArff(File file) throws IOException {
+    Instances insts;
+    try (BufferedReader reader = new BufferedReader(new FileReader(file), 1 << 16)) {
+      insts = new Instances(reader);
+    }
+
+    int wordIdx = -1;
+    for (int i = 0; i < insts.numAttributes() && wordIdx < 0; i++) {
+      final Attribute att = insts.attribute(i);
+      if (att.isString() || att.isNominal()) {
+        wordIdx = i;
+      }
+    }
+    if (wordIdx < 0) {
+      throw new IOException("ARFF file does not contain a string attribute for the words.");
+    }
+
+    Embedding embedding = new Embedding(insts.numAttributes() - 1);
+    embedding.ensureCapacity(insts.numInstances());
+    for (Instance inst : insts) {
+      final int offset = embedding.numWords * embedding.dimension;
+      int k = 0;
+      for (int i = 0; i < insts.numAttributes(); i++) {
+        if (i != wordIdx) {
+          embedding.vectors[offset + k++] = (float) inst.value(i);
+        }
+      }
+      embedding.words[embedding.numWords++] = inst.stringValue(wordIdx);
+    }
+    embedding.trim();
+    return embedding;
+  }
+
+  /**
+   * Get the cache file for the given word vector file.
+   *
+   * @param file Word vector file
+   * @return Cache file, null if caching is disabled
+   */
+  protected File getCacheFile(File file) {
+    if (cacheDirectory == null) {
+      return null;
+    }
+    if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+      log.warn("Could not create word vector cache directory {}", cacheDirectory);
+      return null;
+    }
+    final String key = Integer.toHexString(file.getAbsolutePath().hashCode());
+    return new File(cacheDirectory, file.getName() + "-" + key + ".wvc");
+  }
+
+  /**
+   * Write the embedding to the binary cache. Layout: header (magic, source length, source
+   * modification time, number of words, dimension), vectors (row-major floats), words (UTF).
+   *
+   * @param cacheFile Cache file
+   * @param source Word vector file the embedding was parsed from
+   * @param embedding Embedding
+   * @throws IOException Could not write the cache
+   */
+  protected void writeCache(File cacheFile, File source, Embedding embedding) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+        FileChannel channel = raf.getChannel()) {
+      channel.truncate(0);
+      ByteBuffer header = ByteBuffer.allocate(CACHE_HEADER_SIZE);
+      header.putInt(CACHE_MAGIC);
+      header.putLong(source.length());
+      header.putLong(source.lastModified());
+      header.putInt(embedding.numWords);
+      header.putInt(embedding.dimension);
+      header.rewind();
+      channel.write(header);
+
+      // Vectors
+      final int numFloats = embedding.numWords * embedding.dimension;
+      ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+      for (int from = 0; from < numFloats; ) {
+        buf.clear();
+        final int len = Math.min(numFloats - from, buf.capacity() / Float.BYTES);
+        buf.asFloatBuffer().put(embedding.vectors, from, len);
+        buf.limit(len * Float.BYTES);
+        while (buf.hasRemaining()) {
+          channel.write(buf);
+        }
+        from += len;
+      }
+
+      // Words
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+      for (int i = 0; i < embedding.numWords; i++) {
+        out.writeUTF(embedding.words[i]);
+      }
+      out.flush();
+    }
+  }
+
+  /**
+   * Read the embedding from the binary cache.
+   *
+   * @param cacheFile Cache file
+   * @param source Word vector file the cache was created from
+   * @return Embedding, null if the cache is outdated
+   * @throws IOException Could not read the cache
+   */
+  protected Embedding readCache(File cacheFile, File source) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+        FileChannel channel = raf.getChannel()) {
+      ByteBuffer header = ByteBuffer.allocate(CACHE_HEADER_SIZE);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // Read full header
+      }
+      header.flip();
+      if (header.remaining() < CACHE_HEADER_SIZE
+          || header.getInt() != CACHE_MAGIC
+          || header.getLong() != source.length()
+          || header.getLong() != source.lastModified()) {
+        return null;
+      }
+      final int numWords = header.getInt();
+      final int dimension = header.getInt();
+
+      // Vectors: map in regions of at most 1GB
+      Embedding embedding = new Embedding(dimension);
+      embedding.ensureCapacity(numWords);
+      final long numFloats = (long) numWords * dimension;
+      final long regionFloats = (1L << 30) / Float.BYTES;
+      for (long from = 0; from < numFloats; from += regionFloats) {
+        final long len = Math.min(numFloats - from, regionFloats);
+        channel
+            .map(MapMode.READ_ONLY, CACHE_HEADER_SIZE + from * Float.BYTES, len * Float.BYTES)
+            .asFloatBuffer()
+            .get(embedding.vectors, (int) from, (int) len);
+      }
+
+      // Words
+      channel.position(CACHE_HEADER_SIZE + numFloats * Float.BYTES);
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+      for (int i = 0; i < numWords; i++) {
+        embedding.words[i] = in.readUTF();
+      }
+      embedding.numWords = numWords;
+      return embedding;
+    }
+  }
+
+  /**
+   * Format of a single line of a delimited word vector file.
+   */
+  protected static class LineFormat {
+
+    /**
+     * Field separator
+     */
+    final char separator;
+
+    /**
+     * Whether the word is in the first (true) or last (false) column
+     */
+    final boolean wordFirst;
+
+    /**
+     * Vector size
+     */
+    final int dimension;
+
+    LineFormat(char separator, boolean wordFirst, int dimension) {
+      this.separator = separator;
+      this.wordFirst = wordFirst;
+      this.dimension = dimension;
+    }
+
+    /**
+     * Detect the format from the given sample lines.
+     *
+     * @param lines Sample lines (trimmed, non-empty)
+     * @return Detected format, null if no format matches
+     */
+    static LineFormat sniff(List<String> lines) {
+      if (lines.isEmpty()) {
+        return null;
+      }
+      for (char sep : SEPARATORS) {
+        // Candidate: word in the first column, then word in the last column
+        for (boolean wordFirst : new boolean[]{true, false}) {
+          final int dimension = split(lines.get(0), sep).size() - 1;
+          if (dimension < 1) {
+            break;
+          }
+          LineFormat format = new LineFormat(sep, wordFirst, dimension);
+          boolean matches = true;
+          for (String line : lines) {
+            matches &= split(line, sep).size() == dimension + 1 && format.parseWord(line) != null;
+          }
+          if (matches) {
+            return format;
+          }
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Split a line at the separator. Runs of whitespace separators count as one.
+     *
+     * @param line Line
+     * @param sep Separator
+     * @return Fields
+     */
+    static List<String> split(String line, char sep) {
+      List<String> fields = new ArrayList<>();
+      int start = 0;
+      int end;
+      while ((end = line.indexOf(sep, start)) >= 0) {
+        fields.add(line.substring(start, end));
+        start = skip(line, end, sep, 1);
+      }
+      fields.add(line.substring(start));
+      return fields;
+    }
+
+    /**
+     * Skip a separator (and a run of whitespace separators) starting at the given index.
+     *
+     * @param line Line
+     * @param idx Index of a separator
+     * @param sep Separator
+     * @param direction 1 to skip forwards (returns the index after the run), -1 to skip backwards
+     * (returns the index of the first separator of the run)
+     * @return Index after skipping
+     */
+    static int skip(String line, int idx, char sep, int direction) {
+      final boolean whitespace = Character.isWhitespace(sep);
+      if (direction > 0) {
+        idx++;
+        while (whitespace && idx < line.length() && line.charAt(idx) == sep) {
+          idx++;
+        }
+      } else {
+        while (whitespace && idx > 0 && line.charAt(idx - 1) == sep) {
+          idx--;
+        }
+      }
+      return idx;
+    }
+
+    /**
+     * Parse a line without storing the vector.
+     *
+     * @param line Line
+     * @return Word, null if the line does not match the format
+     */
+    String parseWord(String line) {
+      return parse(line, new float[dimension], 0);
+    }
+
+    /**
+     * Parse a line.
+     *
+     * @param line Line (trimmed)
+     * @param dst Vector array
+     * @param offset Offset of the vector in the array
+     * @return Word, null if the line does not match the format
+     */
+    String parse(String line, float[] dst, int offset) {
+      try {
+        String word;
+        if (wordFirst) {
+          // Parse from the end, the word may contain the separator
+          int end = line.length();
+          for (int k = dimension - 1; k >= 0; k--) {
+            final int start = end > 0 ? line.lastIndexOf(separator, end - 1) : -1;
+            if (start < 0) {
+              return null;
+            }
+            dst[offset + k] = Float.parseFloat(line.substring(start + 1, end));
+            end = skip(line, start, separator, -1);
+          }
+          word = line.substring(0, end);
+        } else {
+          int start = 0;
+          for (int k = 0; k < dimension; k++) {
+            final int end = line.indexOf(separator, start);
+            if (end < 0) {
+              return null;
+            }
+            dst[offset + k] = Float.parseFloat(line.substring(start, end));
+            start = skip(line, end, separator, 1);
+          }
+          word = line.substring(start);
+        }
+        return word.isEmpty() ? null : word;
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Words and their vectors in a flat row-major array.
+   */
+  protected static class Embedding {
+
+    /**
+     * Vector size
+     */
+    final int dimension;
+
+    /**
+     * Words
+     */
+    String[] words = new String[0];
+
+    /**
+     * Vectors, row-major with shape [numWords, dimension]
+     */
+    float[] vectors = new float[0];
+
+    /**
+     * Number of words
+     */
+    int numWords = 0;
+
+    /**
+     * Number of skipped lines
+     */
+    int numSkipped = 0;
+
+    Embedding(int dimension) {
+      this.dimension = dimension;
+    }
+
+    /**
+     * Make sure the given number of additional words fit into the arrays.
+     *
+     * @param additional Number of additional words
+     */
+    void ensureCapacity(int additional) {
+      final int required = numWords + additional;
+      if (required > words.length) {
+        final int capacity = Math.max(required, words.length * 2);
+        words = Arrays.copyOf(words, capacity);
+        vectors = Arrays.copyOf(vectors, Math.multiplyExact(capacity, dimension));
+      }
+    }
+
+    /**
+     * Parse a chunk of lines in parallel and append the results. Lines that do not match the
+     * format are skipped.
+     *
+     * @param lines Lines (trimmed, non-empty)
+     * @param format Line format
+     */
+    void parseChunk(List<String> lines, LineFormat format) {
+      final int size = lines.size();
+      ensureCapacity(size);
+      final int base = numWords;
+      IntStream.range(0, size).parallel().forEach(i ->
+          words[base + i] = format.parse(lines.get(i), vectors, (base + i) * dimension));
+
+      // Compact skipped lines
+      int next = base;
+      for (int i = base; i < base + size; i++) {
+        if (words[i] == null) {
+          numSkipped++;
+          continue;
+        }
+        if (next != i) {
+          words[next] = words[i];
+          System.arraycopy(vectors, i * dimension, vectors, next * dimension, dimension);
+        }
+        next++;
+      }
+      numWords = next;
+    }
+
+    /**
+     * Remove duplicate words (keeping the first occurrence) and trim the arrays.
+     */
+    void trim() {
+      if (numSkipped > 0) {
+        log.warn("Skipped {} lines that did not match the word vector format.", numSkipped);
+      }
+      Set<String> seen = new HashSet<>(numWords * 2);
+      int next = 0;
+      for (int i = 0; i < numWords; i++) {
+        if (!seen.add(words[i])) {
+          continue;
+        }
+        if (next != i) {
+          words[next] = words[i];
+          System.arraycopy(vectors, i * dimension, vectors, next * dimension, dimension);
+        }
+        next++;
+      }
+      if (next < numWords) {
+        log.warn("Skipped {} duplicate words.", numWords - next);
+      }
+      numWords = next;
+      words = Arrays.copyOf(words, numWords);
+      vectors = Arrays.copyOf(vectors, numWords * dimension);
+    }
+
+    /**
+     * Create a DL4J word vector model backed by an in-memory lookup table.
+     *
+     * @return Word vectors
+     */
+    WordVectors toWordVectors() {
+      AbstractCache<VocabWord> cache = new AbstractCache<>();
+      for (int i = 0; i < numWords; i++) {
+        VocabWord word = new VocabWord(1.0, words[i]);
+        word.setIndex(i);
+        cache.addToken(word);
+        cache.addWordToIndex(i, words[i]);
+        cache.putVocabWord(words[i]);
+      }
+
+      INDArray syn0 = Nd4j.create(vectors, new long[]{numWords, dimension}, 'c');
+      InMemoryLookupTable<VocabWord> lookupTable =
+          new InMemoryLookupTable.Builder<VocabWord>()
+              .vectorLength(dimension)
+              .useAdaGrad(false)
+              .cache(cache)
+              .build();
+      lookupTable.setSyn0(syn0);
+      return WordVectorSerializer.fromPair(
+          Pair.makePair((InMemoryLookupTable) lookupTable, (VocabCache) cache));
+    }
+  }
+}
@@ -2,9 +2,14 @@ package weka.dl4j.zoo;
 
 import lombok.extern.log4j.Log4j2;
 import org.apache.commons.lang.NotImplementedException;
+import org.deeplearning4j.exception.DL4JInvalidConfigException;
+import org.deeplearning4j.exception.DL4JInvalidInputException;
 import org.deeplearning4j.nn.api.Layer;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.distribution.NormalDistribution;
+import org.deeplearning4j.nn.conf.inputs.InputType;
 import org.deeplearning4j.nn.conf.layers.GlobalPoolingLayer;
 import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.graph.ComputationGraph;
@@ -25,7 +30,9 @@ import weka.gui.ProgrammaticProperty;
 
 import java.io.File;
 import java.io.Serializable;
+import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.function.Supplier;
 
 /**
  * This class contains the logic necessary to load the pretrained weights for a given zoo model
@@ -94,8 +101,28 @@ public abstract class AbstractZooModel implements OptionHandler, Serializable {
      * @return MultiLayerNetwork of the specified ZooModel
      * @throws UnsupportedOperationException Init(...) was not supported (only CustomNet)
      */
-    public abstract ComputationGraph init(int numLabels, long seed, int[] shape, boolean filterMode)
-            throws UnsupportedOperationException;
+    public ComputationGraph init(int numLabels, long seed, int[] shape, boolean filterMode)
+            throws UnsupportedOperationException {
+        org.deeplearning4j.zoo.ZooModel net = createNet(numLabels, shape);
+
+        return attemptToLoadWeights(net, () -> toComputationGraph(net.init()), seed, numLabels,
+                filterMode);
+    }
+
+    /**
+     * Create the DL4J zoo model for the given labels and input shape. Models built from a DL4J zoo
+     * configuration override this, {@link #init} and {@link #isValidInputShape} use it.
+     *
+     * @param numLabels Number of labels to adjust the output
+     * @param shape Input shape (channels, height, width)
+     * @return DL4J zoo model, parameters are not initialized yet
+     * @throws UnsupportedOperationException The model is not built from a DL4J zoo configuration
+     */
+    protected org.deeplearning4j.zoo.ZooModel createNet(int numLabels, int[] shape)
+            throws UnsupportedOperationException {
+        throw new UnsupportedOperationException(
+                getClass().getSimpleName() + " is not built from a DL4J zoo configuration");
+    }
 
     /**
      * Get the input shape of this zoomodel
@@ -104,6 +131,71 @@ public abstract class AbstractZooModel implements OptionHandler, Serializable {
      */
     public abstract int[][] getShape();
 
+    /**
+     * Check whether the model accepts inputs of the given shape. The input type is propagated
+     * through the model configuration only, so neither parameters nor pretrained weights are
+     * initialized or loaded.
+     *
+     * @param numLabels Number of labels to adjust the output
+     * @param shape Input shape (channels, height, width)
+     * @return True if the model accepts the shape
+     * @throws UnsupportedOperationException The configuration is not available without loading
+     * the model
+     */
+    public boolean isValidInputShape(int numLabels, int[] shape)
+            throws UnsupportedOperationException {
+        return propagateInputShape(() -> getConfiguration(createNet(numLabels, shape)), shape);
+    }
+
+    /**
+     * Build the configuration of a DL4J zoo model. Each zoo model declares its own {@code conf()},
+     * returning either a ComputationGraphConfiguration or a MultiLayerConfiguration.
+     *
+     * @param net DL4J zoo model
+     * @return Configuration of the model
+     * @throws UnsupportedOperationException The model does not provide its configuration
+     */
+    private static Object getConfiguration(org.deeplearning4j.zoo.ZooModel net)
+            throws UnsupportedOperationException {
+        try {
+            return net.getClass().getMethod("conf").invoke(net);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new UnsupportedOperationException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException(
+                    net.getClass().getSimpleName() + " does not provide its configuration", e);
+        }
+    }
+
+    /**
+     * Propagate a convolutional input shape through a model configuration.
+     *
+     * @param configuration Builds the ComputationGraphConfiguration or MultiLayerConfiguration of
+     * the model (the DL4J zoo models already propagate their input shape when building it)
+     * @param shape Input shape (channels, height, width)
+     * @return True if the configuration accepts the shape
+     */
+    private boolean propagateInputShape(Supplier<Object> configuration, int[] shape) {
+        try {
+            Object conf = configuration.get();
+            InputType inputType = InputType.convolutional(shape[1], shape[2], shape[0]);
+            if (conf instanceof ComputationGraphConfiguration) {
+                ((ComputationGraphConfiguration) conf).getLayerActivationTypes(inputType);
+            } else if (conf instanceof MultiLayerConfiguration) {
+                ((MultiLayerConfiguration) conf).getLayerActivationTypes(inputType);
+            }
+            return true;
+        } catch (DL4JInvalidConfigException | DL4JInvalidInputException
+                | IllegalStateException | IllegalArgumentException e) {
+            log.debug("Input shape {} does not fit {}: {}", Arrays.toString(shape),
+                    getClass().getSimpleName(), e.getMessage());
+            return false;
+        }
+    }
+
     public Enum getVariation() {
         return null;
     }
@@ -137,14 +229,15 @@ public abstract class AbstractZooModel implements OptionHandler, Serializable {
     /**
      *
      * @param zooModel Zoo model family to use
-     * @param defaultNet Default ComputationGraph to use if loading weights fails
+     * @param defaultNet Creates the default ComputationGraph, only called if no pretrained weights
+     * are used or loading them fails
      * @param seed Random seed to initialize with
      * @param numLabels Number of output labels
      * @param filterMode True if using this zoo model for a filter - output layers don't need to be setup
      * @return ComputationGraph - if all succeeds then will be initialized with pretrained weights
      */
     public ComputationGraph attemptToLoadWeights(org.deeplearning4j.zoo.ZooModel zooModel,
-                                                 ComputationGraph defaultNet,
+                                                 Supplier<ComputationGraph> defaultNet,
                                                  long seed,
                                                  int numLabels,
                                                  boolean filterMode) {
@@ -155,7 +248,7 @@ public abstract class AbstractZooModel implements OptionHandler, Serializable {
 
         // If no pretrained weights specified, simply return the standard model
         if (m_pretrainedType == PretrainedType.NONE)
-            return finish(defaultNet);
+            return finish(defaultNet.get());
 
         // If the specified pretrained weights aren't available, return the standard model
         if (!checkPretrained(zooModel)) {
@@ -165,7 +258,7 @@ public abstract class AbstractZooModel implements OptionHandler, Serializable {
         // If downloading the weights fails, return the standard model
         ComputationGraph pretrainedModel = downloadWeights(zooModel);
         if (pretrainedModel == null)
-            return finish(defaultNet);
+            return finish(defaultNet.get());
 
         // If all has gone well, we have the pretrained weights
         return finish(pretrainedModel);
@@ -256,17 +349,26 @@ public abstract class AbstractZooModel implements OptionHandler, Serializable {
             if (pretrained == null) {
                 throw new Exception("Error while initialising model");
             }
-            if (pretrained instanceof MultiLayerNetwork) {
-                return ((MultiLayerNetwork) pretrained).toComputationGraph();
-            } else {
-                return (ComputationGraph) pretrained;
-            }
+            return toComputationGraph(pretrained);
         } catch (Exception ex) {
             ex.printStackTrace();
             return null;
         }
     }
 
+    /**
+     * Convert an initialized zoo model into a ComputationGraph
+     * @param model MultiLayerNetwork or ComputationGraph
+     * @return ComputationGraph of the model
+     */
+    private static ComputationGraph toComputationGraph(Object model) {
+        if (model instanceof MultiLayerNetwork) {
+            return ((MultiLayerNetwork) model).toComputationGraph();
+        } else {
+            return (ComputationGraph) model;
+        }
+    }
+
     /**
      * We need a layer with the correct number of outputs
      * @return Default output layer
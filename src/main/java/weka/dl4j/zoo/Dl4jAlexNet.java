@@ -19,7 +19,6 @@
 package weka.dl4j.zoo;
 
 import org.deeplearning4j.nn.conf.CacheMode;
-import org.deeplearning4j.nn.graph.ComputationGraph;
 import weka.dl4j.Preferences;
 import weka.dl4j.PretrainedType;
 
@@ -38,16 +37,13 @@ public class Dl4jAlexNet extends AbstractZooModel {
   }
 
   @Override
-  public ComputationGraph init(int numLabels, long seed, int[] shape, boolean filterMode) {
-    org.deeplearning4j.zoo.model.AlexNet net = org.deeplearning4j.zoo.model.AlexNet.builder()
+  protected org.deeplearning4j.zoo.model.AlexNet createNet(int numLabels, int[] shape) {
+    return org.deeplearning4j.zoo.model.AlexNet.builder()
             .cacheMode(CacheMode.NONE)
             .workspaceMode(Preferences.WORKSPACE_MODE)
             .inputShape(shape)
             .numClasses(numLabels)
             .build();
-    ComputationGraph defaultNet = net.init().toComputationGraph();
-
-    return attemptToLoadWeights(net, defaultNet, seed, numLabels, filterMode);
   }
 
   @Override
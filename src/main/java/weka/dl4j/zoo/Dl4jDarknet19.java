@@ -19,7 +19,6 @@
 package weka.dl4j.zoo;
 
 import org.deeplearning4j.nn.conf.CacheMode;
-import org.deeplearning4j.nn.graph.ComputationGraph;
 import weka.core.OptionMetadata;
 import weka.dl4j.Preferences;
 import weka.dl4j.PretrainedType;
@@ -69,17 +68,13 @@ public class Dl4jDarknet19 extends AbstractZooModel {
 //  }
 
   @Override
-  public ComputationGraph init(int numLabels, long seed, int[] shape, boolean filterMode) {
-    org.deeplearning4j.zoo.model.Darknet19 net = org.deeplearning4j.zoo.model.Darknet19.builder()
+  protected org.deeplearning4j.zoo.model.Darknet19 createNet(int numLabels, int[] shape) {
+    return org.deeplearning4j.zoo.model.Darknet19.builder()
         .cacheMode(CacheMode.NONE)
         .workspaceMode(Preferences.WORKSPACE_MODE)
         .inputShape(shape)
         .numClasses(numLabels)
         .build();
-
-    ComputationGraph defaultNet = net.init();
-
-    return attemptToLoadWeights(net, defaultNet, seed, numLabels, filterMode);
   }
 
   @Override
@@ -19,7 +19,6 @@
 package weka.dl4j.zoo;
 
 import org.deeplearning4j.nn.conf.CacheMode;
-import org.deeplearning4j.nn.graph.ComputationGraph;
 import weka.dl4j.Preferences;
 import weka.dl4j.PretrainedType;
 
@@ -38,18 +37,14 @@ public class Dl4jFaceNetNN4Small2 extends AbstractZooModel {
   }
 
   @Override
-  public ComputationGraph init(int numLabels, long seed, int[] shape, boolean filterMode) {
-    org.deeplearning4j.zoo.model.FaceNetNN4Small2 net = org.deeplearning4j.zoo.model.FaceNetNN4Small2
+  protected org.deeplearning4j.zoo.model.FaceNetNN4Small2 createNet(int numLabels, int[] shape) {
+    return org.deeplearning4j.zoo.model.FaceNetNN4Small2
         .builder()
         .cacheMode(CacheMode.NONE)
         .workspaceMode(Preferences.WORKSPACE_MODE)
         .inputShape(shape)
         .numClasses(numLabels)
         .build();
-
-    ComputationGraph defaultNet = net.init();
-
-    return attemptToLoadWeights(net, defaultNet, seed, numLabels, filterMode);
   }
 
   @Override
@@ -19,8 +19,6 @@
 package weka.dl4j.zoo;
 
 import org.deeplearning4j.nn.conf.CacheMode;
-import org.deeplearning4j.nn.graph.ComputationGraph;
-import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import weka.classifiers.functions.MultilayerPerceptron;
 import weka.dl4j.Preferences;
 import weka.dl4j.PretrainedType;
@@ -53,17 +51,13 @@ public class Dl4jLeNet extends AbstractZooModel {
 //  }
 
   @Override
-  public ComputationGraph init(int numLabels, long seed, int[] shape, boolean filterMode) {
-    org.deeplearning4j.zoo.model.LeNet net = org.deeplearning4j.zoo.model.LeNet.builder()
+  protected org.deeplearning4j.zoo.model.LeNet createNet(int numLabels, int[] shape) {
+    return org.deeplearning4j.zoo.model.LeNet.builder()
         .cacheMode(CacheMode.NONE)
         .workspaceMode(Preferences.WORKSPACE_MODE)
         .inputShape(shape)
         .numClasses(numLabels)
         .build();
-
-    ComputationGraph defaultNet = ((MultiLayerNetwork) net.init()).toComputationGraph();
-
-    return attemptToLoadWeights(net, defaultNet, seed, numLabels, filterMode);
   }
 
   @Override
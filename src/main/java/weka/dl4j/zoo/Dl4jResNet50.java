@@ -24,7 +24,6 @@ import org.deeplearning4j.nn.api.OptimizationAlgorithm;
 import org.deeplearning4j.nn.conf.CacheMode;
 import org.deeplearning4j.nn.conf.distribution.NormalDistribution;
 import org.deeplearning4j.nn.conf.layers.OutputLayer;
-import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.nn.transferlearning.FineTuneConfiguration;
 import org.deeplearning4j.nn.transferlearning.TransferLearning;
 import org.deeplearning4j.nn.weights.WeightInit;
@@ -63,17 +62,13 @@ public class Dl4jResNet50 extends AbstractZooModel {
 //    }
 
     @Override
-    public ComputationGraph init(int numLabels, long seed, int[] shape, boolean filterMode) {
-        org.deeplearning4j.zoo.model.ResNet50 net = org.deeplearning4j.zoo.model.ResNet50.builder()
+    protected org.deeplearning4j.zoo.model.ResNet50 createNet(int numLabels, int[] shape) {
+        return org.deeplearning4j.zoo.model.ResNet50.builder()
                 .cacheMode(CacheMode.NONE)
                 .workspaceMode(Preferences.WORKSPACE_MODE)
                 .inputShape(shape)
                 .numClasses(numLabels)
                 .build();
-
-        ComputationGraph defaultNet = net.init();
-
-        return attemptToLoadWeights(net, defaultNet, seed, numLabels, filterMode);
     }
 
     @Override
@@ -19,7 +19,6 @@
 package weka.dl4j.zoo;
 
 import org.deeplearning4j.nn.conf.CacheMode;
-import org.deeplearning4j.nn.graph.ComputationGraph;
 import weka.dl4j.Preferences;
 import weka.dl4j.PretrainedType;
 
@@ -49,20 +48,15 @@ public class Dl4jSqueezeNet extends AbstractZooModel {
 //    }
 
     @Override
-    public ComputationGraph init(int numLabels, long seed, int[] shape, boolean filterMode) {
-        org.deeplearning4j.zoo.model.SqueezeNet net = org.deeplearning4j.zoo.model.SqueezeNet.builder()
+    protected org.deeplearning4j.zoo.model.SqueezeNet createNet(int numLabels, int[] shape) {
+        return org.deeplearning4j.zoo.model.SqueezeNet.builder()
                 .cacheMode(CacheMode.NONE)
                 .workspaceMode(Preferences.WORKSPACE_MODE)
                 .inputShape(shape)
                 .numClasses(numLabels)
                 .build();
-
-        ComputationGraph defaultNet = net.init();
-
-        return attemptToLoadWeights(net, defaultNet, seed, numLabels, filterMode);
     }
 
-
     @Override
     public int[][] getShape() {
         return org.deeplearning4j.zoo.model.ResNet50.builder().build().metaData().getInputShape();
@@ -19,7 +19,6 @@
 package weka.dl4j.zoo;
 
 import org.deeplearning4j.nn.conf.CacheMode;
-import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.zoo.ZooModel;
 import weka.core.OptionMetadata;
 import weka.dl4j.Preferences;
@@ -75,27 +74,23 @@ public class Dl4jVGG extends AbstractZooModel {
         }
     }
 
-    public ComputationGraph init(int numLabels, long seed, int[] shape, boolean filterMode) {
-        ZooModel net = null;
+    @Override
+    protected ZooModel createNet(int numLabels, int[] shape) {
         if (m_variation == VGG.VARIATION.VGG16) {
-            net = org.deeplearning4j.zoo.model.VGG16.builder()
+            return org.deeplearning4j.zoo.model.VGG16.builder()
                     .cacheMode(CacheMode.NONE)
                     .workspaceMode(Preferences.WORKSPACE_MODE)
                     .inputShape(shape)
                     .numClasses(numLabels)
                     .build();
-        } else if (m_variation == VGG.VARIATION.VGG19) {
-            net = org.deeplearning4j.zoo.model.VGG19.builder()
+        } else {
+            return org.deeplearning4j.zoo.model.VGG19.builder()
                     .cacheMode(CacheMode.NONE)
                     .workspaceMode(Preferences.WORKSPACE_MODE)
                     .inputShape(shape)
                     .numClasses(numLabels)
                     .build();
         }
-
-        ComputationGraph defaultNet = net.init();
-
-        return attemptToLoadWeights(net, defaultNet, seed, numLabels, filterMode);
     }
 
     @Override
@@ -19,7 +19,6 @@
 package weka.dl4j.zoo;
 
 import org.deeplearning4j.nn.conf.CacheMode;
-import org.deeplearning4j.nn.graph.ComputationGraph;
 import weka.dl4j.Preferences;
 import weka.dl4j.PretrainedType;
 
@@ -38,6 +37,7 @@ public class Dl4jXception extends AbstractZooModel {
     setNumFExtractOutputs(2048);
     setFeatureExtractionLayer("avg_pool");
     setOutputLayer("predictions");
+    setRequiresPooling(true);
   }
 
 //  @Override
@@ -46,19 +46,13 @@ public class Dl4jXception extends AbstractZooModel {
 //  }
 
   @Override
-  public ComputationGraph init(int numLabels, long seed, int[] shape, boolean filterMode) {
-    org.deeplearning4j.zoo.model.Xception net = org.deeplearning4j.zoo.model.Xception.builder()
+  protected org.deeplearning4j.zoo.model.Xception createNet(int numLabels, int[] shape) {
+    return org.deeplearning4j.zoo.model.Xception.builder()
         .cacheMode(CacheMode.NONE)
         .workspaceMode(Preferences.WORKSPACE_MODE)
         .inputShape(shape)
         .numClasses(numLabels)
         .build();
-
-    ComputationGraph defaultNet = net.init();
-
-    setRequiresPooling(true);
-
-    return attemptToLoadWeights(net, defaultNet, seed, numLabels, filterMode);
   }
 
   @Override
@@ -52,9 +52,8 @@ public class KerasDenseNet extends AbstractZooModel {
     public ComputationGraph init(int numLabels, long seed, int[] shape, boolean filterMode) {
         DenseNet denseNet = new DenseNet();
         denseNet.setVariation(variation);
-        ComputationGraph defaultNet = denseNet.init();
 
-        return attemptToLoadWeights(denseNet, defaultNet, seed, numLabels, filterMode);
+        return attemptToLoadWeights(denseNet, denseNet::init, seed, numLabels, filterMode);
     }
 
     @Override
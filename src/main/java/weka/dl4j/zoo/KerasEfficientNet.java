@@ -65,9 +65,8 @@ public class KerasEfficientNet extends AbstractZooModel {
     public ComputationGraph init(int numLabels, long seed, int[] shape, boolean filterMode) {
         EfficientNet efficientNet = new EfficientNet();
         efficientNet.setVariation(variation);
-        ComputationGraph defaultNet = efficientNet.init();
 
-        return attemptToLoadWeights(efficientNet, defaultNet, seed, numLabels, filterMode);
+        return attemptToLoadWeights(efficientNet, efficientNet::init, seed, numLabels, filterMode);
     }
 
     @Override
@@ -13,13 +13,12 @@ import org.deeplearning4j.util.ModelSerializer;
 import org.deeplearning4j.zoo.ModelMetaData;
 import org.deeplearning4j.zoo.PretrainedType;
 import org.deeplearning4j.zoo.ZooModel;
+import weka.dl4j.Preferences;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.URL;
-import java.util.zip.Adler32;
-import java.util.zip.Checksum;
 
 /**
  * This class essentially copies DL4J's ZooModel class, allowing the custom Keras models to provide the same interface
@@ -84,11 +83,25 @@ public abstract class KerasZooModel extends ZooModel implements Serializable {
         // Set up file locations
         String localFilename = modelPrettyName() + ".zip";
 
-        File rootCacheDir = DL4JResources.getDirectory(ResourceType.ZOO_MODEL, modelFamily());
+        File rootCacheDir = Preferences.PRETRAINED_DIR != null
+                ? new File(Preferences.PRETRAINED_DIR, modelFamily())
+                : DL4JResources.getDirectory(ResourceType.ZOO_MODEL, modelFamily());
         File cachedFile = new File(rootCacheDir, localFilename);
+        long expectedChecksum = pretrainedChecksum(pretrainedType);
+
+        // Use the extracted model if it's already in the store
+        PretrainedWeightsStore store = new PretrainedWeightsStore(rootCacheDir, modelPrettyName());
+        ComputationGraph stored = store.load(expectedChecksum);
+        if (stored != null) {
+            return stored;
+        }
 
         // Download the file if necessary
         if (!cachedFile.exists()) {
+            if (Preferences.OFFLINE) {
+                throw new IOException(String.format("Pretrained model file %s not found "
+                        + "(offline mode, downloads are disabled)", cachedFile));
+            }
             log.info("Downloading model to " + cachedFile.toString());
             FileUtils.copyURLToFile(new URL(remoteUrl), cachedFile);
         } else {
@@ -96,12 +109,9 @@ public abstract class KerasZooModel extends ZooModel implements Serializable {
         }
 
         // Validate the checksum - ensure this is the correct file
-        long expectedChecksum = pretrainedChecksum(pretrainedType);
         if (expectedChecksum != 0L) {
             log.info("Verifying download...");
-            Checksum adler = new Adler32();
-            FileUtils.checksum(cachedFile, adler);
-            long localChecksum = adler.getValue();
+            long localChecksum = PretrainedWeightsStore.checksum(cachedFile);
             log.info("Checksum local is " + localChecksum + ", expecting " + expectedChecksum);
 
             if (expectedChecksum != localChecksum) {
@@ -113,13 +123,22 @@ public abstract class KerasZooModel extends ZooModel implements Serializable {
         }
 
         // Load the .zip file to a ComputationGraph
+        ComputationGraph model;
         try {
-            return ModelSerializer.restoreComputationGraph(cachedFile);
+            model = ModelSerializer.restoreComputationGraph(cachedFile, false);
         } catch (Exception ex) {
             System.err.println("Failed to load model");
             ex.printStackTrace();
             return null;
         }
+
+        // Extract the model, so later runs can skip the decompression
+        try {
+            store.save(model, expectedChecksum);
+        } catch (IOException ex) {
+            log.warn("Could not store the extracted model", ex);
+        }
+        return model;
     }
 
     @Override
@@ -0,0 +1,269 @@
+package weka.dl4j.zoo.keras;
+
+import lombok.extern.log4j.Log4j2;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.concurrency.AffinityManager.Location;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.zip.Adler32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Local store of extracted pretrained models, so a model is only inflated from its downloaded .zip
+ * file once.
+ *
+ * Each model is stored as three files next to the .zip file:
+ * <ul>
+ *     <li>{@code <name>.json}: the ComputationGraph configuration</li>
+ *     <li>{@code <name>.params}: the flat parameter vector, uncompressed and in native byte order
+ *     (little-endian on all common platforms)</li>
+ *     <li>{@code <name>.properties}: the parameter data type and length, and the checksum of the
+ *     .zip file the model was extracted from. It is written last, so a store without it is
+ *     incomplete and ignored.</li>
+ * </ul>
+ * The parameter file is memory-mapped on load and copied into the parameter buffer in bulk, so
+ * loading a model needs neither decompression nor a copy on the Java heap.
+ *
+ * Checksums of downloaded files are cached in {@code <file>.adler32} together with the file size
+ * and modification time, so a file is only read in full again once it changes.
+ *
+ * @author agent
+ */
+@Log4j2
+public class PretrainedWeightsStore {
+
+    /**
+     * Store format version
+     */
+    private static final String FORMAT_VERSION = "1";
+
+    /**
+     * Configuration file
+     */
+    private final File configurationFile;
+
+    /**
+     * Flat parameter file
+     */
+    private final File paramsFile;
+
+    /**
+     * Properties file describing the parameters
+     */
+    private final File propertiesFile;
+
+    /**
+     * Constructor.
+     *
+     * @param directory Directory of the store
+     * @param name Name of the model
+     */
+    public PretrainedWeightsStore(File directory, String name) {
+        this.configurationFile = new File(directory, name + ".json");
+        this.paramsFile = new File(directory, name + ".params");
+        this.propertiesFile = new File(directory, name + ".properties");
+    }
+
+    /**
+     * Load the stored model.
+     *
+     * @param sourceChecksum Expected checksum of the .zip file the model was extracted from
+     * @return The model, or null if it is not stored or was extracted from a different file
+     */
+    public ComputationGraph load(long sourceChecksum) {
+        if (!propertiesFile.exists()) {
+            return null;
+        }
+        try {
+            Properties props = readProperties(propertiesFile);
+            DataType dataType = DataType.valueOf(props.getProperty("dataType"));
+            long length = Long.parseLong(props.getProperty("length"));
+            long numBytes = length * Nd4j.sizeOfDataType(dataType);
+            if (!FORMAT_VERSION.equals(props.getProperty("version"))
+                    || Long.parseLong(props.getProperty("sourceChecksum")) != sourceChecksum
+                    || !ByteOrder.nativeOrder().toString().equals(props.getProperty("byteOrder"))
+                    || paramsFile.length() != numBytes) {
+                log.info("Stored model at {} is outdated", paramsFile);
+                return null;
+            }
+
+            String json = new String(Files.readAllBytes(configurationFile.toPath()),
+                    StandardCharsets.UTF_8);
+            ComputationGraphConfiguration conf = ComputationGraphConfiguration.fromJson(json);
+
+            INDArray params = Nd4j.createUninitialized(dataType, 1, length);
+            try (FileChannel channel =
+                    FileChannel.open(paramsFile.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, numBytes);
+                ByteBuffer buf = params.data().asNio();
+                buf.position(0);
+                buf.put(mapped);
+            }
+            Nd4j.getAffinityManager().tagLocation(params, Location.HOST);
+
+            ComputationGraph model = new ComputationGraph(conf);
+            model.init(params, false);
+            log.info("Loaded stored model from {}", paramsFile);
+            return model;
+        } catch (Exception e) {
+            log.warn("Could not load stored model from " + paramsFile, e);
+            return null;
+        }
+    }
+
+    /**
+     * Store a model.
+     *
+     * @param model Model to store
+     * @param sourceChecksum Checksum of the .zip file the model was extracted from
+     * @throws IOException Could not write the store
+     */
+    public void save(ComputationGraph model, long sourceChecksum) throws IOException {
+        INDArray params = model.params();
+        long numBytes = params.length() * params.data().getElementSize();
+        if (numBytes > Integer.MAX_VALUE) {
+            throw new IOException("Parameters are too large to be stored: " + numBytes + " bytes");
+        }
+        if (params.isView() || params.data().length() != params.length()) {
+            params = params.dup();
+        }
+        Nd4j.getAffinityManager().ensureLocation(params, Location.HOST);
+
+        // An existing store is invalid from here on
+        Files.deleteIfExists(propertiesFile.toPath());
+
+        writeAtomically(configurationFile, model.getConfiguration().toJson()
+                .getBytes(StandardCharsets.UTF_8));
+
+        File tmpParams = new File(paramsFile.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpParams.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = params.data().asNio();
+            buf.position(0);
+            buf.limit((int) numBytes);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+        Files.move(tmpParams.toPath(), paramsFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        Properties props = new Properties();
+        props.setProperty("version", FORMAT_VERSION);
+        props.setProperty("dataType", params.dataType().name());
+        props.setProperty("length", Long.toString(params.length()));
+        props.setProperty("byteOrder", ByteOrder.nativeOrder().toString());
+        props.setProperty("sourceChecksum", Long.toString(sourceChecksum));
+        writeProperties(propertiesFile, props);
+        log.info("Stored extracted model at {}", paramsFile);
+    }
+
+    /**
+     * Get the Adler32 checksum of a file. The checksum is cached along with the size and
+     * modification time of the file and only computed if the file has changed since.
+     *
+     * @param file File to check
+     * @return Checksum of the file
+     * @throws IOException Could not read the file
+     */
+    public static long checksum(File file) throws IOException {
+        File cacheFile = new File(file.getPath() + ".adler32");
+        String size = Long.toString(file.length());
+        String lastModified = Long.toString(file.lastModified());
+        if (cacheFile.exists()) {
+            try {
+                Properties cached = readProperties(cacheFile);
+                if (size.equals(cached.getProperty("size"))
+                        && lastModified.equals(cached.getProperty("lastModified"))) {
+                    return Long.parseLong(cached.getProperty("checksum"));
+                }
+            } catch (IOException | NumberFormatException e) {
+                log.debug("Ignoring invalid checksum cache {}", cacheFile);
+            }
+        }
+
+        long checksum;
+        try (CheckedInputStream in =
+                new CheckedInputStream(new FileInputStream(file), new Adler32())) {
+            byte[] buffer = new byte[1 << 16];
+            while (in.read(buffer) != -1) {
+                // Only read for the checksum
+            }
+            checksum = in.getChecksum().getValue();
+        }
+
+        Properties cached = new Properties();
+        cached.setProperty("size", size);
+        cached.setProperty("lastModified", lastModified);
+        cached.setProperty("checksum", Long.toString(checksum));
+        try {
+            writeProperties(cacheFile, cached);
+        } catch (IOException e) {
+            log.debug("Could not cache checksum of {}", file);
+        }
+        return checksum;
+    }
+
+    /**
+     * Read a properties file.
+     *
+     * @param file File to read
+     * @return Properties
+     * @throws IOException Could not read the file
+     */
+    private static Properties readProperties(File file) throws IOException {
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        }
+        return props;
+    }
+
+    /**
+     * Write a properties file atomically.
+     *
+     * @param file File to write
+     * @param props Properties
+     * @throws IOException Could not write the file
+     */
+    private static void writeProperties(File file, Properties props) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, null);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write a file atomically.
+     *
+     * @param file File to write
+     * @param bytes Content
+     * @throws IOException Could not write the file
+     */
+    private static void writeAtomically(File file, byte[] bytes) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.write(tmp.toPath(), bytes);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
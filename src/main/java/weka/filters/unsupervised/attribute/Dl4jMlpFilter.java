@@ -21,12 +21,19 @@ package weka.filters.unsupervised.attribute;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Enumeration;
 
 import lombok.extern.log4j.Log4j2;
 import weka.classifiers.functions.Dl4jMlpClassifier;
 import weka.core.*;
+import weka.core.converters.AbstractFileSaver;
+import weka.core.converters.ConverterUtils;
+import weka.core.converters.IncrementalConverter;
+import weka.dl4j.ModelRegistry;
 import weka.dl4j.PoolingType;
 import weka.dl4j.iterators.instance.AbstractInstanceIterator;
 import weka.dl4j.iterators.instance.DefaultInstanceIterator;
@@ -55,7 +62,10 @@ import weka.filters.SimpleBatchFilter;
 *  The instance iterator to use.</pre>
 *
 * <pre> -poolingType &lt;String&gt;
-*  Pooling function to apply on intermediary activations</pre>
+*  Pooling function to apply on intermediary activations (MAX, AVG, SUM, MIN, PNORM, MAX_AVG or NONE). MAX_AVG concatenates max and average pooling.</pre>
+*
+* <pre> -output-file &lt;File&gt;
+*  If set, the featurized instances are written batch-by-batch to this file (e.g. ARFF or CSV) instead of being kept in memory, and the filter only outputs the format. Use this for datasets whose features do not fit into memory.</pre>
 *
 <!-- options-end -->
 
@@ -112,11 +122,21 @@ public class Dl4jMlpFilter extends SimpleBatchFilter implements OptionHandler, C
    */
   protected Dl4jMlpClassifier model;
 
+  /**
+   * Key of the model in the {@link ModelRegistry}
+   */
+  protected transient String modelKey;
+
   /**
    * Flag for the GUI to set whether or not default feature extraction layer should be loaded
    */
   protected boolean useDefaultFeatureLayer = true;
 
+  /**
+   * File the featurized instances are streamed to (if set), instead of keeping them in memory
+   */
+  protected File outputFile = new File(WekaPackageManager.getPackageHome().toURI());
+
   /**
    * GET/SET METHODS
    */
@@ -188,7 +208,8 @@ public class Dl4jMlpFilter extends SimpleBatchFilter implements OptionHandler, C
   }
 
   @OptionMetadata(
-          description = "Pooling function to apply on intermediary activations",
+          description = "Pooling function to apply on intermediary activations (MAX, AVG, SUM, "
+              + "MIN, PNORM, MAX_AVG or NONE). MAX_AVG concatenates max and average pooling.",
           displayName = "Pooling Type",
           commandLineParamName = "poolingType",
           commandLineParamSynopsis = "-poolingType <String>"
@@ -267,6 +288,23 @@ public class Dl4jMlpFilter extends SimpleBatchFilter implements OptionHandler, C
     this.useDefaultFeatureLayer = useDefaultFeatureLayer;
   }
 
+  @OptionMetadata(
+          description = "If set, the featurized instances are written batch-by-batch to this file (e.g. ARFF or CSV) "
+                  + "instead of being kept in memory, and the filter only outputs the format. "
+                  + "Use this for datasets whose features do not fit into memory.",
+          displayName = "Output file",
+          commandLineParamName = "output-file",
+          commandLineParamSynopsis = "-output-file <File>",
+          displayOrder = 3
+  )
+  public File getOutputFile() {
+    return outputFile;
+  }
+
+  public void setOutputFile(File outputFile) {
+    this.outputFile = outputFile;
+  }
+
   /**
    * FILTER CODE
    */
@@ -289,30 +327,98 @@ public class Dl4jMlpFilter extends SimpleBatchFilter implements OptionHandler, C
     return !serializedModelFile.getPath().equals(WekaPackageManager.getPackageHome().getPath());
   }
 
+  /**
+   * @return true if the user has selected a file to stream the featurized instances to
+   */
+  private boolean userSuppliedOutputFile() {
+    return !outputFile.getPath().equals(WekaPackageManager.getPackageHome().getPath());
+  }
+
   /**
    * @param data Sets up the filter by loading the model (either from file or from model zoo)
    * @throws Exception From errors occuring during loading the model file, or from intializing from the data
    */
   private void loadModel(Instances data) throws Exception {
+    // Models are shared with other filters that load the same model file or zoo model
+    String iteratorKey = instanceIterator.getClass().getName() + " "
+        + Utils.joinOptions(instanceIterator.getOptions());
+    String key;
+    if (userSuppliedModelFile()) {
+      key = ModelRegistry.fileKey(serializedModelFile) + "|" + iteratorKey;
+    } else {
+      // The classifier fits its preprocessing filters on the data, so the data is part of the key
+      key = "zoo:" + zooModelType.getClass().getName() + " "
+          + Utils.joinOptions(zooModelType.getOptions()) + "|" + iteratorKey + "|"
+          + dataFingerprint(data);
+    }
+
+    Dl4jMlpClassifier shared = ModelRegistry.acquire(key, this, () -> loadUnsharedModel(data));
+    if (modelKey != null && !modelKey.equals(key)) {
+      ModelRegistry.release(modelKey, this);
+    }
+    model = shared;
+    modelKey = key;
+  }
+
+  /**
+   * Load the model from file or from the model zoo.
+   *
+   * @param data Data to initialize a zoo model with
+   * @return Model
+   * @throws Exception From errors occuring during loading the model file, or from intializing from the data
+   */
+  private Dl4jMlpClassifier loadUnsharedModel(Instances data) throws Exception {
+    Dl4jMlpClassifier clf;
     if (userSuppliedModelFile()) {
       // First try load from the WEKA binary model file
       try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(serializedModelFile))) {
-        model = (Dl4jMlpClassifier) ois.readObject();
+        clf = (Dl4jMlpClassifier) ois.readObject();
       } catch (Exception e) {
         throw new WekaException("Couldn't load Dl4jMlpClassifier from model file");
       }
     } else {
       // If that fails, try loading from selected zoo model (or keras file)
-      model = new Dl4jMlpClassifier();
-      model.setZooModel(zooModelType);
+      clf = new Dl4jMlpClassifier();
+      clf.setZooModel(zooModelType);
     }
-    model.setFilterMode(true);
-    model.setInstanceIterator(instanceIterator);
+    clf.setFilterMode(true);
+    clf.setInstanceIterator(instanceIterator);
 
     // If we're loading from a previously trained model, we don't need to intialize the classifier again,
     // We do need to, however, if we're loading from a fresh zoo model
     if (!userSuppliedModelFile())
-      model.initializeClassifier(data);
+      clf.initializeClassifier(data);
+    return clf;
+  }
+
+  /**
+   * @param data Data to fingerprint
+   * @return SHA-1 hash of the header and the values of all instances
+   * @throws Exception Could not compute the hash
+   */
+  private static String dataFingerprint(Instances data) throws Exception {
+    final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+    digest.update(new Instances(data, 0).toString().getBytes(StandardCharsets.UTF_8));
+    final ByteBuffer buf = ByteBuffer.allocate(8 * data.numAttributes());
+    for (Instance inst : data) {
+      buf.clear();
+      for (int i = 0; i < inst.numAttributes(); i++) {
+        buf.putDouble(inst.value(i));
+      }
+      digest.update(buf.array(), 0, buf.position());
+      // String and relational values are only indices into the attribute
+      for (int i = 0; i < inst.numAttributes(); i++) {
+        if (inst.attribute(i).isString() || inst.attribute(i).isRelationValued()) {
+          digest.update(inst.toString(i).getBytes(StandardCharsets.UTF_8));
+        }
+      }
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest()) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
   }
 
   /**
@@ -327,12 +433,31 @@ public class Dl4jMlpFilter extends SimpleBatchFilter implements OptionHandler, C
     loadModel(inputFormat);
     // No need to featurize full dataset at this point - only getting the output format
     Instances subset = new Instances(inputFormat, 0, 1);
-    return model.getActivationsAtLayers(transformationLayersToNames(), subset, poolingType);
+    // The model may be shared with other filters
+    synchronized (model) {
+      return model.getActivationsAtLayers(transformationLayersToNames(), subset, poolingType);
+    }
   }
 
   @Override
   protected Instances process(Instances instances) throws Exception {
-    return model.getActivationsAtLayers(transformationLayersToNames(), instances, poolingType);
+    if (!userSuppliedOutputFile()) {
+      synchronized (model) {
+        return model.getActivationsAtLayers(transformationLayersToNames(), instances, poolingType);
+      }
+    }
+
+    // Stream the featurized instances to disk
+    AbstractFileSaver saver = ConverterUtils.getSaverForFile(outputFile);
+    if (!(saver instanceof IncrementalConverter)) {
+      throw new WekaException("Output file type does not support incremental writing: " + outputFile);
+    }
+    saver.setFile(outputFile);
+    log.info("Writing featurized instances to {}", outputFile);
+    synchronized (model) {
+      return model.getActivationsAtLayers(transformationLayersToNames(), instances, poolingType,
+          saver);
+    }
   }
 
   @Override
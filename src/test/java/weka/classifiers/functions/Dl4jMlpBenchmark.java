@@ -0,0 +1,108 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * Dl4jMlpBenchmark.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.classifiers.functions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import weka.core.Instances;
+import weka.dl4j.activations.ActivationReLU;
+import weka.dl4j.activations.ActivationSoftmax;
+import weka.dl4j.iterators.instance.ImageInstanceIterator;
+import weka.dl4j.layers.DenseLayer;
+import weka.dl4j.layers.OutputLayer;
+import weka.util.DatasetLoader;
+import weka.util.TestUtil;
+
+/**
+ * Timings of the {@link Dl4jMlpClassifier}. Run with {@code gradle benchmark}.
+ *
+ * @author agent
+ */
+public class Dl4jMlpBenchmark {
+
+  /**
+   * Logger instance
+   */
+  private static final Logger logger = LoggerFactory.getLogger(Dl4jMlpBenchmark.class);
+
+  /**
+   * Data-parallel training on the CPU: epoch time vs. number of workers
+   */
+  @Test
+  public void benchmarkCpuDataParallelTraining() throws Exception {
+    final Instances dataMnist = DatasetLoader.loadMiniMnistMeta();
+    final ImageInstanceIterator idiMnist = DatasetLoader.loadMiniMnistImageIterator();
+    idiMnist.setTrainBatchSize(TestUtil.DEFAULT_BATCHSIZE);
+
+    final int numEpochs = 2;
+    for (int workers : new int[] {1, 2, 4}) {
+      Dl4jMlpClassifier parallelClf = new Dl4jMlpClassifier();
+      parallelClf.setSeed(TestUtil.SEED);
+      parallelClf.setNumEpochs(numEpochs);
+      parallelClf.setInstanceIterator(idiMnist);
+      parallelClf.setNumCpuWorkers(workers);
+      parallelClf.setParameterAveragingFrequency(2);
+
+      DenseLayer denseLayer = new DenseLayer();
+      denseLayer.setNOut(64);
+      denseLayer.setActivationFunction(new ActivationReLU());
+      OutputLayer outputLayer = new OutputLayer();
+      outputLayer.setActivationFunction(new ActivationSoftmax());
+      parallelClf.setLayers(denseLayer, outputLayer);
+
+      final long start = System.nanoTime();
+      parallelClf.buildClassifier(dataMnist);
+      final double epochTime = (System.nanoTime() - start) / 1e6 / numEpochs;
+      logger.info("CPU workers: {}, epoch time: {} ms", workers, epochTime);
+    }
+  }
+
+  /**
+   * Save and load times of the streamed network
+   */
+  @Test
+  public void benchmarkStreamingSerialization() throws Exception {
+    final Instances dataIris = DatasetLoader.loadIris();
+    final Dl4jMlpClassifier clf = new Dl4jMlpClassifier();
+    clf.setSeed(TestUtil.SEED);
+    clf.setNumEpochs(TestUtil.DEFAULT_NUM_EPOCHS);
+    clf.buildClassifier(dataIris);
+
+    long start = System.nanoTime();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+      oos.writeObject(clf);
+    }
+    final long saveTime = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    try (ObjectInputStream ois =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      ois.readObject();
+    }
+    final long loadTime = System.nanoTime() - start;
+    logger.info("Serialized {} parameters into {} bytes, save: {} ms, load: {} ms",
+        clf.getModel().numParams(), bytes.size(), saveTime / 1e6, loadTime / 1e6);
+  }
+}
@@ -18,34 +18,56 @@
 
 package weka.classifiers.functions;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static weka.util.TestUtil.readClf;
 import static weka.util.TestUtil.saveClf;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import org.deeplearning4j.datasets.iterator.impl.ListDataSetIterator;
 import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.graph.ElementWiseVertex;
+import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestName;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import weka.classifiers.functions.dl4j.Utils;
 import weka.core.Instances;
 import weka.core.InvalidNetworkArchitectureException;
 import weka.core.MissingOutputLayerException;
+import weka.core.WekaException;
 import weka.core.WrongIteratorException;
 import weka.dl4j.CacheMode;
+import weka.dl4j.CachePrecision;
 import weka.dl4j.ConvolutionMode;
 import weka.dl4j.NeuralNetConfiguration;
 import weka.dl4j.PoolingType;
@@ -54,6 +76,7 @@ import weka.dl4j.activations.ActivationReLU;
 import weka.dl4j.activations.ActivationSoftmax;
 import weka.dl4j.dropout.Dropout;
 import weka.dl4j.earlystopping.EarlyStopping;
+import weka.dl4j.iterators.dataset.MappedDataSetCache;
 import weka.dl4j.iterators.instance.ConvolutionInstanceIterator;
 import weka.dl4j.iterators.instance.DefaultInstanceIterator;
 import weka.dl4j.iterators.instance.ImageInstanceIterator;
@@ -349,6 +372,59 @@ public class Dl4jMlpTest {
     clf2.buildClassifier(dataMnist);
   }
 
+  /**
+   * Test that the streamed network survives a round trip and that the stream can be read on after
+   * the classifier. Save/load times are measured by {@link Dl4jMlpBenchmark}.
+   */
+  @Test
+  public void testStreamingSerialization() throws Exception {
+    clf.buildClassifier(dataIris);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+      oos.writeObject(clf);
+      oos.writeObject("end");
+    }
+
+    Dl4jMlpClassifier clf2;
+    try (ObjectInputStream ois =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      clf2 = (Dl4jMlpClassifier) ois.readObject();
+      assertEquals("end", ois.readObject());
+    }
+
+    assertEquals(clf.getModel().params(), clf2.getModel().params());
+    double[][] expected = clf.distributionsForInstances(dataIris);
+    double[][] actual = clf2.distributionsForInstances(dataIris);
+    for (int i = 0; i < expected.length; i++) {
+      for (int j = 0; j < expected[i].length; j++) {
+        assertEquals(expected[i][j], actual[i][j], 1e-6);
+      }
+    }
+  }
+
+  /**
+   * Test data-parallel training on the CPU. The epoch time for different numbers of workers is
+   * compared by {@link Dl4jMlpBenchmark}.
+   */
+  @Test
+  public void testCpuDataParallelTraining() throws Exception {
+    clf.setNumEpochs(2);
+    clf.setInstanceIterator(idiMnist);
+    clf.setNumCpuWorkers(2);
+    clf.setParameterAveragingFrequency(2);
+
+    DenseLayer denseLayer = new DenseLayer();
+    denseLayer.setNOut(64);
+    denseLayer.setActivationFunction(new ActivationReLU());
+    OutputLayer outputLayer = new OutputLayer();
+    outputLayer.setActivationFunction(new ActivationSoftmax());
+    clf.setLayers(denseLayer, outputLayer);
+    clf.buildClassifier(dataMnist);
+
+    assertEquals(dataMnist.numInstances(), clf.distributionsForInstances(dataMnist).length);
+  }
+
   /**
    * Test no outputlayer
    */
@@ -367,6 +443,256 @@ public class Dl4jMlpTest {
     clf.buildClassifier(dataIris);
   }
 
+  /**
+   * Test that prefetching on top of a cache, for training, validation and inference, yields the
+   * same model as synchronous iteration
+   */
+  @Test
+  public void testPrefetchWithCaching() throws Exception {
+    double[][][] preds = new double[2][][];
+    for (int i = 0; i < preds.length; i++) {
+      Dl4jMlpClassifier prefetchClf = new Dl4jMlpClassifier();
+      prefetchClf.setSeed(TestUtil.SEED);
+      prefetchClf.setNumEpochs(3);
+      prefetchClf.setCacheMode(CacheMode.MEMORY);
+      prefetchClf.setEarlyStopping(new EarlyStopping(5, 10));
+      prefetchClf.setQueueSize(i == 0 ? 0 : 2);
+      prefetchClf.buildClassifier(dataIris);
+      preds[i] = prefetchClf.distributionsForInstances(dataIris);
+    }
+    for (int i = 0; i < preds[0].length; i++) {
+      assertArrayEquals(preds[0][i], preds[1][i], 1e-6);
+    }
+  }
+
+  /**
+   * Test that shuffled training data is not replayed from the cache, so the batch order changes
+   * between epochs
+   */
+  @Test
+  public void testShuffledTrainingIsNotCached() throws Exception {
+    final DefaultInstanceIterator it = new DefaultInstanceIterator();
+    it.setTrainBatchSize(TestUtil.DEFAULT_BATCHSIZE);
+    clf.setInstanceIterator(it);
+    clf.setCacheMode(CacheMode.MEMORY);
+
+    // Without shuffling, the cached epochs are equal
+    List<INDArray> epochs = collectEpochs(clf.getTrainDataSetIterator(dataIris), 2);
+    assertEquals(epochs.get(0), epochs.get(1));
+
+    it.setShuffle(true);
+    epochs = collectEpochs(clf.getTrainDataSetIterator(dataIris), 3);
+    assertNotEquals(epochs.get(0), epochs.get(1));
+    assertNotEquals(epochs.get(1), epochs.get(2));
+  }
+
+  /**
+   * Test that shuffled training images are not replayed from the cache, so the batch order changes
+   * between epochs
+   */
+  @Test
+  public void testShuffledImagesAreNotCached() throws Exception {
+    idiMnist.setShuffle(true);
+    clf.setInstanceIterator(idiMnist);
+    clf.setCacheMode(CacheMode.MEMORY);
+    List<INDArray> epochs = collectEpochs(clf.getTrainDataSetIterator(dataMnist), 2);
+    assertNotEquals(epochs.get(0), epochs.get(1));
+  }
+
+  /**
+   * Test that merged inference batches hold the same examples as the single batches, including the
+   * last, smaller batch, although the iterator reuses its buffers
+   */
+  @Test
+  public void testInferenceBatchesMatchPerBatchReference() throws Exception {
+    final DefaultInstanceIterator it = new DefaultInstanceIterator();
+    it.setTrainBatchSize(16);
+    clf.setInstanceIterator(it);
+    clf.setQueueSize(0);
+
+    // 150 instances give 9 full batches and a partial batch, i.e. more than one merged batch
+    List<INDArray> reference = new ArrayList<>();
+    DataSetIterator iter = clf.getDataSetIterator(dataIris, CacheMode.NONE);
+    while (iter.hasNext()) {
+      reference.add(Utils.getNext(iter).getFeatures().dup());
+    }
+    assertEquals(10, reference.size());
+
+    List<INDArray> merged = new ArrayList<>();
+    iter = clf.getDataSetIterator(dataIris, CacheMode.NONE);
+    while (iter.hasNext()) {
+      merged.add(Utils.getNextInferenceBatch(iter).getFeatures());
+    }
+    assertEquals(2, merged.size());
+    INDArray expected = Nd4j.vstack(reference.toArray(new INDArray[0]));
+    assertEquals(dataIris.numInstances(), expected.size(0));
+    assertEquals(expected, Nd4j.vstack(merged.toArray(new INDArray[0])));
+  }
+
+  /**
+   * Collect the features of several epochs of an iterator.
+   *
+   * @param it Iterator
+   * @param numEpochs Number of epochs
+   * @return Stacked features of each epoch
+   */
+  static List<INDArray> collectEpochs(DataSetIterator it, int numEpochs) {
+    List<INDArray> epochs = new ArrayList<>();
+    for (int epoch = 0; epoch < numEpochs; epoch++) {
+      List<INDArray> features = new ArrayList<>();
+      it.reset();
+      while (it.hasNext()) {
+        DataSet batch = it.next();
+        // Batches are only valid until the next call, keep a copy
+        features.add(batch.getFeatures().dup());
+      }
+      epochs.add(Nd4j.vstack(features));
+    }
+    return epochs;
+  }
+
+  /**
+   * Test out-of-core training on ARFF shards, with early stopping on a sampled validation set
+   */
+  @Test
+  public void testTrainingFromShards() throws Exception {
+    Instances data = new Instances(dataIris);
+    data.randomize(new Random(TestUtil.SEED));
+    File[] shards = new File[3];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = File.createTempFile("iris-shard-", ".arff");
+      shards[i].deleteOnExit();
+      Files.write(shards[i].toPath(), new Instances(data, i * 50, 50).toString().getBytes());
+    }
+
+    final DefaultInstanceIterator it = new DefaultInstanceIterator();
+    it.setTrainBatchSize(TestUtil.DEFAULT_BATCHSIZE);
+    it.setShuffle(true);
+    clf.setInstanceIterator(it);
+    clf.setStreamingBufferSize(100);
+    clf.setEarlyStopping(new EarlyStopping(2, 20));
+    clf.setNumEpochs(3);
+    clf.buildClassifierFromShards(shards, -1);
+
+    double[][] preds = clf.distributionsForInstances(dataIris);
+    assertEquals(dataIris.numInstances(), preds.length);
+    for (double[] pred : preds) {
+      assertEquals(dataIris.numClasses(), pred.length);
+      assertEquals(1.0, pred[0] + pred[1] + pred[2], 1e-5);
+    }
+  }
+
+  /**
+   * Test out-of-core training on CSV shards that each only contain a single class, so the class
+   * values of the later shards are not declared by the first shard
+   */
+  @Test
+  public void testTrainingFromCsvShards() throws Exception {
+    // Iris is sorted by class
+    File[] shards = new File[3];
+    for (int i = 0; i < shards.length; i++) {
+      StringBuilder csv = new StringBuilder();
+      for (int j = 0; j < dataIris.numAttributes(); j++) {
+        csv.append(j > 0 ? "," : "").append(dataIris.attribute(j).name());
+      }
+      csv.append('\n');
+      for (int j = i * 50; j < (i + 1) * 50; j++) {
+        csv.append(dataIris.instance(j)).append('\n');
+      }
+      shards[i] = File.createTempFile("iris-shard-", ".csv");
+      shards[i].deleteOnExit();
+      Files.write(shards[i].toPath(), csv.toString().getBytes());
+    }
+
+    final DefaultInstanceIterator it = new DefaultInstanceIterator();
+    it.setTrainBatchSize(TestUtil.DEFAULT_BATCHSIZE);
+    it.setShuffle(true);
+    clf.setInstanceIterator(it);
+    clf.setStreamingBufferSize(150);
+    clf.setNumEpochs(20);
+    clf.buildClassifierFromShards(shards, -1);
+
+    double[][] preds = clf.distributionsForInstances(dataIris);
+    int numCorrect = 0;
+    for (int i = 0; i < preds.length; i++) {
+      assertEquals(dataIris.numClasses(), preds[i].length);
+      if (weka.core.Utils.maxIndex(preds[i]) == (int) dataIris.instance(i).classValue()) {
+        numCorrect++;
+      }
+    }
+    assertTrue(numCorrect > dataIris.numInstances() / 2);
+  }
+
+  /**
+   * Test that the streaming buffer size must be positive
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidStreamingBufferSize() {
+    clf.setStreamingBufferSize(0);
+  }
+
+  /**
+   * Test that the BLAS thread limit is restored if the parallel CPU training fails
+   */
+  @Test
+  public void testThreadLimitsRestoredOnFailure() throws Exception {
+    final int maxThreads = Nd4j.factory().blas().getMaxThreads();
+    Dl4jMlpClassifier failingClf = new Dl4jMlpClassifier() {
+      @Override
+      protected void train() throws Exception {
+        throw new WekaException("Training failed");
+      }
+    };
+    failingClf.setNumCpuWorkers(4);
+    try {
+      failingClf.buildClassifier(dataIris);
+      fail("Training should have failed");
+    } catch (WekaException e) {
+      assertEquals(maxThreads, Nd4j.factory().blas().getMaxThreads());
+    }
+  }
+
+  /**
+   * Test that scoring single instances gives the same predictions as batch scoring
+   */
+  @Test
+  public void testSingleInstancePrediction() throws Exception {
+    Instances data = DatasetLoader.loadIrisMissingValues();
+    clf.buildClassifier(data);
+
+    double[][] batchPreds = clf.distributionsForInstances(data);
+    for (int i = 0; i < data.numInstances(); i++) {
+      double[] pred = clf.distributionForInstance(data.get(i));
+      assertEquals(batchPreds[i].length, pred.length);
+      for (int j = 0; j < pred.length; j++) {
+        assertEquals(batchPreds[i][j], pred[j], 1e-6);
+      }
+    }
+  }
+
+  /**
+   * Test that the inference pool gives the same predictions for concurrent requests
+   */
+  @Test
+  public void testInferencePool() throws Exception {
+    clf.buildClassifier(dataIris);
+
+    try (Dl4jMlpInferencePool pool = new Dl4jMlpInferencePool(clf, 2, 16, 64, 5)) {
+      List<Future<double[]>> futures = new ArrayList<>();
+      for (int i = 0; i < dataIris.numInstances(); i++) {
+        futures.add(pool.submit(dataIris.get(i)));
+      }
+
+      for (int i = 0; i < dataIris.numInstances(); i++) {
+        double[] expected = clf.distributionForInstance(dataIris.get(i));
+        double[] actual = futures.get(i).get();
+        for (int j = 0; j < expected.length; j++) {
+          assertEquals(expected[j], actual[j], 1e-6);
+        }
+      }
+    }
+  }
+
   /**
    * Test zoo model with wrong iterator
    */
@@ -669,6 +995,80 @@ public class Dl4jMlpTest {
     TestUtil.holdout(clf, dataMnist);
   }
 
+  /**
+   * Test that the compressed filesystem cache yields the same model as the memory cache, both
+   * when it is written and when it is reused by a later run
+   */
+  @Test
+  public void testFilesystemCacheReuse() throws Exception {
+    double[][][] preds = new double[3][][];
+    for (int i = 0; i < preds.length; i++) {
+      Dl4jMlpClassifier cacheClf = new Dl4jMlpClassifier();
+      cacheClf.setSeed(TestUtil.SEED);
+      cacheClf.setNumEpochs(3);
+      cacheClf.setCacheMode(i == 0 ? CacheMode.MEMORY : CacheMode.FILESYSTEM);
+      cacheClf.setCompressCache(true);
+      cacheClf.buildClassifier(dataIris);
+      preds[i] = cacheClf.distributionsForInstances(dataIris);
+    }
+    for (int i = 0; i < preds[0].length; i++) {
+      assertArrayEquals(preds[0][i], preds[1][i], 1e-6);
+      assertArrayEquals(preds[0][i], preds[2][i], 1e-6);
+    }
+  }
+
+  /**
+   * Test that the UINT8 cache precision stores 8-bit values exactly and quantizes other values
+   * between the minimum and maximum of the batch
+   */
+  @Test
+  public void testUint8CachePrecision() throws Exception {
+    File cacheDir = Files.createTempDirectory("dataset-cache-").toFile();
+    try {
+      MappedDataSetCache cache =
+          new MappedDataSetCache(cacheDir, "uint8", CachePrecision.UINT8, false);
+      INDArray labels = Nd4j.create(new float[] {1, 0}, new long[] {1, 2});
+      float[] pixels = {3, 17, 200, 42};
+      float[] values = {0.1f, 0.5f, 0.3f, 0.25f};
+      cache.put("pixels", new DataSet(Nd4j.create(pixels, new long[] {1, 4}), labels));
+      cache.put("values", new DataSet(Nd4j.create(values, new long[] {1, 4}), labels));
+      cache.setComplete("default", true);
+
+      assertArrayEquals(pixels, cache.get("pixels").getFeatures().toFloatVector(), 0);
+      assertArrayEquals(values, cache.get("values").getFeatures().toFloatVector(),
+          (0.5f - 0.1f) / 255 / 2 + 1e-6f);
+    } finally {
+      try (Stream<Path> files = Files.walk(cacheDir.toPath())) {
+        files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+      }
+    }
+  }
+
+  /**
+   * Test that images read from a UINT8 filesystem cache are equal to the uncached images, since the
+   * unscaled 8-bit pixels are cached and only scaled afterwards
+   */
+  @Test
+  public void testUint8CachedImagesAreExact() throws Exception {
+    clf.setInstanceIterator(idiMnist);
+    clf.setCachePrecision(CachePrecision.UINT8);
+    File cacheDir = Paths.get(System.getProperty("java.io.tmpdir"), "dataset-cache-uint8-test")
+        .toFile();
+    try {
+      INDArray reference =
+          collectEpochs(clf.getDataSetIterator(dataMnist, CacheMode.NONE), 1).get(0);
+      // The first epoch fills the cache, the second one reads from it
+      List<INDArray> epochs = collectEpochs(
+          clf.getDataSetIterator(dataMnist, CacheMode.FILESYSTEM, "uint8-test"), 2);
+      assertEquals(reference, epochs.get(0));
+      assertEquals(reference, epochs.get(1));
+    } finally {
+      try (Stream<Path> files = Files.walk(cacheDir.toPath())) {
+        files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+      }
+    }
+  }
+
   @Test
   public void testResume() throws Exception {
     clf.setResume(true);
@@ -720,4 +1120,46 @@ public class Dl4jMlpTest {
     Files.delete(Paths.get(clfPath));
   }
 
+  /**
+   * Test that intermediate layers of a graph with non-layer vertices (the input and an element-wise
+   * vertex) are featurized with the same activations as a full forward pass
+   */
+  @Test
+  public void testFeaturizeIntermediateLayersOfGraph() throws Exception {
+    ComputationGraphConfiguration conf =
+        new org.deeplearning4j.nn.conf.NeuralNetConfiguration.Builder()
+            .seed(TestUtil.SEED)
+            .graphBuilder()
+            .addInputs("in")
+            .addLayer("d1", dl4jDenseLayer(4, 5), "in")
+            .addLayer("d2", dl4jDenseLayer(4, 5), "in")
+            .addVertex("add", new ElementWiseVertex(ElementWiseVertex.Op.Add), "d1", "d2")
+            .addLayer("d3", dl4jDenseLayer(5, 3), "add")
+            .addLayer("out",
+                new org.deeplearning4j.nn.conf.layers.OutputLayer.Builder().nIn(3).nOut(2).build(),
+                "d3")
+            .setOutputs("out")
+            .build();
+    ComputationGraph graph = new ComputationGraph(conf);
+    graph.init();
+    clf.model = graph;
+
+    Nd4j.getRandom().setSeed(TestUtil.SEED);
+    DataSet data = new DataSet(Nd4j.rand(20, 4), Nd4j.zeros(20, 2));
+    Map<String, INDArray> expected = graph.feedForward(data.getFeatures(), false);
+    for (String layer : new String[] {"d1", "add", "d3", "out"}) {
+      INDArray actual = clf.featurizeForLayer(layer, new ListDataSetIterator<>(data.asList(), 8),
+          PoolingType.NONE);
+      assertEquals(layer, expected.get(layer), actual);
+    }
+  }
+
+  /**
+   * @param nIn Number of inputs
+   * @param nOut Number of outputs
+   * @return DL4J dense layer
+   */
+  private static org.deeplearning4j.nn.conf.layers.DenseLayer dl4jDenseLayer(int nIn, int nOut) {
+    return new org.deeplearning4j.nn.conf.layers.DenseLayer.Builder().nIn(nIn).nOut(nOut).build();
+  }
 }
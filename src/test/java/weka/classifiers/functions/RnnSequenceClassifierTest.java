@@ -19,6 +19,7 @@
 package weka.classifiers.functions;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static weka.util.TestUtil.readClf;
 import static weka.util.TestUtil.saveClf;
 import static weka.util.TestUtil.splitTrainTest;
@@ -29,6 +30,7 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.stream.Collectors;
@@ -40,11 +42,14 @@ import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestName;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import weka.core.Attribute;
 import weka.core.DenseInstance;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.stemmers.SnowballStemmer;
+import weka.dl4j.CacheMode;
 import weka.dl4j.GradientNormalization;
 import weka.dl4j.NeuralNetConfiguration;
 import weka.dl4j.activations.ActivationIdentity;
@@ -308,6 +313,37 @@ public class RnnSequenceClassifierTest {
     TestUtil.holdout(clf, data, 3);
   }
 
+  /**
+   * Test that length-bucketed training data is not replayed from the cache, so the order of the
+   * bucketed batches changes between epochs
+   */
+  @Test
+  public void testLengthBucketingIsNotCached() throws Exception {
+    data = TestUtil
+        .makeTestDatasetRelational(TestUtil.SEED, 100, 2, Attribute.NOMINAL, 1, 2, 2, 2, 100);
+    data.setClassIndex(data.numAttributes() - 1);
+    final RelationalInstanceIterator rii = new RelationalInstanceIterator();
+    rii.setTruncateLength(80);
+    rii.setTrainBatchSize(8);
+    rii.setRelationalAttributeIndex(0);
+    rii.setLengthBucketWidth(5);
+    clf.setInstanceIterator(rii);
+    clf.setCacheMode(CacheMode.MEMORY);
+
+    final DataSetIterator it = clf.getTrainDataSetIterator(data);
+    final List<List<INDArray>> epochs = new ArrayList<>();
+    for (int epoch = 0; epoch < 3; epoch++) {
+      List<INDArray> batches = new ArrayList<>();
+      it.reset();
+      while (it.hasNext()) {
+        batches.add(it.next().getFeatures().dup());
+      }
+      epochs.add(batches);
+    }
+    assertNotEquals(epochs.get(0), epochs.get(1));
+    assertNotEquals(epochs.get(1), epochs.get(2));
+  }
+
   @Test
   public void testConfigRotation() throws Exception {
     Map<String, String> failedConfigs = new HashMap<>();
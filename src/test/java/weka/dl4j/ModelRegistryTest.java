@@ -0,0 +1,178 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * ModelRegistryTest.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.dl4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.core.Instances;
+import weka.util.DatasetLoader;
+import weka.util.TestUtil;
+
+/**
+ * Tests the sharing, release and eviction of models in the {@link ModelRegistry}.
+ *
+ * @author agent
+ */
+public class ModelRegistryTest {
+
+  /**
+   * Data to initialize the models with
+   */
+  private Instances data;
+
+  /**
+   * Number of models loaded so far
+   */
+  private AtomicInteger numLoads;
+
+  /**
+   * Memory budget before the test
+   */
+  private long budget;
+
+  @Before
+  public void setUp() throws Exception {
+    data = DatasetLoader.loadIris();
+    numLoads = new AtomicInteger();
+    budget = ModelRegistry.getMemoryBudget();
+    ModelRegistry.clear();
+  }
+
+  @After
+  public void tearDown() {
+    ModelRegistry.setMemoryBudget(budget);
+    ModelRegistry.clear();
+  }
+
+  /**
+   * @return A new model with initialized parameters
+   * @throws Exception Could not initialize the model
+   */
+  private Dl4jMlpClassifier load() throws Exception {
+    numLoads.incrementAndGet();
+    Dl4jMlpClassifier clf = new Dl4jMlpClassifier();
+    clf.setSeed(TestUtil.SEED);
+    clf.initializeClassifier(data);
+    return clf;
+  }
+
+  /**
+   * @param model Model
+   * @return Size of the model parameters in bytes
+   */
+  private static long size(Dl4jMlpClassifier model) {
+    ComputationGraph graph = model.getModel();
+    return graph.params().length() * graph.params().data().getElementSize();
+  }
+
+  @Test
+  public void testSharing() throws Exception {
+    Object consumer1 = new Object();
+    Object consumer2 = new Object();
+    Dl4jMlpClassifier model1 = ModelRegistry.acquire("a", consumer1, this::load);
+    Dl4jMlpClassifier model2 = ModelRegistry.acquire("a", consumer2, this::load);
+    assertSame(model1, model2);
+    assertEquals(1, numLoads.get());
+    assertEquals(1, ModelRegistry.size());
+  }
+
+  @Test
+  public void testRelease() throws Exception {
+    ModelRegistry.setMemoryBudget(0);
+    Object consumer1 = new Object();
+    Object consumer2 = new Object();
+    ModelRegistry.acquire("a", consumer1, this::load);
+    ModelRegistry.acquire("a", consumer2, this::load);
+
+    // Models in use are not evicted, even if they exceed the budget
+    assertEquals(1, ModelRegistry.size());
+    ModelRegistry.release("a", consumer1);
+    assertEquals(1, ModelRegistry.size());
+    ModelRegistry.release("a", consumer2);
+    assertEquals(0, ModelRegistry.size());
+
+    ModelRegistry.acquire("a", consumer1, this::load);
+    assertEquals(2, numLoads.get());
+  }
+
+  @Test
+  public void testMemoryBudgetEviction() throws Exception {
+    ModelRegistry.setMemoryBudget(Long.MAX_VALUE);
+    Object consumer = new Object();
+    Dl4jMlpClassifier modelA = ModelRegistry.acquire("a", consumer, this::load);
+    ModelRegistry.acquire("b", consumer, this::load);
+    ModelRegistry.acquire("c", consumer, this::load);
+    ModelRegistry.release("a", consumer);
+    ModelRegistry.release("b", consumer);
+    assertEquals(3, ModelRegistry.size());
+
+    // Use "a", so "b" is the least recently used unused model
+    ModelRegistry.acquire("a", consumer, this::load);
+    ModelRegistry.release("a", consumer);
+    ModelRegistry.setMemoryBudget(2 * size(modelA));
+    assertEquals(2, ModelRegistry.size());
+    assertEquals(3, numLoads.get());
+
+    ModelRegistry.acquire("a", consumer, this::load);
+    assertEquals(3, numLoads.get());
+    ModelRegistry.acquire("b", consumer, this::load);
+    assertEquals(4, numLoads.get());
+  }
+
+  @Test
+  public void testLoadDoesNotBlockOtherKeys() throws Exception {
+    CountDownLatch loading = new CountDownLatch(1);
+    CountDownLatch proceed = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Object consumer1 = new Object();
+      Future<Dl4jMlpClassifier> slow = executor.submit(() ->
+          ModelRegistry.acquire("slow", consumer1, () -> {
+            loading.countDown();
+            assertTrue(proceed.await(1, TimeUnit.MINUTES));
+            return load();
+          }));
+      assertTrue(loading.await(1, TimeUnit.MINUTES));
+
+      // Another key can be loaded while the slow model is loading
+      Object consumer2 = new Object();
+      ModelRegistry.acquire("fast", consumer2, this::load);
+      proceed.countDown();
+      Dl4jMlpClassifier slowModel = slow.get(1, TimeUnit.MINUTES);
+      assertSame(slowModel, ModelRegistry.acquire("slow", consumer2, this::load));
+      assertEquals(2, numLoads.get());
+    } finally {
+      proceed.countDown();
+      executor.shutdownNow();
+    }
+  }
+}
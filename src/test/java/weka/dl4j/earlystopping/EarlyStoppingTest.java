@@ -18,17 +18,26 @@
 
 package weka.dl4j.earlystopping;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TestName;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.classifiers.functions.dl4j.Utils;
 import weka.core.Instances;
+import weka.dl4j.iterators.instance.DefaultInstanceIterator;
 import weka.dl4j.iterators.instance.ImageInstanceIterator;
+import weka.dl4j.listener.EpochEvaluation;
 import weka.util.DatasetLoader;
 import weka.util.TestUtil;
 
@@ -145,6 +154,50 @@ public class EarlyStoppingTest {
     testConfig(5, 3, 105);
   }
 
+  /**
+   * Test that the shared validation pass computes the same loss as a separate scoring pass and is
+   * reused while the model does not change
+   */
+  @Test
+  public void testSharedValidationPass() throws Exception {
+    Instances iris = DatasetLoader.loadIris();
+    clf.setInstanceIterator(new DefaultInstanceIterator());
+    clf.buildClassifier(iris);
+    ComputationGraph model = clf.getModel();
+    DataSetIterator it = new DefaultInstanceIterator().getDataSetIterator(iris, TestUtil.SEED, 16);
+
+    EpochEvaluation evaluation = EpochEvaluation.evaluate(model, it);
+    Assert.assertEquals(Utils.computeScore(model, it), evaluation.getScore(), 1e-4);
+    Assert.assertEquals(iris.numInstances(),
+        evaluation.getClassificationEvaluation().getNumRowCounter());
+    Assert.assertSame(evaluation, EpochEvaluation.evaluate(model, it));
+
+    // A changed model is evaluated again
+    model.params().addi(0.1);
+    Assert.assertNotSame(evaluation, EpochEvaluation.evaluate(model, it));
+  }
+
+  /**
+   * Test that the parameters of the best epoch are restored and checkpointed
+   */
+  @Test
+  public void testBestModelCheckpoint() throws Exception {
+    File dir = Files.createTempDirectory("early-stopping-test").toFile();
+    EarlyStopping es = new EarlyStopping(2, 20);
+    es.setCheckpointBestModel(true);
+    es.setCheckpointDirectory(dir);
+    clf.setEarlyStopping(es);
+    clf.setInstanceIterator(new DefaultInstanceIterator());
+    clf.setNumEpochs(10);
+    clf.buildClassifier(DatasetLoader.loadIris());
+
+    File checkpoint = es.getCheckpointFile();
+    Assert.assertTrue(checkpoint.exists());
+    Assert.assertEquals(Nd4j.readBinary(checkpoint), clf.getModel().params());
+    checkpoint.delete();
+    dir.delete();
+  }
+
   /**
    * Test early stopping configuration.
    *
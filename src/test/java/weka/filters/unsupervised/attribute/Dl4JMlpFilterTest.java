@@ -18,14 +18,21 @@
 
 package weka.filters.unsupervised.attribute;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static weka.util.TestUtil.saveClf;
 
 import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import org.junit.Test;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.NDArrayIndex;
 import weka.classifiers.functions.Dl4jMlpClassifier;
+import weka.classifiers.functions.dl4j.Utils;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.dl4j.PoolingType;
@@ -71,6 +78,39 @@ public class Dl4JMlpFilterTest {
     checkZooModelMNIST(leNet, false);
   }
 
+  @Test
+  public void testPooledActivations() {
+    final int batchSize = 3, channels = 5, height = 4, width = 6;
+    INDArray nchw = Nd4j.rand(DataType.FLOAT, batchSize, channels, height, width).subi(0.5);
+    INDArray nhwc = nchw.permute(0, 2, 3, 1).dup('c');
+
+    for (PoolingType poolingType : new PoolingType[]{PoolingType.MAX, PoolingType.AVG,
+        PoolingType.SUM, PoolingType.MIN, PoolingType.PNORM}) {
+      INDArray expected = Nd4j.create(DataType.FLOAT, batchSize, channels);
+      for (int b = 0; b < batchSize; b++) {
+        for (int c = 0; c < channels; c++) {
+          INDArray featureMap = nchw.get(NDArrayIndex.point(b), NDArrayIndex.point(c));
+          float value = poolingType == PoolingType.PNORM
+              ? featureMap.norm2Number().floatValue()
+              : Utils.poolNDArray(featureMap, poolingType);
+          expected.putScalar(b, c, value);
+        }
+      }
+      assertEquals(expected, Utils.reshapeActivations(nchw, poolingType, false));
+      assertEquals(expected, Utils.reshapeActivations(nhwc, poolingType, true));
+    }
+
+    INDArray maxAvg = Utils.reshapeActivations(nhwc, PoolingType.MAX_AVG, true);
+    assertArrayEquals(new long[]{batchSize, 2 * channels}, maxAvg.shape());
+    assertEquals(Utils.reshapeActivations(nchw, PoolingType.MAX, false),
+        maxAvg.get(NDArrayIndex.all(), NDArrayIndex.interval(0, channels)));
+    assertEquals(Utils.reshapeActivations(nchw, PoolingType.AVG, false),
+        maxAvg.get(NDArrayIndex.all(), NDArrayIndex.interval(channels, 2 * channels)));
+
+    assertEquals(Utils.reshapeActivations(nchw, PoolingType.NONE, false),
+        Utils.reshapeActivations(nhwc, PoolingType.NONE, true));
+  }
+
   @Test
   public void testProcessIris() throws Exception {
     Dl4jMlpClassifier clf = new Dl4jMlpClassifier();
@@ -104,6 +144,89 @@ public class Dl4JMlpFilterTest {
     Files.delete(Paths.get(clfPath));
   }
 
+  @Test
+  public void testProcessIrisToOutputFile() throws Exception {
+    Dl4jMlpClassifier clf = new Dl4jMlpClassifier();
+    clf.setNumEpochs(1);
+    Instances iris = DatasetLoader.loadIris();
+
+    DenseLayer dl1 = new DenseLayer();
+    dl1.setLayerName("l1");
+    dl1.setNOut(10);
+
+    OutputLayer ol = new OutputLayer();
+    clf.setLayers(dl1, ol);
+    clf.buildClassifier(iris);
+
+    String tmpDir = System.getProperty("java.io.tmpdir");
+    String clfPath = Paths.get(tmpDir, "dl4j-mlp-clf.ser").toString();
+    File outputFile = Paths.get(tmpDir, "dl4j-mlp-filter-output.arff").toFile();
+    saveClf(clfPath, clf);
+
+    Instances activationsExpected = clf.getActivationsAtLayers(new String[] { "l1" }, iris);
+
+    Dl4jMlpFilter filter = new Dl4jMlpFilter();
+    filter.setSerializedModelFile(new File(clfPath));
+    filter.setTransformationLayerNames(new String[] { "l1" });
+    filter.setOutputFile(outputFile);
+    filter.setInputFormat(iris);
+    filter.setPoolingType(PoolingType.NONE);
+
+    // Only the format is returned, the instances are written to the output file
+    Instances filtered = Filter.useFilter(iris, filter);
+    assertEquals(0, filtered.numInstances());
+
+    Instances activationsActual = DatasetLoader.loadArff(outputFile.getPath());
+    assertEquals(activationsExpected.numInstances(), activationsActual.numInstances());
+    for (int i = 0; i < activationsActual.size(); i++) {
+      Instance expected = activationsExpected.get(i);
+      Instance actual = activationsActual.get(i);
+      for (int j = 0; j < expected.numAttributes(); j++) {
+        // ARFF files store a limited number of decimal places
+        assertEquals(expected.value(j), actual.value(j), 1e-4);
+      }
+    }
+
+    Files.delete(Paths.get(clfPath));
+    Files.delete(outputFile.toPath());
+  }
+
+  @Test
+  public void testSharedModel() throws Exception {
+    Dl4jMlpClassifier clf = new Dl4jMlpClassifier();
+    clf.setNumEpochs(1);
+    Instances iris = DatasetLoader.loadIris();
+
+    DenseLayer dl1 = new DenseLayer();
+    dl1.setLayerName("l1");
+    dl1.setNOut(10);
+
+    OutputLayer ol = new OutputLayer();
+    clf.setLayers(dl1, ol);
+    clf.buildClassifier(iris);
+
+    String tmpDir = System.getProperty("java.io.tmpdir");
+    String clfPath = Paths.get(tmpDir, "dl4j-mlp-clf-shared.ser").toString();
+    saveClf(clfPath, clf);
+
+    Dl4jMlpFilter[] filters = new Dl4jMlpFilter[2];
+    Instances[] filtered = new Instances[2];
+    for (int i = 0; i < filters.length; i++) {
+      filters[i] = new Dl4jMlpFilter();
+      filters[i].setSerializedModelFile(new File(clfPath));
+      filters[i].setTransformationLayerNames(new String[] { "l1" });
+      filters[i].setPoolingType(PoolingType.NONE);
+      filters[i].setInputFormat(iris);
+      filtered[i] = Filter.useFilter(iris, filters[i]);
+    }
+
+    // Both filters use the same model instance and produce the same activations
+    assertSame(filters[0].model, filters[1].model);
+    assertEquals(filtered[0].toString(), filtered[1].toString());
+
+    Files.delete(Paths.get(clfPath));
+  }
+
   @Test //TODO figure out why test failing on Travis CI, but not locally
   public void testProcessMnist() throws Exception {
     // Init data
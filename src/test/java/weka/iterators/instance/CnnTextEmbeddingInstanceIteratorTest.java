@@ -20,7 +20,9 @@ package weka.iterators.instance;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -167,6 +169,34 @@ public class CnnTextEmbeddingInstanceIteratorTest {
     }
   }
 
+  /**
+   * Test that the feature shape is correct and that all epochs yield identical batches
+   */
+  @Test
+  public void testEpochsAreIdentical() throws Exception {
+    final Instances data = makeData();
+    final int batchSize = 8;
+    final DataSetIterator it = this.cteii.getDataSetIterator(data, SEED, batchSize);
+
+    List<DataSet> firstEpoch = new ArrayList<>();
+    while (it.hasNext()) {
+      final DataSet next = it.next();
+      final long[] shape = next.getFeatures().shape();
+      Assert.assertEquals(1, shape[1]);
+      Assert.assertTrue(shape[2] <= cteii.getTruncateLength());
+      Assert.assertEquals(it.inputColumns(), shape[3]);
+      firstEpoch.add(next);
+    }
+
+    it.reset();
+    for (DataSet expected : firstEpoch) {
+      final DataSet actual = it.next();
+      Assert.assertEquals(expected.getFeatures(), actual.getFeatures());
+      Assert.assertEquals(expected.getLabels(), actual.getLabels());
+    }
+    Assert.assertFalse(it.hasNext());
+  }
+
   /**
    * Test batch correct creation.
    *
@@ -0,0 +1,179 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * DefaultInstanceIteratorTest.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.iterators.instance;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import weka.classifiers.functions.dl4j.Utils;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.dl4j.iterators.dataset.ReorderableDataSetIterator;
+import weka.dl4j.iterators.instance.DefaultInstanceIterator;
+import weka.util.DatasetLoader;
+
+/**
+ * JUnit tests for the DefaultInstanceIterator {@link DefaultInstanceIterator}
+ *
+ * @author agent
+ */
+public class DefaultInstanceIteratorTest {
+
+  /**
+   * Seed
+   */
+  private static final int SEED = 42;
+  /**
+   * Iterator object
+   */
+  private DefaultInstanceIterator dii;
+  /**
+   * Data
+   */
+  private Instances iris;
+
+  /**
+   * Initialize iterator
+   */
+  @Before
+  public void init() throws Exception {
+    this.dii = new DefaultInstanceIterator();
+    this.iris = DatasetLoader.loadIris();
+  }
+
+  /**
+   * Test that the mini-batches match the full DataSet conversion
+   */
+  @Test
+  public void testBatchesMatchDataSet() throws Exception {
+    checkBatches(iris, 16);
+  }
+
+  /**
+   * Test that sparse instances are converted correctly
+   */
+  @Test
+  public void testSparseInstances() throws Exception {
+    Instances sparse = new Instances(iris, iris.numInstances());
+    for (int i = 0; i < iris.numInstances(); i++) {
+      double[] vals = iris.get(i).toDoubleArray();
+      // Introduce some zeros so the sparse representation drops values
+      vals[i % (vals.length - 1)] = 0;
+      sparse.add(new SparseInstance(1.0, vals));
+    }
+    checkBatches(sparse, 7);
+  }
+
+  /**
+   * Test that shuffled epochs are seed-stable permutations of the data, that reordering is only
+   * applied if allowed and that the last partial batch is kept on request
+   */
+  @Test
+  public void testShuffledEpochs() throws Exception {
+    final int batchSize = 16;
+    dii.setShuffle(true);
+    dii.setKeepPartialBatch(true);
+
+    // Without reordering, the original order is kept
+    checkBatches(iris, batchSize);
+
+    ReorderableDataSetIterator it1 =
+        (ReorderableDataSetIterator) dii.getDataSetIterator(iris, SEED, batchSize);
+    ReorderableDataSetIterator it2 =
+        (ReorderableDataSetIterator) dii.getDataSetIterator(iris, SEED, batchSize);
+    it1.setReorderingAllowed(true);
+    it2.setReorderingAllowed(true);
+
+    final DataSet expected = Utils.instancesToDataSet(iris);
+    INDArray previousEpoch = null;
+    for (int epoch = 0; epoch < 2; epoch++) {
+      List<INDArray> features = new ArrayList<>();
+      int numBatches = 0;
+      while (it1.hasNext()) {
+        DataSet batch = it1.next();
+        Assert.assertEquals(batch.getFeatures(), it2.next().getFeatures());
+        // Batches are only valid until the next call, keep a copy
+        features.add(batch.getFeatures().dup());
+        numBatches++;
+      }
+      Assert.assertFalse(it2.hasNext());
+      Assert.assertEquals((iris.numInstances() + batchSize - 1) / batchSize, numBatches);
+
+      // Same rows as the data, different order
+      INDArray epochFeatures = Nd4j.vstack(features);
+      Assert.assertTrue(expected.getFeatures().sum(0).equalsWithEps(epochFeatures.sum(0), 1e-3));
+      Assert.assertNotEquals(expected.getFeatures(), epochFeatures);
+      Assert.assertNotEquals(previousEpoch, epochFeatures);
+      previousEpoch = epochFeatures;
+      it1.reset();
+      it2.reset();
+    }
+  }
+
+  /**
+   * Test that stratified batches contain each class in proportion to its frequency
+   */
+  @Test
+  public void testStratifiedBatches() throws Exception {
+    // Iris is sorted by class, so unshuffled batches contain a single class
+    final int batchSize = 15;
+    dii.setShuffle(true);
+    dii.setStratify(true);
+    ReorderableDataSetIterator it =
+        (ReorderableDataSetIterator) dii.getDataSetIterator(iris, SEED, batchSize);
+    it.setReorderingAllowed(true);
+    while (it.hasNext()) {
+      INDArray classCounts = it.next().getLabels().sum(0);
+      for (int c = 0; c < iris.numClasses(); c++) {
+        Assert.assertEquals(5, classCounts.getDouble(c), 1.0);
+      }
+    }
+  }
+
+  /**
+   * Compare each mini-batch with the corresponding rows of the full DataSet conversion.
+   *
+   * @param data Input data
+   * @param batchSize Batch size
+   */
+  private void checkBatches(Instances data, int batchSize) throws Exception {
+    final DataSet expected = Utils.instancesToDataSet(data);
+    final DataSetIterator it = dii.getDataSetIterator(data, SEED, batchSize);
+
+    int offset = 0;
+    while (offset < data.numInstances()) {
+      final DataSet next = it.next();
+      final int size = (int) next.getFeatures().size(0);
+      for (int i = 0; i < size; i++) {
+        Assert.assertEquals(expected.getFeatures().getRow(offset + i),
+            next.getFeatures().getRow(i));
+        Assert.assertEquals(expected.getLabels().getRow(offset + i), next.getLabels().getRow(i));
+      }
+      offset += size;
+    }
+    Assert.assertEquals(data.numInstances(), offset);
+    Assert.assertFalse(it.hasNext());
+  }
+}
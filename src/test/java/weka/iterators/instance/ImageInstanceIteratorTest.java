@@ -19,13 +19,21 @@
 package weka.iterators.instance;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.datavec.image.recordreader.ImageRecordReader;
+import org.deeplearning4j.datasets.iterator.AsyncDataSetIterator;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -36,6 +44,9 @@ import weka.core.Attribute;
 import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.InvalidInputDataException;
+import weka.dl4j.Preferences;
+import weka.dl4j.iterators.dataset.DecodedImageCache;
+import weka.dl4j.iterators.dataset.ImageDataSetIterator;
 import weka.dl4j.iterators.instance.ImageInstanceIterator;
 import weka.util.DatasetLoader;
 
@@ -55,6 +66,11 @@ public class ImageInstanceIteratorTest {
    */
   private ImageInstanceIterator idi;
 
+  /**
+   * Temporary cache directory, deleted after each test
+   */
+  private File cacheDir;
+
   /**
    * Initialize iterator
    */
@@ -68,6 +84,19 @@ public class ImageInstanceIteratorTest {
     this.idi.setHeight(28);
   }
 
+  /**
+   * Delete the temporary cache directory
+   */
+  @After
+  public void cleanup() throws IOException {
+    if (cacheDir != null) {
+      try (Stream<Path> paths = Files.walk(cacheDir.toPath())) {
+        paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+      }
+      cacheDir = null;
+    }
+  }
+
   /**
    * Test validate method with valid data
    *
@@ -178,6 +207,200 @@ public class ImageInstanceIteratorTest {
     }
   }
 
+  /**
+   * Test that parallel decoding yields the same batches in the same order as a single worker, and
+   * that reordering is deterministic per seed.
+   *
+   * @throws Exception IO error.
+   */
+  @Test
+  public void testParallelDecoding() throws Exception {
+    Instances data = DatasetLoader.loadMiniMnistMeta();
+    data.setClassIndex(data.numAttributes() - 1);
+    ImageInstanceIterator imgIter = DatasetLoader.loadMiniMnistImageIterator();
+    final int batchSize = 7;
+
+    imgIter.setNumDecodeWorkers(1);
+    imgIter.setDecodePrefetchBatches(1);
+    List<DataSet> sequential = collectBatches(imgIter.getDataSetIterator(data, SEED, batchSize));
+
+    imgIter.setNumDecodeWorkers(4);
+    imgIter.setDecodePrefetchBatches(3);
+    ImageDataSetIterator it =
+        (ImageDataSetIterator) imgIter.getDataSetIterator(data, SEED, batchSize);
+    List<DataSet> parallel = collectBatches(it);
+    Assert.assertTrue(it.getThroughput() > 0);
+
+    Assert.assertEquals(sequential.size(), parallel.size());
+    for (int i = 0; i < sequential.size(); i++) {
+      Assert.assertEquals(sequential.get(i).getFeatures(), parallel.get(i).getFeatures());
+      Assert.assertEquals(sequential.get(i).getLabels(), parallel.get(i).getLabels());
+    }
+
+    // Reordered epochs only depend on the seed
+    ImageDataSetIterator shuffled1 =
+        (ImageDataSetIterator) imgIter.getDataSetIterator(data, SEED, batchSize);
+    ImageDataSetIterator shuffled2 =
+        (ImageDataSetIterator) imgIter.getDataSetIterator(data, SEED, batchSize);
+    shuffled1.enableShuffling(false);
+    shuffled2.enableShuffling(false);
+    shuffled1.setReorderingAllowed(true);
+    shuffled2.setReorderingAllowed(true);
+    List<DataSet> batches1 = collectBatches(shuffled1);
+    List<DataSet> batches2 = collectBatches(shuffled2);
+    for (int i = 0; i < batches1.size(); i++) {
+      Assert.assertEquals(batches1.get(i).getFeatures(), batches2.get(i).getFeatures());
+    }
+    Assert.assertNotEquals(sequential.get(0).getFeatures(), batches1.get(0).getFeatures());
+  }
+
+  /**
+   * Test that a nominal class with a single value is one-hot encoded instead of being treated as
+   * a regression target, and that the iterator decodes again after its thread pool was released
+   * at the end of an epoch.
+   *
+   * @throws Exception IO error.
+   */
+  @Test
+  public void testSingleValuedNominalClass() throws Exception {
+    Instances data = DatasetLoader.loadMiniMnistMeta();
+    final File[] files = new File[10];
+    for (int i = 0; i < files.length; i++) {
+      files[i] = new File(idi.getImagesLocation(), data.instance(i).stringValue(0));
+    }
+    // Class index 0 of the only class value
+    final double[] targets = new double[files.length];
+    ImageDataSetIterator it = new ImageDataSetIterator(files, targets,
+        Collections.singletonList("digit"), false, 28, 28, 1, false, null, 4, 2, 1, SEED);
+    for (int epoch = 0; epoch < 2; epoch++) {
+      List<DataSet> batches = collectBatches(it);
+      Assert.assertEquals(3, batches.size());
+      for (DataSet batch : batches) {
+        Assert.assertEquals(batch.numExamples(), batch.getLabels().sumNumber().intValue());
+      }
+      it.reset();
+    }
+  }
+
+  /**
+   * Test that images read from the decoded image cache equal freshly decoded images.
+   *
+   * @throws Exception IO error.
+   */
+  @Test
+  public void testDecodedImageCache() throws Exception {
+    Instances data = DatasetLoader.loadMiniMnistMeta();
+    data.setClassIndex(data.numAttributes() - 1);
+    ImageInstanceIterator imgIter = DatasetLoader.loadMiniMnistImageIterator();
+    final int batchSize = 8;
+    List<DataSet> decoded = collectBatches(imgIter.getDataSetIterator(data, SEED, batchSize));
+
+    cacheDir = Files.createTempDirectory("decoded-image-cache").toFile();
+    imgIter.setCacheDecodedImages(true);
+    imgIter.setDecodedImageCacheLocation(cacheDir);
+    // First run fills the cache, second run reads from it
+    for (int run = 0; run < 2; run++) {
+      List<DataSet> cached = collectBatches(imgIter.getDataSetIterator(data, SEED, batchSize));
+      Assert.assertEquals(decoded.size(), cached.size());
+      for (int i = 0; i < decoded.size(); i++) {
+        Assert.assertEquals(decoded.get(i).getFeatures(), cached.get(i).getFeatures());
+        Assert.assertEquals(decoded.get(i).getLabels(), cached.get(i).getLabels());
+      }
+    }
+
+    DecodedImageCache cache = DecodedImageCache.open(cacheDir, imgIter.getHeight(),
+        imgIter.getWidth(), imgIter.getNumChannels(), imgIter.getChannelsLast(), "");
+    File firstImage = new File(imgIter.getImagesLocation(), data.instance(0).stringValue(0));
+    Assert.assertNotNull(cache.get(firstImage.getAbsoluteFile()));
+
+    // A closed cache is reopened on the next access
+    cache.close();
+    Assert.assertNotNull(cache.get(firstImage.getAbsoluteFile()));
+    cache.close();
+  }
+
+  /**
+   * Test that no more images are added once the data file of the decoded image cache reaches its
+   * maximum size.
+   *
+   * @throws Exception IO error.
+   */
+  @Test
+  public void testDecodedImageCacheMaxSize() throws Exception {
+    Instances data = DatasetLoader.loadMiniMnistMeta();
+    ImageInstanceIterator imgIter = DatasetLoader.loadMiniMnistImageIterator();
+    final int imageSize = imgIter.getHeight() * imgIter.getWidth() * imgIter.getNumChannels();
+    final long maxBytes = Preferences.DECODED_IMAGE_CACHE_MAX_BYTES;
+    cacheDir = Files.createTempDirectory("decoded-image-cache").toFile();
+    try {
+      Preferences.DECODED_IMAGE_CACHE_MAX_BYTES = 3L * imageSize;
+      imgIter.setCacheDecodedImages(true);
+      imgIter.setDecodedImageCacheLocation(cacheDir);
+      collectBatches(imgIter.getDataSetIterator(data, SEED, 8));
+    } finally {
+      Preferences.DECODED_IMAGE_CACHE_MAX_BYTES = maxBytes;
+    }
+    File[] dataFiles = cacheDir.listFiles((dir, name) -> name.endsWith(".bin"));
+    Assert.assertEquals(1, dataFiles.length);
+    Assert.assertEquals(3L * imageSize, dataFiles[0].length());
+  }
+
+  /**
+   * Collect all batches of an iterator.
+   *
+   * @param it Iterator
+   * @return Batches
+   */
+  private List<DataSet> collectBatches(DataSetIterator it) {
+    List<DataSet> batches = new ArrayList<>();
+    while (it.hasNext()) {
+      batches.add(Utils.getNext(it));
+    }
+    return batches;
+  }
+
+  /**
+   * Regression test for https://github.com/eclipse/deeplearning4j/issues/8976: batches of an
+   * asynchronous iterator live in reused workspaces and must stay valid after the next batch has
+   * been fetched. Batches that do not live in a workspace must be handed over without a copy.
+   *
+   * @throws Exception IO error.
+   */
+  @Test
+  public void testAsyncBatchesStayValid() throws Exception {
+    Instances data = DatasetLoader.loadMiniMnistMeta();
+    data.setClassIndex(data.numAttributes() - 1);
+    ImageInstanceIterator imgIter = DatasetLoader.loadMiniMnistImageIterator();
+    final int batchSize = 4;
+
+    List<DataSet> reference = new ArrayList<>();
+    DataSetIterator it = imgIter.getDataSetIterator(data, SEED, batchSize);
+    while (it.hasNext()) {
+      DataSet next = it.next();
+      Assert.assertSame(next.getFeatures(), Utils.detach(next).getFeatures());
+      reference.add(next);
+    }
+
+    // Hold on to all batches until the asynchronous iterator is exhausted
+    List<DataSet> batches = new ArrayList<>();
+    DataSetIterator asyncIt =
+        new AsyncDataSetIterator(imgIter.getDataSetIterator(data, SEED, batchSize), 2, true);
+    while (asyncIt.hasNext()) {
+      batches.add(Utils.getNext(asyncIt));
+    }
+    asyncIt.reset();
+    while (asyncIt.hasNext()) {
+      Utils.getNext(asyncIt);
+    }
+
+    Assert.assertEquals(reference.size(), batches.size());
+    for (int i = 0; i < batches.size(); i++) {
+      Assert.assertFalse(batches.get(i).getFeatures().isAttached());
+      Assert.assertEquals(reference.get(i).getFeatures(), batches.get(i).getFeatures());
+      Assert.assertEquals(reference.get(i).getLabels(), batches.get(i).getLabels());
+    }
+  }
+
   /**
    * Counts the number of iterations an {@see ImageInstanceIterator}
    *
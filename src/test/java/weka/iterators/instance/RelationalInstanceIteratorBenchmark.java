@@ -0,0 +1,74 @@
+/*
+ * WekaDeeplearning4j is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * WekaDeeplearning4j is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with WekaDeeplearning4j.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ * RelationalInstanceIteratorBenchmark.java
+ * Copyright (C) 2026 University of Waikato, Hamilton, New Zealand
+ */
+
+package weka.iterators.instance;
+
+import lombok.extern.log4j.Log4j2;
+import org.junit.Test;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import weka.classifiers.functions.dl4j.Utils;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.dl4j.iterators.instance.sequence.RelationalInstanceIterator;
+import weka.util.TestUtil;
+
+/**
+ * Compares the throughput of the bulk relational batch construction with the per-row reference
+ * construction of {@link RelationalInstanceIteratorTest}. Run with {@code gradle benchmark}.
+ *
+ * @author agent
+ */
+@Log4j2
+public class RelationalInstanceIteratorBenchmark {
+
+  @Test
+  public void benchmarkBulkBatches() throws Exception {
+    final int batchSize = 8;
+    final int truncateLength = 50;
+    final int numEpochs = 20;
+    final Instances data = TestUtil
+        .makeTestDatasetRelational(TestUtil.SEED, 20, 2, Attribute.NOMINAL, 1, 2, 2, 2, 100);
+    data.setClassIndex(data.numAttributes() - 1);
+    final RelationalInstanceIterator rii = new RelationalInstanceIterator();
+    rii.setTruncateLength(truncateLength);
+    final DataSetIterator it = rii.getDataSetIterator(data, TestUtil.SEED, batchSize);
+
+    int numBatches = 0;
+    long start = System.nanoTime();
+    for (int epoch = 0; epoch < numEpochs; epoch++) {
+      for (int from = 0; from < data.numInstances(); from += batchSize) {
+        RelationalInstanceIteratorTest.referenceBatch(data, from, batchSize, truncateLength);
+        numBatches++;
+      }
+    }
+    final double referenceRate = numBatches / ((System.nanoTime() - start) / 1e9);
+
+    numBatches = 0;
+    start = System.nanoTime();
+    for (int epoch = 0; epoch < numEpochs; epoch++) {
+      it.reset();
+      for (int from = 0; from < data.numInstances(); from += batchSize) {
+        Utils.getNext(it);
+        numBatches++;
+      }
+    }
+    final double bulkRate = numBatches / ((System.nanoTime() - start) / 1e9);
+    log.info("Relational batches/sec: per-row reference = {}, bulk = {}",
+        String.format("%.1f", referenceRate), String.format("%.1f", bulkRate));
+  }
+}
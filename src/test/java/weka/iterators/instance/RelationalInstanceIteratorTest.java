@@ -20,17 +20,24 @@ package weka.iterators.instance;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
 
 import java.util.Arrays;
 import lombok.extern.log4j.Log4j2;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
 import weka.classifiers.functions.dl4j.Utils;
 import weka.core.Attribute;
 import weka.core.Instances;
+import weka.dl4j.iterators.dataset.sequence.RelationalDataSetIterator;
 import weka.dl4j.iterators.instance.AbstractInstanceIterator;
 import weka.dl4j.iterators.instance.sequence.RelationalInstanceIterator;
 import weka.util.TestUtil;
@@ -128,6 +135,103 @@ public class RelationalInstanceIteratorTest {
     }
   }
 
+  /**
+   * Test that length bucketing keeps the order unless reordering is allowed and reduces padding
+   * otherwise.
+   *
+   * @throws Exception IO error.
+   */
+  @Test
+  public void testLengthBucketing() throws Exception {
+    final int batchSize = 4;
+    final DataSetIterator plain = rii.getDataSetIterator(data, TestUtil.SEED, batchSize);
+    rii.setLengthBucketWidth(5);
+    final DataSetIterator ordered = rii.getDataSetIterator(data, TestUtil.SEED, batchSize);
+    final RelationalDataSetIterator bucketed =
+        (RelationalDataSetIterator) rii.getDataSetIterator(data, TestUtil.SEED, batchSize);
+    bucketed.setReorderingAllowed(true);
+
+    long plainSteps = 0;
+    long bucketedSteps = 0;
+    int numExamples = 0;
+    while (plain.hasNext()) {
+      final DataSet expected = Utils.getNext(plain);
+      Assert.assertEquals(expected.getFeatures(), Utils.getNext(ordered).getFeatures());
+      final DataSet actual = Utils.getNext(bucketed);
+      plainSteps += expected.getFeaturesMaskArray().length();
+      bucketedSteps += actual.getFeaturesMaskArray().length();
+      numExamples += actual.numExamples();
+    }
+    Assert.assertEquals(data.numInstances(), numExamples);
+    Assert.assertTrue(bucketedSteps <= plainSteps);
+  }
+
+  /**
+   * Test that the bulk batch construction matches the per-row reference construction. The
+   * throughput of both is compared by {@link RelationalInstanceIteratorBenchmark}.
+   *
+   * @throws Exception IO error.
+   */
+  @Test
+  public void testBulkBatchesMatchReference() throws Exception {
+    final int batchSize = 8;
+    final int truncateLength = 50;
+    rii.setTruncateLength(truncateLength);
+    final DataSetIterator it = rii.getDataSetIterator(data, TestUtil.SEED, batchSize);
+
+    for (int from = 0; from < data.numInstances(); from += batchSize) {
+      final DataSet actual = Utils.getNext(it);
+      final DataSet expected = referenceBatch(data, from, batchSize, truncateLength);
+      assertEquals(expected.getFeatures(), actual.getFeatures());
+      assertEquals(expected.getLabels(), actual.getLabels());
+      assertEquals(expected.getFeaturesMaskArray(), actual.getFeaturesMaskArray());
+      assertEquals(expected.getLabelsMaskArray(), actual.getLabelsMaskArray());
+    }
+  }
+
+  /**
+   * Build a batch the per-row way: one INDArray per relational row, copied into the batch with
+   * index views.
+   *
+   * @param data Relational instances
+   * @param from Index of the first row
+   * @param batchSize Batch size
+   * @param truncateLength Maximum sequence length
+   * @return Batch
+   */
+  static DataSet referenceBatch(Instances data, int from, int batchSize, int truncateLength) {
+    final int size = Math.min(batchSize, data.numInstances() - from);
+    final int numFeatures = data.attribute(0).relation().numAttributes();
+    int maxLength = 0;
+    for (int i = 0; i < size; i++) {
+      maxLength = Math.max(maxLength, data.get(from + i).relationalValue(0).numInstances());
+    }
+    if (maxLength > truncateLength || maxLength == 0) {
+      maxLength = truncateLength;
+    }
+
+    INDArray features = Nd4j.create(new int[]{size, numFeatures, maxLength}, 'f');
+    INDArray labels = Nd4j.create(new int[]{size, data.numClasses(), maxLength}, 'f');
+    INDArray featuresMask = Nd4j.zeros(size, maxLength);
+    INDArray labelsMask = Nd4j.zeros(size, maxLength);
+    for (int i = 0; i < size; i++) {
+      final Instances rel = data.get(from + i).relationalValue(0);
+      if (rel.numInstances() == 0) {
+        continue;
+      }
+      final int lastIdx = Math.min(rel.numInstances(), maxLength);
+      INDArray seq = Nd4j.create(numFeatures, lastIdx);
+      for (int j = 0; j < lastIdx; j++) {
+        seq.putColumn(j, Nd4j.create(rel.get(j).toDoubleArray()));
+      }
+      features.put(new INDArrayIndex[]{point(i), all(), interval(0, lastIdx)}, seq);
+      featuresMask.get(new INDArrayIndex[]{point(i), interval(0, lastIdx)}).assign(1);
+      labels.putScalar(new int[]{i, (int) data.get(from + i).classValue(), lastIdx - 1}, 1.0);
+      labelsMask.putScalar(new int[]{i, lastIdx - 1}, 1.0);
+    }
+    return new DataSet(features, labels, featuresMask, labelsMask);
+  }
+
   /**
    * Counts the number of iterations
    *
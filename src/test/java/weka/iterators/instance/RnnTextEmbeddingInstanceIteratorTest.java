@@ -18,16 +18,20 @@
 
 package weka.iterators.instance;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import lombok.extern.log4j.Log4j2;
+import org.deeplearning4j.models.embeddings.wordvectors.WordVectors;
 import org.junit.Before;
 import org.junit.Test;
 import org.nd4j.linalg.api.ndarray.INDArray;
@@ -120,6 +124,35 @@ public class RnnTextEmbeddingInstanceIteratorTest {
         });
   }
 
+  /**
+   * Test that the pre-tokenized corpus yields identical batches in every epoch, whether it is kept
+   * on the heap or memory-mapped.
+   */
+  @Test
+  public void testPreTokenizedEpochs() throws Exception {
+    Instances data = DatasetLoader.loadReutersMinimal();
+    final int bs = 4;
+    final DataSetIterator it = tii.getDataSetIterator(data, TestUtil.SEED, bs);
+    tii.setMemoryMapCorpus(true);
+    final DataSetIterator itMapped = tii.getDataSetIterator(data, TestUtil.SEED, bs);
+
+    List<DataSet> firstEpoch = new ArrayList<>();
+    while (it.hasNext()) {
+      firstEpoch.add(it.next());
+    }
+    assertEquals(data.numInstances(), firstEpoch.stream().mapToInt(DataSet::numExamples).sum());
+
+    it.reset();
+    for (DataSet expected : firstEpoch) {
+      final DataSet actual = it.next();
+      final DataSet actualMapped = itMapped.next();
+      assertEquals(expected.getFeatures(), actual.getFeatures());
+      assertEquals(expected.getLabels(), actual.getLabels());
+      assertEquals(expected.getFeaturesMaskArray(), actualMapped.getFeaturesMaskArray());
+      assertEquals(expected.getFeatures(), actualMapped.getFeatures());
+    }
+  }
+
   /**
    * Test different word vector formats crafted by hand.
    */
@@ -145,4 +178,23 @@ public class RnnTextEmbeddingInstanceIteratorTest {
       assertTrue(ws.containsAll(words) && words.containsAll(ws));
     }
   }
+
+  /**
+   * Test that the word vector values are parsed correctly from all formats, both from the source
+   * file and from the binary cache.
+   */
+  @Test
+  public void testEmbeddingValuesAndCache() {
+    File embDir = new File("src/test/resources/embeddings/small");
+    for (File f : embDir.listFiles()) {
+      for (int run = 0; run < 2; run++) {
+        RnnTextEmbeddingInstanceIterator teii = new RnnTextEmbeddingInstanceIterator();
+        teii.setWordVectorLocation(f);
+        teii.initialize();
+        final WordVectors wv = teii.getWordVectors();
+        assertArrayEquals(new double[]{4, 5, 6, 7}, wv.getWordVector("christmas"), 1e-6);
+        assertArrayEquals(new double[]{3, 4, 5, 6}, wv.getWordVector("tree"), 1e-6);
+      }
+    }
+  }
 }
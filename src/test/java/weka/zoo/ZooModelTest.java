@@ -18,6 +18,8 @@
 
 package weka.zoo;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -25,6 +27,8 @@ import java.util.concurrent.TimeUnit;
 import javax.naming.OperationNotSupportedException;
 
 import lombok.extern.log4j.Log4j2;
+import org.apache.commons.io.FileUtils;
+import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import weka.classifiers.functions.Dl4jMlpClassifier;
@@ -43,6 +47,9 @@ import weka.filters.Filter;
 import weka.filters.unsupervised.attribute.Dl4jMlpFilter;
 import weka.util.DatasetLoader;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 class ModelDownloader implements Runnable {
@@ -233,6 +240,49 @@ public class ZooModelTest {
         log.info("Finished download zoo model weights");
     }
 
+    @Test
+    public void testInputShapeCheck() {
+        // Input shapes are checked on the configuration, without loading any weights
+        for (AbstractZooModel model : createDL4JModels()) {
+            assertTrue(model.isValidInputShape(2, model.getShape()[0]));
+        }
+
+        // Keras models are only available by loading them
+        KerasResNet kerasResNet = new KerasResNet();
+        try {
+            kerasResNet.isValidInputShape(2, kerasResNet.getShape()[0]);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testPretrainedWeightsStore() throws Exception {
+        File dir = Files.createTempDirectory("pretrained-store").toFile();
+        Dl4jLeNet leNet = new Dl4jLeNet();
+        leNet.setPretrainedType(PretrainedType.NONE);
+        ComputationGraph model = leNet.init(2, 42, new int[] {1, 28, 28}, false);
+        PretrainedWeightsStore store = new PretrainedWeightsStore(dir, "LeNet");
+        assertNull(store.load(1234L));
+
+        store.save(model, 1234L);
+        ComputationGraph loaded = store.load(1234L);
+        assertEquals(model.getConfiguration().toJson(), loaded.getConfiguration().toJson());
+        assertEquals(model.params(), loaded.params());
+
+        // A store extracted from a different file is ignored
+        assertNull(store.load(4321L));
+
+        // Checksums are cached until the file changes
+        File file = new File(dir, "LeNet.params");
+        long checksum = PretrainedWeightsStore.checksum(file);
+        assertTrue(new File(dir, "LeNet.params.adler32").exists());
+        assertEquals(checksum, PretrainedWeightsStore.checksum(file));
+
+        FileUtils.deleteDirectory(dir);
+    }
+
     // DL4J Model Tests
     @Test
     public void testAlexNetMnist() throws Exception {